@@ -21,6 +21,8 @@ import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.security.InvalidKeyException;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * Utility class for encrypting/decrypting
@@ -94,13 +96,29 @@ public final class CryptoUtil {
         }
     }
 
+    /**
+     * Generates the endpoint token for a channel, using the {@link EndpointTokenEngine} of the calling thread.
+     *
+     * @param uaid the UserAgent Id of the channel.
+     * @param channelId the channel id.
+     * @param key the key used for the underlying cypher.
+     * @return {@code String} the endpoint token, which decrypts to {@code uaid.channelId}.
+     */
     public static String endpointToken(final String uaid, final String channelId, final byte[] key) {
-        try {
-            final String path = uaid + "." + channelId;
-            return encrypt(key, path);
-        } catch (final Exception e) {
-            throw new RuntimeException(e);
-        }
+        return EndpointTokenEngine.forKey(key).endpointToken(uaid, channelId);
+    }
+
+    /**
+     * Generates the endpoint tokens for several channels of a UserAgent, using the {@link EndpointTokenEngine}
+     * of the calling thread.
+     *
+     * @param uaid the UserAgent Id of the channels.
+     * @param channelIds the channel ids.
+     * @param key the key used for the underlying cypher.
+     * @return {@code List<String>} the endpoint tokens, in the iteration order of the channel ids.
+     */
+    public static List<String> endpointTokens(final String uaid, final Collection<String> channelIds, final byte[] key) {
+        return EndpointTokenEngine.forKey(key).endpointTokens(uaid, channelIds);
     }
 
 }
@@ -0,0 +1,190 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.util;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * Generates endpoint tokens, reusing its cipher state and buffers between tokens.
+ * <p>
+ * The tokens are the same as those of {@link CryptoUtil#endpointToken(String, String, byte[])}: the
+ * {@code uaid.channelId} path encrypted with AES-GCM under a random 16 byte IV, prefixed with the IV and URL safe
+ * base64 encoded, so they can be decrypted by {@link CryptoUtil#decrypt(byte[], String)}. Instead of setting up a
+ * new cipher for every token, an engine re-initialises its Bouncy Castle GCM cipher with the IV of each token, and
+ * encrypts and encodes into buffers it grows as needed. As the encoding only produces URL safe characters, the
+ * tokens need no further URL encoding.
+ * <p>
+ * An engine is not thread safe. {@link #forKey(byte[])} returns one for the calling thread.
+ */
+public final class EndpointTokenEngine {
+
+    private static final int KEY_SIZE = 32;
+    private static final int IV_SIZE = 16;
+    private static final int TAG_SIZE = 16;
+    private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes();
+    private static final char PAD = '.';
+    private static final byte[] NO_ASSOCIATED_DATA = new byte[0];
+
+    private static final ThreadLocal<EndpointTokenEngine> ENGINES = new ThreadLocal<EndpointTokenEngine>();
+
+    private final byte[] key;
+    private final KeyParameter keyParameter;
+    private final GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+    private final SecureRandom random;
+    private final byte[] iv = new byte[IV_SIZE];
+    private byte[] plain = new byte[128];
+    private byte[] sealed = new byte[IV_SIZE + 128 + TAG_SIZE];
+    private char[] encoded = new char[(sealed.length + 2) / 3 * 4];
+
+    /**
+     * Returns the engine of the calling thread for the passed-in key, creating it if the thread has no engine
+     * yet or its engine uses another key.
+     *
+     * @param key the key used for the underlying cipher, which must be 32 bytes.
+     * @return {@code EndpointTokenEngine} the engine of the calling thread.
+     */
+    public static EndpointTokenEngine forKey(final byte[] key) {
+        final EndpointTokenEngine engine = ENGINES.get();
+        if (engine != null && Arrays.equals(engine.key, key)) {
+            return engine;
+        }
+        final EndpointTokenEngine created = new EndpointTokenEngine(key);
+        ENGINES.set(created);
+        return created;
+    }
+
+    /**
+     * Sole constructor.
+     *
+     * @param key the key used for the underlying cipher, which must be 32 bytes.
+     */
+    public EndpointTokenEngine(final byte[] key) {
+        ArgumentUtil.checkNotNull(key, "key");
+        if (key.length != KEY_SIZE) {
+            throw new IllegalArgumentException("key must be " + KEY_SIZE + " bytes");
+        }
+        this.key = key.clone();
+        keyParameter = new KeyParameter(this.key);
+        try {
+            random = SecureRandom.getInstance("SHA1PRNG");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Generates the endpoint token for a channel.
+     *
+     * @param uaid the UserAgent Id of the channel.
+     * @param channelId the channel id.
+     * @return {@code String} the endpoint token.
+     */
+    public String endpointToken(final String uaid, final String channelId) {
+        final int length = uaid.length() + 1 + channelId.length();
+        ensureCapacity(length);
+        int pos = copyAscii(uaid, plain, 0);
+        plain[pos++] = '.';
+        copyAscii(channelId, plain, pos);
+        random.nextBytes(iv);
+        final int sealedLength = seal(length);
+        return new String(encoded, 0, encode(sealedLength));
+    }
+
+    /**
+     * Generates the endpoint tokens for several channels of a UserAgent.
+     *
+     * @param uaid the UserAgent Id of the channels.
+     * @param channelIds the channel ids.
+     * @return {@code List<String>} the endpoint tokens, in the iteration order of the channel ids.
+     */
+    public List<String> endpointTokens(final String uaid, final Collection<String> channelIds) {
+        final List<String> tokens = new ArrayList<String>(channelIds.size());
+        for (String channelId : channelIds) {
+            tokens.add(endpointToken(uaid, channelId));
+        }
+        return tokens;
+    }
+
+    private void ensureCapacity(final int length) {
+        if (plain.length < length) {
+            plain = new byte[length];
+            sealed = new byte[IV_SIZE + length + TAG_SIZE];
+            encoded = new char[(sealed.length + 2) / 3 * 4];
+        }
+    }
+
+    private static int copyAscii(final String s, final byte[] to, final int offset) {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            // like String.getBytes with US-ASCII, which replaces other characters.
+            to[offset + i] = c < 128 ? (byte) c : (byte) '?';
+        }
+        return offset + length;
+    }
+
+    /**
+     * Encrypts the plain text into the sealed buffer as IV, cipher text and tag.
+     */
+    private int seal(final int length) {
+        System.arraycopy(iv, 0, sealed, 0, IV_SIZE);
+        cipher.init(true, new AEADParameters(keyParameter, TAG_SIZE * 8, iv, NO_ASSOCIATED_DATA));
+        int out = IV_SIZE + cipher.processBytes(plain, 0, length, sealed, IV_SIZE);
+        try {
+            out += cipher.doFinal(sealed, out);
+        } catch (final InvalidCipherTextException e) {
+            // only thrown when decrypting.
+            throw new IllegalStateException(e);
+        }
+        return out;
+    }
+
+    private int encode(final int length) {
+        int out = 0;
+        int i = 0;
+        for (; i + 3 <= length; i += 3) {
+            final int bits = (sealed[i] & 0xff) << 16 | (sealed[i + 1] & 0xff) << 8 | (sealed[i + 2] & 0xff);
+            encoded[out++] = (char) BASE64[bits >>> 18];
+            encoded[out++] = (char) BASE64[(bits >>> 12) & 0x3f];
+            encoded[out++] = (char) BASE64[(bits >>> 6) & 0x3f];
+            encoded[out++] = (char) BASE64[bits & 0x3f];
+        }
+        final int remaining = length - i;
+        if (remaining == 1) {
+            final int bits = (sealed[i] & 0xff) << 16;
+            encoded[out++] = (char) BASE64[bits >>> 18];
+            encoded[out++] = (char) BASE64[(bits >>> 12) & 0x3f];
+            encoded[out++] = PAD;
+            encoded[out++] = PAD;
+        } else if (remaining == 2) {
+            final int bits = (sealed[i] & 0xff) << 16 | (sealed[i + 1] & 0xff) << 8;
+            encoded[out++] = (char) BASE64[bits >>> 18];
+            encoded[out++] = (char) BASE64[(bits >>> 12) & 0x3f];
+            encoded[out++] = (char) BASE64[(bits >>> 6) & 0x3f];
+            encoded[out++] = PAD;
+        }
+        return out;
+    }
+
+}
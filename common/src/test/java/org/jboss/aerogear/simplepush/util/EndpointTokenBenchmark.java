@@ -0,0 +1,107 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compares generating endpoint tokens with a new cipher per token, as {@link CryptoUtil#encrypt(byte[], String)}
+ * does, with the {@link EndpointTokenEngine}, single and batched. Reports tokens per second and bytes allocated
+ * per token for each.
+ * <p>
+ * Not run as part of the build. Run its main method with the test classpath of this module, optionally passing
+ * the number of tokens to generate per variant.
+ */
+public final class EndpointTokenBenchmark {
+
+    private static final int CHANNELS_PER_HELLO = 50;
+
+    private EndpointTokenBenchmark() {
+    }
+
+    private interface Generator {
+        void generate(String uaid, List<String> channelIds) throws Exception;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int tokens = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final byte[] key = CryptoUtil.secretKey("benchmark", "some salt for the benchmark".getBytes());
+        final String uaid = UUID.randomUUID().toString();
+        final List<String> channelIds = new ArrayList<String>(CHANNELS_PER_HELLO);
+        for (int i = 0; i < CHANNELS_PER_HELLO; i++) {
+            channelIds.add(UUID.randomUUID().toString());
+        }
+        final Generator cipherPerToken = new Generator() {
+            @Override
+            public void generate(final String uaid, final List<String> channelIds) throws Exception {
+                for (String channelId : channelIds) {
+                    CryptoUtil.encrypt(key, uaid + "." + channelId);
+                }
+            }
+        };
+        final Generator engine = new Generator() {
+            @Override
+            public void generate(final String uaid, final List<String> channelIds) {
+                for (String channelId : channelIds) {
+                    CryptoUtil.endpointToken(uaid, channelId, key);
+                }
+            }
+        };
+        final Generator batch = new Generator() {
+            @Override
+            public void generate(final String uaid, final List<String> channelIds) {
+                CryptoUtil.endpointTokens(uaid, channelIds, key);
+            }
+        };
+        // warm up all variants before measuring any of them.
+        for (int i = 0; i < 3; i++) {
+            run("cipher-per-token", cipherPerToken, uaid, channelIds, tokens / 10, false);
+            run("engine", engine, uaid, channelIds, tokens / 10, false);
+            run("engine-batch", batch, uaid, channelIds, tokens / 10, false);
+        }
+        run("cipher-per-token", cipherPerToken, uaid, channelIds, tokens, true);
+        run("engine", engine, uaid, channelIds, tokens, true);
+        run("engine-batch", batch, uaid, channelIds, tokens, true);
+    }
+
+    private static void run(final String name, final Generator generator, final String uaid, final List<String> channelIds,
+            final int tokens, final boolean report) throws Exception {
+        final int hellos = Math.max(1, tokens / channelIds.size());
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < hellos; i++) {
+            generator.generate(uaid, channelIds);
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = allocatedBytes() - allocatedBefore;
+        if (report) {
+            final long generated = (long) hellos * channelIds.size();
+            System.out.println(name + " tokens=" + generated
+                    + " throughput=" + (generated * 1000000000L / Math.max(1, elapsed)) + " tokens/s"
+                    + (allocated >= 0 ? " allocated=" + (allocated / generated) + " bytes/token" : ""));
+        }
+    }
+
+    private static long allocatedBytes() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return Long.MIN_VALUE;
+    }
+
+}
@@ -0,0 +1,91 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.util;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class EndpointTokenEngineTest {
+
+    private static final byte[] KEY = CryptoUtil.secretKey("key", "some salt for the server private".getBytes());
+
+    @Test
+    public void tokenDecryptsToPath() throws Exception {
+        final String uaid = UUID.randomUUID().toString();
+        final String channelId = UUID.randomUUID().toString();
+        final String token = CryptoUtil.endpointToken(uaid, channelId, KEY);
+        assertThat(CryptoUtil.decrypt(KEY, token), is(equalTo(uaid + "." + channelId)));
+    }
+
+    @Test
+    public void tokensOfAllLengthsDecrypt() throws Exception {
+        final EndpointTokenEngine engine = new EndpointTokenEngine(KEY);
+        final StringBuilder channelId = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            final String token = engine.endpointToken("uaid", channelId.toString());
+            assertThat(CryptoUtil.decrypt(KEY, token), is(equalTo("uaid." + channelId)));
+            assertThat(URLEncoder.encode(token, "US-ASCII"), is(equalTo(token)));
+            channelId.append((char) ('a' + i % 26));
+        }
+    }
+
+    @Test
+    public void nonAsciiCharactersAreReplaced() throws Exception {
+        final String token = CryptoUtil.endpointToken("uaid", "channél", KEY);
+        assertThat(CryptoUtil.decrypt(KEY, token), is(equalTo("uaid.chann?l")));
+    }
+
+    @Test
+    public void tokensUseRandomIvs() throws Exception {
+        final EndpointTokenEngine engine = new EndpointTokenEngine(KEY);
+        assertThat(engine.endpointToken("uaid", "channelId"), is(not(equalTo(engine.endpointToken("uaid", "channelId")))));
+    }
+
+    @Test
+    public void batch() throws Exception {
+        final String uaid = UUID.randomUUID().toString();
+        final List<String> channelIds = Arrays.asList(UUID.randomUUID().toString(), UUID.randomUUID().toString(),
+                UUID.randomUUID().toString());
+        final List<String> tokens = CryptoUtil.endpointTokens(uaid, channelIds, KEY);
+        assertThat(tokens.size(), is(3));
+        for (int i = 0; i < channelIds.size(); i++) {
+            assertThat(CryptoUtil.decrypt(KEY, tokens.get(i)), is(equalTo(uaid + "." + channelIds.get(i))));
+        }
+    }
+
+    @Test
+    public void enginePerThreadAndKey() throws Exception {
+        final EndpointTokenEngine engine = EndpointTokenEngine.forKey(KEY);
+        assertThat(EndpointTokenEngine.forKey(KEY.clone()), is(sameInstance(engine)));
+        final byte[] otherKey = CryptoUtil.secretKey("other", "some salt for the server private".getBytes());
+        final EndpointTokenEngine other = EndpointTokenEngine.forKey(otherKey);
+        assertThat(other, is(not(sameInstance(engine))));
+        assertThat(CryptoUtil.decrypt(otherKey, other.endpointToken("uaid", "channelId")), is(equalTo("uaid.channelId")));
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void keyMustBe32Bytes() {
+        new EndpointTokenEngine(new byte[16]);
+    }
+
+}
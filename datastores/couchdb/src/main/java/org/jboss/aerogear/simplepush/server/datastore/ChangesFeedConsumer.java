@@ -0,0 +1,204 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.UpdateConflictException;
+import org.ektorp.changes.ChangesCommand;
+import org.ektorp.changes.ChangesFeed;
+import org.ektorp.changes.DocumentChange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Consumes the continuous <a href="http://wiki.apache.org/couchdb/HTTP_database_API#Changes">_changes</a>
+ * feed of a CouchDB database and passes every change to a {@link Listener}.
+ * <p>
+ * The sequence number of the last processed change is checkpointed in a {@code _local} document, which
+ * is not replicated and does not show up in the changes feed itself, so that a restarted consumer resumes
+ * where it stopped instead of rescanning the whole database. When no checkpoint exists the consumer starts
+ * from the current update sequence of the database. If the feed is disconnected it is reopened from the
+ * last processed sequence.
+ */
+public class ChangesFeedConsumer {
+
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 100;
+    private static final int HEARTBEAT_MILLIS = 5000;
+    private static final long POLL_MILLIS = 1000;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final String SEQ_FIELD = "seq";
+
+    private final Logger logger = LoggerFactory.getLogger(ChangesFeedConsumer.class);
+    private final CouchDbConnector db;
+    private final String checkpointId;
+    private final Listener listener;
+    private final int checkpointInterval;
+    private final Thread thread;
+    private volatile boolean running;
+    private volatile ChangesFeed feed;
+    private volatile int lastSequence = -1;
+    private int checkpointedSequence = -1;
+
+    /**
+     * Receives the changes read from the feed.
+     */
+    public interface Listener {
+
+        /**
+         * Called for every change, in sequence order, from the consumer's thread.
+         *
+         * @param change the {@link DocumentChange}.
+         */
+        void onChange(DocumentChange change);
+    }
+
+    /**
+     * Sole constructor.
+     *
+     * @param db the {@link CouchDbConnector} for the database whose changes should be consumed.
+     * @param checkpointName the name of the {@code _local} document that holds the checkpoint. Each
+     *        consumer of the same database must use a different name.
+     * @param listener the {@link Listener} that changes are passed to.
+     * @param checkpointInterval the number of changes to process between checkpoints.
+     */
+    public ChangesFeedConsumer(final CouchDbConnector db, final String checkpointName, final Listener listener,
+            final int checkpointInterval) {
+        this.db = db;
+        this.checkpointId = "_local/" + checkpointName;
+        this.listener = listener;
+        this.checkpointInterval = checkpointInterval;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "simplepush-couchdb-changes");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts consuming changes on a background thread.
+     */
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stops consuming changes and writes a final checkpoint.
+     */
+    public void stop() {
+        running = false;
+        final ChangesFeed current = feed;
+        if (current != null) {
+            current.cancel();
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the sequence number of the last processed change.
+     *
+     * @return {@code int} the last processed sequence number, or -1 if no change has been processed yet.
+     */
+    public int lastSequence() {
+        return lastSequence;
+    }
+
+    private void consume() {
+        lastSequence = readCheckpoint();
+        checkpointedSequence = lastSequence;
+        while (running) {
+            try {
+                feed = db.changesFeed(command());
+                while (running && feed.isAlive()) {
+                    final DocumentChange change = feed.next(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (change != null) {
+                        listener.onChange(change);
+                        lastSequence = change.getSequence();
+                        if (lastSequence - checkpointedSequence >= checkpointInterval) {
+                            writeCheckpoint();
+                        }
+                    }
+                }
+            } catch (final InterruptedException e) {
+                // either the feed was disconnected or stop() was called.
+            } catch (final RuntimeException e) {
+                logger.warn("Error while consuming changes feed of [" + db.getDatabaseName() + "]", e);
+            } finally {
+                if (feed != null) {
+                    feed.cancel();
+                }
+            }
+            writeCheckpoint();
+            if (running) {
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (final InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    private ChangesCommand command() {
+        final ChangesCommand.Builder builder = new ChangesCommand.Builder().continuous(true).heartbeat(HEARTBEAT_MILLIS);
+        if (lastSequence >= 0) {
+            builder.since(lastSequence);
+        }
+        return builder.build();
+    }
+
+    private int readCheckpoint() {
+        try {
+            final ObjectNode checkpoint = db.find(ObjectNode.class, checkpointId);
+            return checkpoint == null ? -1 : checkpoint.get(SEQ_FIELD).asInt();
+        } catch (final RuntimeException e) {
+            logger.warn("Could not read checkpoint [" + checkpointId + "], starting from the current sequence", e);
+            return -1;
+        }
+    }
+
+    private void writeCheckpoint() {
+        final int sequence = lastSequence;
+        if (sequence == checkpointedSequence) {
+            return;
+        }
+        try {
+            ObjectNode checkpoint = db.find(ObjectNode.class, checkpointId);
+            if (checkpoint == null) {
+                checkpoint = JsonNodeFactory.instance.objectNode();
+                checkpoint.put("_id", checkpointId);
+                checkpoint.put(SEQ_FIELD, sequence);
+                db.create(checkpoint);
+            } else {
+                checkpoint.put(SEQ_FIELD, sequence);
+                db.update(checkpoint);
+            }
+            checkpointedSequence = sequence;
+        } catch (final UpdateConflictException e) {
+            logger.warn("Checkpoint [" + checkpointId + "] is being written by another consumer");
+        } catch (final RuntimeException e) {
+            logger.warn("Could not write checkpoint [" + checkpointId + "]", e);
+        }
+    }
+
+}
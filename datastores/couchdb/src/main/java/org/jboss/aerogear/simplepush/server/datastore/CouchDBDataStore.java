@@ -12,24 +12,33 @@
  */
 package org.jboss.aerogear.simplepush.server.datastore;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
-import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.ektorp.BulkDeleteDocument;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.DocumentOperationResult;
+import org.ektorp.UpdateConflictException;
 import org.ektorp.ViewQuery;
 import org.ektorp.ViewResult;
 import org.ektorp.ViewResult.Row;
+import org.ektorp.changes.DocumentChange;
 import org.ektorp.http.HttpClient;
 import org.ektorp.http.StdHttpClient;
 import org.ektorp.impl.StdCouchDbConnector;
@@ -43,23 +52,71 @@ import org.jboss.aerogear.simplepush.server.DefaultChannel;
 
 /**
  * DataStore that uses a CouchDB database for storage.
+ * <p>
+ * All documents have deterministic ids so that the operations used when handling notifications,
+ * {@link #updateVersion(String, long)}, {@link #saveUnacknowledged(String, long)} and
+ * {@link #getChannel(String)}, only need to get or put documents by id:
+ * <ul>
+ * <li>{@code server} holds the server's private key salt.</li>
+ * <li>{@code channel:<channelId>} holds the UserAgent Id, endpoint token and version of a channel.</li>
+ * <li>{@code token:<endpointToken>} maps an endpoint token to the id of its channel.</li>
+ * <li>{@code acks:<uaid>} holds the unacknowledged notifications of a UserAgent as a map of
+ * channelId to version.</li>
+ * <li>{@code useragent:<uaid>} holds the time the UserAgent was last seen.</li>
+ * </ul>
+ * Concurrent modifications are detected using document revisions, and read-modify-write operations are
+ * retried when a conflict is detected. Batches of unacknowledged notifications for multiple UserAgents are
+ * written using a single {@code _bulk_docs} request. The {@link Views} are only queried when all the channels
+ * of a UserAgent are needed.
+ * <p>
+ * When constructed with a node id, {@code channel:} and {@code token:} documents are additionally cached
+ * in memory. The cache is kept consistent with writes made by other server instances by consuming the
+ * database's changes feed using a {@link ChangesFeedConsumer}, and entries whose revision differs from the
+ * changed document's revision are evicted. The sequence of the last processed change is checkpointed per
+ * node id so that a restarted node does not replay the whole feed.
  */
-public class CouchDBDataStore implements DataStore {
+public class CouchDBDataStore implements BatchDataStore, LastSeenDataStore {
 
+    private static final String SERVER_ID = "server";
+    private static final String CHANNEL_PREFIX = "channel:";
+    private static final String TOKEN_PREFIX = "token:";
+    private static final String ACKS_PREFIX = "acks:";
+    private static final String USERAGENT_PREFIX = "useragent:";
+    private static final String USERAGENT_TYPE = "useragent";
+    private static final String ID_FIELD = "_id";
+    private static final String REV_FIELD = "_rev";
     private static final String UAID_FIELD = "uaid";
     private static final String TYPE_FIELD = "type";
     private static final String TOKEN_FIELD = "token";
     private static final String CHID_FIELD = "chid";
     private static final String VERSION_FIELD = "version";
-    private static final String DOC_FIELD = "doc";
+    private static final String SALT_FIELD = "salt";
+    private static final String ACKS_FIELD = "acks";
+    private static final String LAST_SEEN_FIELD = "lastSeen";
+    private static final int MAX_CACHED_DOCUMENTS = 100000;
 
     private final HttpClient httpClient;
     private final StdCouchDbInstance stdCouchDbInstance;
     private final StdCouchDbConnector db;
     private final DesignDocument designDocument;
-    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    private final ConcurrentMap<String, ObjectNode> cache;
+    private final AtomicLong invalidations = new AtomicLong();
+    private final ChangesFeedConsumer changesFeedConsumer;
 
     public CouchDBDataStore(final String url, final String dbName) {
+        this(url, dbName, null);
+    }
+
+    /**
+     * Creates a CouchDBDataStore which caches channels in memory when a {@code nodeId} is specified.
+     *
+     * @param url the url of the CouchDB server.
+     * @param dbName the name of the database.
+     * @param nodeId an id which is unique among the server instances sharing the database and stable across
+     *        restarts of this instance. It is used to name the checkpoint of the changes feed. If {@code null}
+     *        no caching is performed.
+     */
+    public CouchDBDataStore(final String url, final String dbName, final String nodeId) {
         try {
             httpClient = new StdHttpClient.Builder().url(url).build();
         } catch (final MalformedURLException e) {
@@ -68,59 +125,165 @@ public class CouchDBDataStore implements DataStore {
         stdCouchDbInstance = new StdCouchDbInstance(httpClient);
         db = new StdCouchDbConnector(dbName, stdCouchDbInstance);
         db.createDatabaseIfNotExists();
-        designDocument = new DesignDocument("_design/channels");
-        addView(designDocument, Views.CHANNEL);
-        addView(designDocument, Views.UAID);
-        addView(designDocument, Views.TOKEN);
-        addView(designDocument, Views.UNACKS);
-        addView(designDocument, Views.SERVER);
-        if (!db.contains(designDocument.getId())) {
-            db.create(designDocument);
+        designDocument = createDesignDocument();
+        if (nodeId != null) {
+            cache = new ConcurrentHashMap<String, ObjectNode>();
+            changesFeedConsumer = new ChangesFeedConsumer(db, "simplepush-changes-" + nodeId, new ChangesFeedConsumer.Listener() {
+                @Override
+                public void onChange(final DocumentChange change) {
+                    invalidate(change);
+                }
+            }, ChangesFeedConsumer.DEFAULT_CHECKPOINT_INTERVAL);
+            changesFeedConsumer.start();
+        } else {
+            cache = null;
+            changesFeedConsumer = null;
+        }
+    }
+
+    /**
+     * Stops consuming the changes feed, if caching is enabled, and releases the connections to the
+     * CouchDB server.
+     */
+    public void close() {
+        if (changesFeedConsumer != null) {
+            changesFeedConsumer.stop();
         }
+        httpClient.shutdown();
     }
 
-    private void addView(final DesignDocument doc, final Views view) {
+    private void invalidate(final DocumentChange change) {
+        final ObjectNode cached = cache.get(change.getId());
+        if (cached == null) {
+            return;
+        }
+        if (change.isDeleted() || !change.getRevision().equals(cached.path(REV_FIELD).asText())) {
+            evict(change.getId());
+        }
+    }
+
+    private void evict(final String id) {
+        if (cache != null) {
+            invalidations.incrementAndGet();
+            cache.remove(id);
+        }
+    }
+
+    /**
+     * Finds a {@code channel:} or {@code token:} document, using the cache if it is enabled. The returned
+     * document is a copy and may be modified by the caller.
+     */
+    private ObjectNode findCached(final String id) {
+        if (cache == null) {
+            return db.find(ObjectNode.class, id);
+        }
+        final ObjectNode cached = cache.get(id);
+        if (cached != null) {
+            return cached.deepCopy();
+        }
+        final long invalidationsBefore = invalidations.get();
+        final ObjectNode doc = db.find(ObjectNode.class, id);
+        if (doc != null && cache.size() < MAX_CACHED_DOCUMENTS) {
+            cache.putIfAbsent(id, doc.deepCopy());
+            if (invalidations.get() != invalidationsBefore) {
+                // an eviction raced with this read, so the document just cached may already be stale.
+                cache.remove(id);
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * Creates the design document holding the {@link Views}, or adds the views that are missing from an
+     * existing design document which was created by an earlier version.
+     */
+    private DesignDocument createDesignDocument() {
+        final String id = "_design/simplepush";
+        for (;;) {
+            final DesignDocument existing = db.find(DesignDocument.class, id);
+            final DesignDocument doc = existing != null ? existing : new DesignDocument(id);
+            boolean added = false;
+            for (Views view : Views.values()) {
+                added |= addView(doc, view);
+            }
+            if (!added) {
+                return doc;
+            }
+            try {
+                if (existing == null) {
+                    db.create(doc);
+                } else {
+                    db.update(doc);
+                }
+                return doc;
+            } catch (final UpdateConflictException e) {
+                // another server instance updated the design document, re-read it and try again.
+            }
+        }
+    }
+
+    private static boolean addView(final DesignDocument doc, final Views view) {
         if (!doc.containsView(view.viewName())) {
             doc.addView(view.viewName(), new View(view.mapFunction()));
+            return true;
         }
+        return false;
     }
 
     @Override
     public void savePrivateKeySalt(final byte[] salt) {
-        final byte[] privateKeySalt = getPrivateKeySalt();
-        if (privateKeySalt.length == 0) {
-            final Map<String, String> map = new HashMap<String, String>(2);
-            map.put(TYPE_FIELD, Views.SERVER.viewName());
-            map.put("salt", new String(salt, UTF_8));
-            db.create(map);
+        if (getPrivateKeySalt().length != 0) {
+            return;
+        }
+        final ObjectNode doc = newDocument(SERVER_ID, SERVER_ID);
+        doc.put(SALT_FIELD, salt);
+        try {
+            db.create(doc);
+        } catch (final UpdateConflictException ignored) {
+            // another server instance saved its salt first, which is the one that should be used.
         }
     }
 
     @Override
     public byte[] getPrivateKeySalt() {
-        final ViewQuery viewQuery = new ViewQuery().dbPath(db.path()).viewName(Views.SERVER.viewName()).designDocId(designDocument.getId());
-        final ViewResult viewResult = db.queryView(viewQuery);
-        if (viewResult.isEmpty()) {
+        final ObjectNode doc = db.find(ObjectNode.class, SERVER_ID);
+        if (doc == null) {
             return new byte[]{};
         }
-        final Row row = viewResult.getRows().get(0);
-        return row.getKeyAsNode().get("salt").asText().getBytes(UTF_8);
+        try {
+            return doc.get(SALT_FIELD).binaryValue();
+        } catch (final IOException e) {
+            throw new IllegalStateException("Could not decode the private key salt", e);
+        }
     }
 
     @Override
     public boolean saveChannel(final Channel channel) {
-        db.create(channelAsMap(channel));
+        final ObjectNode doc = newDocument(CHANNEL_PREFIX + channel.getChannelId(), "channel");
+        doc.put(UAID_FIELD, channel.getUAID());
+        doc.put(CHID_FIELD, channel.getChannelId());
+        doc.put(TOKEN_FIELD, channel.getEndpointToken());
+        doc.put(VERSION_FIELD, channel.getVersion());
+        try {
+            db.create(doc);
+        } catch (final UpdateConflictException e) {
+            return false;
+        }
+        final ObjectNode tokenDoc = newDocument(TOKEN_PREFIX + channel.getEndpointToken(), TOKEN_FIELD);
+        tokenDoc.put(CHID_FIELD, channel.getChannelId());
+        try {
+            db.create(tokenDoc);
+        } catch (final UpdateConflictException ignored) {
+            // the endpoint token is derived from the uaid and channelId so an existing mapping is identical.
+        }
         return true;
     }
 
-    private Map<String, String> channelAsMap(final Channel channel) {
-        final Map<String, String> map = new HashMap<String, String>(5);
-        map.put(UAID_FIELD, channel.getUAID());
-        map.put(TYPE_FIELD, Views.CHANNEL.viewName());
-        map.put(TOKEN_FIELD, channel.getEndpointToken());
-        map.put(CHID_FIELD, channel.getChannelId());
-        map.put(VERSION_FIELD, Long.toString(channel.getVersion()));
-        return map;
+    private static ObjectNode newDocument(final String id, final String type) {
+        final ObjectNode doc = JsonNodeFactory.instance.objectNode();
+        doc.put(ID_FIELD, id);
+        doc.put(TYPE_FIELD, type);
+        return doc;
     }
 
     @Override
@@ -128,20 +291,15 @@ public class CouchDBDataStore implements DataStore {
         return channelFromJson(getChannelJson(channelId));
     }
 
-    private JsonNode getChannelJson(final String channelId) throws ChannelNotFoundException {
-        final ViewResult viewResult = db.queryView(query(Views.CHANNEL.viewName(), channelId));
-        final List<Row> rows = viewResult.getRows();
-        if (rows.isEmpty()) {
+    private ObjectNode getChannelJson(final String channelId) throws ChannelNotFoundException {
+        final ObjectNode doc = findCached(CHANNEL_PREFIX + channelId);
+        if (doc == null) {
             throw new ChannelNotFoundException("Cound not find channel", channelId);
         }
-        if (rows.size() > 1) {
-            throw new IllegalStateException("There should not be multiple channelId with the same id");
-        }
-        return rows.get(0).getValueAsNode();
+        return doc;
     }
 
-    private Channel channelFromJson(final JsonNode node) {
-        final JsonNode doc = node.get("doc");
+    private static Channel channelFromJson(final JsonNode doc) {
         return new DefaultChannel(doc.get(UAID_FIELD).asText(),
                 doc.get(CHID_FIELD).asText(),
                 doc.get(VERSION_FIELD).asLong(),
@@ -150,14 +308,14 @@ public class CouchDBDataStore implements DataStore {
 
     @Override
     public void removeChannels(final String uaid) {
-        final ViewResult viewResult = db.queryView(query(Views.UAID.viewName(), uaid));
-        final List<Row> rows = viewResult.getRows();
-        final Set<String> channelIds = new HashSet<String>(rows.size());
-        for (Row row : rows) {
-            final JsonNode json = row.getValueAsNode().get(DOC_FIELD);
-            channelIds.add(json.get(CHID_FIELD).asText());
+        removeChannels(getChannelIds(uaid));
+        try {
+            final String id = ACKS_PREFIX + uaid;
+            db.delete(id, db.getCurrentRevision(id));
+        } catch (final DocumentNotFoundException ignored) {
+        } catch (final UpdateConflictException ignored) {
+            // a notification was stored concurrently, it will be removed when acknowledged.
         }
-        removeChannels(channelIds);
     }
 
     private ViewQuery query(final String viewName, final String key) {
@@ -170,22 +328,62 @@ public class CouchDBDataStore implements DataStore {
 
     @Override
     public void removeChannels(final Set<String> channelIds) {
-        final ViewResult viewResult = db.queryView(channelsQuery(channelIds));
-        final List<Row> rows = viewResult.getRows();
-        final Collection<BulkDeleteDocument> removals = new LinkedHashSet<BulkDeleteDocument>();
-        for (Row row : rows) {
-            final JsonNode json = row.getValueAsNode();
-            removals.add(BulkDeleteDocument.of(json.get(DOC_FIELD)));
+        final Collection<BulkDeleteDocument> removals = new ArrayList<BulkDeleteDocument>(channelIds.size() * 2);
+        final Map<String, Set<String>> channelIdsByUaid = new HashMap<String, Set<String>>();
+        for (String channelId : channelIds) {
+            final ObjectNode doc = findCached(CHANNEL_PREFIX + channelId);
+            if (doc == null) {
+                continue;
+            }
+            removals.add(BulkDeleteDocument.of(doc));
+            addRemoval(removals, TOKEN_PREFIX + doc.get(TOKEN_FIELD).asText());
+            final String uaid = doc.get(UAID_FIELD).asText();
+            Set<String> uaChannelIds = channelIdsByUaid.get(uaid);
+            if (uaChannelIds == null) {
+                uaChannelIds = new HashSet<String>();
+                channelIdsByUaid.put(uaid, uaChannelIds);
+            }
+            uaChannelIds.add(channelId);
+        }
+        if (!removals.isEmpty()) {
+            db.executeBulk(removals);
+            for (BulkDeleteDocument removal : removals) {
+                evict(removal.getId());
+            }
+        }
+        for (Entry<String, Set<String>> entry : channelIdsByUaid.entrySet()) {
+            removeAcks(entry.getKey(), entry.getValue());
         }
-        db.executeBulk(removals);
     }
 
-    private ViewQuery channelsQuery(final Set<String> keys) {
-        return new ViewQuery()
-                    .dbPath(db.path())
-                    .viewName(Views.CHANNEL.viewName())
-                    .designDocId(designDocument.getId())
-                    .keys(keys);
+    private void removeAcks(final String uaid, final Set<String> channelIds) {
+        for (;;) {
+            final ObjectNode doc = db.find(ObjectNode.class, ACKS_PREFIX + uaid);
+            if (doc == null) {
+                return;
+            }
+            final ObjectNode acks = (ObjectNode) doc.get(ACKS_FIELD);
+            boolean modified = false;
+            for (String channelId : channelIds) {
+                modified |= acks.remove(channelId) != null;
+            }
+            if (!modified) {
+                return;
+            }
+            try {
+                db.update(doc);
+                return;
+            } catch (final UpdateConflictException e) {
+                // the acks were updated concurrently, re-read them and try again.
+            }
+        }
+    }
+
+    private void addRemoval(final Collection<BulkDeleteDocument> removals, final String id) {
+        try {
+            removals.add(new BulkDeleteDocument(id, db.getCurrentRevision(id)));
+        } catch (final DocumentNotFoundException ignored) {
+        }
     }
 
     @Override
@@ -195,86 +393,248 @@ public class CouchDBDataStore implements DataStore {
         if (rows.isEmpty()) {
             return Collections.emptySet();
         }
-        final Set<String> channelIds = new HashSet<String> (rows.size());
+        final Set<String> channelIds = new HashSet<String>(rows.size());
         for (Row row : rows) {
-            channelIds.add(row.getValueAsNode().get(DOC_FIELD).get(CHID_FIELD).asText());
+            channelIds.add(row.getValue());
         }
         return channelIds;
     }
 
+    @Override
+    public void updateLastSeen(final String uaid, final long timestamp) {
+        for (;;) {
+            ObjectNode doc = db.find(ObjectNode.class, USERAGENT_PREFIX + uaid);
+            final boolean create = doc == null;
+            if (create) {
+                doc = newDocument(USERAGENT_PREFIX + uaid, USERAGENT_TYPE);
+                doc.put(UAID_FIELD, uaid);
+            }
+            doc.put(LAST_SEEN_FIELD, timestamp);
+            try {
+                if (create) {
+                    db.create(doc);
+                } else {
+                    db.update(doc);
+                }
+                return;
+            } catch (final UpdateConflictException e) {
+                // the UserAgent was seen concurrently, re-read its document and try again.
+            }
+        }
+    }
+
+    @Override
+    public List<String> getUserAgentsLastSeenBefore(final long timestamp, final int limit) {
+        final ViewQuery query = new ViewQuery()
+                .dbPath(db.path())
+                .viewName(Views.LAST_SEEN.viewName())
+                .designDocId(designDocument.getId())
+                .endKey(timestamp)
+                .inclusiveEnd(false)
+                .limit(limit);
+        final ViewResult viewResult = db.queryView(query);
+        final List<String> uaids = new ArrayList<String>(viewResult.getSize());
+        for (Row row : viewResult.getRows()) {
+            uaids.add(row.getValue());
+        }
+        return uaids;
+    }
+
+    /**
+     * Removes the UserAgent's {@code useragent:} document, using its revision to detect that the UserAgent
+     * was seen concurrently, and then removes its channels and acks.
+     */
+    @Override
+    public boolean removeUserAgentIfLastSeenBefore(final String uaid, final long timestamp) {
+        for (;;) {
+            final ObjectNode doc = db.find(ObjectNode.class, USERAGENT_PREFIX + uaid);
+            if (doc == null || doc.path(LAST_SEEN_FIELD).asLong() >= timestamp) {
+                return false;
+            }
+            try {
+                db.delete(doc.get(ID_FIELD).asText(), doc.get(REV_FIELD).asText());
+                break;
+            } catch (final UpdateConflictException e) {
+                // the UserAgent was seen concurrently, re-read its document to check if it is still idle.
+            }
+        }
+        removeChannels(uaid);
+        return true;
+    }
+
     @Override
     public String updateVersion(final String endpointToken, final long version) throws VersionException, ChannelNotFoundException {
-        final ViewResult viewResult = db.queryView(query(Views.TOKEN.viewName(), endpointToken));
-        final List<Row> rows = viewResult.getRows();
-        if (rows.isEmpty()) {
+        final ObjectNode tokenDoc = findCached(TOKEN_PREFIX + endpointToken);
+        if (tokenDoc == null) {
             throw new ChannelNotFoundException("Cound not find channel for endpointToken", endpointToken);
         }
-        final ObjectNode node = (ObjectNode) rows.get(0).getValueAsNode().get(DOC_FIELD);
-        final long currentVersion = node.get(VERSION_FIELD).asLong();
-        if (version <= currentVersion) {
-            throw new VersionException("version [" + version + "] must be greater than the current version [" + currentVersion + "]");
+        final String channelId = tokenDoc.get(CHID_FIELD).asText();
+        for (;;) {
+            final ObjectNode doc = getChannelJson(channelId);
+            final long currentVersion = doc.get(VERSION_FIELD).asLong();
+            if (version <= currentVersion) {
+                throw new VersionException("version [" + version + "] must be greater than the current version [" + currentVersion + "]");
+            }
+            doc.put(VERSION_FIELD, version);
+            try {
+                db.update(doc);
+                return channelId;
+            } catch (final UpdateConflictException e) {
+                // the channel was updated concurrently, re-read it and check the version again.
+            } finally {
+                evict(CHANNEL_PREFIX + channelId);
+            }
         }
-        node.put(VERSION_FIELD, String.valueOf(version));
-        db.update(node);
-        return node.get(CHID_FIELD).asText();
     }
 
     @Override
     public String saveUnacknowledged(final String channelId, final long version) throws ChannelNotFoundException {
-        final JsonNode json = getChannelJson(channelId);
-        final Map<String, String> unack = docToAckMap((ObjectNode) json.get(DOC_FIELD), version);
-        db.create(unack);
-        return unack.get(UAID_FIELD);
+        final String uaid = getChannelJson(channelId).get(UAID_FIELD).asText();
+        for (;;) {
+            final ObjectNode doc = acksDocument(uaid);
+            putAck(doc, channelId, version);
+            try {
+                if (doc.has(REV_FIELD)) {
+                    db.update(doc);
+                } else {
+                    db.create(doc);
+                }
+                return uaid;
+            } catch (final UpdateConflictException e) {
+                // the acks were created or updated concurrently, re-read them and try again.
+            }
+        }
     }
 
-    private Map<String, String> docToAckMap(final ObjectNode doc, final long version) {
-        final String uaid = doc.get(UAID_FIELD).asText();
-        final String chid = doc.get(CHID_FIELD).asText();
-        final String token = doc.get(TOKEN_FIELD).asText();
-        final Map<String, String> map = new HashMap<String, String>(5);
-        map.put(UAID_FIELD, uaid);
-        map.put(TYPE_FIELD, "ack");
-        map.put(TOKEN_FIELD, token);
-        map.put(CHID_FIELD, chid);
-        map.put(VERSION_FIELD, Long.toString(version));
-        return map;
+    /**
+     * Saves the unacknowledged notifications, using a single {@code _bulk_docs} request for the
+     * acks documents of all UserAgents involved. Documents that were modified concurrently are
+     * re-read and written again.
+     */
+    @Override
+    public Map<String, WriteResult> saveUnacknowledged(final Map<String, Long> versions) {
+        final Map<String, WriteResult> results = new HashMap<String, WriteResult>(versions.size());
+        final Map<String, Map<String, Long>> versionsByUaid = new HashMap<String, Map<String, Long>>();
+        for (Entry<String, Long> entry : versions.entrySet()) {
+            final String channelId = entry.getKey();
+            final ObjectNode channel = findCached(CHANNEL_PREFIX + channelId);
+            if (channel == null) {
+                results.put(channelId, WriteResult.failure(new ChannelNotFoundException("Cound not find channel", channelId)));
+                continue;
+            }
+            final String uaid = channel.get(UAID_FIELD).asText();
+            Map<String, Long> uaVersions = versionsByUaid.get(uaid);
+            if (uaVersions == null) {
+                uaVersions = new HashMap<String, Long>();
+                versionsByUaid.put(uaid, uaVersions);
+            }
+            uaVersions.put(channelId, entry.getValue());
+            results.put(channelId, WriteResult.success(uaid));
+        }
+        while (!versionsByUaid.isEmpty()) {
+            final List<ObjectNode> docs = new ArrayList<ObjectNode>(versionsByUaid.size());
+            for (Entry<String, Map<String, Long>> entry : versionsByUaid.entrySet()) {
+                final ObjectNode doc = acksDocument(entry.getKey());
+                for (Entry<String, Long> version : entry.getValue().entrySet()) {
+                    putAck(doc, version.getKey(), version.getValue());
+                }
+                docs.add(doc);
+            }
+            final Set<String> conflicts = new HashSet<String>();
+            for (DocumentOperationResult result : db.executeBulk(docs)) {
+                if (result.isErroneous()) {
+                    conflicts.add(result.getId().substring(ACKS_PREFIX.length()));
+                }
+            }
+            versionsByUaid.keySet().retainAll(conflicts);
+        }
+        return results;
+    }
+
+    @Override
+    public Map<String, WriteResult> updateVersions(final Map<String, Long> versions) {
+        final Map<String, WriteResult> results = new HashMap<String, WriteResult>(versions.size());
+        for (Entry<String, Long> entry : versions.entrySet()) {
+            try {
+                results.put(entry.getKey(), WriteResult.success(updateVersion(entry.getKey(), entry.getValue())));
+            } catch (final VersionException e) {
+                results.put(entry.getKey(), WriteResult.failure(e));
+            } catch (final ChannelNotFoundException e) {
+                results.put(entry.getKey(), WriteResult.failure(e));
+            }
+        }
+        return results;
+    }
+
+    private ObjectNode acksDocument(final String uaid) {
+        final ObjectNode doc = db.find(ObjectNode.class, ACKS_PREFIX + uaid);
+        if (doc != null) {
+            return doc;
+        }
+        final ObjectNode newDoc = newDocument(ACKS_PREFIX + uaid, ACKS_FIELD);
+        newDoc.put(UAID_FIELD, uaid);
+        newDoc.putObject(ACKS_FIELD);
+        return newDoc;
+    }
+
+    private static void putAck(final ObjectNode doc, final String channelId, final long version) {
+        final ObjectNode acks = (ObjectNode) doc.get(ACKS_FIELD);
+        final JsonNode current = acks.get(channelId);
+        if (current == null || current.asLong() < version) {
+            acks.put(channelId, version);
+        }
     }
 
     @Override
     public Set<Ack> getUnacknowledged(final String uaid) {
-        final ViewResult viewResult = db.queryView(query(Views.UNACKS.viewName(), uaid));
-        return rowsToAcks(viewResult.getRows());
+        final ObjectNode doc = db.find(ObjectNode.class, ACKS_PREFIX + uaid);
+        if (doc == null) {
+            return Collections.emptySet();
+        }
+        return acksFromJson(doc.get(ACKS_FIELD));
     }
 
+    /**
+     * Removes the acknowledged notifications from the UserAgent's acks document. A notification is only
+     * removed if its version is not greater than the acknowledged version, so that a newer notification
+     * stored after the acknowledged one was sent is kept.
+     */
     @Override
     public Set<Ack> removeAcknowledged(final String uaid, final Set<Ack> acked) {
-        final ViewResult viewResult = db.queryView(query(Views.UNACKS.viewName(), uaid));
-        final List<Row> rows = viewResult.getRows();
-        final Collection<BulkDeleteDocument> removals = new LinkedHashSet<BulkDeleteDocument>();
-        for (Iterator<Row> iter = rows.iterator(); iter.hasNext(); ) {
-            final Row row = iter.next();
-            final JsonNode json = row.getValueAsNode();
-            final JsonNode doc = json.get(DOC_FIELD);
-            final String channelId = doc.get(CHID_FIELD).asText();
+        for (;;) {
+            final ObjectNode doc = db.find(ObjectNode.class, ACKS_PREFIX + uaid);
+            if (doc == null) {
+                return Collections.emptySet();
+            }
+            final ObjectNode acks = (ObjectNode) doc.get(ACKS_FIELD);
+            boolean modified = false;
             for (Ack ack : acked) {
-                if (ack.getChannelId().equals(channelId)) {
-                    removals.add(BulkDeleteDocument.of(doc));
-                    iter.remove();
+                final JsonNode version = acks.get(ack.getChannelId());
+                if (version != null && version.asLong() <= ack.getVersion()) {
+                    acks.remove(ack.getChannelId());
+                    modified = true;
                 }
             }
+            if (!modified) {
+                return acksFromJson(acks);
+            }
+            try {
+                db.update(doc);
+                return acksFromJson(acks);
+            } catch (final UpdateConflictException e) {
+                // the acks were updated concurrently, re-read them and try again.
+            }
         }
-        db.executeBulk(removals);
-        return rowsToAcks(rows);
     }
 
-    private Set<Ack> rowsToAcks(final List<Row> rows) {
-        if (rows.isEmpty()) {
+    private static Set<Ack> acksFromJson(final JsonNode acks) {
+        if (acks.size() == 0) {
             return Collections.emptySet();
         }
-        final Set<Ack> unacks = new HashSet<Ack>(rows.size());
-        for (Row row : rows) {
-            final JsonNode json = row.getValueAsNode().get(DOC_FIELD);
-            unacks.add(new AckImpl(json.get(CHID_FIELD).asText(), json.get(VERSION_FIELD).asLong()));
+        final Set<Ack> unacks = new HashSet<Ack>(acks.size());
+        for (Iterator<Entry<String, JsonNode>> it = acks.fields(); it.hasNext();) {
+            final Entry<String, JsonNode> entry = it.next();
+            unacks.add(new AckImpl(entry.getKey(), entry.getValue().asLong()));
         }
         return unacks;
     }
@@ -14,14 +14,14 @@ package org.jboss.aerogear.simplepush.server.datastore;
 
 /**
  * Contains CouchDB <a href="http://wiki.apache.org/couchdb/HTTP_view_API">views</a>
+ *
+ * None of these views are used when handling notifications, only when all the channels of a
+ * single UserAgent are needed, or when looking for UserAgents that have not been seen for a while.
  */
 public enum Views {
 
-    CHANNEL("function(doc) { if (doc.type == \"channel\") { emit(doc.chid, {\"doc\": doc, \"rev\": doc._rev});}}"),
-    UAID("function(doc) { if (doc.type == \"channel\") { emit(doc.uaid, {\"doc\": doc, \"rev\": doc._rev});}}"),
-    TOKEN("function(doc) { if (doc.type == \"channel\") { emit(doc.token, {\"doc\": doc});}}"),
-    UNACKS("function(doc) { if (doc.type == \"ack\") { emit(doc.uaid, {\"doc\": doc});}}"),
-    SERVER("function(doc) { if (doc.type == \"server\") { emit({\"salt\": doc.salt});}}");
+    UAID("function(doc) { if (doc.type == \"channel\") { emit(doc.uaid, doc.chid);}}"),
+    LAST_SEEN("function(doc) { if (doc.type == \"useragent\") { emit(doc.lastSeen, doc.uaid);}}");
 
     private final String mapFunction;
     private final String viewName;
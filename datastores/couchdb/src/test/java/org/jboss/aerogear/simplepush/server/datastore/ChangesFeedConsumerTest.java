@@ -0,0 +1,298 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.ektorp.changes.DocumentChange;
+import org.ektorp.http.HttpClient;
+import org.ektorp.http.StdHttpClient;
+import org.ektorp.impl.StdCouchDbConnector;
+import org.ektorp.impl.StdCouchDbInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs a {@link ChangesFeedConsumer} against a stand-in CouchDB server which replays a scripted changes feed,
+ * so that no CouchDB server is required.
+ */
+public class ChangesFeedConsumerTest {
+
+    private static final String CHECKPOINT_ID = "_local/simplepush-changes-test";
+
+    private ScriptedCouchDB couchdb;
+    private HttpClient httpClient;
+    private StdCouchDbConnector db;
+    private ChangesFeedConsumer consumer;
+    private final BlockingQueue<DocumentChange> changes = new LinkedBlockingQueue<DocumentChange>();
+
+    @Before
+    public void startServer() throws IOException {
+        couchdb = new ScriptedCouchDB(2,
+                "{\"seq\":1,\"id\":\"channel:a\",\"changes\":[{\"rev\":\"1-a\"}]}",
+                "{\"seq\":2,\"id\":\"channel:b\",\"changes\":[{\"rev\":\"1-b\"}]}",
+                "{\"seq\":3,\"id\":\"channel:a\",\"changes\":[{\"rev\":\"2-a\"}]}",
+                "{\"seq\":4,\"id\":\"token:b\",\"changes\":[{\"rev\":\"2-b\"}],\"deleted\":true}",
+                "{\"seq\":5,\"id\":\"channel:c\",\"changes\":[{\"rev\":\"1-c\"}]}");
+        httpClient = new StdHttpClient.Builder().url("http://127.0.0.1:" + couchdb.port()).build();
+        db = new StdCouchDbConnector("db", new StdCouchDbInstance(httpClient));
+    }
+
+    @After
+    public void stopServer() {
+        if (consumer != null) {
+            consumer.stop();
+        }
+        httpClient.shutdown();
+        couchdb.stop();
+    }
+
+    @Test
+    public void startsFromUpdateSequenceWithoutCheckpoint() throws Exception {
+        startConsumer(100);
+        assertThat(nextChange().getSequence(), is(3));
+        assertThat(nextChange().getSequence(), is(4));
+        assertThat(nextChange().getSequence(), is(5));
+        assertThat(couchdb.since(), equalTo("2"));
+    }
+
+    @Test
+    public void resumesFromCheckpoint() throws Exception {
+        couchdb.putDocument(CHECKPOINT_ID, "{\"_id\":\"" + CHECKPOINT_ID + "\",\"_rev\":\"0-1\",\"seq\":4}");
+        startConsumer(100);
+        final DocumentChange change = nextChange();
+        assertThat(change.getSequence(), is(5));
+        assertThat(change.getId(), equalTo("channel:c"));
+        assertThat(couchdb.since(), equalTo("4"));
+    }
+
+    @Test
+    public void deletedChange() throws Exception {
+        couchdb.putDocument(CHECKPOINT_ID, "{\"_id\":\"" + CHECKPOINT_ID + "\",\"_rev\":\"0-1\",\"seq\":3}");
+        startConsumer(100);
+        final DocumentChange change = nextChange();
+        assertThat(change.getId(), equalTo("token:b"));
+        assertThat(change.isDeleted(), is(true));
+        assertThat(change.getRevision(), equalTo("2-b"));
+    }
+
+    @Test
+    public void checkpointWrittenEveryInterval() throws Exception {
+        couchdb.putDocument(CHECKPOINT_ID, "{\"_id\":\"" + CHECKPOINT_ID + "\",\"_rev\":\"0-1\",\"seq\":0}");
+        startConsumer(2);
+        for (int i = 0; i < 5; i++) {
+            nextChange();
+        }
+        assertThat(couchdb.awaitCheckpoint(4), is(true));
+    }
+
+    @Test
+    public void checkpointWrittenOnStop() throws Exception {
+        startConsumer(100);
+        for (int i = 0; i < 3; i++) {
+            nextChange();
+        }
+        consumer.stop();
+        consumer = null;
+        assertThat(couchdb.checkpoint(), is(5));
+    }
+
+    private void startConsumer(final int checkpointInterval) {
+        consumer = new ChangesFeedConsumer(db, "simplepush-changes-test", new ChangesFeedConsumer.Listener() {
+            @Override
+            public void onChange(final DocumentChange change) {
+                changes.add(change);
+            }
+        }, checkpointInterval);
+        consumer.start();
+    }
+
+    private DocumentChange nextChange() throws InterruptedException {
+        final DocumentChange change = changes.poll(5, TimeUnit.SECONDS);
+        if (change == null) {
+            throw new AssertionError("No change received");
+        }
+        return change;
+    }
+
+    /**
+     * Minimal stand-in for a CouchDB database named {@code db}, supporting the database info, {@code _local}
+     * documents and a continuous {@code _changes} feed which replays a fixed list of changes.
+     */
+    private static class ScriptedCouchDB {
+
+        private final ObjectMapper om = new ObjectMapper();
+        private final HttpServer server;
+        private final int updateSeq;
+        private final List<String> script;
+        private final Map<String, String> documents = new ConcurrentHashMap<String, String>();
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private final BlockingQueue<Integer> checkpoints = new LinkedBlockingQueue<Integer>();
+        private volatile String since;
+
+        ScriptedCouchDB(final int updateSeq, final String... changes) throws IOException {
+            this.updateSeq = updateSeq;
+            this.script = Arrays.asList(changes);
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.createContext("/db/_changes", new HttpHandler() {
+                @Override
+                public void handle(final HttpExchange exchange) throws IOException {
+                    changes(exchange);
+                }
+            });
+            server.createContext("/db/_local/", new HttpHandler() {
+                @Override
+                public void handle(final HttpExchange exchange) throws IOException {
+                    local(exchange);
+                }
+            });
+            server.createContext("/db/", new HttpHandler() {
+                @Override
+                public void handle(final HttpExchange exchange) throws IOException {
+                    respond(exchange, 200, "{\"db_name\":\"db\",\"doc_count\":0,\"update_seq\":" + ScriptedCouchDB.this.updateSeq + "}");
+                }
+            });
+            server.start();
+        }
+
+        int port() {
+            return server.getAddress().getPort();
+        }
+
+        String since() {
+            return since;
+        }
+
+        void putDocument(final String id, final String json) {
+            documents.put(id, json);
+        }
+
+        int checkpoint() throws IOException {
+            return om.readTree(documents.get(CHECKPOINT_ID)).get("seq").asInt();
+        }
+
+        boolean awaitCheckpoint(final int seq) throws InterruptedException {
+            for (;;) {
+                final Integer checkpoint = checkpoints.poll(5, TimeUnit.SECONDS);
+                if (checkpoint == null) {
+                    return false;
+                }
+                if (checkpoint == seq) {
+                    return true;
+                }
+            }
+        }
+
+        void stop() {
+            closed.countDown();
+            server.stop(0);
+        }
+
+        private void changes(final HttpExchange exchange) throws IOException {
+            final String query = exchange.getRequestURI().getQuery();
+            final List<String> lines = new ArrayList<String>();
+            for (String param : query.split("&")) {
+                if (param.startsWith("since=")) {
+                    since = param.substring("since=".length());
+                }
+            }
+            final int from = Integer.parseInt(since);
+            for (String change : script) {
+                if (om.readTree(change).get("seq").asInt() > from) {
+                    lines.add(change);
+                }
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, 0);
+            final OutputStream out = exchange.getResponseBody();
+            try {
+                for (String line : lines) {
+                    out.write((line + "\n").getBytes("UTF-8"));
+                    out.flush();
+                }
+                // keep the feed open, like CouchDB does, until the test is over.
+                closed.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (final IOException ignored) {
+                // the client disconnected.
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void local(final HttpExchange exchange) throws IOException {
+            final String id = exchange.getRequestURI().getPath().substring("/db/".length());
+            if ("PUT".equals(exchange.getRequestMethod())) {
+                final ObjectNode doc = (ObjectNode) om.readTree(readBody(exchange.getRequestBody()));
+                final String rev = "0-" + System.nanoTime();
+                doc.put("_rev", rev);
+                documents.put(id, om.writeValueAsString(doc));
+                checkpoints.add(doc.get("seq").asInt());
+                respond(exchange, 201, "{\"ok\":true,\"id\":\"" + id + "\",\"rev\":\"" + rev + "\"}");
+                return;
+            }
+            final String doc = documents.get(id);
+            if (doc == null) {
+                respond(exchange, 404, "{\"error\":\"not_found\",\"reason\":\"missing\"}");
+            } else {
+                respond(exchange, 200, doc);
+            }
+        }
+
+        private static String readBody(final InputStream in) throws IOException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        }
+
+        private static void respond(final HttpExchange exchange, final int status, final String body) throws IOException {
+            final byte[] bytes = body.getBytes("UTF-8");
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            final OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,30 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+/**
+ * Requires a CouchDB server running on localhost:5984 and is only run by the {@code couchdb} profile.
+ */
+public class CouchDBDataStoreConformanceTest extends DataStoreConformanceTest {
+
+    @Override
+    protected DataStore createDataStore() {
+        return new CouchDBDataStore("http://127.0.0.1:5984", "simplepush-conformance");
+    }
+
+    @Override
+    protected void closeDataStore(final DataStore dataStore) {
+        ((CouchDBDataStore) dataStore).close();
+    }
+
+}
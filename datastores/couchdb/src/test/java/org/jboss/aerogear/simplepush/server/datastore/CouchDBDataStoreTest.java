@@ -20,7 +20,9 @@ import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
@@ -75,16 +77,13 @@ public class CouchDBDataStoreTest {
         datastore.getChannel(UUID.randomUUID().toString());
     }
 
-    @Test (expected = IllegalStateException.class)
-    public void getChannelMultipleResults() throws ChannelNotFoundException {
+    @Test
+    public void saveChannelAlreadyExisting() throws ChannelNotFoundException {
         final String uaid = UUIDUtil.newUAID();
         final String channelId = UUID.randomUUID().toString();
-        final Channel channel1 = newChannel(uaid, channelId);
-        datastore.saveChannel(channel1);
-        final String uaid2 = UUIDUtil.newUAID();
-        final Channel channel2 = newChannel(uaid2, channelId);
-        datastore.saveChannel(channel2);
-        datastore.getChannel(channelId);
+        assertThat(datastore.saveChannel(newChannel(uaid, channelId)), is(true));
+        assertThat(datastore.saveChannel(newChannel(UUIDUtil.newUAID(), channelId)), is(false));
+        assertThat(datastore.getChannel(channelId).getUAID(), is(equalTo(uaid)));
     }
 
     @Test
@@ -118,6 +117,14 @@ public class CouchDBDataStoreTest {
         datastore.getChannel(channelId);
     }
 
+    @Test (expected = ChannelNotFoundException.class)
+    public void removeChannelAndUpdateVersion() throws ChannelNotFoundException {
+        final Channel channel = newChannel(UUIDUtil.newUAID(), UUID.randomUUID().toString());
+        datastore.saveChannel(channel);
+        datastore.removeChannels(new HashSet<String>(Arrays.asList(channel.getChannelId())));
+        datastore.updateVersion(channel.getEndpointToken(), 1);
+    }
+
     @Test
     public void removeChannelsList() throws ChannelNotFoundException {
         final String uaid = UUIDUtil.newUAID();
@@ -183,6 +190,18 @@ public class CouchDBDataStoreTest {
         assertThat(savedUaid, is(equalTo(uaid)));
     }
 
+    @Test
+    public void saveUnacknowledgedNewerVersion() throws ChannelNotFoundException {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel = newChannel(uaid, UUID.randomUUID().toString(), 10);
+        datastore.saveChannel(channel);
+        datastore.saveUnacknowledged(channel.getChannelId(), 11);
+        datastore.saveUnacknowledged(channel.getChannelId(), 12);
+        final Set<Ack> unacks = datastore.getUnacknowledged(uaid);
+        assertThat(unacks, hasItem(ack(channel.getChannelId(), 12)));
+        assertThat(unacks.size(), is(1));
+    }
+
     @Test
     public void getUnacknowledged() throws ChannelNotFoundException {
         final String uaid = UUIDUtil.newUAID();
@@ -208,6 +227,40 @@ public class CouchDBDataStoreTest {
         assertThat(datastore.removeAcknowledged(uaid, unacks).size(), is(0));
     }
 
+    @Test
+    public void removeAcknowledgedKeepsNewerVersion() throws ChannelNotFoundException {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel = newChannel(uaid, UUID.randomUUID().toString(), 10);
+        datastore.saveChannel(channel);
+        datastore.saveUnacknowledged(channel.getChannelId(), 12);
+        final Set<Ack> unacks = datastore.removeAcknowledged(uaid, acks(ack(channel.getChannelId(), 11)));
+        assertThat(unacks, hasItem(ack(channel.getChannelId(), 12)));
+    }
+
+    @Test
+    public void saveUnacknowledgedBatch() throws ChannelNotFoundException {
+        final String uaid1 = UUIDUtil.newUAID();
+        final String uaid2 = UUIDUtil.newUAID();
+        final Channel channel1 = newChannel(uaid1, UUID.randomUUID().toString(), 1);
+        final Channel channel2 = newChannel(uaid1, UUID.randomUUID().toString(), 1);
+        final Channel channel3 = newChannel(uaid2, UUID.randomUUID().toString(), 1);
+        datastore.saveChannel(channel1);
+        datastore.saveChannel(channel2);
+        datastore.saveChannel(channel3);
+        datastore.saveUnacknowledged(channel1.getChannelId(), 2);
+        final Map<String, Long> versions = new HashMap<String, Long>();
+        versions.put(channel1.getChannelId(), 3L);
+        versions.put(channel2.getChannelId(), 4L);
+        versions.put(channel3.getChannelId(), 5L);
+        versions.put(UUID.randomUUID().toString(), 6L);
+        final Map<String, WriteResult> results = datastore.saveUnacknowledged(versions);
+        assertThat(results.get(channel1.getChannelId()).value(), is(equalTo(uaid1)));
+        assertThat(results.get(channel3.getChannelId()).value(), is(equalTo(uaid2)));
+        assertThat(datastore.getUnacknowledged(uaid1), hasItems(ack(channel1.getChannelId(), 3), ack(channel2.getChannelId(), 4)));
+        assertThat(datastore.getUnacknowledged(uaid1).size(), is(2));
+        assertThat(datastore.getUnacknowledged(uaid2), hasItem(ack(channel3.getChannelId(), 5)));
+    }
+
     @Test
     public void concurrency() throws InterruptedException {
         final String uaid = UUIDUtil.newUAID();
@@ -0,0 +1,143 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+import java.util.Set;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.server.Channel;
+
+/**
+ * An {@link AsyncDataStore} backed by an {@link InMemoryDataStore}.
+ * <p>
+ * As the in-memory DataStore never waits for I/O, every operation runs on the calling thread and returns a
+ * future that has already completed, so listeners added to it run right away without a thread hand-off.
+ */
+public class InMemoryAsyncDataStore implements AsyncDataStore {
+
+    private final InMemoryDataStore store;
+
+    public InMemoryAsyncDataStore() {
+        this(new InMemoryDataStore());
+    }
+
+    /**
+     * Creates an InMemoryAsyncDataStore sharing its state with the passed in {@link InMemoryDataStore}, so that
+     * the same UserAgents can be accessed through both interfaces.
+     *
+     * @param store the {@link InMemoryDataStore} holding the state.
+     */
+    public InMemoryAsyncDataStore(final InMemoryDataStore store) {
+        checkNotNull(store, "store");
+        this.store = store;
+    }
+
+    /**
+     * Returns the {@link InMemoryDataStore} holding the state of this DataStore.
+     *
+     * @return {@code InMemoryDataStore} the underlying DataStore.
+     */
+    public InMemoryDataStore dataStore() {
+        return store;
+    }
+
+    @Override
+    public DataStoreFuture<Void> savePrivateKeySalt(final byte[] salt) {
+        store.savePrivateKeySalt(salt);
+        return DataStoreFuture.succeeded(null);
+    }
+
+    @Override
+    public DataStoreFuture<byte[]> getPrivateKeySalt() {
+        return DataStoreFuture.succeeded(store.getPrivateKeySalt());
+    }
+
+    @Override
+    public DataStoreFuture<Boolean> saveChannel(final Channel channel) {
+        return DataStoreFuture.succeeded(store.saveChannel(channel));
+    }
+
+    @Override
+    public DataStoreFuture<Channel> getChannel(final String channelId) {
+        try {
+            return DataStoreFuture.succeeded(store.getChannel(channelId));
+        } catch (final ChannelNotFoundException e) {
+            return DataStoreFuture.failed(e);
+        }
+    }
+
+    @Override
+    public DataStoreFuture<Void> removeChannels(final String uaid) {
+        store.removeChannels(uaid);
+        return DataStoreFuture.succeeded(null);
+    }
+
+    @Override
+    public DataStoreFuture<Void> removeChannels(final Set<String> channelIds) {
+        store.removeChannels(channelIds);
+        return DataStoreFuture.succeeded(null);
+    }
+
+    @Override
+    public DataStoreFuture<Set<String>> getChannelIds(final String uaid) {
+        return DataStoreFuture.succeeded(store.getChannelIds(uaid));
+    }
+
+    @Override
+    public DataStoreFuture<String> updateVersion(final String endpointToken, final long version) {
+        try {
+            return DataStoreFuture.succeeded(store.updateVersion(endpointToken, version));
+        } catch (final VersionException e) {
+            return DataStoreFuture.failed(e);
+        } catch (final ChannelNotFoundException e) {
+            return DataStoreFuture.failed(e);
+        }
+    }
+
+    @Override
+    public DataStoreFuture<String> saveUnacknowledged(final String channelId, final long version) {
+        try {
+            return DataStoreFuture.succeeded(store.saveUnacknowledged(channelId, version));
+        } catch (final ChannelNotFoundException e) {
+            return DataStoreFuture.failed(e);
+        }
+    }
+
+    @Override
+    public DataStoreFuture<Set<Ack>> getUnacknowledged(final String uaid) {
+        return DataStoreFuture.succeeded(store.getUnacknowledged(uaid));
+    }
+
+    @Override
+    public DataStoreFuture<Set<Ack>> removeAcknowledged(final String uaid, final Set<Ack> acked) {
+        return DataStoreFuture.succeeded(store.removeAcknowledged(uaid, acked));
+    }
+
+    @Override
+    public DataStoreFuture<Void> userAgentConnected(final String uaid) {
+        return DataStoreFuture.succeeded(null);
+    }
+
+    @Override
+    public DataStoreFuture<Void> updateLastSeen(final String uaid, final long timestamp) {
+        store.updateLastSeen(uaid, timestamp);
+        return DataStoreFuture.succeeded(null);
+    }
+
+}
@@ -18,9 +18,16 @@ package org.jboss.aerogear.simplepush.server.datastore;
 
 import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
@@ -28,24 +35,26 @@ import java.util.concurrent.atomic.AtomicLong;
 import org.jboss.aerogear.simplepush.protocol.Ack;
 import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
 import org.jboss.aerogear.simplepush.server.Channel;
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A {@link DataStore} implementation that stores all information in memory.
  */
-public class InMemoryDataStore implements DataStore {
+public class InMemoryDataStore implements BatchDataStore, IterableDataStore, BulkLoadDataStore, LastSeenDataStore {
 
     private final ConcurrentMap<String, MutableChannel> channels = new ConcurrentHashMap<String, MutableChannel>();
     private final ConcurrentMap<String, MutableChannel> endpoints = new ConcurrentHashMap<String, MutableChannel>();
     private final ConcurrentMap<String, Set<Ack>> unacked = new ConcurrentHashMap<String, Set<Ack>>();
+    private final ConcurrentMap<String, Long> lastSeen = new ConcurrentHashMap<String, Long>();
     private final Logger logger = LoggerFactory.getLogger(InMemoryDataStore.class);
 
     private byte[] salt;
 
     @Override
     public void savePrivateKeySalt(final byte[] salt) {
-        if (this.salt != null) {
+        if (this.salt == null) {
             this.salt = salt;
         }
     }
@@ -63,15 +72,18 @@ public class InMemoryDataStore implements DataStore {
         checkNotNull(ch, "ch");
         final MutableChannel mutableChannel = new MutableChannel(ch);
         final Channel previous = channels.putIfAbsent(ch.getChannelId(), mutableChannel);
+        if (previous != null) {
+            return false;
+        }
         endpoints.put(ch.getEndpointToken(), mutableChannel);
-        return previous == null;
+        return true;
     }
 
     private boolean removeChannel(final String channelId) {
         checkNotNull(channelId, "channelId");
         final Channel channel = channels.remove(channelId);
         if (channel != null) {
-            endpoints.remove(endpoints.get(channel.getEndpointToken()));
+            endpoints.remove(channel.getEndpointToken());
         }
         return channel != null;
     }
@@ -119,6 +131,107 @@ public class InMemoryDataStore implements DataStore {
         return channelIds;
     }
 
+    /**
+     * Returns the next page of UserAgent Ids. As channels are not indexed by UserAgent this scans all
+     * channels, keeping only the {@code limit} smallest UserAgent Ids after {@code afterUaid}.
+     */
+    @Override
+    public List<String> getUserAgentIds(final String afterUaid, final int limit) {
+        final TreeSet<String> uaids = new TreeSet<String>();
+        for (Channel channel : channels.values()) {
+            final String uaid = channel.getUAID();
+            if (afterUaid != null && uaid.compareTo(afterUaid) <= 0) {
+                continue;
+            }
+            if (uaids.size() < limit) {
+                uaids.add(uaid);
+            } else if (uaid.compareTo(uaids.last()) < 0 && uaids.add(uaid)) {
+                uaids.pollLast();
+            }
+        }
+        return new ArrayList<String>(uaids);
+    }
+
+    @Override
+    public List<UserAgentRecord> getUserAgents(final String afterUaid, final int limit) {
+        final List<String> uaids = getUserAgentIds(afterUaid, limit);
+        final Map<String, Set<Channel>> channelsByUaid = new HashMap<String, Set<Channel>>(uaids.size());
+        for (String uaid : uaids) {
+            channelsByUaid.put(uaid, new HashSet<Channel>());
+        }
+        for (Channel channel : channels.values()) {
+            final Set<Channel> userAgentChannels = channelsByUaid.get(channel.getUAID());
+            if (userAgentChannels != null) {
+                userAgentChannels.add(new DefaultChannel(channel.getUAID(), channel.getChannelId(), channel.getVersion(),
+                        channel.getEndpointToken()));
+            }
+        }
+        final List<UserAgentRecord> records = new ArrayList<UserAgentRecord>(uaids.size());
+        for (String uaid : uaids) {
+            records.add(new UserAgentRecord(uaid, channelsByUaid.get(uaid), getUnacknowledged(uaid)));
+        }
+        return records;
+    }
+
+    @Override
+    public void saveUserAgents(final List<UserAgentRecord> userAgents) {
+        checkNotNull(userAgents, "userAgents");
+        for (UserAgentRecord userAgent : userAgents) {
+            for (Channel channel : userAgent.getChannels()) {
+                saveChannel(channel);
+            }
+            for (Ack ack : userAgent.getUnacknowledged()) {
+                try {
+                    saveUnacknowledged(ack.getChannelId(), ack.getVersion());
+                } catch (final ChannelNotFoundException e) {
+                    logger.debug("Skipping unacknowledged notification for unknown channel [" + ack.getChannelId() + "]");
+                }
+            }
+        }
+    }
+
+    @Override
+    public void updateLastSeen(final String uaid, final long timestamp) {
+        checkNotNull(uaid, "uaid");
+        lastSeen.put(uaid, timestamp);
+    }
+
+    /**
+     * Returns the UserAgents last seen before {@code timestamp}. As last seen times are not kept in order
+     * this scans all UserAgents and sorts the ones that match.
+     */
+    @Override
+    public List<String> getUserAgentsLastSeenBefore(final long timestamp, final int limit) {
+        final List<Entry<String, Long>> idle = new ArrayList<Entry<String, Long>>();
+        for (Entry<String, Long> entry : lastSeen.entrySet()) {
+            if (entry.getValue() < timestamp) {
+                idle.add(entry);
+            }
+        }
+        Collections.sort(idle, new Comparator<Entry<String, Long>>() {
+            @Override
+            public int compare(final Entry<String, Long> o1, final Entry<String, Long> o2) {
+                return o1.getValue().compareTo(o2.getValue());
+            }
+        });
+        final List<String> uaids = new ArrayList<String>(Math.min(limit, idle.size()));
+        for (int i = 0; i < idle.size() && i < limit; i++) {
+            uaids.add(idle.get(i).getKey());
+        }
+        return uaids;
+    }
+
+    @Override
+    public boolean removeUserAgentIfLastSeenBefore(final String uaid, final long timestamp) {
+        checkNotNull(uaid, "uaid");
+        final Long seen = lastSeen.get(uaid);
+        if (seen == null || seen >= timestamp || !lastSeen.remove(uaid, seen)) {
+            return false;
+        }
+        removeChannels(uaid);
+        return true;
+    }
+
     @Override
     public String updateVersion(final String endpointToken, final long version) throws VersionException, ChannelNotFoundException {
         final MutableChannel channel = endpoints.get(endpointToken);
@@ -160,6 +273,36 @@ public class InMemoryDataStore implements DataStore {
         return uaid;
     }
 
+    @Override
+    public Map<String, WriteResult> updateVersions(final Map<String, Long> versions) {
+        checkNotNull(versions, "versions");
+        final Map<String, WriteResult> results = new HashMap<String, WriteResult>(versions.size());
+        for (Entry<String, Long> entry : versions.entrySet()) {
+            try {
+                results.put(entry.getKey(), WriteResult.success(updateVersion(entry.getKey(), entry.getValue())));
+            } catch (final VersionException e) {
+                results.put(entry.getKey(), WriteResult.failure(e));
+            } catch (final ChannelNotFoundException e) {
+                results.put(entry.getKey(), WriteResult.failure(e));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public Map<String, WriteResult> saveUnacknowledged(final Map<String, Long> versions) {
+        checkNotNull(versions, "versions");
+        final Map<String, WriteResult> results = new HashMap<String, WriteResult>(versions.size());
+        for (Entry<String, Long> entry : versions.entrySet()) {
+            try {
+                results.put(entry.getKey(), WriteResult.success(saveUnacknowledged(entry.getKey(), entry.getValue())));
+            } catch (final ChannelNotFoundException e) {
+                results.put(entry.getKey(), WriteResult.failure(e));
+            }
+        }
+        return results;
+    }
+
     @Override
     public Set<Ack> getUnacknowledged(final String uaid) {
         checkNotNull(uaid, "uaid");
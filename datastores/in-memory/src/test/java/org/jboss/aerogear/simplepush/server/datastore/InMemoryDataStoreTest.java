@@ -26,9 +26,12 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -196,6 +199,53 @@ public class InMemoryDataStoreTest {
         return channel;
     }
 
+    @Test
+    public void getUserAgentIds() {
+        final InMemoryDataStore store = new InMemoryDataStore();
+        final String uaid1 = UUIDUtil.newUAID();
+        final String uaid2 = UUIDUtil.newUAID();
+        final String uaid3 = UUIDUtil.newUAID();
+        store.saveChannel(newChannel(uaid1, UUID.randomUUID().toString(), 1L));
+        store.saveChannel(newChannel(uaid1, UUID.randomUUID().toString(), 1L));
+        store.saveChannel(newChannel(uaid2, UUID.randomUUID().toString(), 1L));
+        store.saveChannel(newChannel(uaid3, UUID.randomUUID().toString(), 1L));
+        final List<String> uaids = new ArrayList<String>();
+        List<String> page = store.getUserAgentIds(null, 2);
+        while (!page.isEmpty()) {
+            assertThat(page.size() <= 2, is(true));
+            uaids.addAll(page);
+            page = store.getUserAgentIds(page.get(page.size() - 1), 2);
+        }
+        final List<String> sorted = new ArrayList<String>(new TreeSet<String>(uaids));
+        assertThat(uaids, equalTo(sorted));
+        assertThat(uaids, hasItems(uaid1, uaid2, uaid3));
+    }
+
+    @Test
+    public void removeIdleUserAgents() throws ChannelNotFoundException {
+        final InMemoryDataStore store = new InMemoryDataStore();
+        final String idle1 = UUIDUtil.newUAID();
+        final String idle2 = UUIDUtil.newUAID();
+        final String active = UUIDUtil.newUAID();
+        final String channelId = UUID.randomUUID().toString();
+        store.saveChannel(newChannel(idle1, channelId, 1L));
+        store.saveChannel(newChannel(active, UUID.randomUUID().toString(), 1L));
+        store.updateLastSeen(idle1, 100);
+        store.updateLastSeen(idle2, 50);
+        store.updateLastSeen(active, 300);
+        assertThat(store.getUserAgentsLastSeenBefore(200, 10), equalTo(Arrays.asList(idle2, idle1)));
+        assertThat(store.getUserAgentsLastSeenBefore(200, 1), equalTo(Arrays.asList(idle2)));
+
+        assertThat(store.removeUserAgentIfLastSeenBefore(active, 200), is(false));
+        store.updateLastSeen(idle1, 250);
+        assertThat(store.removeUserAgentIfLastSeenBefore(idle1, 200), is(false));
+        store.updateLastSeen(idle1, 100);
+        assertThat(store.removeUserAgentIfLastSeenBefore(idle1, 200), is(true));
+        assertThat(store.getChannelIds(idle1).isEmpty(), is(true));
+        assertThat(store.getUserAgentsLastSeenBefore(200, 10), equalTo(Arrays.asList(idle2)));
+        assertThat(store.getChannelIds(active).size(), is(1));
+    }
+
     private Channel newChannel(final String uaid, final String channelId, final long version) {
         final byte[] keySalt = "some string as a salt".getBytes();
         final String endpointToken = CryptoUtil.endpointToken(uaid, channelId, CryptoUtil.secretKey("testKey", keySalt));
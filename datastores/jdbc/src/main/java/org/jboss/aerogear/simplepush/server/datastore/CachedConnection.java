@@ -0,0 +1,94 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A JDBC {@link Connection} which keeps the {@link PreparedStatement}s that have been
+ * prepared on it so that they can be reused by later operations.
+ * <p>
+ * The {@link JdbcDataStore} only ever issues a small, fixed set of SQL statements, so the
+ * cache is bounded by the number of distinct statements and does not need any eviction.
+ * Instances are not thread safe and are handed out to one operation at a time by the
+ * {@link JdbcExecutor}.
+ */
+public final class CachedConnection {
+
+    private final Logger logger = LoggerFactory.getLogger(CachedConnection.class);
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+    CachedConnection(final Connection connection) throws SQLException {
+        this.connection = connection;
+        connection.setAutoCommit(false);
+    }
+
+    /**
+     * Returns a {@link PreparedStatement} for the passed in sql, preparing it on first use.
+     *
+     * @param sql the SQL statement.
+     * @return {@link PreparedStatement} a statement with its parameters cleared.
+     * @throws SQLException if the statement could not be prepared.
+     */
+    public PreparedStatement prepare(final String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null) {
+            ps = connection.prepareStatement(sql);
+            statements.put(sql, ps);
+        } else {
+            ps.clearParameters();
+        }
+        return ps;
+    }
+
+    void commit() throws SQLException {
+        connection.commit();
+    }
+
+    void rollback() {
+        try {
+            connection.rollback();
+        } catch (final SQLException e) {
+            logger.debug("Error while rolling back transaction", e);
+        }
+    }
+
+    void close() {
+        for (PreparedStatement ps : statements.values()) {
+            try {
+                ps.close();
+            } catch (final SQLException e) {
+                logger.debug("Error while closing statement", e);
+            }
+        }
+        statements.clear();
+        try {
+            connection.close();
+        } catch (final SQLException e) {
+            logger.debug("Error while closing connection", e);
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The SQL dialects supported by the {@link JdbcDataStore}.
+ * <p>
+ * The schema is fixed and shared by all dialects. What differs is the DDL used to create it
+ * and the statements used for inserting-if-absent and for upserting, which each database
+ * exposes with its own syntax.
+ */
+public enum Dialect {
+
+    H2("jdbc:h2:", "VARBINARY(255)") {
+        @Override
+        public String insertChannelIfAbsent() {
+            return "INSERT INTO sp_channels (channel_id, uaid, version, endpoint_token) VALUES (?, ?, ?, ?)";
+        }
+
+        @Override
+        public String upsertAck() {
+            return "MERGE INTO sp_acks (channel_id, uaid, version) KEY (channel_id) VALUES (?, ?, ?)";
+        }
+
+        @Override
+        public String upsertLastSeen() {
+            return "MERGE INTO sp_useragents (uaid, last_seen) KEY (uaid) VALUES (?, ?)";
+        }
+    },
+
+    MYSQL("jdbc:mysql:", "VARBINARY(255)") {
+        @Override
+        public String insertChannelIfAbsent() {
+            // INSERT IGNORE would also turn errors such as over-long values into warnings.
+            return "INSERT INTO sp_channels (channel_id, uaid, version, endpoint_token) VALUES (?, ?, ?, ?) " +
+                    "ON DUPLICATE KEY UPDATE channel_id = channel_id";
+        }
+
+        @Override
+        public String upsertAck() {
+            return "INSERT INTO sp_acks (channel_id, uaid, version) VALUES (?, ?, ?) " +
+                    "ON DUPLICATE KEY UPDATE uaid = VALUES(uaid), version = VALUES(version)";
+        }
+
+        @Override
+        public String upsertLastSeen() {
+            return "INSERT INTO sp_useragents (uaid, last_seen) VALUES (?, ?) " +
+                    "ON DUPLICATE KEY UPDATE last_seen = VALUES(last_seen)";
+        }
+
+        @Override
+        public List<String> schema() {
+            return Arrays.asList(
+                    createServerTable(),
+                    "CREATE TABLE IF NOT EXISTS sp_channels (channel_id VARCHAR(255) NOT NULL PRIMARY KEY, " +
+                            "uaid VARCHAR(255) NOT NULL, version BIGINT NOT NULL, " +
+                            "endpoint_token VARCHAR(255) NOT NULL UNIQUE, INDEX sp_channels_uaid (uaid))",
+                    "CREATE TABLE IF NOT EXISTS sp_acks (channel_id VARCHAR(255) NOT NULL PRIMARY KEY, " +
+                            "uaid VARCHAR(255) NOT NULL, version BIGINT NOT NULL, INDEX sp_acks_uaid (uaid))",
+                    "CREATE TABLE IF NOT EXISTS sp_useragents (uaid VARCHAR(255) NOT NULL PRIMARY KEY, " +
+                            "last_seen BIGINT NOT NULL, INDEX sp_useragents_last_seen (last_seen))");
+        }
+    },
+
+    POSTGRESQL("jdbc:postgresql:", "BYTEA") {
+        @Override
+        public String insertChannelIfAbsent() {
+            return "INSERT INTO sp_channels (channel_id, uaid, version, endpoint_token) VALUES (?, ?, ?, ?) " +
+                    "ON CONFLICT (channel_id) DO NOTHING";
+        }
+
+        @Override
+        public String upsertAck() {
+            return "INSERT INTO sp_acks (channel_id, uaid, version) VALUES (?, ?, ?) " +
+                    "ON CONFLICT (channel_id) DO UPDATE SET uaid = EXCLUDED.uaid, version = EXCLUDED.version";
+        }
+
+        @Override
+        public String upsertLastSeen() {
+            return "INSERT INTO sp_useragents (uaid, last_seen) VALUES (?, ?) " +
+                    "ON CONFLICT (uaid) DO UPDATE SET last_seen = EXCLUDED.last_seen";
+        }
+    };
+
+    private final String urlPrefix;
+    private final String binaryType;
+
+    private Dialect(final String urlPrefix, final String binaryType) {
+        this.urlPrefix = urlPrefix;
+        this.binaryType = binaryType;
+    }
+
+    /**
+     * Returns the statement used to insert a channel unless a channel with the same id
+     * already exists. Parameters are: channel_id, uaid, version, endpoint_token.
+     * <p>
+     * Inserting an existing channel must be a no-op, or at worst a constraint violation, and any other
+     * error must be raised. The number of rows reported for a no-op differs between databases, so callers
+     * that need to know whether the channel was inserted should use a plain insert instead.
+     *
+     * @return {@code String} the insert statement.
+     */
+    public abstract String insertChannelIfAbsent();
+
+    /**
+     * Returns the statement used to insert or replace the pending ack for a channel.
+     * Parameters are: channel_id, uaid, version.
+     *
+     * @return {@code String} the upsert statement.
+     */
+    public abstract String upsertAck();
+
+    /**
+     * Returns the statement used to insert or replace the last seen time of a UserAgent.
+     * Parameters are: uaid, last_seen.
+     *
+     * @return {@code String} the upsert statement.
+     */
+    public abstract String upsertLastSeen();
+
+    /**
+     * Returns the DDL statements needed to create the schema if it does not exist.
+     *
+     * @return {@code List<String>} the DDL statements in the order they should be executed.
+     */
+    public List<String> schema() {
+        return Arrays.asList(
+                createServerTable(),
+                "CREATE TABLE IF NOT EXISTS sp_channels (channel_id VARCHAR(255) NOT NULL PRIMARY KEY, " +
+                        "uaid VARCHAR(255) NOT NULL, version BIGINT NOT NULL, " +
+                        "endpoint_token VARCHAR(255) NOT NULL UNIQUE)",
+                "CREATE INDEX IF NOT EXISTS sp_channels_uaid ON sp_channels (uaid)",
+                "CREATE TABLE IF NOT EXISTS sp_acks (channel_id VARCHAR(255) NOT NULL PRIMARY KEY, " +
+                        "uaid VARCHAR(255) NOT NULL, version BIGINT NOT NULL)",
+                "CREATE INDEX IF NOT EXISTS sp_acks_uaid ON sp_acks (uaid)",
+                "CREATE TABLE IF NOT EXISTS sp_useragents (uaid VARCHAR(255) NOT NULL PRIMARY KEY, " +
+                        "last_seen BIGINT NOT NULL)",
+                "CREATE INDEX IF NOT EXISTS sp_useragents_last_seen ON sp_useragents (last_seen)");
+    }
+
+    String createServerTable() {
+        return "CREATE TABLE IF NOT EXISTS sp_server (id INT NOT NULL PRIMARY KEY, salt " + binaryType + " NOT NULL)";
+    }
+
+    /**
+     * Returns the dialect with the passed in name, ignoring case.
+     *
+     * @param name the name of the dialect, for example {@code h2}, {@code mysql} or {@code postgresql}.
+     * @return {@link Dialect} the matching dialect.
+     * @throws IllegalArgumentException if no dialect with the passed in name exists.
+     */
+    public static Dialect of(final String name) {
+        return valueOf(name.toUpperCase());
+    }
+
+    /**
+     * Returns the dialect matching the passed in JDBC url.
+     *
+     * @param url the JDBC url, for example {@code jdbc:h2:mem:simplepush}.
+     * @return {@link Dialect} the matching dialect.
+     * @throws IllegalArgumentException if the url does not match any supported dialect.
+     */
+    public static Dialect fromUrl(final String url) {
+        for (Dialect dialect : values()) {
+            if (url.startsWith(dialect.urlPrefix)) {
+                return dialect;
+            }
+        }
+        throw new IllegalArgumentException("No dialect matching url [" + url + "]");
+    }
+
+}
@@ -0,0 +1,722 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A DataStore implementation that uses plain JDBC against a fixed schema.
+ * <p>
+ * Unlike the JPA DataStore no entity graph is loaded or merged. Every operation maps to a
+ * small number of prepared statements which are cached per connection, multi-row changes
+ * are sent as JDBC batches, and pending acks are written with the dialect's native upsert.
+ */
+public final class JdbcDataStore implements BatchDataStore, IterableDataStore, BulkLoadDataStore, LastSeenDataStore {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 10;
+    private static final int SERVER_ID = 1;
+    private static final String SELECT_SALT = "SELECT salt FROM sp_server WHERE id = ?";
+    private static final String INSERT_SALT = "INSERT INTO sp_server (id, salt) VALUES (?, ?)";
+    private static final String INSERT_CHANNEL = "INSERT INTO sp_channels (channel_id, uaid, version, endpoint_token) "
+            + "VALUES (?, ?, ?, ?)";
+    private static final String SELECT_CHANNEL = "SELECT uaid, version, endpoint_token FROM sp_channels WHERE channel_id = ?";
+    private static final String SELECT_CHANNEL_IDS = "SELECT channel_id FROM sp_channels WHERE uaid = ?";
+    private static final String SELECT_UAIDS = "SELECT DISTINCT uaid FROM sp_channels ORDER BY uaid LIMIT ?";
+    private static final String SELECT_UAIDS_AFTER = "SELECT DISTINCT uaid FROM sp_channels WHERE uaid > ? ORDER BY uaid LIMIT ?";
+    private static final String SELECT_CHANNELS_BETWEEN = "SELECT uaid, channel_id, version, endpoint_token FROM sp_channels "
+            + "WHERE uaid >= ? AND uaid <= ?";
+    private static final String SELECT_ACKS_BETWEEN = "SELECT uaid, channel_id, version FROM sp_acks WHERE uaid >= ? AND uaid <= ?";
+    private static final String SELECT_UAID = "SELECT uaid FROM sp_channels WHERE channel_id = ?";
+    private static final String SELECT_BY_TOKEN = "SELECT channel_id, version FROM sp_channels WHERE endpoint_token = ?";
+    private static final String UPDATE_VERSION = "UPDATE sp_channels SET version = ? WHERE channel_id = ? AND version < ?";
+    private static final String DELETE_CHANNEL = "DELETE FROM sp_channels WHERE channel_id = ?";
+    private static final String DELETE_CHANNELS_FOR_UAID = "DELETE FROM sp_channels WHERE uaid = ?";
+    private static final String DELETE_ACK = "DELETE FROM sp_acks WHERE channel_id = ?";
+    private static final String DELETE_ACK_FOR_UAID = "DELETE FROM sp_acks WHERE uaid = ? AND channel_id = ?";
+    private static final String DELETE_ACKS_FOR_UAID = "DELETE FROM sp_acks WHERE uaid = ?";
+    private static final String SELECT_ACKS = "SELECT channel_id, version FROM sp_acks WHERE uaid = ?";
+    private static final String SELECT_LAST_SEEN_BEFORE = "SELECT uaid FROM sp_useragents WHERE last_seen < ? ORDER BY last_seen LIMIT ?";
+    private static final String DELETE_LAST_SEEN_BEFORE = "DELETE FROM sp_useragents WHERE uaid = ? AND last_seen < ?";
+
+    private final Logger logger = LoggerFactory.getLogger(JdbcDataStore.class);
+    private final JdbcExecutor jdbcExecutor;
+    private final Dialect dialect;
+
+    /**
+     * Creates a JdbcDataStore using {@link #DEFAULT_MAX_CONNECTIONS} connections.
+     *
+     * @param dataSource the {@link DataSource} to obtain connections from.
+     * @param dialect the {@link Dialect} of the underlying database.
+     */
+    public JdbcDataStore(final DataSource dataSource, final Dialect dialect) {
+        this(dataSource, dialect, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Creates a JdbcDataStore and creates the schema if it does not already exist.
+     *
+     * @param dataSource the {@link DataSource} to obtain connections from.
+     * @param dialect the {@link Dialect} of the underlying database.
+     * @param maxConnections the maximum number of connections to keep open.
+     */
+    public JdbcDataStore(final DataSource dataSource, final Dialect dialect, final int maxConnections) {
+        this.dialect = dialect;
+        jdbcExecutor = new JdbcExecutor(dataSource, maxConnections);
+        createSchema();
+    }
+
+    private void createSchema() {
+        final JdbcOperation<Void> createSchema = new JdbcOperation<Void>() {
+            @Override
+            public Void perform(final CachedConnection connection) throws SQLException {
+                for (String ddl : dialect.schema()) {
+                    connection.prepare(ddl).execute();
+                }
+                return null;
+            }
+        };
+        jdbcExecutor.execute(createSchema);
+    }
+
+    @Override
+    public void savePrivateKeySalt(final byte[] salt) {
+        final JdbcOperation<Void> saveSalt = new JdbcOperation<Void>() {
+            @Override
+            public Void perform(final CachedConnection connection) throws SQLException {
+                if (selectSalt(connection) != null) {
+                    return null;
+                }
+                final PreparedStatement insert = connection.prepare(INSERT_SALT);
+                insert.setInt(1, SERVER_ID);
+                insert.setBytes(2, salt);
+                insert.executeUpdate();
+                return null;
+            }
+        };
+        jdbcExecutor.execute(saveSalt);
+    }
+
+    @Override
+    public byte[] getPrivateKeySalt() {
+        final JdbcOperation<byte[]> getSalt = new JdbcOperation<byte[]>() {
+            @Override
+            public byte[] perform(final CachedConnection connection) throws SQLException {
+                return selectSalt(connection);
+            }
+        };
+        final byte[] salt = jdbcExecutor.execute(getSalt);
+        return salt != null ? salt : new byte[]{};
+    }
+
+    private static byte[] selectSalt(final CachedConnection connection) throws SQLException {
+        final PreparedStatement select = connection.prepare(SELECT_SALT);
+        select.setInt(1, SERVER_ID);
+        final ResultSet rs = select.executeQuery();
+        try {
+            return rs.next() ? rs.getBytes(1) : null;
+        } finally {
+            rs.close();
+        }
+    }
+
+    @Override
+    public boolean saveChannel(final Channel channel) {
+        final JdbcOperation<Boolean> saveChannel = new JdbcOperation<Boolean>() {
+            @Override
+            public Boolean perform(final CachedConnection connection) throws SQLException {
+                // a plain insert, as the update count of an insert-if-absent does not tell whether
+                // the channel was inserted on all databases, MySQL for one.
+                final PreparedStatement insert = connection.prepare(INSERT_CHANNEL);
+                insert.setString(1, channel.getChannelId());
+                insert.setString(2, channel.getUAID());
+                insert.setLong(3, channel.getVersion());
+                insert.setString(4, channel.getEndpointToken());
+                try {
+                    return insert.executeUpdate() == 1;
+                } catch (final SQLException e) {
+                    if (isConstraintViolation(e)) {
+                        return Boolean.FALSE;
+                    }
+                    throw e;
+                }
+            }
+        };
+        try {
+            return jdbcExecutor.execute(saveChannel);
+        } catch (final JdbcException e) {
+            logger.error("Could not save channel [" + channel.getChannelId() + "]", e);
+            return false;
+        }
+    }
+
+    @Override
+    public Channel getChannel(final String channelId) throws ChannelNotFoundException {
+        final JdbcOperation<Channel> getChannel = new JdbcOperation<Channel>() {
+            @Override
+            public Channel perform(final CachedConnection connection) throws SQLException {
+                final PreparedStatement select = connection.prepare(SELECT_CHANNEL);
+                select.setString(1, channelId);
+                final ResultSet rs = select.executeQuery();
+                try {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    return new DefaultChannel(rs.getString(1), channelId, rs.getLong(2), rs.getString(3));
+                } finally {
+                    rs.close();
+                }
+            }
+        };
+        final Channel channel = jdbcExecutor.execute(getChannel);
+        if (channel == null) {
+            throw new ChannelNotFoundException("No Channel for [" + channelId + "] was found", channelId);
+        }
+        return channel;
+    }
+
+    @Override
+    public void removeChannels(final String uaid) {
+        final JdbcOperation<Void> removeChannels = new JdbcOperation<Void>() {
+            @Override
+            public Void perform(final CachedConnection connection) throws SQLException {
+                final PreparedStatement deleteAcks = connection.prepare(DELETE_ACKS_FOR_UAID);
+                deleteAcks.setString(1, uaid);
+                deleteAcks.executeUpdate();
+                final PreparedStatement deleteChannels = connection.prepare(DELETE_CHANNELS_FOR_UAID);
+                deleteChannels.setString(1, uaid);
+                deleteChannels.executeUpdate();
+                return null;
+            }
+        };
+        jdbcExecutor.execute(removeChannels);
+        logger.debug("Deleted all channels for UserAgent [" + uaid + "]");
+    }
+
+    @Override
+    public void removeChannels(final Set<String> channelIds) {
+        if (channelIds == null || channelIds.isEmpty()) {
+            return;
+        }
+        final JdbcOperation<Void> removeChannels = new JdbcOperation<Void>() {
+            @Override
+            public Void perform(final CachedConnection connection) throws SQLException {
+                final PreparedStatement deleteAcks = connection.prepare(DELETE_ACK);
+                final PreparedStatement deleteChannels = connection.prepare(DELETE_CHANNEL);
+                for (String channelId : channelIds) {
+                    deleteAcks.setString(1, channelId);
+                    deleteAcks.addBatch();
+                    deleteChannels.setString(1, channelId);
+                    deleteChannels.addBatch();
+                }
+                deleteAcks.executeBatch();
+                deleteChannels.executeBatch();
+                return null;
+            }
+        };
+        jdbcExecutor.execute(removeChannels);
+    }
+
+    @Override
+    public Set<String> getChannelIds(final String uaid) {
+        final JdbcOperation<Set<String>> getChannelIds = new JdbcOperation<Set<String>>() {
+            @Override
+            public Set<String> perform(final CachedConnection connection) throws SQLException {
+                final PreparedStatement select = connection.prepare(SELECT_CHANNEL_IDS);
+                select.setString(1, uaid);
+                final ResultSet rs = select.executeQuery();
+                try {
+                    final Set<String> channelIds = new HashSet<String>();
+                    while (rs.next()) {
+                        channelIds.add(rs.getString(1));
+                    }
+                    return channelIds;
+                } finally {
+                    rs.close();
+                }
+            }
+        };
+        return jdbcExecutor.execute(getChannelIds);
+    }
+
+    @Override
+    public List<String> getUserAgentIds(final String afterUaid, final int limit) {
+        final JdbcOperation<List<String>> getUserAgentIds = new JdbcOperation<List<String>>() {
+            @Override
+            public List<String> perform(final CachedConnection connection) throws SQLException {
+                final PreparedStatement select;
+                if (afterUaid == null) {
+                    select = connection.prepare(SELECT_UAIDS);
+                    select.setInt(1, limit);
+                } else {
+                    select = connection.prepare(SELECT_UAIDS_AFTER);
+                    select.setString(1, afterUaid);
+                    select.setInt(2, limit);
+                }
+                final ResultSet rs = select.executeQuery();
+                try {
+                    final List<String> uaids = new ArrayList<String>(limit);
+                    while (rs.next()) {
+                        uaids.add(rs.getString(1));
+                    }
+                    return uaids;
+                } finally {
+                    rs.close();
+                }
+            }
+        };
+        return jdbcExecutor.execute(getUserAgentIds);
+    }
+
+    /**
+     * Returns a page of UserAgents using three queries: one for the page of UserAgent Ids, and one each
+     * for the channels and the pending acks of the UserAgent Id range of that page.
+     */
+    @Override
+    public List<UserAgentRecord> getUserAgents(final String afterUaid, final int limit) {
+        final List<String> uaids = getUserAgentIds(afterUaid, limit);
+        if (uaids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final JdbcOperation<List<UserAgentRecord>> getUserAgents = new JdbcOperation<List<UserAgentRecord>>() {
+            @Override
+            public List<UserAgentRecord> perform(final CachedConnection connection) throws SQLException {
+                final Map<String, Set<Channel>> channels = new HashMap<String, Set<Channel>>(uaids.size());
+                final Map<String, Set<Ack>> acks = new HashMap<String, Set<Ack>>(uaids.size());
+                for (String uaid : uaids) {
+                    channels.put(uaid, new HashSet<Channel>());
+                    acks.put(uaid, new HashSet<Ack>());
+                }
+                final String first = uaids.get(0);
+                final String last = uaids.get(uaids.size() - 1);
+                final PreparedStatement selectChannels = connection.prepare(SELECT_CHANNELS_BETWEEN);
+                selectChannels.setString(1, first);
+                selectChannels.setString(2, last);
+                ResultSet rs = selectChannels.executeQuery();
+                try {
+                    while (rs.next()) {
+                        final Set<Channel> userAgentChannels = channels.get(rs.getString(1));
+                        if (userAgentChannels != null) {
+                            userAgentChannels.add(new DefaultChannel(rs.getString(1), rs.getString(2), rs.getLong(3), rs.getString(4)));
+                        }
+                    }
+                } finally {
+                    rs.close();
+                }
+                final PreparedStatement selectAcks = connection.prepare(SELECT_ACKS_BETWEEN);
+                selectAcks.setString(1, first);
+                selectAcks.setString(2, last);
+                rs = selectAcks.executeQuery();
+                try {
+                    while (rs.next()) {
+                        final Set<Ack> userAgentAcks = acks.get(rs.getString(1));
+                        if (userAgentAcks != null) {
+                            userAgentAcks.add(new AckImpl(rs.getString(2), rs.getLong(3)));
+                        }
+                    }
+                } finally {
+                    rs.close();
+                }
+                final List<UserAgentRecord> records = new ArrayList<UserAgentRecord>(uaids.size());
+                for (String uaid : uaids) {
+                    records.add(new UserAgentRecord(uaid, channels.get(uaid), acks.get(uaid)));
+                }
+                return records;
+            }
+        };
+        return jdbcExecutor.execute(getUserAgents);
+    }
+
+    /**
+     * Stores the UserAgents in a single transaction, sending the new channels and the pending acks as
+     * two JDBC batches. Channels that already exist are skipped.
+     */
+    @Override
+    public void saveUserAgents(final List<UserAgentRecord> userAgents) {
+        if (userAgents.isEmpty()) {
+            return;
+        }
+        final JdbcOperation<Void> saveUserAgents = new JdbcOperation<Void>() {
+            @Override
+            public Void perform(final CachedConnection connection) throws SQLException {
+                final PreparedStatement selectChannelIds = connection.prepare(SELECT_CHANNEL_IDS);
+                final PreparedStatement insertChannel = connection.prepare(dialect.insertChannelIfAbsent());
+                final PreparedStatement upsertAck = connection.prepare(dialect.upsertAck());
+                boolean channelsBatched = false;
+                boolean acksBatched = false;
+                for (UserAgentRecord userAgent : userAgents) {
+                    final Set<String> existing = new HashSet<String>();
+                    selectChannelIds.setString(1, userAgent.getUAID());
+                    final ResultSet rs = selectChannelIds.executeQuery();
+                    try {
+                        while (rs.next()) {
+                            existing.add(rs.getString(1));
+                        }
+                    } finally {
+                        rs.close();
+                    }
+                    for (Channel channel : userAgent.getChannels()) {
+                        if (existing.contains(channel.getChannelId())) {
+                            continue;
+                        }
+                        insertChannel.setString(1, channel.getChannelId());
+                        insertChannel.setString(2, userAgent.getUAID());
+                        insertChannel.setLong(3, channel.getVersion());
+                        insertChannel.setString(4, channel.getEndpointToken());
+                        insertChannel.addBatch();
+                        channelsBatched = true;
+                    }
+                    for (Ack ack : userAgent.getUnacknowledged()) {
+                        upsertAck.setString(1, ack.getChannelId());
+                        upsertAck.setString(2, userAgent.getUAID());
+                        upsertAck.setLong(3, ack.getVersion());
+                        upsertAck.addBatch();
+                        acksBatched = true;
+                    }
+                }
+                if (channelsBatched) {
+                    insertChannel.executeBatch();
+                }
+                if (acksBatched) {
+                    upsertAck.executeBatch();
+                }
+                return null;
+            }
+        };
+        jdbcExecutor.execute(saveUserAgents);
+    }
+
+    @Override
+    public void updateLastSeen(final String uaid, final long timestamp) {
+        final JdbcOperation<Void> updateLastSeen = new JdbcOperation<Void>() {
+            @Override
+            public Void perform(final CachedConnection connection) throws SQLException {
+                final PreparedStatement upsert = connection.prepare(dialect.upsertLastSeen());
+                upsert.setString(1, uaid);
+                upsert.setLong(2, timestamp);
+                upsert.executeUpdate();
+                return null;
+            }
+        };
+        jdbcExecutor.execute(updateLastSeen);
+    }
+
+    @Override
+    public List<String> getUserAgentsLastSeenBefore(final long timestamp, final int limit) {
+        final JdbcOperation<List<String>> getIdle = new JdbcOperation<List<String>>() {
+            @Override
+            public List<String> perform(final CachedConnection connection) throws SQLException {
+                final PreparedStatement select = connection.prepare(SELECT_LAST_SEEN_BEFORE);
+                select.setLong(1, timestamp);
+                select.setInt(2, limit);
+                final ResultSet rs = select.executeQuery();
+                try {
+                    final List<String> uaids = new ArrayList<String>(limit);
+                    while (rs.next()) {
+                        uaids.add(rs.getString(1));
+                    }
+                    return uaids;
+                } finally {
+                    rs.close();
+                }
+            }
+        };
+        return jdbcExecutor.execute(getIdle);
+    }
+
+    /**
+     * Removes the UserAgent in a single transaction. The conditional delete of its {@code sp_useragents}
+     * row locks the row, so a concurrent {@link #updateLastSeen(String, long)} either happens before and
+     * prevents the removal, or waits for it and re-creates the row.
+     */
+    @Override
+    public boolean removeUserAgentIfLastSeenBefore(final String uaid, final long timestamp) {
+        final JdbcOperation<Boolean> removeUserAgent = new JdbcOperation<Boolean>() {
+            @Override
+            public Boolean perform(final CachedConnection connection) throws SQLException {
+                final PreparedStatement delete = connection.prepare(DELETE_LAST_SEEN_BEFORE);
+                delete.setString(1, uaid);
+                delete.setLong(2, timestamp);
+                if (delete.executeUpdate() == 0) {
+                    return Boolean.FALSE;
+                }
+                final PreparedStatement deleteAcks = connection.prepare(DELETE_ACKS_FOR_UAID);
+                deleteAcks.setString(1, uaid);
+                deleteAcks.executeUpdate();
+                final PreparedStatement deleteChannels = connection.prepare(DELETE_CHANNELS_FOR_UAID);
+                deleteChannels.setString(1, uaid);
+                deleteChannels.executeUpdate();
+                return Boolean.TRUE;
+            }
+        };
+        return jdbcExecutor.execute(removeUserAgent);
+    }
+
+    @Override
+    public String updateVersion(final String endpointToken, final long version) throws VersionException, ChannelNotFoundException {
+        final JdbcOperation<String> updateVersion = new JdbcOperation<String>() {
+            @Override
+            public String perform(final CachedConnection connection) throws SQLException {
+                final PreparedStatement select = connection.prepare(SELECT_BY_TOKEN);
+                select.setString(1, endpointToken);
+                final ResultSet rs = select.executeQuery();
+                final String channelId;
+                final long currentVersion;
+                try {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    channelId = rs.getString(1);
+                    currentVersion = rs.getLong(2);
+                } finally {
+                    rs.close();
+                }
+                if (version <= currentVersion) {
+                    throw versionException(version, currentVersion);
+                }
+                final PreparedStatement update = connection.prepare(UPDATE_VERSION);
+                update.setLong(1, version);
+                update.setString(2, channelId);
+                update.setLong(3, version);
+                if (update.executeUpdate() != 1) {
+                    throw versionException(version, currentVersion);
+                }
+                return channelId;
+            }
+        };
+        final String channelId = jdbcExecutor.execute(updateVersion);
+        if (channelId == null) {
+            throw new ChannelNotFoundException("No Channel for endpointToken [" + endpointToken + "] was found", endpointToken);
+        }
+        return channelId;
+    }
+
+    private static VersionException versionException(final long version, final long currentVersion) {
+        return new VersionException("New version [" + version + "] must be greater than current version [" + currentVersion + "]");
+    }
+
+    @Override
+    public String saveUnacknowledged(final String channelId, final long version) throws ChannelNotFoundException {
+        final JdbcOperation<String> saveAck = new JdbcOperation<String>() {
+            @Override
+            public String perform(final CachedConnection connection) throws SQLException {
+                final PreparedStatement select = connection.prepare(SELECT_UAID);
+                select.setString(1, channelId);
+                final ResultSet rs = select.executeQuery();
+                final String uaid;
+                try {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    uaid = rs.getString(1);
+                } finally {
+                    rs.close();
+                }
+                final PreparedStatement upsert = connection.prepare(dialect.upsertAck());
+                upsert.setString(1, channelId);
+                upsert.setString(2, uaid);
+                upsert.setLong(3, version);
+                upsert.executeUpdate();
+                return uaid;
+            }
+        };
+        final String uaid = jdbcExecutor.execute(saveAck);
+        if (uaid == null) {
+            throw new ChannelNotFoundException("Could not find channel", channelId);
+        }
+        return uaid;
+    }
+
+    @Override
+    public Map<String, WriteResult> updateVersions(final Map<String, Long> versions) {
+        final JdbcOperation<Map<String, WriteResult>> updateVersions = new JdbcOperation<Map<String, WriteResult>>() {
+            @Override
+            public Map<String, WriteResult> perform(final CachedConnection connection) throws SQLException {
+                final Map<String, WriteResult> results = new HashMap<String, WriteResult>(versions.size());
+                final List<String> tokens = new ArrayList<String>(versions.size());
+                final List<String> channelIds = new ArrayList<String>(versions.size());
+                final List<Long> currentVersions = new ArrayList<Long>(versions.size());
+                final PreparedStatement select = connection.prepare(SELECT_BY_TOKEN);
+                final PreparedStatement update = connection.prepare(UPDATE_VERSION);
+                for (Entry<String, Long> entry : versions.entrySet()) {
+                    final String endpointToken = entry.getKey();
+                    final long version = entry.getValue();
+                    select.setString(1, endpointToken);
+                    final ResultSet rs = select.executeQuery();
+                    try {
+                        if (!rs.next()) {
+                            results.put(endpointToken, WriteResult.failure(new ChannelNotFoundException(
+                                    "No Channel for endpointToken [" + endpointToken + "] was found", endpointToken)));
+                            continue;
+                        }
+                        final String channelId = rs.getString(1);
+                        final long currentVersion = rs.getLong(2);
+                        if (version <= currentVersion) {
+                            results.put(endpointToken, WriteResult.failure(versionException(version, currentVersion)));
+                            continue;
+                        }
+                        update.setLong(1, version);
+                        update.setString(2, channelId);
+                        update.setLong(3, version);
+                        update.addBatch();
+                        tokens.add(endpointToken);
+                        channelIds.add(channelId);
+                        currentVersions.add(currentVersion);
+                    } finally {
+                        rs.close();
+                    }
+                }
+                if (!tokens.isEmpty()) {
+                    final int[] counts = update.executeBatch();
+                    for (int i = 0; i < counts.length; i++) {
+                        final String endpointToken = tokens.get(i);
+                        if (counts[i] == 0) {
+                            results.put(endpointToken, WriteResult.failure(versionException(versions.get(endpointToken), currentVersions.get(i))));
+                        } else {
+                            results.put(endpointToken, WriteResult.success(channelIds.get(i)));
+                        }
+                    }
+                }
+                return results;
+            }
+        };
+        return jdbcExecutor.execute(updateVersions);
+    }
+
+    @Override
+    public Map<String, WriteResult> saveUnacknowledged(final Map<String, Long> versions) {
+        final JdbcOperation<Map<String, WriteResult>> saveAcks = new JdbcOperation<Map<String, WriteResult>>() {
+            @Override
+            public Map<String, WriteResult> perform(final CachedConnection connection) throws SQLException {
+                final Map<String, WriteResult> results = new HashMap<String, WriteResult>(versions.size());
+                final PreparedStatement select = connection.prepare(SELECT_UAID);
+                final PreparedStatement upsert = connection.prepare(dialect.upsertAck());
+                boolean batched = false;
+                for (Entry<String, Long> entry : versions.entrySet()) {
+                    final String channelId = entry.getKey();
+                    select.setString(1, channelId);
+                    final ResultSet rs = select.executeQuery();
+                    try {
+                        if (!rs.next()) {
+                            results.put(channelId, WriteResult.failure(new ChannelNotFoundException("Could not find channel", channelId)));
+                            continue;
+                        }
+                        final String uaid = rs.getString(1);
+                        upsert.setString(1, channelId);
+                        upsert.setString(2, uaid);
+                        upsert.setLong(3, entry.getValue());
+                        upsert.addBatch();
+                        batched = true;
+                        results.put(channelId, WriteResult.success(uaid));
+                    } finally {
+                        rs.close();
+                    }
+                }
+                if (batched) {
+                    upsert.executeBatch();
+                }
+                return results;
+            }
+        };
+        return jdbcExecutor.execute(saveAcks);
+    }
+
+    @Override
+    public Set<Ack> getUnacknowledged(final String uaid) {
+        final JdbcOperation<Set<Ack>> getUnacks = new JdbcOperation<Set<Ack>>() {
+            @Override
+            public Set<Ack> perform(final CachedConnection connection) throws SQLException {
+                return selectAcks(connection, uaid);
+            }
+        };
+        return jdbcExecutor.execute(getUnacks);
+    }
+
+    @Override
+    public Set<Ack> removeAcknowledged(final String uaid, final Set<Ack> acked) {
+        final JdbcOperation<Set<Ack>> removeAcks = new JdbcOperation<Set<Ack>>() {
+            @Override
+            public Set<Ack> perform(final CachedConnection connection) throws SQLException {
+                if (!acked.isEmpty()) {
+                    final PreparedStatement delete = connection.prepare(DELETE_ACK_FOR_UAID);
+                    for (Ack ack : acked) {
+                        delete.setString(1, uaid);
+                        delete.setString(2, ack.getChannelId());
+                        delete.addBatch();
+                    }
+                    delete.executeBatch();
+                }
+                return selectAcks(connection, uaid);
+            }
+        };
+        return jdbcExecutor.execute(removeAcks);
+    }
+
+    private static Set<Ack> selectAcks(final CachedConnection connection, final String uaid) throws SQLException {
+        final PreparedStatement select = connection.prepare(SELECT_ACKS);
+        select.setString(1, uaid);
+        final ResultSet rs = select.executeQuery();
+        try {
+            if (!rs.next()) {
+                return Collections.emptySet();
+            }
+            final Set<Ack> acks = new HashSet<Ack>();
+            do {
+                acks.add(new AckImpl(rs.getString(1), rs.getLong(2)));
+            } while (rs.next());
+            return acks;
+        } finally {
+            rs.close();
+        }
+    }
+
+    private static boolean isConstraintViolation(final SQLException e) {
+        final String sqlState = e.getSQLState();
+        return sqlState != null && sqlState.startsWith("23");
+    }
+
+    /**
+     * Closes the connections held by this DataStore.
+     */
+    public void close() {
+        jdbcExecutor.close();
+    }
+
+    @Override
+    public String toString() {
+        return "JdbcDataStore[dialect=" + dialect + "]";
+    }
+
+}
@@ -0,0 +1,42 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+/**
+ * An unchecked exception to signal that a {@link JdbcOperation} could not be performed.
+ */
+public class JdbcException extends RuntimeException {
+
+    private static final long serialVersionUID = -2870553915946413717L;
+
+    public JdbcException() {
+        super();
+    }
+
+    public JdbcException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public JdbcException(String message) {
+        super(message);
+    }
+
+    public JdbcException(Throwable cause) {
+        super(cause);
+    }
+
+}
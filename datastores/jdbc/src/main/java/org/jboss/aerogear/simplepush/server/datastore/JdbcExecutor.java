@@ -0,0 +1,135 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JdbcExecutor executes a {@link JdbcOperation} and takes care of transaction
+ * demarcation and of handing out {@link CachedConnection}s.
+ * <p>
+ * Connections are obtained from the {@link DataSource} lazily, up to a maximum, and are
+ * kept open between operations so that their prepared statements can be reused. A connection
+ * that fails with an exception is closed and replaced on the next request.
+ */
+public final class JdbcExecutor {
+
+    private static final long BORROW_POLL_MILLIS = 50;
+    private final Logger logger = LoggerFactory.getLogger(JdbcExecutor.class);
+    private final DataSource dataSource;
+    private final int maxConnections;
+    private final BlockingQueue<CachedConnection> idle = new LinkedBlockingQueue<CachedConnection>();
+    private final AtomicInteger created = new AtomicInteger();
+
+    /**
+     * Sole constructor.
+     *
+     * @param dataSource the {@link DataSource} used to obtain connections.
+     * @param maxConnections the maximum number of connections that will be held open.
+     */
+    public JdbcExecutor(final DataSource dataSource, final int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("[maxConnections] must be greater than zero");
+        }
+        this.dataSource = dataSource;
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Executes the passed in operation, wrapping it in a transaction.
+     *
+     * @param operation the {@link JdbcOperation} to be performed.
+     * @return {@code T} the return type of the operation.
+     */
+    public <T> T execute(final JdbcOperation<T> operation) {
+        final CachedConnection connection = borrow();
+        try {
+            final T t = operation.perform(connection);
+            connection.commit();
+            idle.offer(connection);
+            return t;
+        } catch (final SQLException e) {
+            logger.debug("Error while performing JdbcOperation:", e);
+            connection.rollback();
+            discard(connection);
+            throw new JdbcException("Exception while trying to perform JDBC operation", e);
+        } catch (final RuntimeException e) {
+            connection.rollback();
+            idle.offer(connection);
+            throw e;
+        }
+    }
+
+    /**
+     * Closes all idle connections held by this executor.
+     */
+    public void close() {
+        CachedConnection connection;
+        while ((connection = idle.poll()) != null) {
+            discard(connection);
+        }
+    }
+
+    private CachedConnection borrow() {
+        try {
+            for (;;) {
+                final CachedConnection connection = idle.poll();
+                if (connection != null) {
+                    return connection;
+                }
+                final int current = created.get();
+                if (current < maxConnections) {
+                    if (created.compareAndSet(current, current + 1)) {
+                        return open();
+                    }
+                    continue;
+                }
+                final CachedConnection released = idle.poll(BORROW_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (released != null) {
+                    return released;
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JdbcException("Interrupted while waiting for a connection", e);
+        }
+    }
+
+    private CachedConnection open() {
+        try {
+            return new CachedConnection(dataSource.getConnection());
+        } catch (final SQLException e) {
+            created.decrementAndGet();
+            throw new JdbcException("Could not obtain a connection", e);
+        }
+    }
+
+    private void discard(final CachedConnection connection) {
+        connection.close();
+        created.decrementAndGet();
+    }
+
+}
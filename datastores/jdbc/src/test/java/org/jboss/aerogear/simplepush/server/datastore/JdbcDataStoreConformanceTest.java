@@ -0,0 +1,33 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+public class JdbcDataStoreConformanceTest extends DataStoreConformanceTest {
+
+    private static final String URL = "jdbc:h2:mem:simplepush-jdbc-conformance;DB_CLOSE_DELAY=-1";
+
+    @Override
+    protected DataStore createDataStore() {
+        return new JdbcDataStore(new DriverManagerDataSource(URL, "sa", ""), Dialect.fromUrl(URL), 4);
+    }
+
+    @Override
+    protected void closeDataStore(final DataStore dataStore) {
+        ((JdbcDataStore) dataStore).close();
+    }
+
+}
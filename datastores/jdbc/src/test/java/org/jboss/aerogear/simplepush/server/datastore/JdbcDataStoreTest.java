@@ -0,0 +1,382 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
+import org.jboss.aerogear.simplepush.util.UUIDUtil;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class JdbcDataStoreTest {
+
+    private static final String URL = "jdbc:h2:mem:simplepush-jdbc;DB_CLOSE_DELAY=-1";
+    private static JdbcDataStore jdbcDataStore;
+
+    @BeforeClass
+    public static void createJdbcStore() {
+        jdbcDataStore = new JdbcDataStore(new DriverManagerDataSource(URL, "sa", ""), Dialect.fromUrl(URL), 4);
+    }
+
+    @AfterClass
+    public static void closeJdbcStore() {
+        jdbcDataStore.close();
+    }
+
+    @Test
+    public void savePrivateKeySalt() {
+        final byte[] salt = "some private salt".getBytes();
+        jdbcDataStore.savePrivateKeySalt(salt);
+        jdbcDataStore.savePrivateKeySalt("some other salt".getBytes());
+        assertThat(jdbcDataStore.getPrivateKeySalt(), equalTo(salt));
+    }
+
+    @Test
+    public void saveChannel() {
+        final boolean saved = jdbcDataStore.saveChannel(newChannel(UUIDUtil.newUAID(), UUID.randomUUID().toString(), 10L));
+        assertThat(saved, is(true));
+    }
+
+    @Test
+    public void saveChannelAlreadyExisting() throws ChannelNotFoundException {
+        final String uaid = UUIDUtil.newUAID();
+        final String channelId = UUID.randomUUID().toString();
+        assertThat(jdbcDataStore.saveChannel(newChannel(uaid, channelId, 1L)), is(true));
+        assertThat(jdbcDataStore.saveChannel(newChannel(uaid, channelId, 10L)), is(false));
+        assertThat(jdbcDataStore.getChannel(channelId).getVersion(), is(1L));
+    }
+
+    @Test
+    public void getChannel() throws ChannelNotFoundException {
+        final String uaid = UUIDUtil.newUAID();
+        final String channelId = UUID.randomUUID().toString();
+        final Channel saved = newChannel(uaid, channelId, 10L);
+        jdbcDataStore.saveChannel(saved);
+        final Channel channel = jdbcDataStore.getChannel(channelId);
+        assertThat(channel.getChannelId(), equalTo(channelId));
+        assertThat(channel.getUAID(), equalTo(uaid));
+        assertThat(channel.getVersion(), equalTo(10L));
+        assertThat(channel.getEndpointToken(), equalTo(saved.getEndpointToken()));
+    }
+
+    @Test
+    public void getChannels() {
+        final String uaid = UUIDUtil.newUAID();
+        final String channelId1 = UUID.randomUUID().toString();
+        final String channelId2 = UUID.randomUUID().toString();
+        jdbcDataStore.saveChannel(newChannel(uaid, channelId1, 10L));
+        jdbcDataStore.saveChannel(newChannel(uaid, channelId2, 10L));
+        final Set<String> channels = jdbcDataStore.getChannelIds(uaid);
+        assertThat(channels.size(), is(2));
+        assertThat(channels, hasItems(channelId1, channelId2));
+    }
+
+    @Test
+    public void getChannelsForNonExistingUserAgent() {
+        assertThat(jdbcDataStore.getChannelIds(UUIDUtil.newUAID()).isEmpty(), is(true));
+    }
+
+    @Test (expected = ChannelNotFoundException.class)
+    public void shouldThrowIfChannelIdNotFound() throws ChannelNotFoundException {
+        jdbcDataStore.getChannel("doesNotExistId");
+    }
+
+    @Test
+    public void removeChannelsBatch() {
+        final String uaid = UUIDUtil.newUAID();
+        final String channelId1 = UUID.randomUUID().toString();
+        final String channelId2 = UUID.randomUUID().toString();
+        final String channelId3 = UUID.randomUUID().toString();
+        jdbcDataStore.saveChannel(newChannel(uaid, channelId1, 10L));
+        jdbcDataStore.saveChannel(newChannel(uaid, channelId2, 10L));
+        jdbcDataStore.saveChannel(newChannel(uaid, channelId3, 10L));
+        jdbcDataStore.removeChannels(new HashSet<String>(Arrays.asList(channelId1, channelId2, "nonExisting")));
+        assertThat(channelExists(channelId1), is(false));
+        assertThat(channelExists(channelId2), is(false));
+        assertThat(channelExists(channelId3), is(true));
+    }
+
+    @Test
+    public void removeChannelsForUserAgent() throws ChannelNotFoundException {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel1 = newChannel(uaid, UUID.randomUUID().toString(), 10L);
+        final Channel channel2 = newChannel(uaid, UUID.randomUUID().toString(), 10L);
+        jdbcDataStore.saveChannel(channel1);
+        jdbcDataStore.saveChannel(channel2);
+        jdbcDataStore.saveUnacknowledged(channel1.getChannelId(), 11L);
+        jdbcDataStore.removeChannels(uaid);
+        assertThat(channelExists(channel1.getChannelId()), is(false));
+        assertThat(channelExists(channel2.getChannelId()), is(false));
+        assertThat(jdbcDataStore.getUnacknowledged(uaid).isEmpty(), is(true));
+    }
+
+    @Test
+    public void updateVersion() throws VersionException, ChannelNotFoundException {
+        final Channel channel = newChannel(UUIDUtil.newUAID(), UUID.randomUUID().toString(), 0);
+        jdbcDataStore.saveChannel(channel);
+        final String channelId = jdbcDataStore.updateVersion(channel.getEndpointToken(), 1);
+        assertThat(channelId, is(equalTo(channel.getChannelId())));
+        assertThat(jdbcDataStore.getChannel(channelId).getVersion(), is(1L));
+    }
+
+    @Test (expected = VersionException.class)
+    public void updateVersionSameVersion() throws VersionException, ChannelNotFoundException {
+        final Channel channel = newChannel(UUIDUtil.newUAID(), UUID.randomUUID().toString(), 1);
+        jdbcDataStore.saveChannel(channel);
+        jdbcDataStore.updateVersion(channel.getEndpointToken(), 1);
+    }
+
+    @Test (expected = VersionException.class)
+    public void updateVersionLessThanCurrent() throws VersionException, ChannelNotFoundException {
+        final Channel channel = newChannel(UUIDUtil.newUAID(), UUID.randomUUID().toString(), 10);
+        jdbcDataStore.saveChannel(channel);
+        jdbcDataStore.updateVersion(channel.getEndpointToken(), 9);
+    }
+
+    @Test (expected = ChannelNotFoundException.class)
+    public void updateVersionNonExistingEndpointToken() throws VersionException, ChannelNotFoundException {
+        jdbcDataStore.updateVersion(UUID.randomUUID().toString(), 1);
+    }
+
+    @Test
+    public void saveUnacknowledged() throws ChannelNotFoundException {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel = newChannel(uaid, UUID.randomUUID().toString(), 10L);
+        jdbcDataStore.saveChannel(channel);
+        assertThat(jdbcDataStore.saveUnacknowledged(channel.getChannelId(), 10), equalTo(uaid));
+        assertThat(jdbcDataStore.saveUnacknowledged(channel.getChannelId(), 11), equalTo(uaid));
+        final Set<Ack> unacks = jdbcDataStore.getUnacknowledged(uaid);
+        assertThat(unacks.size(), is(1));
+        assertThat(unacks.iterator().next().getVersion(), is(11L));
+    }
+
+    @Test (expected = ChannelNotFoundException.class)
+    public void saveUnacknowledgedNonExistingChannel() throws ChannelNotFoundException {
+        jdbcDataStore.saveUnacknowledged(UUID.randomUUID().toString(), 10);
+    }
+
+    @Test
+    public void removeAcknowledged() throws ChannelNotFoundException {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel1 = newChannel(uaid, UUID.randomUUID().toString(), 10);
+        final Channel channel2 = newChannel(uaid, UUID.randomUUID().toString(), 2);
+        jdbcDataStore.saveChannel(channel1);
+        jdbcDataStore.saveChannel(channel2);
+        jdbcDataStore.saveUnacknowledged(channel1.getChannelId(), 11);
+        jdbcDataStore.saveUnacknowledged(channel2.getChannelId(), 3);
+        assertThat(jdbcDataStore.getUnacknowledged(uaid).size(), is(2));
+
+        final Set<Ack> unacks = jdbcDataStore.removeAcknowledged(uaid, acks(new AckImpl(channel1.getChannelId(), 11)));
+        assertThat(unacks, hasItem((Ack) new AckImpl(channel2.getChannelId(), 3)));
+        assertThat(unacks.size(), is(1));
+        assertThat(jdbcDataStore.removeAcknowledged(uaid, unacks).size(), is(0));
+    }
+
+    @Test
+    public void getUnacknowledgedNoChannelsSavedYet() {
+        assertThat(jdbcDataStore.getUnacknowledged(UUIDUtil.newUAID()).size(), is(0));
+    }
+
+    @Test
+    public void concurrency() throws InterruptedException {
+        final String uaid = UUIDUtil.newUAID();
+        final AtomicBoolean outcome = new AtomicBoolean(true);
+        final int threads = 19;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch endLatch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        try {
+                            final Channel channel = newChannel(uaid, UUID.randomUUID().toString(), 10);
+                            jdbcDataStore.saveChannel(channel);
+                            jdbcDataStore.saveUnacknowledged(channel.getChannelId(), 11);
+                            jdbcDataStore.saveUnacknowledged(channel.getChannelId(), 12);
+                            assertThat(jdbcDataStore.getUnacknowledged(uaid), hasItem((Ack) new AckImpl(channel.getChannelId(), 12)));
+                            final Set<Ack> remaining = jdbcDataStore.removeAcknowledged(uaid, acks(new AckImpl(channel.getChannelId(), 12)));
+                            assertThat(remaining, not(hasItem((Ack) new AckImpl(channel.getChannelId(), 12))));
+                        } catch (final Exception e) {
+                            e.printStackTrace();
+                            outcome.compareAndSet(true, false);
+                        } finally {
+                            endLatch.countDown();
+                        }
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }).start();
+        }
+        startLatch.countDown();
+        endLatch.await();
+        if (!outcome.get()) {
+            Assert.fail("concurrency test failed. Please check stacktrace(s)");
+        }
+    }
+
+    @Test
+    public void dialectFromUrl() {
+        assertThat(Dialect.fromUrl("jdbc:h2:mem:test"), is(Dialect.H2));
+        assertThat(Dialect.fromUrl("jdbc:mysql://localhost/simplepush"), is(Dialect.MYSQL));
+        assertThat(Dialect.fromUrl("jdbc:postgresql://localhost/simplepush"), is(Dialect.POSTGRESQL));
+        assertThat(Dialect.of("mysql"), is(Dialect.MYSQL));
+    }
+
+    @Test
+    public void mysqlInsertIfAbsentDoesNotIgnoreErrors() {
+        final String insert = Dialect.MYSQL.insertChannelIfAbsent();
+        assertThat(insert.contains("IGNORE"), is(false));
+        assertThat(insert.endsWith("ON DUPLICATE KEY UPDATE channel_id = channel_id"), is(true));
+    }
+
+    @Test
+    public void saveExistingChannel() {
+        final Channel channel = new DefaultChannel(UUIDUtil.newUAID(), UUID.randomUUID().toString(), 1L,
+                UUID.randomUUID().toString());
+        assertThat(jdbcDataStore.saveChannel(channel), is(true));
+        assertThat(jdbcDataStore.saveChannel(channel), is(false));
+    }
+
+    @Test
+    public void updateVersions() throws ChannelNotFoundException {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel1 = new DefaultChannel(uaid, UUID.randomUUID().toString(), 1L, UUID.randomUUID().toString());
+        final Channel channel2 = new DefaultChannel(uaid, UUID.randomUUID().toString(), 5L, UUID.randomUUID().toString());
+        jdbcDataStore.saveChannel(channel1);
+        jdbcDataStore.saveChannel(channel2);
+        final Map<String, Long> versions = new HashMap<String, Long>();
+        versions.put(channel1.getEndpointToken(), 2L);
+        versions.put(channel2.getEndpointToken(), 4L);
+        versions.put("nonExistingToken", 1L);
+        final Map<String, WriteResult> results = jdbcDataStore.updateVersions(versions);
+        assertThat(results.get(channel1.getEndpointToken()).value(), equalTo(channel1.getChannelId()));
+        assertThat(results.get(channel2.getEndpointToken()).failure() instanceof VersionException, is(true));
+        assertThat(results.get("nonExistingToken").failure() instanceof ChannelNotFoundException, is(true));
+        assertThat(jdbcDataStore.getChannel(channel1.getChannelId()).getVersion(), is(2L));
+        assertThat(jdbcDataStore.getChannel(channel2.getChannelId()).getVersion(), is(5L));
+    }
+
+    @Test
+    public void saveUnacknowledgedBatch() {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel1 = new DefaultChannel(uaid, UUID.randomUUID().toString(), 1L, UUID.randomUUID().toString());
+        final Channel channel2 = new DefaultChannel(uaid, UUID.randomUUID().toString(), 1L, UUID.randomUUID().toString());
+        jdbcDataStore.saveChannel(channel1);
+        jdbcDataStore.saveChannel(channel2);
+        final Map<String, Long> versions = new HashMap<String, Long>();
+        versions.put(channel1.getChannelId(), 2L);
+        versions.put(channel2.getChannelId(), 3L);
+        versions.put("nonExistingChannel", 1L);
+        final Map<String, WriteResult> results = jdbcDataStore.saveUnacknowledged(versions);
+        assertThat(results.get(channel1.getChannelId()).value(), equalTo(uaid));
+        assertThat(results.get(channel2.getChannelId()).value(), equalTo(uaid));
+        assertThat(results.get("nonExistingChannel").isSuccess(), is(false));
+        assertThat(jdbcDataStore.getUnacknowledged(uaid), hasItems((Ack) new AckImpl(channel1.getChannelId(), 2L),
+                new AckImpl(channel2.getChannelId(), 3L)));
+    }
+
+    private static Set<Ack> acks(final Ack... acks) {
+        return new HashSet<Ack>(Arrays.asList(acks));
+    }
+
+    @Test
+    public void getUserAgentIds() {
+        final String uaid1 = UUIDUtil.newUAID();
+        final String uaid2 = UUIDUtil.newUAID();
+        final String uaid3 = UUIDUtil.newUAID();
+        jdbcDataStore.saveChannel(newChannel(uaid1, UUID.randomUUID().toString(), 1L));
+        jdbcDataStore.saveChannel(newChannel(uaid1, UUID.randomUUID().toString(), 1L));
+        jdbcDataStore.saveChannel(newChannel(uaid2, UUID.randomUUID().toString(), 1L));
+        jdbcDataStore.saveChannel(newChannel(uaid3, UUID.randomUUID().toString(), 1L));
+        final List<String> uaids = new ArrayList<String>();
+        List<String> page = jdbcDataStore.getUserAgentIds(null, 2);
+        while (!page.isEmpty()) {
+            assertThat(page.size() <= 2, is(true));
+            uaids.addAll(page);
+            page = jdbcDataStore.getUserAgentIds(page.get(page.size() - 1), 2);
+        }
+        final List<String> sorted = new ArrayList<String>(new TreeSet<String>(uaids));
+        assertThat(uaids, equalTo(sorted));
+        assertThat(uaids, hasItems(uaid1, uaid2, uaid3));
+    }
+
+    @Test
+    public void removeIdleUserAgents() throws ChannelNotFoundException {
+        final String idle1 = UUIDUtil.newUAID();
+        final String idle2 = UUIDUtil.newUAID();
+        final String active = UUIDUtil.newUAID();
+        final String channelId = UUID.randomUUID().toString();
+        jdbcDataStore.saveChannel(newChannel(idle1, channelId, 10L));
+        jdbcDataStore.saveUnacknowledged(channelId, 11L);
+        jdbcDataStore.saveChannel(newChannel(active, UUID.randomUUID().toString(), 1L));
+        jdbcDataStore.updateLastSeen(idle1, 100);
+        jdbcDataStore.updateLastSeen(idle2, 50);
+        jdbcDataStore.updateLastSeen(active, 300);
+        assertThat(jdbcDataStore.getUserAgentsLastSeenBefore(200, 10), equalTo(Arrays.asList(idle2, idle1)));
+        assertThat(jdbcDataStore.getUserAgentsLastSeenBefore(200, 1), equalTo(Arrays.asList(idle2)));
+
+        assertThat(jdbcDataStore.removeUserAgentIfLastSeenBefore(active, 200), is(false));
+        jdbcDataStore.updateLastSeen(idle1, 250);
+        assertThat(jdbcDataStore.removeUserAgentIfLastSeenBefore(idle1, 200), is(false));
+        jdbcDataStore.updateLastSeen(idle1, 100);
+        assertThat(jdbcDataStore.removeUserAgentIfLastSeenBefore(idle1, 200), is(true));
+        assertThat(jdbcDataStore.getChannelIds(idle1).isEmpty(), is(true));
+        assertThat(jdbcDataStore.getUnacknowledged(idle1).isEmpty(), is(true));
+        assertThat(jdbcDataStore.removeUserAgentIfLastSeenBefore(idle2, 200), is(true));
+        assertThat(jdbcDataStore.getUserAgentsLastSeenBefore(200, 10).isEmpty(), is(true));
+        assertThat(jdbcDataStore.getChannelIds(active).size(), is(1));
+    }
+
+    private static Channel newChannel(final String uaid, final String channelId, final long version) {
+        return new DefaultChannel(uaid, channelId, version, UUID.randomUUID().toString());
+    }
+
+    private static boolean channelExists(final String channelId) {
+        try {
+            jdbcDataStore.getChannel(channelId);
+            return true;
+        } catch (final ChannelNotFoundException e) {
+            return false;
+        }
+    }
+
+}
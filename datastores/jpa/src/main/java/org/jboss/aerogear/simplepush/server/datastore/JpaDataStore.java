@@ -19,16 +19,24 @@ package org.jboss.aerogear.simplepush.server.datastore;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
+import javax.persistence.EntityExistsException;
 import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
 import javax.persistence.NoResultException;
 import javax.persistence.Persistence;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 
+import org.hibernate.exception.ConstraintViolationException;
 import org.jboss.aerogear.simplepush.protocol.Ack;
 import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
 import org.jboss.aerogear.simplepush.server.Channel;
@@ -42,20 +50,69 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A DataStore implementation that use Java Persistence API (JPA) to store data for the SimplePush Server.
+ * <p>
+ * Optionally a second, read-only, persistence unit can be specified, for example one that points to
+ * a database replica. {@link #getChannel(String)}, {@link #getChannelIds(String)} and
+ * {@link #getUnacknowledged(String)} will then be served from that persistence unit, except for
+ * UserAgents and channels that were written within the read-your-writes window which are read from
+ * the primary persistence unit.
+ * <p>
+ * The last seen time of a UserAgent is stored in the {@code last_seen} column of the {@code useragents} table.
+ * When the schema is not generated by the persistence provider an index on that column should be created so
+ * that idle UserAgents can be found without a table scan.
  */
-public final class JpaDataStore implements DataStore {
+public final class JpaDataStore implements BatchDataStore, IterableDataStore, BulkLoadDataStore, LastSeenDataStore {
+
+    public static final long DEFAULT_READ_YOUR_WRITES_MILLIS = 5000;
 
     private final Logger logger = LoggerFactory.getLogger(JpaDataStore.class);
     private final JpaExecutor jpaExecutor;
+    private final JpaExecutor readExecutor;
+    private final ReadYourWritesGuard guard;
     private final static Charset UTF_8 = Charset.forName("UTF-8");
 
     /**
-     * Sole constructor.
+     * Creates a JpaDataStore which uses a single persistence unit for all operations.
      *
      * @param persistenceUnit the name of the persistence unit to be used.
      */
     public JpaDataStore(final String persistenceUnit) {
         jpaExecutor = new JpaExecutor(Persistence.createEntityManagerFactory(persistenceUnit));
+        readExecutor = null;
+        guard = null;
+    }
+
+    /**
+     * Creates a JpaDataStore which sends read operations to a separate persistence unit.
+     *
+     * @param persistenceUnit the name of the persistence unit to be used for writes.
+     * @param readPersistenceUnit the name of the persistence unit to be used for reads.
+     * @param readYourWritesMillis the time in milliseconds after a write during which reads for
+     *        the same UserAgent or channel are still sent to {@code persistenceUnit}.
+     */
+    public JpaDataStore(final String persistenceUnit, final String readPersistenceUnit, final long readYourWritesMillis) {
+        jpaExecutor = new JpaExecutor(Persistence.createEntityManagerFactory(persistenceUnit));
+        readExecutor = new JpaExecutor(Persistence.createEntityManagerFactory(readPersistenceUnit));
+        guard = new ReadYourWritesGuard(readYourWritesMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private JpaExecutor readExecutorFor(final String key) {
+        if (readExecutor == null || guard.recentlyWritten(key)) {
+            return jpaExecutor;
+        }
+        return readExecutor;
+    }
+
+    private void written(final String... keys) {
+        if (guard != null) {
+            guard.written(keys);
+        }
+    }
+
+    private void written(final Iterable<String> keys) {
+        if (guard != null) {
+            guard.written(keys);
+        }
     }
 
     @Override
@@ -110,13 +167,37 @@ public final class JpaDataStore implements DataStore {
             }
         };
         try {
-            return jpaExecutor.execute(saveChannel);
+            Boolean saved;
+            try {
+                saved = jpaExecutor.execute(saveChannel);
+            } catch (final JpaException e) {
+                if (!isConstraintViolation(e)) {
+                    throw e;
+                }
+                // the UserAgent may have been created by a concurrent registration, in which case it is found on retry.
+                saved = jpaExecutor.execute(saveChannel);
+            }
+            written(channel.getUAID(), channel.getChannelId());
+            return saved;
         } catch (final Exception e) {
             logger.error("Could not save channel [" + channel.getChannelId() + "]", e);
             return false;
         }
     }
 
+    /**
+     * Returns whether the failure was caused by a row that already exists, as opposed to for example a connection
+     * failure or a timeout, which retrying would only make worse.
+     */
+    static boolean isConstraintViolation(final Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof EntityExistsException || cause instanceof ConstraintViolationException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public Channel getChannel(final String channelId) throws ChannelNotFoundException {
         final JpaOperation<ChannelDTO> findChannel = new JpaOperation<ChannelDTO>() {
@@ -125,7 +206,11 @@ public final class JpaDataStore implements DataStore {
                 return em.find(ChannelDTO.class, channelId);
             }
         };
-        final ChannelDTO dto = jpaExecutor.execute(findChannel);
+        final JpaExecutor executor = readExecutorFor(channelId);
+        ChannelDTO dto = executor.execute(findChannel);
+        if (executor != jpaExecutor && (dto == null || guard.recentlyWritten(dto.getUserAgent().getUaid()))) {
+            dto = jpaExecutor.execute(findChannel);
+        }
         if (dto == null) {
             throw new ChannelNotFoundException("No Channel for [" + channelId + "] was found", channelId);
         }
@@ -146,6 +231,7 @@ public final class JpaDataStore implements DataStore {
             }
         };
         jpaExecutor.execute(removeChannel);
+        written(channelIds);
     }
 
     @Override
@@ -163,7 +249,146 @@ public final class JpaDataStore implements DataStore {
                 return channels;
             }
         };
-        return jpaExecutor.execute(getChannelIds);
+        return readExecutorFor(uaid).execute(getChannelIds);
+    }
+
+    @Override
+    public List<String> getUserAgentIds(final String afterUaid, final int limit) {
+        final JpaOperation<List<String>> getUserAgentIds = new JpaOperation<List<String>>() {
+            @Override
+            public List<String> perform(final EntityManager em) {
+                final TypedQuery<String> select;
+                if (afterUaid == null) {
+                    select = em.createQuery("SELECT DISTINCT c.userAgent.uaid FROM ChannelDTO c ORDER BY c.userAgent.uaid", String.class);
+                } else {
+                    select = em.createQuery("SELECT DISTINCT c.userAgent.uaid FROM ChannelDTO c WHERE c.userAgent.uaid > :afterUaid "
+                            + "ORDER BY c.userAgent.uaid", String.class);
+                    select.setParameter("afterUaid", afterUaid);
+                }
+                return select.setMaxResults(limit).getResultList();
+            }
+        };
+        return jpaExecutor.execute(getUserAgentIds);
+    }
+
+    @Override
+    public List<UserAgentRecord> getUserAgents(final String afterUaid, final int limit) {
+        final List<String> uaids = getUserAgentIds(afterUaid, limit);
+        if (uaids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final JpaOperation<List<UserAgentRecord>> getUserAgents = new JpaOperation<List<UserAgentRecord>>() {
+            @Override
+            public List<UserAgentRecord> perform(final EntityManager em) {
+                final Map<String, Set<Channel>> channels = new HashMap<String, Set<Channel>>(uaids.size());
+                final Map<String, Set<Ack>> acks = new HashMap<String, Set<Ack>>(uaids.size());
+                for (String uaid : uaids) {
+                    channels.put(uaid, new HashSet<Channel>());
+                    acks.put(uaid, new HashSet<Ack>());
+                }
+                final TypedQuery<ChannelDTO> selectChannels = em.createQuery("SELECT c FROM ChannelDTO c "
+                        + "WHERE c.userAgent.uaid IN (:uaids)", ChannelDTO.class);
+                for (ChannelDTO dto : selectChannels.setParameter("uaids", uaids).getResultList()) {
+                    final String uaid = dto.getUserAgent().getUaid();
+                    channels.get(uaid).add(new DefaultChannel(uaid, dto.getChannelId(), dto.getVersion(), dto.getEndpointToken()));
+                }
+                final TypedQuery<AckDTO> selectAcks = em.createQuery("SELECT a FROM AckDTO a WHERE a.userAgent.uaid IN (:uaids)", AckDTO.class);
+                for (AckDTO dto : selectAcks.setParameter("uaids", uaids).getResultList()) {
+                    acks.get(dto.getUserAgent().getUaid()).add(new AckImpl(dto.getChannelId(), dto.getVersion()));
+                }
+                final List<UserAgentRecord> records = new ArrayList<UserAgentRecord>(uaids.size());
+                for (String uaid : uaids) {
+                    records.add(new UserAgentRecord(uaid, channels.get(uaid), acks.get(uaid)));
+                }
+                return records;
+            }
+        };
+        return jpaExecutor.execute(getUserAgents);
+    }
+
+    @Override
+    public void saveUserAgents(final List<UserAgentRecord> userAgents) {
+        final JpaOperation<Void> saveUserAgents = new JpaOperation<Void>() {
+            @Override
+            public Void perform(final EntityManager em) {
+                for (UserAgentRecord record : userAgents) {
+                    UserAgentDTO userAgent = em.find(UserAgentDTO.class, record.getUAID());
+                    if (userAgent == null) {
+                        userAgent = new UserAgentDTO(record.getUAID());
+                    }
+                    for (Channel channel : record.getChannels()) {
+                        if (em.find(ChannelDTO.class, channel.getChannelId()) == null) {
+                            userAgent.addChannel(channel.getChannelId(), channel.getVersion(), channel.getEndpointToken());
+                        }
+                    }
+                    final UserAgentDTO merged = em.merge(userAgent);
+                    for (Ack ack : record.getUnacknowledged()) {
+                        em.merge(new AckDTO(merged, ack.getChannelId(), ack.getVersion()));
+                    }
+                }
+                return null;
+            }
+        };
+        jpaExecutor.execute(saveUserAgents);
+        final List<String> keys = new ArrayList<String>();
+        for (UserAgentRecord record : userAgents) {
+            keys.add(record.getUAID());
+            for (Channel channel : record.getChannels()) {
+                keys.add(channel.getChannelId());
+            }
+        }
+        written(keys);
+    }
+
+    @Override
+    public void updateLastSeen(final String uaid, final long timestamp) {
+        final JpaOperation<Void> updateLastSeen = new JpaOperation<Void>() {
+            @Override
+            public Void perform(final EntityManager em) {
+                UserAgentDTO userAgent = em.find(UserAgentDTO.class, uaid);
+                if (userAgent == null) {
+                    userAgent = new UserAgentDTO(uaid);
+                }
+                userAgent.setLastSeen(timestamp);
+                em.merge(userAgent);
+                return null;
+            }
+        };
+        jpaExecutor.execute(updateLastSeen);
+    }
+
+    @Override
+    public List<String> getUserAgentsLastSeenBefore(final long timestamp, final int limit) {
+        final JpaOperation<List<String>> getIdle = new JpaOperation<List<String>>() {
+            @Override
+            public List<String> perform(final EntityManager em) {
+                final TypedQuery<String> select = em.createQuery("SELECT u.uaid FROM UserAgentDTO u WHERE u.lastSeen < :timestamp "
+                        + "ORDER BY u.lastSeen", String.class);
+                select.setParameter("timestamp", timestamp);
+                return select.setMaxResults(limit).getResultList();
+            }
+        };
+        return jpaExecutor.execute(getIdle);
+    }
+
+    @Override
+    public boolean removeUserAgentIfLastSeenBefore(final String uaid, final long timestamp) {
+        final JpaOperation<Boolean> removeUserAgent = new JpaOperation<Boolean>() {
+            @Override
+            public Boolean perform(final EntityManager em) {
+                final UserAgentDTO userAgent = em.find(UserAgentDTO.class, uaid, LockModeType.PESSIMISTIC_WRITE);
+                if (userAgent == null || userAgent.getLastSeen() == null || userAgent.getLastSeen() >= timestamp) {
+                    return Boolean.FALSE;
+                }
+                em.remove(userAgent);
+                return Boolean.TRUE;
+            }
+        };
+        final boolean removed = jpaExecutor.execute(removeUserAgent);
+        if (removed) {
+            written(uaid);
+        }
+        return removed;
     }
 
     @Override
@@ -184,6 +409,7 @@ public final class JpaDataStore implements DataStore {
             }
         };
         jpaExecutor.execute(removeChannels);
+        written(uaid);
         logger.debug("Deleted all channels for UserAgent [" + uaid + "]");
     }
 
@@ -194,6 +420,7 @@ public final class JpaDataStore implements DataStore {
             public ChannelDTO perform(final EntityManager em) {
                 final TypedQuery<ChannelDTO> select = em.createQuery("SELECT c FROM ChannelDTO c where c.endpointToken = :endpointToken", ChannelDTO.class);
                 select.setParameter("endpointToken", endpointToken);
+                select.setLockMode(LockModeType.PESSIMISTIC_WRITE);
                 final List<ChannelDTO> resultList = select.getResultList();
                 if (resultList.isEmpty()) {
                     return null;
@@ -215,6 +442,7 @@ public final class JpaDataStore implements DataStore {
             if (channelDto == null) {
                 throw new ChannelNotFoundException("No Channel for endpointToken [" + endpointToken + "] was found", endpointToken);
             }
+            written(channelDto.getUserAgent().getUaid(), channelDto.getChannelId());
             return channelDto.getChannelId();
         } catch (final JpaException e) {
             final Throwable cause = e.getCause();
@@ -231,7 +459,12 @@ public final class JpaDataStore implements DataStore {
             @Override
             public String perform(final EntityManager em) {
                 final ChannelDTO channel = em.find(ChannelDTO.class, channelId);
+                if (channel == null) {
+                    return null;
+                }
                 final UserAgentDTO userAgent = channel.getUserAgent();
+                // serializes the ack writes of a UserAgent, see removeAcknowledged.
+                em.lock(userAgent, LockModeType.PESSIMISTIC_WRITE);
                 final Set<AckDTO> dtos = new HashSet<AckDTO>();
                 dtos.add(new AckDTO(userAgent, channel.getChannelId(), version));
                 userAgent.setAcks(dtos);
@@ -239,7 +472,85 @@ public final class JpaDataStore implements DataStore {
                 return userAgent.getUaid();
             }
         };
-        return jpaExecutor.execute(saveAcks);
+        final String uaid = jpaExecutor.execute(saveAcks);
+        if (uaid == null) {
+            throw new ChannelNotFoundException("Could not find channel", channelId);
+        }
+        written(uaid);
+        return uaid;
+    }
+
+    @Override
+    public Map<String, WriteResult> updateVersions(final Map<String, Long> versions) {
+        final List<String> keys = new ArrayList<String>();
+        final JpaOperation<Map<String, WriteResult>> updateVersions = new JpaOperation<Map<String, WriteResult>>() {
+            @Override
+            public Map<String, WriteResult> perform(final EntityManager em) {
+                keys.clear();
+                final Map<String, WriteResult> results = new HashMap<String, WriteResult>(versions.size());
+                final TypedQuery<ChannelDTO> select = em.createQuery("SELECT c FROM ChannelDTO c where c.endpointToken = :endpointToken", ChannelDTO.class);
+                // locked like a single update, in a fixed order so that concurrent batches cannot deadlock.
+                select.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+                for (Entry<String, Long> entry : new TreeMap<String, Long>(versions).entrySet()) {
+                    final String endpointToken = entry.getKey();
+                    final long version = entry.getValue();
+                    select.setParameter("endpointToken", endpointToken);
+                    final List<ChannelDTO> resultList = select.getResultList();
+                    if (resultList.isEmpty()) {
+                        results.put(endpointToken, WriteResult.failure(new ChannelNotFoundException(
+                                "No Channel for endpointToken [" + endpointToken + "] was found", endpointToken)));
+                        continue;
+                    }
+                    final ChannelDTO channelDTO = resultList.get(0);
+                    if (version > channelDTO.getVersion()) {
+                        channelDTO.setVersion(version);
+                        em.merge(channelDTO);
+                        results.put(endpointToken, WriteResult.success(channelDTO.getChannelId()));
+                        keys.add(channelDTO.getUserAgent().getUaid());
+                        keys.add(channelDTO.getChannelId());
+                    } else {
+                        results.put(endpointToken, WriteResult.failure(new VersionException("New version [" + version
+                                + "] must be greater than current version [" + channelDTO.getVersion() + "]")));
+                    }
+                }
+                return results;
+            }
+        };
+        final Map<String, WriteResult> results = jpaExecutor.execute(updateVersions);
+        written(keys);
+        return results;
+    }
+
+    @Override
+    public Map<String, WriteResult> saveUnacknowledged(final Map<String, Long> versions) {
+        final List<String> keys = new ArrayList<String>();
+        final JpaOperation<Map<String, WriteResult>> saveAcks = new JpaOperation<Map<String, WriteResult>>() {
+            @Override
+            public Map<String, WriteResult> perform(final EntityManager em) {
+                keys.clear();
+                final Map<String, WriteResult> results = new HashMap<String, WriteResult>(versions.size());
+                for (Entry<String, Long> entry : versions.entrySet()) {
+                    final String channelId = entry.getKey();
+                    final ChannelDTO channel = em.find(ChannelDTO.class, channelId);
+                    if (channel == null) {
+                        results.put(channelId, WriteResult.failure(new ChannelNotFoundException("Could not find channel", channelId)));
+                        continue;
+                    }
+                    final UserAgentDTO userAgent = channel.getUserAgent();
+                    em.lock(userAgent, LockModeType.PESSIMISTIC_WRITE);
+                    final Set<AckDTO> dtos = new HashSet<AckDTO>();
+                    dtos.add(new AckDTO(userAgent, channelId, entry.getValue()));
+                    userAgent.setAcks(dtos);
+                    em.merge(userAgent);
+                    results.put(channelId, WriteResult.success(userAgent.getUaid()));
+                    keys.add(userAgent.getUaid());
+                }
+                return results;
+            }
+        };
+        final Map<String, WriteResult> results = jpaExecutor.execute(saveAcks);
+        written(keys);
+        return results;
     }
 
     @Override
@@ -258,7 +569,7 @@ public final class JpaDataStore implements DataStore {
                 return acks;
             }
         };
-        return jpaExecutor.execute(getUnacks);
+        return readExecutorFor(uaid).execute(getUnacks);
     }
 
     @Override
@@ -266,6 +577,7 @@ public final class JpaDataStore implements DataStore {
         final JpaOperation<Set<Ack>> removeAck = new JpaOperation<Set<Ack>>() {
             @Override
             public Set<Ack> perform(final EntityManager em) {
+                final UserAgentDTO userAgent = em.find(UserAgentDTO.class, uaid, LockModeType.PESSIMISTIC_WRITE);
                 final List<String> channelIds = new ArrayList<String>(acked.size());
                 for (Ack ack : acked) {
                     channelIds.add(ack.getChannelId());
@@ -273,7 +585,7 @@ public final class JpaDataStore implements DataStore {
                 final Query delete = em.createQuery("DELETE from AckDTO c where c.channelId in (:channelIds)");
                 delete.setParameter("channelIds", channelIds);
                 delete.executeUpdate();
-                final UserAgentDTO userAgent = em.find(UserAgentDTO.class, uaid);
+                em.refresh(userAgent);
                 final Set<AckDTO> acks = userAgent.getAcks();
                 final Set<Ack> unacked = new HashSet<Ack>(acks.size());
                 for (AckDTO ackDto : acks) {
@@ -282,7 +594,9 @@ public final class JpaDataStore implements DataStore {
                 return unacked;
             }
         };
-        return jpaExecutor.execute(removeAck);
+        final Set<Ack> unacked = jpaExecutor.execute(removeAck);
+        written(uaid);
+        return unacked;
     }
 
 }
@@ -50,7 +50,10 @@ public final class JpaExecutor {
             return t;
         } catch (final Exception e) {
             logger.debug("Error while performing JpaOperation:", e);
-            em.getTransaction().rollback();
+            // a failed commit has already ended the transaction.
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
             throw new JpaException("Exception while trying to perform JPA operation", e);
         } finally {
             em.close();
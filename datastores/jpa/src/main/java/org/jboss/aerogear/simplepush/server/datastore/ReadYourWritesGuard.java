@@ -0,0 +1,98 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of keys, such as UserAgent Ids and channel ids, that have recently been written
+ * so that reads for them can be directed to the primary database instead of a replica that
+ * might not have caught up yet.
+ */
+final class ReadYourWritesGuard {
+
+    private static final int PURGE_INTERVAL = 1024;
+
+    private final ConcurrentMap<String, Long> expirations = new ConcurrentHashMap<String, Long>();
+    private final AtomicInteger writes = new AtomicInteger();
+    private final long windowNanos;
+
+    ReadYourWritesGuard(final long window, final TimeUnit unit) {
+        windowNanos = unit.toNanos(window);
+    }
+
+    /**
+     * Records that the passed-in keys have just been written.
+     *
+     * @param keys the keys that were written. {@code null} keys are ignored.
+     */
+    void written(final String... keys) {
+        final Long expiration = System.nanoTime() + windowNanos;
+        for (String key : keys) {
+            if (key != null) {
+                expirations.put(key, expiration);
+            }
+        }
+        if (writes.incrementAndGet() % PURGE_INTERVAL == 0) {
+            purge();
+        }
+    }
+
+    /**
+     * Records that the passed-in keys have just been written.
+     *
+     * @param keys the keys that were written.
+     */
+    void written(final Iterable<String> keys) {
+        for (String key : keys) {
+            written(key);
+        }
+    }
+
+    /**
+     * Returns whether the key was written within the window.
+     *
+     * @param key the key to check.
+     * @return {@code true} if reads for the key should go to the primary database.
+     */
+    boolean recentlyWritten(final String key) {
+        final Long expiration = expirations.get(key);
+        if (expiration == null) {
+            return false;
+        }
+        if (expiration - System.nanoTime() > 0) {
+            return true;
+        }
+        expirations.remove(key, expiration);
+        return false;
+    }
+
+    private void purge() {
+        final long now = System.nanoTime();
+        for (Iterator<Entry<String, Long>> it = expirations.entrySet().iterator(); it.hasNext();) {
+            if (it.next().getValue() - now <= 0) {
+                it.remove();
+            }
+        }
+    }
+
+}
@@ -22,6 +22,7 @@ import java.util.HashSet;
 import java.util.Set;
 
 import javax.persistence.CascadeType;
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.OneToMany;
@@ -45,6 +46,9 @@ public final class UserAgentDTO implements Serializable {
     @OneToMany (mappedBy = "userAgent", cascade = {CascadeType.ALL})
     private Set<AckDTO> acks;
 
+    @Column (name = "last_seen")
+    private Long lastSeen;
+
     /**
      * Only provided as a no-args constructor is required by JPA. Should not be call directly by client
      * code.
@@ -79,6 +83,18 @@ public final class UserAgentDTO implements Serializable {
         return acks;
     }
 
+    /**
+     * Returns the time this UserAgent was last seen in milliseconds since the epoch, or {@code null} if
+     * it has not been recorded.
+     */
+    public Long getLastSeen() {
+        return lastSeen;
+    }
+
+    public void setLastSeen(final Long lastSeen) {
+        this.lastSeen = lastSeen;
+    }
+
     public String getUaid() {
         return uaid;
     }
@@ -0,0 +1,32 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+public class JpaDataStoreConformanceTest extends DataStoreConformanceTest {
+
+    private static JpaDataStore jpaDataStore;
+
+    @Override
+    protected synchronized DataStore createDataStore() {
+        // creating the EntityManagerFactory is expensive so all tests share one.
+        if (jpaDataStore == null) {
+            jpaDataStore = new JpaDataStore("SimplePush");
+        }
+        return jpaDataStore;
+    }
+
+}
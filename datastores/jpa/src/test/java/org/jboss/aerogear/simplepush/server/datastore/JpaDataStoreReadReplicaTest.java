@@ -0,0 +1,122 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
+import org.jboss.aerogear.simplepush.util.UUIDUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Uses two separate H2 databases, one acting as primary and one as the read replica. Nothing is
+ * replicated between them, which makes it possible to tell which database a read was served from.
+ */
+public class JpaDataStoreReadReplicaTest {
+
+    private static final long READ_YOUR_WRITES_MILLIS = 100;
+
+    static {
+        System.setProperty("org.jboss.logging.provider", "slf4j");
+    }
+
+    private JpaDataStore jpaDataStore;
+    private JpaDataStore replica;
+
+    @Before
+    public void createJpaStores() {
+        jpaDataStore = new JpaDataStore("SimplePush", "SimplePushReplica", READ_YOUR_WRITES_MILLIS);
+        replica = new JpaDataStore("SimplePushReplica");
+    }
+
+    @Test
+    public void readsAreServedFromReplica() throws ChannelNotFoundException {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel = newChannel(uaid, 99L);
+        replica.saveChannel(channel);
+        assertThat(jpaDataStore.getChannelIds(uaid), hasItem(channel.getChannelId()));
+        assertThat(jpaDataStore.getChannel(channel.getChannelId()).getVersion(), is(99L));
+    }
+
+    @Test
+    public void readYourWritesWithinWindow() throws Exception {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel = newChannel(uaid, 1L);
+        jpaDataStore.saveChannel(channel);
+        assertThat(jpaDataStore.getChannelIds(uaid), hasItem(channel.getChannelId()));
+
+        Thread.sleep(READ_YOUR_WRITES_MILLIS * 2);
+        assertThat(jpaDataStore.getChannelIds(uaid).isEmpty(), is(true));
+    }
+
+    @Test
+    public void getChannelFallsBackToPrimary() throws Exception {
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 1L);
+        jpaDataStore.saveChannel(channel);
+        Thread.sleep(READ_YOUR_WRITES_MILLIS * 2);
+        assertThat(jpaDataStore.getChannel(channel.getChannelId()).getChannelId(), equalTo(channel.getChannelId()));
+    }
+
+    @Test
+    public void getChannelReadsPrimaryForRecentlyWrittenUserAgent() throws Exception {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel = newChannel(uaid, 1L);
+        replica.saveChannel(channel);
+        jpaDataStore.saveChannel(channel);
+        Thread.sleep(READ_YOUR_WRITES_MILLIS * 2);
+        jpaDataStore.updateVersion(channel.getEndpointToken(), 2L);
+        assertThat(jpaDataStore.getChannel(channel.getChannelId()).getVersion(), is(2L));
+    }
+
+    @Test
+    public void batchUpdateVersionsReadsPrimary() throws Exception {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel = newChannel(uaid, 1L);
+        replica.saveChannel(channel);
+        jpaDataStore.saveChannel(channel);
+        Thread.sleep(READ_YOUR_WRITES_MILLIS * 2);
+        jpaDataStore.updateVersions(Collections.singletonMap(channel.getEndpointToken(), 2L));
+        assertThat(jpaDataStore.getChannel(channel.getChannelId()).getVersion(), is(2L));
+    }
+
+    @Test
+    public void getUnacknowledged() throws Exception {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel = newChannel(uaid, 1L);
+        jpaDataStore.saveChannel(channel);
+        jpaDataStore.saveUnacknowledged(channel.getChannelId(), 2L);
+        assertThat(jpaDataStore.getUnacknowledged(uaid), hasItem((Ack) new AckImpl(channel.getChannelId(), 2L)));
+
+        Thread.sleep(READ_YOUR_WRITES_MILLIS * 2);
+        assertThat(jpaDataStore.getUnacknowledged(uaid).isEmpty(), is(true));
+    }
+
+    private static Channel newChannel(final String uaid, final long version) {
+        return new DefaultChannel(uaid, UUID.randomUUID().toString(), version, UUID.randomUUID().toString());
+    }
+
+}
@@ -22,11 +22,21 @@ import static org.hamcrest.CoreMatchers.hasItems;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
 
+import javax.persistence.EntityExistsException;
+import javax.persistence.PersistenceException;
+
+import org.hibernate.exception.ConstraintViolationException;
 import org.jboss.aerogear.simplepush.protocol.Ack;
 import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
 import org.jboss.aerogear.simplepush.server.Channel;
@@ -229,12 +239,108 @@ public class JpaDataStoreTest {
         assertThat(storedUpdates.size(), is(0));
     }
 
+    @Test
+    public void updateVersions() throws ChannelNotFoundException {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel1 = new DefaultChannel(uaid, UUID.randomUUID().toString(), 1L, UUID.randomUUID().toString());
+        final Channel channel2 = new DefaultChannel(uaid, UUID.randomUUID().toString(), 5L, UUID.randomUUID().toString());
+        jpaDataStore.saveChannel(channel1);
+        jpaDataStore.saveChannel(channel2);
+        final Map<String, Long> versions = new HashMap<String, Long>();
+        versions.put(channel1.getEndpointToken(), 2L);
+        versions.put(channel2.getEndpointToken(), 4L);
+        versions.put("nonExistingToken", 1L);
+        final Map<String, WriteResult> results = jpaDataStore.updateVersions(versions);
+        assertThat(results.get(channel1.getEndpointToken()).value(), equalTo(channel1.getChannelId()));
+        assertThat(results.get(channel2.getEndpointToken()).failure() instanceof VersionException, is(true));
+        assertThat(results.get("nonExistingToken").failure() instanceof ChannelNotFoundException, is(true));
+        assertThat(jpaDataStore.getChannel(channel1.getChannelId()).getVersion(), is(2L));
+        assertThat(jpaDataStore.getChannel(channel2.getChannelId()).getVersion(), is(5L));
+    }
+
+    @Test
+    public void saveUnacknowledgedBatch() {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel1 = new DefaultChannel(uaid, UUID.randomUUID().toString(), 1L, UUID.randomUUID().toString());
+        final Channel channel2 = new DefaultChannel(uaid, UUID.randomUUID().toString(), 1L, UUID.randomUUID().toString());
+        jpaDataStore.saveChannel(channel1);
+        jpaDataStore.saveChannel(channel2);
+        final Map<String, Long> versions = new HashMap<String, Long>();
+        versions.put(channel1.getChannelId(), 2L);
+        versions.put(channel2.getChannelId(), 3L);
+        versions.put("nonExistingChannel", 1L);
+        final Map<String, WriteResult> results = jpaDataStore.saveUnacknowledged(versions);
+        assertThat(results.get(channel1.getChannelId()).value(), equalTo(uaid));
+        assertThat(results.get(channel2.getChannelId()).value(), equalTo(uaid));
+        assertThat(results.get("nonExistingChannel").isSuccess(), is(false));
+        assertThat(jpaDataStore.getUnacknowledged(uaid), hasItems((Ack) new AckImpl(channel1.getChannelId(), 2L),
+                new AckImpl(channel2.getChannelId(), 3L)));
+    }
+
     private Set<Ack> acks(final Ack... updates) {
         final Set<Ack> ups = new HashSet<Ack>();
         ups.addAll(Arrays.asList(updates));
         return ups;
     }
 
+    @Test
+    public void getUserAgentIds() {
+        final String uaid1 = UUIDUtil.newUAID();
+        final String uaid2 = UUIDUtil.newUAID();
+        final String uaid3 = UUIDUtil.newUAID();
+        jpaDataStore.saveChannel(newChannel(uaid1, UUID.randomUUID().toString(), 1L));
+        jpaDataStore.saveChannel(newChannel(uaid1, UUID.randomUUID().toString(), 1L));
+        jpaDataStore.saveChannel(newChannel(uaid2, UUID.randomUUID().toString(), 1L));
+        jpaDataStore.saveChannel(newChannel(uaid3, UUID.randomUUID().toString(), 1L));
+        final List<String> uaids = new ArrayList<String>();
+        List<String> page = jpaDataStore.getUserAgentIds(null, 2);
+        while (!page.isEmpty()) {
+            assertThat(page.size() <= 2, is(true));
+            uaids.addAll(page);
+            page = jpaDataStore.getUserAgentIds(page.get(page.size() - 1), 2);
+        }
+        final List<String> sorted = new ArrayList<String>(new TreeSet<String>(uaids));
+        assertThat(uaids, equalTo(sorted));
+        assertThat(uaids, hasItems(uaid1, uaid2, uaid3));
+    }
+
+    @Test
+    public void removeIdleUserAgents() throws ChannelNotFoundException {
+        final String idle1 = UUIDUtil.newUAID();
+        final String idle2 = UUIDUtil.newUAID();
+        final String active = UUIDUtil.newUAID();
+        final String channelId = UUID.randomUUID().toString();
+        jpaDataStore.saveChannel(newChannel(idle1, channelId, 10L));
+        jpaDataStore.saveUnacknowledged(channelId, 11L);
+        jpaDataStore.saveChannel(newChannel(active, UUID.randomUUID().toString(), 1L));
+        jpaDataStore.updateLastSeen(idle1, 100);
+        jpaDataStore.updateLastSeen(idle2, 50);
+        jpaDataStore.updateLastSeen(active, 300);
+        assertThat(jpaDataStore.getUserAgentsLastSeenBefore(200, 10), equalTo(Arrays.asList(idle2, idle1)));
+        assertThat(jpaDataStore.getUserAgentsLastSeenBefore(200, 1), equalTo(Arrays.asList(idle2)));
+
+        assertThat(jpaDataStore.removeUserAgentIfLastSeenBefore(active, 200), is(false));
+        jpaDataStore.updateLastSeen(idle1, 250);
+        assertThat(jpaDataStore.removeUserAgentIfLastSeenBefore(idle1, 200), is(false));
+        jpaDataStore.updateLastSeen(idle1, 100);
+        assertThat(jpaDataStore.removeUserAgentIfLastSeenBefore(idle1, 200), is(true));
+        assertThat(jpaDataStore.getChannelIds(idle1).isEmpty(), is(true));
+        assertThat(jpaDataStore.getUnacknowledged(idle1).isEmpty(), is(true));
+        assertThat(jpaDataStore.removeUserAgentIfLastSeenBefore(idle2, 200), is(true));
+        assertThat(jpaDataStore.getUserAgentsLastSeenBefore(200, 10).isEmpty(), is(true));
+        assertThat(jpaDataStore.getChannelIds(active).size(), is(1));
+    }
+
+    @Test
+    public void retriesOnlyConstraintViolations() {
+        final SQLException duplicate = new SQLException("duplicate key");
+        assertThat(JpaDataStore.isConstraintViolation(new JpaException("save failed",
+                new PersistenceException(new ConstraintViolationException("duplicate", duplicate, "PK")))), is(true));
+        assertThat(JpaDataStore.isConstraintViolation(new JpaException("save failed", new EntityExistsException())), is(true));
+        assertThat(JpaDataStore.isConstraintViolation(new JpaException("save failed",
+                new PersistenceException(new SQLException("connection reset")))), is(false));
+    }
+
     private Channel newChannel(final String uaid, final String channelId, final long version) {
         return new DefaultChannel(uaid, channelId, version, "endpointToken");
     }
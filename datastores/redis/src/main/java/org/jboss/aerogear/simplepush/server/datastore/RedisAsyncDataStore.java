@@ -0,0 +1,367 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * An {@link AsyncDataStore} that uses a Redis database for storage, with the same data layout as
+ * {@link RedisDataStore}.
+ * <p>
+ * Reads are queued and sent by a single I/O thread over its own connection. The thread takes all reads that
+ * are waiting, up to a maximum, and sends them as one pipeline, so that independent lookups made at the same
+ * time share a round trip instead of each holding a connection and a thread while waiting for Redis. Reads
+ * that depend on the result of a first command, like the version of a channel, take a second pipelined round
+ * trip shared by the whole batch. Futures of reads are completed on the I/O thread, so their listeners must
+ * not block, and in particular must not wait for another read of this DataStore.
+ * <p>
+ * Writes use WATCH and MULTI transactions which cannot share a connection with other commands, and run on a
+ * fixed pool of write threads through a {@link RedisDataStore}.
+ */
+public class RedisAsyncDataStore implements AsyncDataStore {
+
+    public static final int DEFAULT_WRITE_THREADS = 8;
+    public static final int DEFAULT_MAX_PIPELINE_SIZE = 256;
+
+    private final Logger logger = LoggerFactory.getLogger(RedisAsyncDataStore.class);
+    private final String host;
+    private final int port;
+    private final int maxPipelineSize;
+    private final BlockingQueue<Read<?>> reads = new LinkedBlockingQueue<Read<?>>();
+    private final ExecutorService writeExecutor;
+    private final ExecutorAsyncDataStore writes;
+    private final Thread reader;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a RedisAsyncDataStore using {@link #DEFAULT_WRITE_THREADS} and {@link #DEFAULT_MAX_PIPELINE_SIZE}.
+     *
+     * @param host the host of the Redis server.
+     * @param port the port of the Redis server.
+     */
+    public RedisAsyncDataStore(final String host, final int port) {
+        this(host, port, DEFAULT_WRITE_THREADS, DEFAULT_MAX_PIPELINE_SIZE);
+    }
+
+    /**
+     * Sole constructor.
+     *
+     * @param host the host of the Redis server.
+     * @param port the port of the Redis server.
+     * @param writeThreads the number of threads performing writes.
+     * @param maxPipelineSize the maximum number of reads sent in one pipeline.
+     */
+    public RedisAsyncDataStore(final String host, final int port, final int writeThreads, final int maxPipelineSize) {
+        if (writeThreads <= 0 || maxPipelineSize <= 0) {
+            throw new IllegalArgumentException("writeThreads and maxPipelineSize must be greater than zero");
+        }
+        this.host = host;
+        this.port = port;
+        this.maxPipelineSize = maxPipelineSize;
+        final AtomicInteger threads = new AtomicInteger();
+        writeExecutor = Executors.newFixedThreadPool(writeThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "simplepush-redis-writer-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        writes = new ExecutorAsyncDataStore(new RedisDataStore(host, port), writeExecutor);
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "simplepush-redis-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Stops the I/O and write threads. Reads that have not been sent fail with an {@link IllegalStateException}.
+     */
+    public void close() {
+        running = false;
+        reader.interrupt();
+        writeExecutor.shutdown();
+    }
+
+    @Override
+    public DataStoreFuture<Void> savePrivateKeySalt(final byte[] salt) {
+        return writes.savePrivateKeySalt(salt);
+    }
+
+    @Override
+    public DataStoreFuture<byte[]> getPrivateKeySalt() {
+        return writes.getPrivateKeySalt();
+    }
+
+    @Override
+    public DataStoreFuture<Boolean> saveChannel(final Channel channel) {
+        return writes.saveChannel(channel);
+    }
+
+    @Override
+    public DataStoreFuture<Channel> getChannel(final String channelId) {
+        return enqueue(new Read<Channel>() {
+            private Response<List<String>> tokenAndUaid;
+            private Response<List<String>> version;
+
+            @Override
+            void send(final Pipeline pipeline) {
+                tokenAndUaid = pipeline.hmget(RedisDataStore.chidLookupKey(channelId), RedisDataStore.TOKEN_KEY,
+                        RedisDataStore.UAID_KEY);
+            }
+
+            @Override
+            boolean sendMore(final Pipeline pipeline) {
+                final String endpointToken = tokenAndUaid.get().get(0);
+                if (endpointToken == null || tokenAndUaid.get().get(1) == null) {
+                    return false;
+                }
+                version = pipeline.mget(endpointToken);
+                return true;
+            }
+
+            @Override
+            void complete() {
+                if (version == null || version.get().get(0) == null) {
+                    future.fail(RedisDataStore.channelNotFoundException(channelId));
+                } else {
+                    final List<String> values = tokenAndUaid.get();
+                    future.complete(new DefaultChannel(values.get(1), channelId, Long.valueOf(version.get().get(0)), values.get(0)));
+                }
+            }
+        });
+    }
+
+    @Override
+    public DataStoreFuture<Void> removeChannels(final String uaid) {
+        return writes.removeChannels(uaid);
+    }
+
+    @Override
+    public DataStoreFuture<Void> removeChannels(final Set<String> channelIds) {
+        return writes.removeChannels(channelIds);
+    }
+
+    @Override
+    public DataStoreFuture<Set<String>> getChannelIds(final String uaid) {
+        return enqueue(new Read<Set<String>>() {
+            private Response<Set<String>> channelIds;
+
+            @Override
+            void send(final Pipeline pipeline) {
+                channelIds = pipeline.smembers(RedisDataStore.uaidLookupKey(uaid));
+            }
+
+            @Override
+            void complete() {
+                future.complete(channelIds.get());
+            }
+        });
+    }
+
+    @Override
+    public DataStoreFuture<String> updateVersion(final String endpointToken, final long version) {
+        return writes.updateVersion(endpointToken, version);
+    }
+
+    @Override
+    public DataStoreFuture<String> saveUnacknowledged(final String channelId, final long version) {
+        return writes.saveUnacknowledged(channelId, version);
+    }
+
+    @Override
+    public DataStoreFuture<Set<Ack>> getUnacknowledged(final String uaid) {
+        return enqueue(new Read<Set<Ack>>() {
+            private Response<Set<String>> channelIds;
+            private List<String> unacknowledged;
+            private Response<List<String>> versions;
+
+            @Override
+            void send(final Pipeline pipeline) {
+                channelIds = pipeline.smembers(RedisDataStore.acksLookupKey(uaid));
+            }
+
+            @Override
+            boolean sendMore(final Pipeline pipeline) {
+                unacknowledged = new ArrayList<String>(channelIds.get());
+                if (unacknowledged.isEmpty()) {
+                    return false;
+                }
+                final String[] keys = new String[unacknowledged.size()];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = RedisDataStore.ackLookupKey(unacknowledged.get(i));
+                }
+                versions = pipeline.mget(keys);
+                return true;
+            }
+
+            @Override
+            void complete() {
+                if (versions == null) {
+                    future.complete(Collections.<Ack>emptySet());
+                    return;
+                }
+                final List<String> values = versions.get();
+                final Set<Ack> acks = new HashSet<Ack>(values.size());
+                for (int i = 0; i < values.size(); i++) {
+                    // skips acks removed since the set was read.
+                    if (values.get(i) != null) {
+                        acks.add(new AckImpl(unacknowledged.get(i), Long.valueOf(values.get(i))));
+                    }
+                }
+                future.complete(acks);
+            }
+        });
+    }
+
+    @Override
+    public DataStoreFuture<Set<Ack>> removeAcknowledged(final String uaid, final Set<Ack> acked) {
+        return writes.removeAcknowledged(uaid, acked);
+    }
+
+    @Override
+    public DataStoreFuture<Void> userAgentConnected(final String uaid) {
+        return writes.userAgentConnected(uaid);
+    }
+
+    @Override
+    public DataStoreFuture<Void> updateLastSeen(final String uaid, final long timestamp) {
+        return writes.updateLastSeen(uaid, timestamp);
+    }
+
+    private <V> DataStoreFuture<V> enqueue(final Read<V> read) {
+        if (!running) {
+            return DataStoreFuture.failed(new IllegalStateException("RedisAsyncDataStore has been closed"));
+        }
+        reads.add(read);
+        return read.future;
+    }
+
+    private void readLoop() {
+        final List<Read<?>> batch = new ArrayList<Read<?>>(maxPipelineSize);
+        Jedis jedis = new Jedis(host, port);
+        try {
+            while (running) {
+                try {
+                    batch.add(reads.take());
+                } catch (final InterruptedException e) {
+                    break;
+                }
+                reads.drainTo(batch, maxPipelineSize - 1);
+                try {
+                    pipeline(jedis, batch);
+                } catch (final RuntimeException e) {
+                    logger.warn("Pipelined read of [" + batch.size() + "] commands failed", e);
+                    for (Read<?> read : batch) {
+                        read.future.fail(e);
+                    }
+                    disconnect(jedis);
+                    jedis = new Jedis(host, port);
+                }
+                batch.clear();
+            }
+        } finally {
+            disconnect(jedis);
+            final IllegalStateException closed = new IllegalStateException("RedisAsyncDataStore has been closed");
+            reads.drainTo(batch);
+            for (Read<?> read : batch) {
+                read.future.fail(closed);
+            }
+        }
+    }
+
+    private static void pipeline(final Jedis jedis, final List<Read<?>> batch) {
+        Pipeline pipeline = jedis.pipelined();
+        for (Read<?> read : batch) {
+            read.send(pipeline);
+        }
+        pipeline.sync();
+        pipeline = jedis.pipelined();
+        boolean more = false;
+        for (Read<?> read : batch) {
+            more |= read.sendMore(pipeline);
+        }
+        if (more) {
+            pipeline.sync();
+        }
+        for (Read<?> read : batch) {
+            try {
+                read.complete();
+            } catch (final RuntimeException e) {
+                read.future.fail(e);
+            }
+        }
+    }
+
+    private void disconnect(final Jedis jedis) {
+        try {
+            jedis.disconnect();
+        } catch (final RuntimeException e) {
+            logger.debug("Could not disconnect from Redis", e);
+        }
+    }
+
+    /**
+     * A read that is sent as part of a pipeline, in at most two round trips.
+     */
+    private abstract static class Read<V> {
+
+        final DataStoreFuture<V> future = new DataStoreFuture<V>();
+
+        /**
+         * Adds the commands of the first round trip to the pipeline.
+         */
+        abstract void send(Pipeline pipeline);
+
+        /**
+         * Adds the commands that depend on the responses of the first round trip to the pipeline.
+         *
+         * @return {@code true} if commands were added.
+         */
+        boolean sendMore(final Pipeline pipeline) {
+            return false;
+        }
+
+        /**
+         * Completes the future from the responses.
+         */
+        abstract void complete();
+
+    }
+
+}
@@ -14,6 +14,7 @@ package org.jboss.aerogear.simplepush.server.datastore;
 
 import java.nio.charset.Charset;
 import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -30,20 +31,27 @@ import org.slf4j.LoggerFactory;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.Transaction;
 
 /**
  * DataStore that uses a Redis database for storage.
+ * <p>
+ * The last seen time of each UserAgent is stored both in a {@code lastseen:<uaid>} key, which is watched
+ * when removing an idle UserAgent, and in the {@code lastseen} sorted set which orders UserAgents by that time.
  */
-public class RedisDataStore implements DataStore {
+public class RedisDataStore implements BulkLoadDataStore, LastSeenDataStore {
 
     private final static String CHID_LOOKUP_KEY_PREFIX = "chid:lookup:";
     private final static String UAID_LOOKUP_KEY_PREFIX = "uaid:lookup:";
     private final static String TOKEN_LOOKUP_KEY_PREFIX = "token:lookup:";
     private final static String ACK_LOOKUP_KEY_PREFIX = "ack:";
     private final static String ACKS_LOOKUP_KEY_PREFIX = "acks:";
-    private final static String TOKEN_KEY = "token";
-    private final static String UAID_KEY = "uaid";
+    private final static String LAST_SEEN_KEY_PREFIX = "lastseen:";
+    private final static String LAST_SEEN_INDEX_KEY = "lastseen";
+    final static String TOKEN_KEY = "token";
+    final static String UAID_KEY = "uaid";
 
     private final Logger logger = LoggerFactory.getLogger(RedisDataStore.class);
     private final static Charset UTF_8 = Charset.forName("UTF-8");
@@ -96,6 +104,47 @@ public class RedisDataStore implements DataStore {
         }
     }
 
+    /**
+     * Stores the UserAgents using two round trips: a pipeline checking which channels already exist, and a
+     * single transaction writing the new channels and all unacknowledged notifications.
+     */
+    @Override
+    public void saveUserAgents(final List<UserAgentRecord> userAgents) {
+        final Jedis jedis = jedisPool.getResource();
+        try {
+            final Pipeline pipeline = jedis.pipelined();
+            final List<Response<Boolean>> exists = new ArrayList<Response<Boolean>>();
+            for (UserAgentRecord userAgent : userAgents) {
+                for (Channel channel : userAgent.getChannels()) {
+                    exists.add(pipeline.sismember(uaidLookupKey(userAgent.getUAID()), channel.getChannelId()));
+                }
+            }
+            pipeline.sync();
+            int i = 0;
+            final Transaction tx = jedis.multi();
+            for (UserAgentRecord userAgent : userAgents) {
+                final String uaid = userAgent.getUAID();
+                for (Channel channel : userAgent.getChannels()) {
+                    if (exists.get(i++).get()) {
+                        continue;
+                    }
+                    final String endpointToken = channel.getEndpointToken();
+                    tx.set(endpointToken, Long.toString(channel.getVersion()));
+                    tx.set(tokenLookupKey(endpointToken), channel.getChannelId());
+                    tx.hmset(chidLookupKey(channel.getChannelId()), mapOf(endpointToken, uaid));
+                    tx.sadd(uaidLookupKey(uaid), channel.getChannelId());
+                }
+                for (Ack ack : userAgent.getUnacknowledged()) {
+                    tx.set(ackLookupKey(ack.getChannelId()), Long.toString(ack.getVersion()));
+                    tx.sadd(acksLookupKey(uaid), ack.getChannelId());
+                }
+            }
+            tx.exec();
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+    }
+
     private Map<String, String> mapOf(final String endpointToken, final String uaid) {
         final Map<String, String> map = new HashMap<String, String>(2);
         map.put(TOKEN_KEY, endpointToken);
@@ -139,7 +188,11 @@ public class RedisDataStore implements DataStore {
                 if (endpointToken == null || uaid == null) {
                     throw channelNotFoundException(channelId);
                 }
-                return new DefaultChannel(uaid, channelId, Long.valueOf(jedis.get(endpointToken)), endpointToken);
+                final String version = jedis.get(endpointToken);
+                if (version == null) {
+                    throw channelNotFoundException(channelId);
+                }
+                return new DefaultChannel(uaid, channelId, Long.valueOf(version), endpointToken);
             }
             throw channelNotFoundException(channelId);
         } finally {
@@ -174,21 +227,87 @@ public class RedisDataStore implements DataStore {
     }
 
     @Override
-    public String updateVersion(final String endpointToken, final long newVersion) throws VersionException, ChannelNotFoundException {
+    public void updateLastSeen(final String uaid, final long timestamp) {
         final Jedis jedis = jedisPool.getResource();
         try {
-            jedis.watch(endpointToken);
-            final String versionString = jedis.get(endpointToken);
-            if (versionString == null) {
-                throw channelNotFoundException(endpointToken);
-            }
-            final long currentVersion = Long.valueOf(versionString);
-            if (newVersion <= currentVersion) {
-                throw new VersionException("version [" + newVersion + "] must be greater than the current version [" + currentVersion + "]");
-            }
             final Transaction tx = jedis.multi();
-            tx.set(endpointToken, String.valueOf(newVersion));
+            tx.set(lastSeenKey(uaid), Long.toString(timestamp));
+            tx.zadd(LAST_SEEN_INDEX_KEY, timestamp, uaid);
             tx.exec();
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+    }
+
+    @Override
+    public List<String> getUserAgentsLastSeenBefore(final long timestamp, final int limit) {
+        final Jedis jedis = jedisPool.getResource();
+        try {
+            // the score range is inclusive, and scores are whole milliseconds.
+            return new ArrayList<String>(jedis.zrangeByScore(LAST_SEEN_INDEX_KEY, Double.NEGATIVE_INFINITY, timestamp - 1, 0, limit));
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+    }
+
+    @Override
+    public boolean removeUserAgentIfLastSeenBefore(final String uaid, final long timestamp) {
+        final Jedis jedis = jedisPool.getResource();
+        try {
+            final String lastSeenKey = lastSeenKey(uaid);
+            jedis.watch(lastSeenKey);
+            final String lastSeen = jedis.get(lastSeenKey);
+            if (lastSeen == null || Long.parseLong(lastSeen) >= timestamp) {
+                jedis.unwatch();
+                return false;
+            }
+            final Transaction tx = jedis.multi();
+            tx.del(lastSeenKey);
+            tx.zrem(LAST_SEEN_INDEX_KEY, uaid);
+            if (tx.exec() == null) {
+                // the UserAgent was seen while it was being removed.
+                return false;
+            }
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+        removeChannels(uaid);
+        final Jedis acksJedis = jedisPool.getResource();
+        try {
+            final String acksKey = acksLookupKey(uaid);
+            for (String channelId : acksJedis.smembers(acksKey)) {
+                acksJedis.del(ackLookupKey(channelId));
+            }
+            acksJedis.del(acksKey);
+        } finally {
+            jedisPool.returnResource(acksJedis);
+        }
+        return true;
+    }
+
+    @Override
+    public String updateVersion(final String endpointToken, final long newVersion) throws VersionException, ChannelNotFoundException {
+        final Jedis jedis = jedisPool.getResource();
+        try {
+            for (;;) {
+                jedis.watch(endpointToken);
+                final String versionString = jedis.get(endpointToken);
+                if (versionString == null) {
+                    jedis.unwatch();
+                    throw channelNotFoundException(endpointToken);
+                }
+                final long currentVersion = Long.valueOf(versionString);
+                if (newVersion <= currentVersion) {
+                    jedis.unwatch();
+                    throw new VersionException("version [" + newVersion + "] must be greater than the current version [" + currentVersion + "]");
+                }
+                final Transaction tx = jedis.multi();
+                tx.set(endpointToken, String.valueOf(newVersion));
+                if (tx.exec() != null) {
+                    break;
+                }
+                // the version was changed concurrently, so compare against the new version.
+            }
             logger.debug(tokenLookupKey(endpointToken));
             return jedis.get(tokenLookupKey(endpointToken));
         } finally {
@@ -197,12 +316,15 @@ public class RedisDataStore implements DataStore {
     }
 
     @Override
-    public String saveUnacknowledged(final String channelId, final long version) {
+    public String saveUnacknowledged(final String channelId, final long version) throws ChannelNotFoundException {
         final Jedis jedis = jedisPool.getResource();
         try {
-            jedis.set(ackLookupKey(channelId), Long.toString(version));
             final List<String> hashValues = jedis.hmget(chidLookupKey(channelId), UAID_KEY);
             final String uaid = hashValues.get(0);
+            if (uaid == null) {
+                throw channelNotFoundException(channelId);
+            }
+            jedis.set(ackLookupKey(channelId), Long.toString(version));
             jedis.sadd(acksLookupKey(uaid), channelId);
             return uaid;
         } finally {
@@ -220,7 +342,11 @@ public class RedisDataStore implements DataStore {
             }
             final Set<Ack> acks = new HashSet<Ack>(unacks.size());
             for (String channelId : unacks) {
-                acks.add(new AckImpl(channelId, Long.valueOf(jedis.get(ackLookupKey(channelId)))));
+                final String version = jedis.get(ackLookupKey(channelId));
+                // skips acks removed since the set was read.
+                if (version != null) {
+                    acks.add(new AckImpl(channelId, Long.valueOf(version)));
+                }
             }
             return acks;
         } finally {
@@ -242,7 +368,7 @@ public class RedisDataStore implements DataStore {
         }
     }
 
-    private static String chidLookupKey(final String channelId) {
+    static String chidLookupKey(final String channelId) {
         return CHID_LOOKUP_KEY_PREFIX + channelId;
     }
 
@@ -250,19 +376,23 @@ public class RedisDataStore implements DataStore {
         return TOKEN_LOOKUP_KEY_PREFIX + endpointToken;
     }
 
-    private static String uaidLookupKey(final String uaid) {
+    static String uaidLookupKey(final String uaid) {
         return UAID_LOOKUP_KEY_PREFIX + uaid;
     }
 
-    private static String ackLookupKey(final String channelId) {
+    static String ackLookupKey(final String channelId) {
         return ACK_LOOKUP_KEY_PREFIX + channelId;
     }
 
-    private static String acksLookupKey(final String uaid) {
+    static String acksLookupKey(final String uaid) {
         return ACKS_LOOKUP_KEY_PREFIX + uaid;
     }
 
-    private static ChannelNotFoundException channelNotFoundException(final String channelId) {
+    private static String lastSeenKey(final String uaid) {
+        return LAST_SEEN_KEY_PREFIX + uaid;
+    }
+
+    static ChannelNotFoundException channelNotFoundException(final String channelId) {
         return new ChannelNotFoundException("Could not find channel [" + channelId + "]", channelId);
     }
 
@@ -0,0 +1,44 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+/**
+ * Runs the DataStore conformance tests against a {@link RedisAsyncDataStore} through a {@link BlockingDataStore},
+ * using an in-process {@link RespServer}.
+ */
+public class RedisAsyncDataStoreConformanceTest extends DataStoreConformanceTest {
+
+    private static RespServer respServer;
+    private static RedisAsyncDataStore redisAsyncDataStore;
+
+    @BeforeClass
+    public static void startRespServer() throws Exception {
+        respServer = new RespServer();
+        redisAsyncDataStore = new RedisAsyncDataStore("127.0.0.1", respServer.port());
+    }
+
+    @AfterClass
+    public static void stopRespServer() throws Exception {
+        redisAsyncDataStore.close();
+        respServer.stop();
+    }
+
+    @Override
+    protected DataStore createDataStore() {
+        return new BlockingDataStore(redisAsyncDataStore);
+    }
+
+}
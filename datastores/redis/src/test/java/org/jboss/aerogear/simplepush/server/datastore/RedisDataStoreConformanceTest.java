@@ -0,0 +1,43 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+/**
+ * Runs the DataStore conformance tests against an in-process {@link RespServer}, so that they do not need a
+ * Redis server. {@link RedisDataStoreTest} can be run against a real Redis server using the {@code redis} profile.
+ */
+public class RedisDataStoreConformanceTest extends DataStoreConformanceTest {
+
+    private static RespServer respServer;
+    private static RedisDataStore redisDataStore;
+
+    @BeforeClass
+    public static void startRespServer() throws Exception {
+        respServer = new RespServer();
+        redisDataStore = new RedisDataStore("127.0.0.1", respServer.port());
+    }
+
+    @AfterClass
+    public static void stopRespServer() throws Exception {
+        respServer.stop();
+    }
+
+    @Override
+    protected DataStore createDataStore() {
+        return redisDataStore;
+    }
+
+}
@@ -134,7 +134,7 @@ public class RedisDataStoreTest {
     }
 
     @Test
-    public void saveUnacknowledged() {
+    public void saveUnacknowledged() throws ChannelNotFoundException {
         final RedisDataStore store = newRedisDataStore();
         final Channel channel = newChannel2();
         store.saveChannel(channel);
@@ -144,7 +144,7 @@ public class RedisDataStoreTest {
     }
 
     @Test
-    public void removeAcknowledged() {
+    public void removeAcknowledged() throws ChannelNotFoundException {
         final RedisDataStore store = newRedisDataStore();
         final String uaid = UUIDUtil.newUAID();
         final Channel channel1 = newChannel2(uaid);
@@ -0,0 +1,465 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An in-process server speaking the Redis serialization protocol (RESP), used to run the Redis DataStore tests
+ * without a Redis server.
+ * <p>
+ * Only the commands used by {@link RedisDataStore} and {@link RedisAsyncDataStore} are supported: strings, hashes, sets, sorted sets, and
+ * MULTI/EXEC transactions with optimistic locking through WATCH. All commands are executed under a single lock,
+ * which gives transactions the same atomicity they have in Redis.
+ */
+class RespServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final Map<String, Object> data = new HashMap<String, Object>();
+    private final Map<String, Long> modifications = new HashMap<String, Long>();
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private volatile boolean running = true;
+
+    RespServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    void stop() throws IOException {
+        running = false;
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (final IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(final Socket socket) {
+        final Connection connection = new Connection();
+        try {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            List<String> command;
+            while ((command = readCommand(in)) != null) {
+                out.write(connection.handle(command));
+                out.flush();
+                if ("QUIT".equals(command.get(0).toUpperCase())) {
+                    break;
+                }
+            }
+        } catch (final IOException ignored) {
+            // the client went away.
+        } finally {
+            try {
+                socket.close();
+            } catch (final IOException ignored) {
+            }
+        }
+    }
+
+    private static List<String> readCommand(final InputStream in) throws IOException {
+        final String header = readLine(in);
+        if (header == null) {
+            return null;
+        }
+        if (header.charAt(0) != '*') {
+            throw new IOException("Expected a multi bulk command but was [" + header + "]");
+        }
+        final int count = Integer.parseInt(header.substring(1));
+        final List<String> args = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            final int length = Integer.parseInt(readLine(in).substring(1));
+            final byte[] bytes = new byte[length];
+            int read = 0;
+            while (read < length) {
+                final int n = in.read(bytes, read, length - read);
+                if (n == -1) {
+                    throw new IOException("Unexpected end of stream");
+                }
+                read += n;
+            }
+            in.read();
+            in.read();
+            args.add(new String(bytes, UTF_8));
+        }
+        return args;
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\r') {
+                in.read();
+                return sb.toString();
+            }
+            sb.append((char) b);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private class Connection {
+
+        private final Map<String, Long> watched = new HashMap<String, Long>();
+        private List<List<String>> queued;
+
+        byte[] handle(final List<String> command) {
+            final String name = command.get(0).toUpperCase();
+            synchronized (data) {
+                if (queued != null && !"EXEC".equals(name) && !"DISCARD".equals(name)) {
+                    queued.add(command);
+                    return status("QUEUED");
+                }
+                if ("MULTI".equals(name)) {
+                    queued = new ArrayList<List<String>>();
+                    return status("OK");
+                }
+                if ("EXEC".equals(name)) {
+                    return exec();
+                }
+                if ("DISCARD".equals(name)) {
+                    queued = null;
+                    watched.clear();
+                    return status("OK");
+                }
+                if ("WATCH".equals(name)) {
+                    for (String key : command.subList(1, command.size())) {
+                        watched.put(key, modificationsOf(key));
+                    }
+                    return status("OK");
+                }
+                if ("UNWATCH".equals(name)) {
+                    watched.clear();
+                    return status("OK");
+                }
+                return execute(name, command.subList(1, command.size()));
+            }
+        }
+
+        private byte[] exec() {
+            final List<List<String>> commands = queued;
+            queued = null;
+            if (commands == null) {
+                return error("EXEC without MULTI");
+            }
+            for (Entry<String, Long> entry : watched.entrySet()) {
+                if (modificationsOf(entry.getKey()) != entry.getValue()) {
+                    watched.clear();
+                    return "*-1\r\n".getBytes(UTF_8);
+                }
+            }
+            watched.clear();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            write(out, ("*" + commands.size() + "\r\n").getBytes(UTF_8));
+            for (List<String> command : commands) {
+                write(out, execute(command.get(0).toUpperCase(), command.subList(1, command.size())));
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private byte[] execute(final String name, final List<String> args) {
+        if ("PING".equals(name)) {
+            return status("PONG");
+        }
+        if ("QUIT".equals(name) || "SELECT".equals(name)) {
+            return status("OK");
+        }
+        if ("SET".equals(name)) {
+            data.put(args.get(0), args.get(1));
+            modified(args.get(0));
+            return status("OK");
+        }
+        if ("GET".equals(name)) {
+            return bulk((String) data.get(args.get(0)));
+        }
+        if ("MGET".equals(name)) {
+            final List<String> values = new ArrayList<String>();
+            for (String key : args) {
+                final Object value = data.get(key);
+                values.add(value instanceof String ? (String) value : null);
+            }
+            return multiBulk(values);
+        }
+        if ("DEL".equals(name)) {
+            long removed = 0;
+            for (String key : args) {
+                if (data.remove(key) != null) {
+                    modified(key);
+                    removed++;
+                }
+            }
+            return integer(removed);
+        }
+        if ("HMSET".equals(name)) {
+            final Map<String, String> hash = hash(args.get(0), true);
+            for (int i = 1; i < args.size(); i += 2) {
+                hash.put(args.get(i), args.get(i + 1));
+            }
+            modified(args.get(0));
+            return status("OK");
+        }
+        if ("HMGET".equals(name)) {
+            final Map<String, String> hash = hash(args.get(0), false);
+            final List<String> values = new ArrayList<String>();
+            for (String field : args.subList(1, args.size())) {
+                values.add(hash == null ? null : hash.get(field));
+            }
+            return multiBulk(values);
+        }
+        if ("SADD".equals(name)) {
+            final Set<String> set = set(args.get(0), true);
+            long added = 0;
+            for (String member : args.subList(1, args.size())) {
+                if (set.add(member)) {
+                    added++;
+                }
+            }
+            modified(args.get(0));
+            return integer(added);
+        }
+        if ("SREM".equals(name)) {
+            final Set<String> set = set(args.get(0), false);
+            long removed = 0;
+            if (set != null) {
+                for (String member : args.subList(1, args.size())) {
+                    if (set.remove(member)) {
+                        removed++;
+                    }
+                }
+                removeIfEmpty(args.get(0), set);
+                modified(args.get(0));
+            }
+            return integer(removed);
+        }
+        if ("SMEMBERS".equals(name)) {
+            final Set<String> set = set(args.get(0), false);
+            return multiBulk(set == null ? Collections.<String>emptySet() : set);
+        }
+        if ("SISMEMBER".equals(name)) {
+            final Set<String> set = set(args.get(0), false);
+            return integer(set != null && set.contains(args.get(1)) ? 1 : 0);
+        }
+        if ("ZADD".equals(name)) {
+            final Map<String, Double> zset = zset(args.get(0), true);
+            long added = 0;
+            for (int i = 1; i < args.size(); i += 2) {
+                if (zset.put(args.get(i + 1), score(args.get(i))) == null) {
+                    added++;
+                }
+            }
+            modified(args.get(0));
+            return integer(added);
+        }
+        if ("ZREM".equals(name)) {
+            final Map<String, Double> zset = zset(args.get(0), false);
+            long removed = 0;
+            if (zset != null) {
+                for (String member : args.subList(1, args.size())) {
+                    if (zset.remove(member) != null) {
+                        removed++;
+                    }
+                }
+                removeIfEmpty(args.get(0), zset.keySet());
+                modified(args.get(0));
+            }
+            return integer(removed);
+        }
+        if ("ZSCORE".equals(name)) {
+            final Map<String, Double> zset = zset(args.get(0), false);
+            final Double score = zset == null ? null : zset.get(args.get(1));
+            return bulk(score == null ? null : String.valueOf(score));
+        }
+        if ("ZRANGEBYSCORE".equals(name)) {
+            return zrangeByScore(args);
+        }
+        return error("unknown command '" + name + "'");
+    }
+
+    private byte[] zrangeByScore(final List<String> args) {
+        final Map<String, Double> zset = zset(args.get(0), false);
+        final double min = score(args.get(1));
+        final double max = score(args.get(2));
+        int offset = 0;
+        int count = Integer.MAX_VALUE;
+        if (args.size() > 3 && "LIMIT".equals(args.get(3).toUpperCase())) {
+            offset = Integer.parseInt(args.get(4));
+            final int limit = Integer.parseInt(args.get(5));
+            count = limit < 0 ? Integer.MAX_VALUE : limit;
+        }
+        final TreeMap<Double, Set<String>> byScore = new TreeMap<Double, Set<String>>();
+        if (zset != null) {
+            for (Entry<String, Double> entry : zset.entrySet()) {
+                if (entry.getValue() >= min && entry.getValue() <= max) {
+                    Set<String> members = byScore.get(entry.getValue());
+                    if (members == null) {
+                        members = new TreeSet<String>();
+                        byScore.put(entry.getValue(), members);
+                    }
+                    members.add(entry.getKey());
+                }
+            }
+        }
+        final List<String> range = new ArrayList<String>();
+        int index = 0;
+        for (Set<String> members : byScore.values()) {
+            for (String member : members) {
+                if (index++ >= offset && range.size() < count) {
+                    range.add(member);
+                }
+            }
+        }
+        return multiBulk(range);
+    }
+
+    private static double score(final String value) {
+        final String lower = value.toLowerCase();
+        if ("-inf".equals(lower) || "-infinity".equals(lower)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        if ("+inf".equals(lower) || "inf".equals(lower) || "infinity".equals(lower)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Double.parseDouble(value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> hash(final String key, final boolean create) {
+        Map<String, String> hash = (Map<String, String>) data.get(key);
+        if (hash == null && create) {
+            hash = new HashMap<String, String>();
+            data.put(key, hash);
+        }
+        return hash;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<String> set(final String key, final boolean create) {
+        Set<String> set = (Set<String>) data.get(key);
+        if (set == null && create) {
+            set = new LinkedHashSet<String>();
+            data.put(key, set);
+        }
+        return set;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Double> zset(final String key, final boolean create) {
+        Map<String, Double> zset = (Map<String, Double>) data.get(key);
+        if (zset == null && create) {
+            zset = new HashMap<String, Double>();
+            data.put(key, zset);
+        }
+        return zset;
+    }
+
+    private void removeIfEmpty(final String key, final Collection<String> members) {
+        if (members.isEmpty()) {
+            data.remove(key);
+        }
+    }
+
+    private void modified(final String key) {
+        modifications.put(key, modificationsOf(key) + 1);
+    }
+
+    private long modificationsOf(final String key) {
+        final Long count = modifications.get(key);
+        return count == null ? 0 : count;
+    }
+
+    private static byte[] status(final String status) {
+        return ("+" + status + "\r\n").getBytes(UTF_8);
+    }
+
+    private static byte[] error(final String message) {
+        return ("-ERR " + message + "\r\n").getBytes(UTF_8);
+    }
+
+    private static byte[] integer(final long value) {
+        return (":" + value + "\r\n").getBytes(UTF_8);
+    }
+
+    private static byte[] bulk(final String value) {
+        if (value == null) {
+            return "$-1\r\n".getBytes(UTF_8);
+        }
+        final byte[] bytes = value.getBytes(UTF_8);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + 16);
+        write(out, ("$" + bytes.length + "\r\n").getBytes(UTF_8));
+        write(out, bytes);
+        write(out, CRLF);
+        return out.toByteArray();
+    }
+
+    private static byte[] multiBulk(final Collection<String> values) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, ("*" + values.size() + "\r\n").getBytes(UTF_8));
+        for (String value : values) {
+            write(out, bulk(value));
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(final ByteArrayOutputStream out, final byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+
+}
@@ -28,6 +28,17 @@ import io.netty.util.internal.StringUtil;
  */
 public final class SockJsConfig {
 
+    /**
+     * What to do when a message is stored for a session that already holds the maximum number of
+     * messages waiting to be delivered.
+     */
+    public enum OverflowPolicy {
+        /** Discards the oldest stored message to make room for the new one. */
+        DROP_OLDEST,
+        /** Closes the session, as a client that cannot keep up would have to reconnect anyway. */
+        CLOSE
+    }
+
     private final String prefix;
     private final boolean webSocketEnabled;
     private final long webSocketHeartbeatInterval;
@@ -40,6 +51,10 @@ public final class SockJsConfig {
     private final boolean tls;
     private final String keyStore;
     private final String keystorePassword;
+    private final int writeBufferHighWaterMark;
+    private final int writeBufferLowWaterMark;
+    private final int maxQueuedMessages;
+    private final OverflowPolicy overflowPolicy;
 
     private SockJsConfig(final Builder builder) {
         prefix = builder.prefix;
@@ -54,6 +69,10 @@ public final class SockJsConfig {
         tls = builder.tls;
         keyStore = builder.keyStore;
         keystorePassword = builder.keyStorePassword;
+        writeBufferHighWaterMark = builder.writeBufferHighWaterMark;
+        writeBufferLowWaterMark = builder.writeBufferLowWaterMark;
+        maxQueuedMessages = builder.maxQueuedMessages;
+        overflowPolicy = builder.overflowPolicy;
     }
 
     /**
@@ -201,6 +220,45 @@ public final class SockJsConfig {
         return keystorePassword;
     }
 
+    /**
+     * The number of bytes waiting to be written to a connection above which the connection is no longer
+     * writable, after which messages are stored in the session instead of being written.
+     *
+     * @return {@code int} the high water mark in bytes, or 0 to keep the default of the channel.
+     */
+    public int writeBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    /**
+     * The number of bytes waiting to be written to a connection below which a connection that was no longer
+     * writable becomes writable again, at which point the messages stored in the session are written.
+     *
+     * @return {@code int} the low water mark in bytes, or 0 to keep the default of the channel.
+     */
+    public int writeBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    /**
+     * The maximum number of messages stored in a session while they cannot be written to the client,
+     * after which the {@link #overflowPolicy()} applies.
+     *
+     * @return {@code int} the maximum number of stored messages, or 0 for no limit. Default is 1000.
+     */
+    public int maxQueuedMessages() {
+        return maxQueuedMessages;
+    }
+
+    /**
+     * What to do when a message is stored for a session that already holds {@link #maxQueuedMessages()} messages.
+     *
+     * @return {@code OverflowPolicy} the overflow policy. Default is {@link OverflowPolicy#DROP_OLDEST}.
+     */
+    public OverflowPolicy overflowPolicy() {
+        return overflowPolicy;
+    }
+
     public String toString() {
         return StringUtil.simpleClassName(this) + "[prefix=" + prefix +
             ", webSocketEnabled=" + webSocketEnabled +
@@ -213,6 +271,10 @@ public final class SockJsConfig {
             ", maxStreamingBytesSize=" + maxStreamingBytesSize +
             ", tls=" + tls +
             ", keyStore=" + keyStore +
+            ", writeBufferHighWaterMark=" + writeBufferHighWaterMark +
+            ", writeBufferLowWaterMark=" + writeBufferLowWaterMark +
+            ", maxQueuedMessages=" + maxQueuedMessages +
+            ", overflowPolicy=" + overflowPolicy +
             ']';
     }
 
@@ -240,6 +302,10 @@ public final class SockJsConfig {
         private boolean tls;
         private String keyStore;
         private String keyStorePassword;
+        private int writeBufferHighWaterMark;
+        private int writeBufferLowWaterMark;
+        private int maxQueuedMessages = 1000;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
 
         /**
          * The prefix, or name, of the service.
@@ -373,6 +439,41 @@ public final class SockJsConfig {
             return this;
         }
 
+        /**
+         * Specifies the write buffer water marks of the connections, which decide when a connection is no
+         * longer writable and messages are stored in the session instead of being written.
+         *
+         * @param high the number of pending bytes above which a connection is no longer writable.
+         * @param low the number of pending bytes below which a connection is writable again.
+         */
+        public Builder writeBufferWaterMarks(final int high, final int low) {
+            writeBufferHighWaterMark = high;
+            writeBufferLowWaterMark = low;
+            return this;
+        }
+
+        /**
+         * Specifies the maximum number of messages stored in a session while they cannot be written.
+         *
+         * @param max the maximum number of stored messages, or 0 for no limit. Default is 1000.
+         */
+        public Builder maxQueuedMessages(final int max) {
+            maxQueuedMessages = max;
+            return this;
+        }
+
+        /**
+         * Specifies what to do when a message is stored for a session that already holds the maximum number
+         * of messages.
+         *
+         * @param policy the overflow policy. Default is {@link OverflowPolicy#DROP_OLDEST}.
+         */
+        public Builder overflowPolicy(final OverflowPolicy policy) {
+            ArgumentUtil.checkNotNull(policy, "policy");
+            overflowPolicy = policy;
+            return this;
+        }
+
         /**
          * Builds Config with the previously set values.
          *
@@ -382,6 +483,9 @@ public final class SockJsConfig {
             if (tls && (keyStore == null || keyStorePassword == null)) {
                 throw new IllegalStateException("keyStore and keyStorePassword must be specified if 'tls' is enabled");
             }
+            if (writeBufferLowWaterMark > writeBufferHighWaterMark) {
+                throw new IllegalStateException("writeBufferLowWaterMark must not be greater than writeBufferHighWaterMark");
+            }
             return new SockJsConfig(this);
         }
     }
@@ -23,6 +23,7 @@ import io.netty.util.concurrent.ScheduledFuture;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
+import java.util.List;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
@@ -87,6 +88,7 @@ abstract class AbstractTimersSessionState implements SessionState {
                     }
                     if (session.timestamp() + session.config().sessionTimeout() < now) {
                         final SockJsSession removed = sessions.remove(session.sessionId());
+                        session.clearMessages();
                         session.connectionContext().close();
                         sessionTimer.cancel(true);
                         heartbeatFuture.cancel(true);
@@ -138,7 +140,12 @@ abstract class AbstractTimersSessionState implements SessionState {
     }
 
     @Override
-    public void storeMessage(String message) {
-        session.addMessage(message);
+    public boolean storeMessage(String message) {
+        return session.addMessage(message);
+    }
+
+    @Override
+    public List<String> removeStoredMessages() {
+        return session.getAllMessages();
     }
 }
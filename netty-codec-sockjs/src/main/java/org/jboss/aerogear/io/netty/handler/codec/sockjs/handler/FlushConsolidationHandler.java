@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.io.netty.handler.codec.sockjs.handler;
+
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * A ChannelHandler that consolidates flushes, so that several frames written in the same event loop
+ * iteration reach the socket with a single syscall.
+ *
+ * SockJS frames, heartbeats and WebSocket frames are all written with {@code writeAndFlush}. Flushes issued
+ * while a read is in progress are deferred until {@code channelReadComplete}. Flushes issued outside of a read,
+ * for example for messages sent from other threads, which reach the event loop as tasks, are deferred to a
+ * single task that runs after the tasks that are already queued. In both cases at most
+ * {@code explicitFlushAfterFlushes} flushes are deferred before a flush is passed on, which bounds the
+ * latency and the amount of data waiting to be written.
+ *
+ * This handler should be added to the pipeline before, that is closer to the socket than, any handler that
+ * flushes. Pending flushes are passed on when the channel is closed or disconnected, when an exception is
+ * caught, when the channel is no longer writable and when the handler is removed.
+ */
+public class FlushConsolidationHandler extends ChannelHandlerAdapter {
+
+    public static final int DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES = 256;
+
+    private final int explicitFlushAfterFlushes;
+    private final Runnable flushTask;
+    private ChannelHandlerContext ctx;
+    private int flushPendingCount;
+    private boolean readInProgress;
+    private boolean flushScheduled;
+
+    /**
+     * Creates a FlushConsolidationHandler that defers at most {@link #DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES}
+     * flushes.
+     */
+    public FlushConsolidationHandler() {
+        this(DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES);
+    }
+
+    /**
+     * Creates a FlushConsolidationHandler.
+     *
+     * @param explicitFlushAfterFlushes the number of deferred flushes after which a flush is passed on.
+     */
+    public FlushConsolidationHandler(final int explicitFlushAfterFlushes) {
+        if (explicitFlushAfterFlushes <= 0) {
+            throw new IllegalArgumentException("explicitFlushAfterFlushes must be greater than 0");
+        }
+        this.explicitFlushAfterFlushes = explicitFlushAfterFlushes;
+        flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flushScheduled = false;
+                if (flushPendingCount > 0 && !readInProgress) {
+                    flushNow(ctx);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void flush(final ChannelHandlerContext ctx) throws Exception {
+        if (++flushPendingCount == explicitFlushAfterFlushes) {
+            flushNow(ctx);
+        } else if (!readInProgress && !flushScheduled) {
+            flushScheduled = true;
+            ctx.executor().execute(flushTask);
+        }
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+        readInProgress = true;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception {
+        resetReadAndFlushIfNeeded(ctx);
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+        resetReadAndFlushIfNeeded(ctx);
+        ctx.fireExceptionCaught(cause);
+    }
+
+    @Override
+    public void disconnect(final ChannelHandlerContext ctx, final ChannelPromise promise) throws Exception {
+        resetReadAndFlushIfNeeded(ctx);
+        ctx.disconnect(promise);
+    }
+
+    @Override
+    public void close(final ChannelHandlerContext ctx, final ChannelPromise promise) throws Exception {
+        resetReadAndFlushIfNeeded(ctx);
+        ctx.close(promise);
+    }
+
+    @Override
+    public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception {
+        if (!ctx.channel().isWritable()) {
+            // let the pending data drain rather than holding on to it while the channel is full.
+            flushIfNeeded(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+        flushIfNeeded(ctx);
+    }
+
+    private void resetReadAndFlushIfNeeded(final ChannelHandlerContext ctx) {
+        readInProgress = false;
+        flushIfNeeded(ctx);
+    }
+
+    private void flushIfNeeded(final ChannelHandlerContext ctx) {
+        if (flushPendingCount > 0) {
+            flushNow(ctx);
+        }
+    }
+
+    private void flushNow(final ChannelHandlerContext ctx) {
+        flushPendingCount = 0;
+        ctx.flush();
+    }
+
+}
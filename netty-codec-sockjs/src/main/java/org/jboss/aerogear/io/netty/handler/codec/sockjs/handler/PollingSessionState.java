@@ -67,7 +67,7 @@ class PollingSessionState extends AbstractTimersSessionState {
         if (allMessages.isEmpty()) {
             return;
         }
-        final MessageFrame messageFrame = new MessageFrame(allMessages);
+        final MessageFrame messageFrame = new MessageFrame(ctx.alloc(), allMessages);
         ctx.channel().writeAndFlush(messageFrame).addListener(new ChannelFutureListener() {
             @Override
             public void operationComplete(final ChannelFuture future) throws Exception {
@@ -96,6 +96,7 @@ class PollingSessionState extends AbstractTimersSessionState {
             context.close();
         }
         sessions.remove(getSockJsSession().sessionId());
+        getSockJsSession().clearMessages();
     }
 
     @Override
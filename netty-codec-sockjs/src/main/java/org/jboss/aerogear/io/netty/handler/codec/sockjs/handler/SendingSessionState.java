@@ -22,6 +22,7 @@ import io.netty.util.internal.StringUtil;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
+import java.util.List;
 import java.util.concurrent.ConcurrentMap;
 
 /**
@@ -79,6 +80,7 @@ class SendingSessionState implements SessionState {
         }
         session.connectionContext().close();
         sessions.remove(session.sessionId());
+        session.clearMessages();
     }
 
     @Override
@@ -107,8 +109,13 @@ class SendingSessionState implements SessionState {
     }
 
     @Override
-    public void storeMessage(String message) {
-        session.addMessage(message);
+    public boolean storeMessage(String message) {
+        return session.addMessage(message);
+    }
+
+    @Override
+    public List<String> removeStoredMessages() {
+        return session.getAllMessages();
     }
 
 }
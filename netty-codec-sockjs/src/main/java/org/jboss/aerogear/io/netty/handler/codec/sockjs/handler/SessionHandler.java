@@ -23,6 +23,9 @@ import io.netty.handler.codec.http.HttpRequest;
 import io.netty.util.ReferenceCountUtil;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.util.List;
+
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsSessionContext;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.handler.SessionState.State;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.protocol.CloseFrame;
@@ -40,6 +43,10 @@ import org.jboss.aerogear.io.netty.handler.codec.sockjs.util.ArgumentUtil;
  * Depending on the type of connection (polling, streaming, send, or websocket)
  * the type of {@link SessionState} that this session handles will differ.
  *
+ * Messages sent while the connection is not writable, because more bytes are waiting to be written than
+ * its write buffer high water mark allows, are stored in the session and written once the connection
+ * becomes writable again. The number of stored messages is bounded, see
+ * {@link org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsConfig#maxQueuedMessages()}.
  */
 public class SessionHandler extends ChannelHandlerAdapter {
 
@@ -123,10 +130,38 @@ public class SessionHandler extends ChannelHandlerAdapter {
         ctx.fireChannelInactive();
     }
 
+    @Override
+    public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception {
+        final Channel channel = ctx.channel();
+        if (channel.isWritable() && isWritable(channel)) {
+            final ChannelHandlerContext sendingContext = sessionState.getSendingContext();
+            if (sendingContext != null && sendingContext.channel() == channel) {
+                final List<String> messages = sessionState.removeStoredMessages();
+                if (!messages.isEmpty()) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Writing {} stored messages for {}", messages.size(), sessionState);
+                    }
+                    channel.writeAndFlush(new MessageFrame(channel.alloc(), messages));
+                }
+            }
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
     private static boolean isWritable(final Channel channel) {
         return channel.isActive() && channel.isRegistered();
     }
 
+    /**
+     * Returns the number of bytes of the messages stored in all sessions because they could not be
+     * written to their clients.
+     *
+     * @return {@code long} the number of stored bytes, counted as UTF-8.
+     */
+    public static long storedMessageBytes() {
+        return SockJsSession.queuedBytes();
+    }
+
     @Override
     public void userEventTriggered(final ChannelHandlerContext ctx, final Object event) throws Exception {
         if (event == Event.CLOSE_SESSION) {
@@ -150,10 +185,13 @@ public class SessionHandler extends ChannelHandlerAdapter {
         @Override
         public void send(String message) {
             final Channel channel = sessionState.getSendingContext().channel();
-            if (isWritable(channel)) {
-                channel.writeAndFlush(new MessageFrame(message));
-            } else {
-                sessionState.storeMessage(message);
+            if (isWritable(channel) && channel.isWritable()) {
+                channel.writeAndFlush(new MessageFrame(channel.alloc(), message));
+            } else if (!sessionState.storeMessage(message)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Closing {} as it holds the maximum number of stored messages", sessionState);
+                }
+                close();
             }
         }
 
@@ -16,6 +16,9 @@
 package org.jboss.aerogear.io.netty.handler.codec.sockjs.handler;
 
 import io.netty.channel.ChannelHandlerContext;
+
+import java.util.List;
+
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsSessionContext;
 
 /**
@@ -76,8 +79,18 @@ interface SessionState {
      * Stores the message in the session for later delivery to when a client is
      * connected.
      *
+     * @param message the message to store.
+     * @return {@code true} if the message was stored, {@code false} if the session holds the maximum
+     *         number of messages and should be closed.
+     */
+    boolean storeMessage(String message);
+
+    /**
+     * Returns the messages stored in the session and removes them from it.
+     *
+     * @return {@code List} the stored messages, which may be empty.
      */
-    void storeMessage(String message);
+    List<String> removeStoredMessages();
 
     /**
      * Returns the ChannelHandlerContext that should be used to communicate with the client.
@@ -17,6 +17,7 @@ package org.jboss.aerogear.io.netty.handler.codec.sockjs.handler;
 
 import io.netty.channel.ChannelHandlerContext;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsConfig;
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsConfig.OverflowPolicy;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsSessionContext;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsService;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.handler.SessionState.State;
@@ -26,6 +27,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -44,14 +46,24 @@ import java.util.concurrent.atomic.AtomicReference;
  * some transports will have multiple connections accessing the same session. Taking a
  * polling transport as an example again, it can have a long polling request and also a
  * xhr-send request at the same time, both accessing the same session.
+ *
+ * The message queue is bounded by {@link SockJsConfig#maxQueuedMessages()}, so that a client that does not
+ * keep up cannot make the session hold on to an unbounded number of messages. The size of the messages
+ * stored in all sessions is counted by {@link #queuedBytes()}. Messages still stored when the session is
+ * closed or removed are discarded.
  */
 final class SockJsSession {
 
+    private static final AtomicLong QUEUED_BYTES = new AtomicLong();
+
     private final String sessionId;
     private final SockJsService service;
     private final AtomicLong timestamp = new AtomicLong();
     private final AtomicBoolean inuse = new AtomicBoolean();
     private final ConcurrentLinkedQueue<String> messageQueue = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger queuedMessages = new AtomicInteger();
+    private final int maxQueuedMessages;
+    private final OverflowPolicy overflowPolicy;
     private final AtomicReference<State> state = new AtomicReference<State>(State.CONNECTING);
     private final AtomicReference<ChannelHandlerContext> connectionCtx = new AtomicReference<ChannelHandlerContext>();
     private final AtomicReference<ChannelHandlerContext> openCtx = new AtomicReference<ChannelHandlerContext>();
@@ -59,6 +71,9 @@ final class SockJsSession {
     SockJsSession(final String sessionId, final SockJsService service) {
         this.sessionId = sessionId;
         this.service = service;
+        final SockJsConfig config = service.config();
+        maxQueuedMessages = config != null ? config.maxQueuedMessages() : 0;
+        overflowPolicy = config != null ? config.overflowPolicy() : OverflowPolicy.DROP_OLDEST;
     }
 
     /**
@@ -154,12 +169,49 @@ final class SockJsSession {
 
     public void onClose() {
         setState(State.CLOSED);
+        clearMessages();
         service.onClose();
     }
 
-    public void addMessage(final String message) {
+    /**
+     * Stores a message for later delivery. If the session already holds the maximum number of messages,
+     * either the oldest message is discarded or the message is rejected, depending on the overflow policy.
+     *
+     * @param message the message to store.
+     * @return {@code true} if the message was stored, {@code false} if it was rejected, in which case the
+     *         session should be closed.
+     */
+    public boolean addMessage(final String message) {
+        for (;;) {
+            final int queued = queuedMessages.get();
+            if (maxQueuedMessages == 0 || queued < maxQueuedMessages) {
+                if (queuedMessages.compareAndSet(queued, queued + 1)) {
+                    break;
+                }
+            } else if (overflowPolicy == OverflowPolicy.CLOSE) {
+                return false;
+            } else {
+                final String oldest = messageQueue.poll();
+                if (oldest != null) {
+                    // the new message takes over the slot of the discarded one.
+                    QUEUED_BYTES.addAndGet(-utf8Length(oldest));
+                    break;
+                }
+            }
+        }
+        QUEUED_BYTES.addAndGet(utf8Length(message));
         messageQueue.add(message);
         updateTimestamp();
+        return true;
+    }
+
+    private String pollMessage() {
+        final String message = messageQueue.poll();
+        if (message != null) {
+            queuedMessages.decrementAndGet();
+            QUEUED_BYTES.addAndGet(-utf8Length(message));
+        }
+        return message;
     }
 
     /**
@@ -170,17 +222,59 @@ final class SockJsSession {
      */
     public List<String> getAllMessages() {
         final List<String> all = new ArrayList<String>();
-        for (String msg; (msg = messageQueue.poll()) != null;) {
+        for (String msg; (msg = pollMessage()) != null;) {
             all.add(msg);
         }
         return all;
     }
 
-    @SuppressWarnings("ManualArrayToCollectionCopy")
+    /**
+     * Discards all messages stored in this session, for example because the session is closed or removed
+     * and they can no longer be delivered.
+     */
+    public void clearMessages() {
+        while (pollMessage() != null) {
+            // discarded
+        }
+    }
+
     public void addMessages(final String[] messages) {
         for (String msg: messages) {
-            messageQueue.add(msg);
+            addMessage(msg);
+        }
+    }
+
+    /**
+     * Returns the number of messages stored in this session.
+     *
+     * @return {@code int} the number of stored messages.
+     */
+    public int queuedMessages() {
+        return queuedMessages.get();
+    }
+
+    /**
+     * Returns the number of bytes of the messages stored in all sessions, waiting to be delivered.
+     *
+     * @return {@code long} the number of bytes, counted as UTF-8.
+     */
+    static long queuedBytes() {
+        return QUEUED_BYTES.get();
+    }
+
+    private static int utf8Length(final String message) {
+        final int length = message.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            final char c = message.charAt(i);
+            if (c >= 0x800) {
+                // surrogate pairs count 2 + 2 for 4 bytes, other characters from here on take 3 bytes.
+                bytes += c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE ? 1 : 2;
+            } else if (c >= 0x80) {
+                bytes++;
+            }
         }
+        return bytes;
     }
 
     private void updateTimestamp() {
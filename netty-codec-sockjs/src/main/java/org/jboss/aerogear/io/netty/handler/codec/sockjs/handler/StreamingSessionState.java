@@ -64,7 +64,7 @@ class StreamingSessionState extends AbstractTimersSessionState {
                 return;
             }
 
-            final MessageFrame messageFrame = new MessageFrame(allMessages);
+            final MessageFrame messageFrame = new MessageFrame(channel.alloc(), allMessages);
             logger.debug("flushing [{}]", messageFrame);
             channel.writeAndFlush(messageFrame).addListener(new ChannelFutureListener() {
                 @Override
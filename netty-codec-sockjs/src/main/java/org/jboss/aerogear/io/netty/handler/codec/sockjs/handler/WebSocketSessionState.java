@@ -15,8 +15,11 @@
  */
 package org.jboss.aerogear.io.netty.handler.codec.sockjs.handler;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsSessionContext;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.protocol.HeartbeatFrame;
@@ -56,6 +59,13 @@ class WebSocketSessionState implements SessionState {
         session.setConnectionContext(ctx);
         session.onOpen(sockJsSessionContext);
         startHeartbeatTimer(ctx, session);
+        // the session lives as long as the connection, messages still stored when it closes are discarded.
+        ctx.channel().closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) {
+                session.clearMessages();
+            }
+        });
     }
 
     private void startHeartbeatTimer(final ChannelHandlerContext ctx, final SockJsSession session) {
@@ -89,8 +99,13 @@ class WebSocketSessionState implements SessionState {
     }
 
     @Override
-    public void storeMessage(String message) {
-        session.addMessage(message);
+    public boolean storeMessage(String message) {
+        return session.addMessage(message);
+    }
+
+    @Override
+    public List<String> removeStoredMessages() {
+        return session.getAllMessages();
     }
 
     @Override
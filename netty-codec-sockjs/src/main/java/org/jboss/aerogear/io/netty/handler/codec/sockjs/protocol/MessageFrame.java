@@ -15,11 +15,10 @@
  */
 package org.jboss.aerogear.io.netty.handler.codec.sockjs.protocol;
 
-import com.fasterxml.jackson.core.io.JsonStringEncoder;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.DefaultByteBufHolder;
-import io.netty.buffer.Unpooled;
-import io.netty.util.CharsetUtil;
+import io.netty.buffer.UnpooledByteBufAllocator;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -27,6 +26,7 @@ import java.util.Collections;
 import java.util.List;
 
 import io.netty.util.internal.StringUtil;
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.util.JsonEscaper;
 
 /**
  * A MessageFrame carries application data, and consists of any array of JSON encoded messages.
@@ -44,7 +44,29 @@ public class MessageFrame extends DefaultByteBufHolder implements Frame {
     }
 
     public MessageFrame(final List<String> messages) {
-        super(generateContent(messages));
+        this(UnpooledByteBufAllocator.DEFAULT, messages);
+    }
+
+    /**
+     * Creates a MessageFrame whose content is allocated by the passed-in allocator, which would normally
+     * be the allocator of the channel the frame is written to.
+     *
+     * @param alloc the {@link ByteBufAllocator} used to allocate the content of this frame.
+     * @param message the message of this frame.
+     */
+    public MessageFrame(final ByteBufAllocator alloc, final String message) {
+        this(alloc, new ArrayList<String>(Arrays.asList(message)));
+    }
+
+    /**
+     * Creates a MessageFrame whose content is allocated by the passed-in allocator, which would normally
+     * be the allocator of the channel the frame is written to.
+     *
+     * @param alloc the {@link ByteBufAllocator} used to allocate the content of this frame.
+     * @param messages the messages of this frame.
+     */
+    public MessageFrame(final ByteBufAllocator alloc, final List<String> messages) {
+        super(generateContent(alloc, messages));
         this.messages = messages;
     }
 
@@ -54,12 +76,12 @@ public class MessageFrame extends DefaultByteBufHolder implements Frame {
 
     @Override
     public MessageFrame copy() {
-        return new MessageFrame(messages);
+        return new MessageFrame(content().alloc(), messages);
     }
 
     @Override
     public MessageFrame duplicate() {
-        return new MessageFrame(messages);
+        return new MessageFrame(content().alloc(), messages);
     }
 
     @Override
@@ -79,50 +101,32 @@ public class MessageFrame extends DefaultByteBufHolder implements Frame {
         return StringUtil.simpleClassName(this) + "[messages=" + messages + ']';
     }
 
-    private static ByteBuf generateContent(final List<String> messages) {
-        final JsonStringEncoder jsonEndocder = new JsonStringEncoder();
-        final ByteBuf content = Unpooled.buffer();
-        content.writeByte('a').writeByte('[');
-        final int size = messages.size();
-        for (int i = 0; i < size; i++) {
-            content.writeByte('"');
+    private static ByteBuf generateContent(final ByteBufAllocator alloc, final List<String> messages) {
+        int count = messages.size();
+        // 'a', '[' and ']', then each message in quotes, separated by commas.
+        int length = 3;
+        for (int i = 0; i < count; i++) {
             final String element = messages.get(i);
             if (element == null) {
-                messages.subList(i, size).clear();
+                messages.subList(i, count).clear();
+                count = i;
                 break;
             }
-            final String escaped = escapeCharacters(jsonEndocder.quoteAsString(element));
-            final ByteBuf escapedBuf = Unpooled.copiedBuffer(escaped, CharsetUtil.UTF_8);
-            content.writeBytes(escapedBuf).writeByte('"');
-            escapedBuf.release();
-            if (i < size - 1) {
+            length += JsonEscaper.escapedLength(element) + 2;
+        }
+        if (count > 1) {
+            length += count - 1;
+        }
+        final ByteBuf content = alloc.buffer(length);
+        content.writeByte('a').writeByte('[');
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
                 content.writeByte(',');
             }
+            content.writeByte('"');
+            JsonEscaper.writeEscaped(messages.get(i), content).writeByte('"');
         }
         return content.writeByte(']');
     }
 
-    private static String escapeCharacters(final char[] value) {
-        final StringBuilder sb = new StringBuilder(value.length);
-        for (char ch : value) {
-            if (ch >= '\u0000' && ch <= '\u001F' ||
-                    ch >= '\uD800' && ch <= '\uDFFF' ||
-                    ch >= '\u200C' && ch <= '\u200F' ||
-                    ch >= '\u2028' && ch <= '\u202F' ||
-                    ch >= '\u2060' && ch <= '\u206F' ||
-                    ch >= '\uFFF0' && ch <= '\uFFFF') {
-                final String ss = Integer.toHexString(ch);
-                sb.append('\\');
-                sb.append('u');
-                for (int k = 0; k < 4 - ss.length(); k++) {
-                    sb.append('0');
-                }
-                sb.append(ss.toLowerCase());
-            } else {
-                sb.append(ch);
-            }
-        }
-        return sb.toString();
-    }
-
 }
@@ -143,7 +143,7 @@ public class HtmlFileTransport extends ChannelHandlerAdapter {
 
             final ByteBuf data = ctx.alloc().buffer();
             data.writeBytes(PREFIX.duplicate());
-            data.writeBytes(Transports.escapeJson(frame.content(), data));
+            Transports.escapeJson(frame.content(), data);
             frame.content().release();
             data.writeBytes(POSTFIX.duplicate());
             final int dataSize = data.readableBytes();
@@ -15,13 +15,16 @@
  */
 package org.jboss.aerogear.io.netty.handler.codec.sockjs.transport;
 
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelHandlerAdapter;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.protocol.Frame;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.protocol.MessageFrame;
+import io.netty.util.CharsetUtil;
 
+import java.nio.CharBuffer;
 import java.util.List;
 
 class RawWebSocketSendHandler extends ChannelHandlerAdapter {
@@ -35,9 +38,11 @@ class RawWebSocketSendHandler extends ChannelHandlerAdapter {
                 final MessageFrame messageFrame = (MessageFrame) sockJSFrame;
                 final List<String> messages = messageFrame.messages();
                 for (String message : messages) {
-                    ctx.write(new TextWebSocketFrame(message));
+                    ctx.write(new TextWebSocketFrame(ByteBufUtil.encodeString(ctx.alloc(), CharBuffer.wrap(message),
+                            CharsetUtil.UTF_8)));
                 }
             }
+            sockJSFrame.release();
         }
         ctx.flush();
         promise.setSuccess();
@@ -42,6 +42,7 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.ServerCookieEncoder;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsConfig;
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.util.JsonEscaper;
 import io.netty.util.CharsetUtil;
 
 import java.util.Set;
@@ -201,25 +202,7 @@ public final class Transports {
      * @return {@code String} Java style escaped unicode characters.
      */
     public static String escapeCharacters(final char[] value) {
-        final StringBuilder buffer = new StringBuilder();
-        for (char ch : value) {
-            if (ch >= '\u0000' && ch <= '\u001F' ||
-                    ch >= '\uD800' && ch <= '\uDFFF' ||
-                    ch >= '\u200C' && ch <= '\u200F' ||
-                    ch >= '\u2028' && ch <= '\u202F' ||
-                    ch >= '\u2060' && ch <= '\u206F' ||
-                    ch >= '\uFFF0' && ch <= '\uFFFF') {
-                final String ss = Integer.toHexString(ch);
-                buffer.append('\\').append('u');
-                for (int k = 0; k < 4 - ss.length(); k++) {
-                    buffer.append('0');
-                }
-                buffer.append(ss.toLowerCase());
-            } else {
-                buffer.append(ch);
-            }
-        }
-        return buffer.toString();
+        return JsonEscaper.escapeUnicode(value);
     }
 
     /**
@@ -232,39 +215,7 @@ public final class Transports {
      *                         simplify method invocation where possible which might require a return value.
      */
     public static ByteBuf escapeJson(final ByteBuf input, final ByteBuf buffer) {
-        final int count = input.readableBytes();
-        for (int i = 0; i < count; i++) {
-            final byte ch = input.getByte(i);
-            switch(ch) {
-                case '"': buffer.writeByte('\\').writeByte('\"'); break;
-                case '/': buffer.writeByte('\\').writeByte('/'); break;
-                case '\\': buffer.writeByte('\\').writeByte('\\'); break;
-                case '\b': buffer.writeByte('\\').writeByte('b'); break;
-                case '\f': buffer.writeByte('\\').writeByte('f'); break;
-                case '\n': buffer.writeByte('\\').writeByte('n'); break;
-                case '\r': buffer.writeByte('\\').writeByte('r'); break;
-                case '\t': buffer.writeByte('\\').writeByte('t'); break;
-
-                default:
-                    // Reference: http://www.unicode.org/versions/Unicode5.1.0/
-                    if (ch >= '\u0000' && ch <= '\u001F' ||
-                            ch >= '\uD800' && ch <= '\uDFFF' ||
-                            ch >= '\u200C' && ch <= '\u200F' ||
-                            ch >= '\u2028' && ch <= '\u202F' ||
-                            ch >= '\u2060' && ch <= '\u206F' ||
-                            ch >= '\uFFF0' && ch <= '\uFFFF') {
-                        final String ss = Integer.toHexString(ch);
-                        buffer.writeByte('\\').writeByte('u');
-                        for (int k = 0; k < 4 - ss.length(); k++) {
-                            buffer.writeByte('0');
-                        }
-                        buffer.writeBytes(ss.toLowerCase().getBytes());
-                    } else {
-                        buffer.writeByte(ch);
-                    }
-            }
-        }
-        return buffer;
+        return JsonEscaper.escapeContent(input, buffer);
     }
 
     /**
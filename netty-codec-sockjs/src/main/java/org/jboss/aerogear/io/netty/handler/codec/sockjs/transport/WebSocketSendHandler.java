@@ -15,10 +15,11 @@
  */
 package org.jboss.aerogear.io.netty.handler.codec.sockjs.transport;
 
-import io.netty.channel.*;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.protocol.Frame;
-import io.netty.util.ReferenceCountUtil;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
@@ -29,19 +30,11 @@ class WebSocketSendHandler extends ChannelHandlerAdapter {
     public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise)
             throws Exception {
         if (msg instanceof Frame) {
-            final Frame sockJsFrame = (Frame) msg;
-            ctx.writeAndFlush(new TextWebSocketFrame(sockJsFrame.content().copy()))
-                    .addListener(new ChannelFutureListener() {
-                @Override
-                public void operationComplete(final ChannelFuture future) throws Exception {
-                    if (future.isSuccess()) {
-                        promise.setSuccess();
-                    }
-                }
-            });
-            sockJsFrame.release();
+            // the content of the SockJS frame is handed over to the WebSocket frame, which releases it
+            // once it has been encoded.
+            ctx.write(new TextWebSocketFrame(((Frame) msg).content()), promise);
         } else {
-            ctx.write(ReferenceCountUtil.retain(msg), promise);
+            ctx.write(msg, promise);
         }
     }
 
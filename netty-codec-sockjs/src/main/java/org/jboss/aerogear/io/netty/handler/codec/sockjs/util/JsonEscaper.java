@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.io.netty.handler.codec.sockjs.util;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Escapes strings for SockJS frames and writes them as UTF-8.
+ *
+ * Quotes, backslashes and control characters are escaped as required by JSON, and characters that some
+ * browsers or proxies mangle, such as surrogates, zero width joiners and line separators, are escaped as
+ * {@code \\uxxxx} as required by the SockJS protocol. The escaping of ASCII characters is driven by a lookup
+ * table, and {@link #escapedLength(CharSequence)} allows a buffer to be sized before anything is written.
+ */
+public final class JsonEscaper {
+
+    private static final byte[] HEX = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    /*
+     * For each ASCII character, 0 if it is written as is, 'u' if it is written as a unicode escape,
+     * otherwise the character that follows the backslash of its short escape.
+     */
+    private static final byte[] STRING_ESCAPES = new byte[128];
+    private static final byte[] CONTENT_ESCAPES = new byte[128];
+
+    static {
+        for (int i = 0; i < 0x20; i++) {
+            STRING_ESCAPES[i] = 'u';
+        }
+        STRING_ESCAPES['"'] = '"';
+        STRING_ESCAPES['\\'] = '\\';
+        STRING_ESCAPES['\b'] = 'b';
+        STRING_ESCAPES['\f'] = 'f';
+        STRING_ESCAPES['\n'] = 'n';
+        STRING_ESCAPES['\r'] = 'r';
+        STRING_ESCAPES['\t'] = 't';
+        System.arraycopy(STRING_ESCAPES, 0, CONTENT_ESCAPES, 0, STRING_ESCAPES.length);
+        CONTENT_ESCAPES['/'] = '/';
+    }
+
+    private JsonEscaper() {
+    }
+
+    /**
+     * Returns the number of bytes that {@link #writeEscaped(CharSequence, ByteBuf)} writes for the passed-in value.
+     *
+     * @param value the value to be escaped.
+     * @return {@code int} the length of the escaped value in UTF-8.
+     */
+    public static int escapedLength(final CharSequence value) {
+        int length = 0;
+        final int size = value.length();
+        for (int i = 0; i < size; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                final byte escape = STRING_ESCAPES[c];
+                length += escape == 0 ? 1 : escape == 'u' ? 6 : 2;
+            } else if (c < 0x800) {
+                length += 2;
+            } else {
+                length += isUnicodeEscaped(c) ? 6 : 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the passed-in value, escaped and encoded as UTF-8, to the passed-in buffer. The value is not
+     * surrounded by quotes.
+     *
+     * @param value the value to be escaped.
+     * @param buf the {@link ByteBuf} to write to.
+     * @return {@code ByteBuf} the passed-in buffer.
+     */
+    public static ByteBuf writeEscaped(final CharSequence value, final ByteBuf buf) {
+        final int length = escapedLength(value);
+        buf.ensureWritable(length);
+        final int writerIndex = buf.writerIndex();
+        if (buf.nioBufferCount() == 1) {
+            // writes straight into the memory of the buffer, whether heap or direct.
+            writeEscaped(value, buf.nioBuffer(writerIndex, length));
+            buf.writerIndex(writerIndex + length);
+        } else {
+            final ByteBuffer out = ByteBuffer.allocate(length);
+            writeEscaped(value, out);
+            out.flip();
+            buf.writeBytes(out);
+        }
+        return buf;
+    }
+
+    private static void writeEscaped(final CharSequence value, final ByteBuffer out) {
+        final int size = value.length();
+        for (int i = 0; i < size; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                final byte escape = STRING_ESCAPES[c];
+                if (escape == 0) {
+                    out.put((byte) c);
+                } else if (escape == 'u') {
+                    writeUnicodeEscape(c, out);
+                } else {
+                    out.put((byte) '\\').put(escape);
+                }
+            } else if (c < 0x800) {
+                out.put((byte) (0xc0 | c >> 6));
+                out.put((byte) (0x80 | c & 0x3f));
+            } else if (isUnicodeEscaped(c)) {
+                // surrogates are always escaped, so there are never more than three bytes per char.
+                writeUnicodeEscape(c, out);
+            } else {
+                out.put((byte) (0xe0 | c >> 12));
+                out.put((byte) (0x80 | c >> 6 & 0x3f));
+                out.put((byte) (0x80 | c & 0x3f));
+            }
+        }
+    }
+
+    /**
+     * Escapes control characters and the unicode characters required by the SockJS protocol as {@code \\uxxxx}.
+     * Quotes and backslashes are left as they are.
+     *
+     * @param value the characters to be escaped.
+     * @return {@code String} the escaped characters.
+     */
+    public static String escapeUnicode(final char[] value) {
+        final StringBuilder sb = new StringBuilder(value.length);
+        for (char c : value) {
+            if (c < 0x20 || isUnicodeEscaped(c)) {
+                sb.append('\\').append('u')
+                        .append((char) HEX[c >> 12 & 0xf])
+                        .append((char) HEX[c >> 8 & 0xf])
+                        .append((char) HEX[c >> 4 & 0xf])
+                        .append((char) HEX[c & 0xf]);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Escapes the readable bytes of UTF-8 encoded JSON so that they can be embedded in a JavaScript string.
+     * Quotes, slashes, backslashes and control characters are escaped, all other bytes are copied as they are.
+     * The reader index of the input is not modified.
+     *
+     * @param input the bytes to be escaped.
+     * @param buffer the {@link ByteBuf} to write the escaped bytes to.
+     * @return {@code ByteBuf} the passed-in buffer.
+     */
+    public static ByteBuf escapeContent(final ByteBuf input, final ByteBuf buffer) {
+        final int start = input.readerIndex();
+        final int end = input.writerIndex();
+        buffer.ensureWritable(end - start);
+        for (int i = start; i < end; i++) {
+            final byte b = input.getByte(i);
+            final byte escape = b < 0 ? 0 : CONTENT_ESCAPES[b];
+            if (escape == 0) {
+                buffer.writeByte(b);
+            } else if (escape == 'u') {
+                writeUnicodeEscape((char) b, buffer);
+            } else {
+                buffer.writeByte('\\').writeByte(escape);
+            }
+        }
+        return buffer;
+    }
+
+    private static boolean isUnicodeEscaped(final char c) {
+        return c >= '\uD800' && c <= '\uDFFF' ||
+                c >= '\u200C' && c <= '\u200F' ||
+                c >= '\u2028' && c <= '\u202F' ||
+                c >= '\u2060' && c <= '\u206F' ||
+                c >= '\uFFF0';
+    }
+
+    private static void writeUnicodeEscape(final char c, final ByteBuffer out) {
+        out.put((byte) '\\').put((byte) 'u')
+                .put(HEX[c >> 12 & 0xf])
+                .put(HEX[c >> 8 & 0xf])
+                .put(HEX[c >> 4 & 0xf])
+                .put(HEX[c & 0xf]);
+    }
+
+    private static void writeUnicodeEscape(final char c, final ByteBuf buf) {
+        buf.writeByte('\\').writeByte('u')
+                .writeByte(HEX[c >> 12 & 0xf])
+                .writeByte(HEX[c >> 8 & 0xf])
+                .writeByte(HEX[c >> 4 & 0xf])
+                .writeByte(HEX[c & 0xf]);
+    }
+
+}
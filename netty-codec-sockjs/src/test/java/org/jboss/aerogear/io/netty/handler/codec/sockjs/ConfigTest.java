@@ -48,6 +48,33 @@ public class ConfigTest {
         assertThat(config.webSocketProtocolCSV(), is(nullValue()));
     }
 
+    @Test
+    public void outboundLimitsDefaults() {
+        final SockJsConfig config = SockJsConfig.withPrefix("/echo").build();
+        assertThat(config.maxQueuedMessages(), is(1000));
+        assertThat(config.overflowPolicy(), is(SockJsConfig.OverflowPolicy.DROP_OLDEST));
+        assertThat(config.writeBufferHighWaterMark(), is(0));
+        assertThat(config.writeBufferLowWaterMark(), is(0));
+    }
+
+    @Test
+    public void outboundLimits() {
+        final SockJsConfig config = SockJsConfig.withPrefix("/echo")
+                .writeBufferWaterMarks(8192, 4096)
+                .maxQueuedMessages(10)
+                .overflowPolicy(SockJsConfig.OverflowPolicy.CLOSE)
+                .build();
+        assertThat(config.writeBufferHighWaterMark(), is(8192));
+        assertThat(config.writeBufferLowWaterMark(), is(4096));
+        assertThat(config.maxQueuedMessages(), is(10));
+        assertThat(config.overflowPolicy(), is(SockJsConfig.OverflowPolicy.CLOSE));
+    }
+
+    @Test (expected = IllegalStateException.class)
+    public void lowWaterMarkAboveHighWaterMark() {
+        SockJsConfig.withPrefix("/echo").writeBufferWaterMarks(4096, 8192).build();
+    }
+
     @Test (expected = IllegalStateException.class)
     public void tlsWithoutKeystoreOrPassword() {
         SockJsConfig.withPrefix("/echo").tls(true).build();
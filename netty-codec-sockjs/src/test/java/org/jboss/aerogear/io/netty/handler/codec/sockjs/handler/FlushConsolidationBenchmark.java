@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.io.netty.handler.codec.sockjs.handler;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the number of flushes, each of which is a write syscall on the socket, per delivered notification
+ * when notifications are fanned out to many connections from a thread outside of the event loop, as the
+ * notifier threads do. Every notification is written with {@code writeAndFlush}, with and without a
+ * {@link FlushConsolidationHandler} in the pipeline.
+ * <p>
+ * Not run as part of the build. Run its main method with the test classpath of this module, optionally passing
+ * the number of connections, the number of rounds and the number of notifications per connection per round.
+ */
+public final class FlushConsolidationBenchmark {
+
+    private static final byte[] NOTIFICATION = ("a[\"{\\\"messageType\\\":\\\"notification\\\",\\\"updates\\\":"
+            + "[{\\\"channelID\\\":\\\"d9b74644-4f97-46aa-b8fa-9393985cd6cd\\\",\\\"version\\\":1}]}\"]\n")
+            .getBytes(CharsetUtil.UTF_8);
+
+    private FlushConsolidationBenchmark() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int connections = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        final int burst = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        // warm up both variants before measuring any of them.
+        run("writeAndFlush", false, connections, rounds / 10, burst, false);
+        run("consolidated", true, connections, rounds / 10, burst, false);
+        run("writeAndFlush", false, connections, rounds, burst, true);
+        run("consolidated", true, connections, rounds, burst, true);
+    }
+
+    private static void run(final String name, final boolean consolidate, final int connections, final int rounds,
+            final int burst, final boolean report) throws Exception {
+        final EventLoopGroup serverGroup = new NioEventLoopGroup();
+        final EventLoopGroup clientGroup = new NioEventLoopGroup();
+        final AtomicLong flushes = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+        final List<Channel> serverChannels = new CopyOnWriteArrayList<Channel>();
+        final ByteBuf notification = Unpooled.directBuffer(NOTIFICATION.length).writeBytes(NOTIFICATION);
+        try {
+            final ServerBootstrap sb = new ServerBootstrap().channel(NioServerSocketChannel.class)
+                    .group(serverGroup)
+                    .childHandler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(final SocketChannel ch) throws Exception {
+                            ch.pipeline().addLast(new FlushCounter(flushes));
+                            if (consolidate) {
+                                ch.pipeline().addLast(new FlushConsolidationHandler());
+                            }
+                            serverChannels.add(ch);
+                        }
+                    });
+            final Channel server = sb.bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+            final Bootstrap b = new Bootstrap().channel(NioSocketChannel.class)
+                    .group(clientGroup)
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(final SocketChannel ch) throws Exception {
+                            ch.pipeline().addLast(new ByteCounter(received));
+                        }
+                    });
+            for (int i = 0; i < connections; i++) {
+                b.connect(server.localAddress()).sync();
+            }
+            while (serverChannels.size() < connections) {
+                Thread.sleep(1);
+            }
+
+            final long expected = (long) connections * rounds * burst * NOTIFICATION.length;
+            final long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (Channel ch : serverChannels) {
+                    for (int i = 0; i < burst; i++) {
+                        ch.writeAndFlush(notification.duplicate().retain());
+                    }
+                }
+            }
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            while (received.get() < expected && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            final long elapsed = System.nanoTime() - start;
+            if (report) {
+                final long notifications = (long) connections * rounds * burst;
+                System.out.println(name + " connections=" + connections
+                        + " notifications=" + notifications
+                        + " delivered=" + (received.get() / NOTIFICATION.length)
+                        + " flushes/notification=" + String.format("%.3f", (double) flushes.get() / notifications)
+                        + " throughput=" + (notifications * 1000000000L / Math.max(1, elapsed)) + " notifications/s");
+            }
+            server.close().sync();
+        } finally {
+            notification.release();
+            serverGroup.shutdownGracefully().sync();
+            clientGroup.shutdownGracefully().sync();
+        }
+    }
+
+    private static final class FlushCounter extends ChannelHandlerAdapter {
+        private final AtomicLong flushes;
+
+        FlushCounter(final AtomicLong flushes) {
+            this.flushes = flushes;
+        }
+
+        @Override
+        public void flush(final ChannelHandlerContext ctx) throws Exception {
+            flushes.incrementAndGet();
+            ctx.flush();
+        }
+    }
+
+    private static final class ByteCounter extends ChannelHandlerAdapter {
+        private final AtomicLong received;
+
+        ByteCounter(final AtomicLong received) {
+            this.received = received;
+        }
+
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+            received.addAndGet(((ByteBuf) msg).readableBytes());
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.io.netty.handler.codec.sockjs.handler;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import org.junit.Test;
+
+public class FlushConsolidationHandlerTest {
+
+    @Test
+    public void flushesDuringReadAreConsolidated() {
+        final FlushCounter counter = new FlushCounter();
+        final EmbeddedChannel ch = new EmbeddedChannel(counter, new FlushConsolidationHandler(), new EchoHandler());
+        ch.writeInbound("one", "two", "three");
+        assertThat(counter.flushes, is(1));
+        assertThat((String) ch.readOutbound(), is("one"));
+        assertThat((String) ch.readOutbound(), is("two"));
+        assertThat((String) ch.readOutbound(), is("three"));
+        ch.finish();
+    }
+
+    @Test
+    public void flushesOutsideReadAreDeferredToTask() {
+        final FlushCounter counter = new FlushCounter();
+        final EmbeddedChannel ch = new EmbeddedChannel(counter, new FlushConsolidationHandler());
+        ch.writeAndFlush("one");
+        ch.writeAndFlush("two");
+        ch.writeAndFlush("three");
+        assertThat(counter.flushes, is(0));
+        ch.runPendingTasks();
+        assertThat(counter.flushes, is(1));
+        assertThat((String) ch.readOutbound(), is("one"));
+        assertThat((String) ch.readOutbound(), is("two"));
+        assertThat((String) ch.readOutbound(), is("three"));
+        ch.finish();
+    }
+
+    @Test
+    public void explicitFlushAfterLimit() {
+        final FlushCounter counter = new FlushCounter();
+        final EmbeddedChannel ch = new EmbeddedChannel(counter, new FlushConsolidationHandler(2));
+        for (int i = 0; i < 5; i++) {
+            ch.writeAndFlush(i);
+        }
+        assertThat(counter.flushes, is(2));
+        ch.runPendingTasks();
+        assertThat(counter.flushes, is(3));
+        ch.finish();
+    }
+
+    @Test
+    public void closeFlushesPending() {
+        final FlushCounter counter = new FlushCounter();
+        final EmbeddedChannel ch = new EmbeddedChannel(counter, new FlushConsolidationHandler());
+        ch.writeAndFlush("one");
+        ch.close();
+        assertThat(counter.flushes, is(1));
+        assertThat((String) ch.readOutbound(), is("one"));
+    }
+
+    @Test
+    public void removeFlushesPending() {
+        final FlushCounter counter = new FlushCounter();
+        final EmbeddedChannel ch = new EmbeddedChannel(counter, new FlushConsolidationHandler());
+        ch.writeAndFlush("one");
+        ch.pipeline().remove(FlushConsolidationHandler.class);
+        assertThat(counter.flushes, is(1));
+        ch.runPendingTasks();
+        assertThat(counter.flushes, is(1));
+        ch.finish();
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void explicitFlushAfterFlushesMustBePositive() {
+        new FlushConsolidationHandler(0);
+    }
+
+    private static class FlushCounter extends ChannelHandlerAdapter {
+        int flushes;
+
+        @Override
+        public void flush(final ChannelHandlerContext ctx) throws Exception {
+            flushes++;
+            ctx.flush();
+        }
+    }
+
+    private static class EchoHandler extends ChannelHandlerAdapter {
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+            ctx.writeAndFlush(msg);
+        }
+    }
+
+}
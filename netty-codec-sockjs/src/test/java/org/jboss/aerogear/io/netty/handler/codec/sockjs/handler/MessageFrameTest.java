@@ -15,6 +15,8 @@
  */
 package org.jboss.aerogear.io.netty.handler.codec.sockjs.handler;
 
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.protocol.MessageFrame;
 import org.hamcrest.CoreMatchers;
 import org.junit.Test;
@@ -41,4 +43,15 @@ public class MessageFrameTest {
         messageFrame.release();
     }
 
+    @Test
+    public void contentAllocatedByAllocator() {
+        final MessageFrame messageFrame = new MessageFrame(PooledByteBufAllocator.DEFAULT, "one");
+        assertThat(messageFrame.content().alloc(), CoreMatchers.<Object>is(PooledByteBufAllocator.DEFAULT));
+        assertThat(messageFrame.content().toString(CharsetUtil.UTF_8), CoreMatchers.equalTo("a[\"one\"]"));
+        final MessageFrame copy = messageFrame.copy();
+        assertThat(copy.content().alloc(), CoreMatchers.<Object>is(PooledByteBufAllocator.DEFAULT));
+        copy.release();
+        assertThat(messageFrame.release(), CoreMatchers.is(true));
+    }
+
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.io.netty.handler.codec.sockjs.handler;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsConfig;
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsConfig.OverflowPolicy;
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsService;
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsSessionContext;
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.protocol.MessageFrame;
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.protocol.OpenFrame;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class SessionHandlerTest {
+
+    @Test
+    public void sendStoresMessagesWhileNotWritable() throws Exception {
+        final SockJsService service = serviceWithLimit(10, OverflowPolicy.DROP_OLDEST);
+        final EmbeddedChannel ch = new EmbeddedChannel(new SessionHandler(new WebSocketSessionState(
+                new SockJsSession("123", service))));
+        final SockJsSessionContext session = connect(ch, service);
+
+        fillWriteBuffer(ch);
+        assertThat(ch.isWritable(), is(false));
+        session.send("one");
+        session.send("two");
+        assertThat(SessionHandler.storedMessageBytes() >= 6, is(true));
+
+        ch.flush();
+        assertThat(ch.isWritable(), is(true));
+        ReferenceCountUtil.release(ch.readOutbound());
+        final Object frame = ch.readOutbound();
+        assertThat(frame, instanceOf(MessageFrame.class));
+        assertThat(((MessageFrame) frame).content().toString(CharsetUtil.UTF_8), is("a[\"one\",\"two\"]"));
+        ((MessageFrame) frame).release();
+    }
+
+    @Test
+    public void sendClosesSessionWhenFull() throws Exception {
+        final SockJsService service = serviceWithLimit(1, OverflowPolicy.CLOSE);
+        final EmbeddedChannel ch = new EmbeddedChannel(new SessionHandler(new WebSocketSessionState(
+                new SockJsSession("123", service))));
+        final SockJsSessionContext session = connect(ch, service);
+
+        fillWriteBuffer(ch);
+        session.send("one");
+        session.send("two");
+        verify(service).onClose();
+    }
+
+    @Test
+    public void closeDiscardsStoredMessages() throws Exception {
+        final SockJsService service = serviceWithLimit(10, OverflowPolicy.DROP_OLDEST);
+        final SockJsSession sockJsSession = new SockJsSession("123", service);
+        final EmbeddedChannel ch = new EmbeddedChannel(new SessionHandler(new WebSocketSessionState(sockJsSession)));
+        final SockJsSessionContext session = connect(ch, service);
+        final long before = SessionHandler.storedMessageBytes();
+
+        fillWriteBuffer(ch);
+        session.send("one");
+        session.send("two");
+        assertThat(SessionHandler.storedMessageBytes() - before, is(6L));
+
+        ch.close();
+        assertThat(sockJsSession.queuedMessages(), is(0));
+        assertThat(SessionHandler.storedMessageBytes() - before, is(0L));
+    }
+
+    private static SockJsSessionContext connect(final EmbeddedChannel ch, final SockJsService service) {
+        ch.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/echo/websocket"));
+        final Object openFrame = ch.readOutbound();
+        assertThat(openFrame, instanceOf(OpenFrame.class));
+        ReferenceCountUtil.release(openFrame);
+        final ArgumentCaptor<SockJsSessionContext> session = ArgumentCaptor.forClass(SockJsSessionContext.class);
+        verify(service).onOpen(session.capture());
+        return session.getValue();
+    }
+
+    private static void fillWriteBuffer(final EmbeddedChannel ch) {
+        ch.config().setWriteBufferLowWaterMark(8);
+        ch.config().setWriteBufferHighWaterMark(16);
+        final ByteBuf buf = Unpooled.buffer(32).writeZero(32);
+        ch.write(buf);
+    }
+
+    private static SockJsService serviceWithLimit(final int maxQueuedMessages, final OverflowPolicy policy) {
+        final SockJsService service = mock(SockJsService.class);
+        when(service.config()).thenReturn(SockJsConfig.withPrefix("/echo")
+                .maxQueuedMessages(maxQueuedMessages).overflowPolicy(policy).build());
+        return service;
+    }
+
+}
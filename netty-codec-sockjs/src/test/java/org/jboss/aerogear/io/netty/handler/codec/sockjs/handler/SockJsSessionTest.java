@@ -15,12 +15,15 @@
  */
 package org.jboss.aerogear.io.netty.handler.codec.sockjs.handler;
 
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsConfig;
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsConfig.OverflowPolicy;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsService;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsSessionContext;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.handler.SessionState.State;
 import org.junit.Test;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.MatcherAssert.*;
@@ -83,4 +86,84 @@ public class SockJsSessionTest {
         assertThat(sockJSSession.getAllMessages().size(), is(0));
     }
 
+    @Test
+    public void addMessageDropsOldestWhenFull() throws Exception {
+        final SockJsSession sockJSSession = new SockJsSession("123", serviceWithLimit(2, OverflowPolicy.DROP_OLDEST));
+        assertThat(sockJSSession.addMessage("one"), is(true));
+        assertThat(sockJSSession.addMessage("two"), is(true));
+        assertThat(sockJSSession.addMessage("three"), is(true));
+        assertThat(sockJSSession.queuedMessages(), is(2));
+        final List<String> messages = sockJSSession.getAllMessages();
+        assertThat(messages.get(0), equalTo("two"));
+        assertThat(messages.get(1), equalTo("three"));
+        assertThat(sockJSSession.queuedMessages(), is(0));
+    }
+
+    @Test
+    public void addMessageRejectedWhenFullWithClosePolicy() throws Exception {
+        final SockJsSession sockJSSession = new SockJsSession("123", serviceWithLimit(1, OverflowPolicy.CLOSE));
+        assertThat(sockJSSession.addMessage("one"), is(true));
+        assertThat(sockJSSession.addMessage("two"), is(false));
+        assertThat(sockJSSession.getAllMessages().size(), is(1));
+    }
+
+    @Test
+    public void queuedBytes() throws Exception {
+        final SockJsService service = mock(SockJsService.class);
+        final SockJsSession sockJSSession = new SockJsSession("123", service);
+        final long before = SockJsSession.queuedBytes();
+        sockJSSession.addMessage("h\u00e9llo");
+        assertThat(SockJsSession.queuedBytes() - before, is(6L));
+        sockJSSession.getAllMessages();
+        assertThat(SockJsSession.queuedBytes() - before, is(0L));
+    }
+
+    @Test
+    public void onCloseDiscardsStoredMessages() throws Exception {
+        final SockJsService service = mock(SockJsService.class);
+        final SockJsSession sockJSSession = new SockJsSession("123", service);
+        final long before = SockJsSession.queuedBytes();
+        sockJSSession.addMessages(new String[]{"hello", "world"});
+        sockJSSession.onClose();
+        assertThat(sockJSSession.queuedMessages(), is(0));
+        assertThat(SockJsSession.queuedBytes() - before, is(0L));
+    }
+
+    @Test
+    public void concurrentAddMessageKeepsLimit() throws Exception {
+        final SockJsSession sockJSSession = new SockJsSession("123", serviceWithLimit(5, OverflowPolicy.DROP_OLDEST));
+        final long before = SockJsSession.queuedBytes();
+        final AtomicInteger maxQueued = new AtomicInteger();
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        sockJSSession.addMessage("message");
+                        final int queued = sockJSSession.queuedMessages();
+                        if (queued > maxQueued.get()) {
+                            maxQueued.set(queued);
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(maxQueued.get() <= 5, is(true));
+        assertThat(sockJSSession.queuedMessages(), is(5));
+        assertThat(sockJSSession.getAllMessages().size(), is(5));
+        assertThat(SockJsSession.queuedBytes() - before, is(0L));
+    }
+
+    private static SockJsService serviceWithLimit(final int maxQueuedMessages, final OverflowPolicy policy) {
+        final SockJsService service = mock(SockJsService.class);
+        when(service.config()).thenReturn(SockJsConfig.withPrefix("/echo")
+                .maxQueuedMessages(maxQueuedMessages).overflowPolicy(policy).build());
+        return service;
+    }
+
 }
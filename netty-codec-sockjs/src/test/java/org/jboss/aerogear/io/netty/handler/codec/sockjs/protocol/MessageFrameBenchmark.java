@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.io.netty.handler.codec.sockjs.protocol;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.transport.Transports;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compares encoding {@link MessageFrame}s the way it was done before the {@code JsonEscaper}, quoting with
+ * Jackson, escaping into a StringBuilder and copying each message into an unpooled buffer, with the single pass
+ * encoder writing to unpooled and pooled buffers. The messages are typical SimplePush JSON messages. Reports
+ * frames per second and bytes allocated per frame for each.
+ * <p>
+ * Not run as part of the build. Run its main method with the test classpath of this module, optionally passing
+ * the number of frames to encode per variant.
+ */
+public final class MessageFrameBenchmark {
+
+    private MessageFrameBenchmark() {
+    }
+
+    private interface Encoder {
+        void encode(List<String> messages);
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int frames = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        final List<List<String>> payloads = payloads();
+        final Encoder jackson = new Encoder() {
+            @Override
+            public void encode(final List<String> messages) {
+                generateContentWithJackson(messages).release();
+            }
+        };
+        final Encoder unpooled = new Encoder() {
+            @Override
+            public void encode(final List<String> messages) {
+                new MessageFrame(UnpooledByteBufAllocator.DEFAULT, messages).release();
+            }
+        };
+        final Encoder pooled = new Encoder() {
+            @Override
+            public void encode(final List<String> messages) {
+                new MessageFrame(PooledByteBufAllocator.DEFAULT, messages).release();
+            }
+        };
+        // warm up all variants before measuring any of them.
+        for (int i = 0; i < 3; i++) {
+            run("jackson-unpooled", jackson, payloads, frames / 10, false);
+            run("escaper-unpooled", unpooled, payloads, frames / 10, false);
+            run("escaper-pooled", pooled, payloads, frames / 10, false);
+        }
+        run("jackson-unpooled", jackson, payloads, frames, true);
+        run("escaper-unpooled", unpooled, payloads, frames, true);
+        run("escaper-pooled", pooled, payloads, frames, true);
+    }
+
+    private static List<List<String>> payloads() {
+        final String uaid = UUID.randomUUID().toString();
+        final String channelId = UUID.randomUUID().toString();
+        final List<List<String>> payloads = new ArrayList<List<String>>();
+        payloads.add(Collections.singletonList("{\"messageType\":\"hello\",\"uaid\":\"" + uaid + "\"}"));
+        payloads.add(Collections.singletonList("{\"messageType\":\"register\",\"channelID\":\"" + channelId
+                + "\",\"status\":200,\"pushEndpoint\":\"http://localhost:7777/update/"
+                + "VyN3QjIgrvz1bcm0DGkD9XBrBrg2lTiUaqmSyvqBUgHsdHQlwfCi5hTlP1xWoMLPGwEPZdZPt1uRnEZiQTJ7PQ\"}"));
+        payloads.add(Collections.singletonList("{\"messageType\":\"notification\",\"updates\":[{\"channelID\":\""
+                + channelId + "\",\"version\":1412169483117}]}"));
+        final StringBuilder updates = new StringBuilder("{\"messageType\":\"notification\",\"updates\":[");
+        for (int i = 0; i < 10; i++) {
+            if (i > 0) {
+                updates.append(',');
+            }
+            updates.append("{\"channelID\":\"").append(UUID.randomUUID()).append("\",\"version\":").append(i).append('}');
+        }
+        payloads.add(Collections.singletonList(updates.append("]}").toString()));
+        final List<String> stored = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            stored.add("{\"messageType\":\"notification\",\"updates\":[{\"channelID\":\"" + UUID.randomUUID()
+                    + "\",\"version\":" + i + "}]}");
+        }
+        payloads.add(stored);
+        return payloads;
+    }
+
+    private static void run(final String name, final Encoder encoder, final List<List<String>> payloads,
+            final int frames, final boolean report) {
+        final int rounds = Math.max(1, frames / payloads.size());
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            for (List<String> messages : payloads) {
+                encoder.encode(messages);
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = allocatedBytes() - allocatedBefore;
+        if (report) {
+            final long encoded = (long) rounds * payloads.size();
+            System.out.println(name + " frames=" + encoded
+                    + " throughput=" + (encoded * 1000000000L / Math.max(1, elapsed)) + " frames/s"
+                    + (allocated >= 0 ? " allocated=" + (allocated / encoded) + " bytes/frame" : ""));
+        }
+    }
+
+    /*
+     * The encoding used by MessageFrame before the JsonEscaper.
+     */
+    private static ByteBuf generateContentWithJackson(final List<String> messages) {
+        final JsonStringEncoder jsonEncoder = new JsonStringEncoder();
+        final ByteBuf content = Unpooled.buffer();
+        content.writeByte('a').writeByte('[');
+        final int size = messages.size();
+        for (int i = 0; i < size; i++) {
+            content.writeByte('"');
+            final String escaped = Transports.escapeCharacters(jsonEncoder.quoteAsString(messages.get(i)));
+            final ByteBuf escapedBuf = Unpooled.copiedBuffer(escaped, CharsetUtil.UTF_8);
+            content.writeBytes(escapedBuf).writeByte('"');
+            escapedBuf.release();
+            if (i < size - 1) {
+                content.writeByte(',');
+            }
+        }
+        return content.writeByte(']');
+    }
+
+    private static long allocatedBytes() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return Long.MIN_VALUE;
+    }
+
+}
@@ -17,6 +17,7 @@ package org.jboss.aerogear.io.netty.handler.codec.sockjs.protocol;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import io.netty.util.CharsetUtil;
 
@@ -38,4 +39,21 @@ public class MessageFrameTest {
         messageFrame.release();
     }
 
+    @Test
+    public void contentIsSizedUpFront() {
+        final MessageFrame messageFrame = new MessageFrame("first", "{\"second\":2}", "third\n");
+        assertThat(messageFrame.content().toString(CharsetUtil.UTF_8),
+                equalTo("a[\"first\",\"{\\\"second\\\":2}\",\"third\\n\"]"));
+        assertThat(messageFrame.content().capacity(), is(messageFrame.content().readableBytes()));
+        messageFrame.release();
+    }
+
+    @Test
+    public void contentOfNullTerminatedMessages() {
+        final MessageFrame messageFrame = new MessageFrame("first", "second", null, "third");
+        assertThat(messageFrame.content().toString(CharsetUtil.UTF_8), equalTo("a[\"first\",\"second\"]"));
+        assertThat(messageFrame.content().capacity(), is(messageFrame.content().readableBytes()));
+        messageFrame.release();
+    }
+
 }
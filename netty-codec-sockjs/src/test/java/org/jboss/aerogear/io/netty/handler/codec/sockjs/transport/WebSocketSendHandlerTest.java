@@ -17,11 +17,17 @@ package org.jboss.aerogear.io.netty.handler.codec.sockjs.transport;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsConfig;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.protocol.MessageFrame;
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.protocol.OpenFrame;
 import io.netty.util.CharsetUtil;
 import org.junit.Test;
 
@@ -36,6 +42,57 @@ public class WebSocketSendHandlerTest {
         textFrame.release();
     }
 
+    @Test
+    public void frameContentIsHandedOverWithoutCopy() throws Exception {
+        final EmbeddedChannel ch = createWebsocketChannel(SockJsConfig.withPrefix("/echo").build());
+        ch.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+        final MessageFrame messageFrame = new MessageFrame(ch.alloc(), "testing");
+        ch.writeOutbound(messageFrame);
+        final TextWebSocketFrame textFrame = ch.readOutbound();
+        assertThat(textFrame.content(), sameInstance(messageFrame.content()));
+        assertThat(textFrame.content().alloc(), is((Object) PooledByteBufAllocator.DEFAULT));
+        assertThat(textFrame.release(), is(true));
+        assertThat(messageFrame.refCnt(), is(0));
+        ch.finish();
+    }
+
+    @Test
+    public void sharedFrameContentIsNotConsumed() throws Exception {
+        final EmbeddedChannel ch = createWebsocketChannel(SockJsConfig.withPrefix("/echo").build());
+        ch.writeOutbound(new OpenFrame());
+        final TextWebSocketFrame first = ch.readOutbound();
+        first.content().skipBytes(first.content().readableBytes());
+        first.release();
+        ch.writeOutbound(new OpenFrame());
+        final TextWebSocketFrame second = ch.readOutbound();
+        assertThat(second.content().toString(CharsetUtil.UTF_8), equalTo("o"));
+        second.release();
+        ch.finish();
+    }
+
+    @Test
+    public void otherMessagesAreNotRetained() throws Exception {
+        final EmbeddedChannel ch = createWebsocketChannel(SockJsConfig.withPrefix("/echo").build());
+        final CloseWebSocketFrame closeFrame = new CloseWebSocketFrame(1000, "bye");
+        ch.writeOutbound(closeFrame);
+        final CloseWebSocketFrame written = ch.readOutbound();
+        assertThat(written.release(), is(true));
+        assertThat(closeFrame.refCnt(), is(0));
+        ch.finish();
+    }
+
+    @Test
+    public void failedWriteReleasesContentAndFailsPromise() throws Exception {
+        final EmbeddedChannel ch = createWebsocketChannel(SockJsConfig.withPrefix("/echo").build());
+        ch.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+        final MessageFrame messageFrame = new MessageFrame(ch.alloc(), "testing");
+        ch.close();
+        final ChannelFuture future = ch.writeAndFlush(messageFrame);
+        assertThat(future.isDone(), is(true));
+        assertThat(future.isSuccess(), is(false));
+        assertThat(messageFrame.refCnt(), is(0));
+    }
+
     private static EmbeddedChannel createWebsocketChannel(final SockJsConfig config) {
         return new EmbeddedChannel(
                 new WebSocket13FrameDecoder(true, false, 2048),
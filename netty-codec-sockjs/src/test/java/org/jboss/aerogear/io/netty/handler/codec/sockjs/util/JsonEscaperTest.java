@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.io.netty.handler.codec.sockjs.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+import org.junit.Test;
+
+public class JsonEscaperTest {
+
+    @Test
+    public void asciiIsWrittenAsIs() {
+        assertThat(escape("{\"messageType\":\"hello\"}"), equalTo("{\\\"messageType\\\":\\\"hello\\\"}"));
+        assertThat(escape("a/b'c"), equalTo("a/b'c"));
+    }
+
+    @Test
+    public void shortEscapes() {
+        assertThat(escape("\\\b\f\n\r\t"), equalTo("\\\\\\b\\f\\n\\r\\t"));
+    }
+
+    @Test
+    public void controlCharactersAreUnicodeEscaped() {
+        assertThat(escape(chars(0x00, 0x01, 0x0b, 0x1f)), equalTo("\\u0000\\u0001\\u000b\\u001f"));
+    }
+
+    @Test
+    public void multiByteCharactersAreEncodedAsUtf8() {
+        final String value = chars(0xe9, 0x20ac, 0x7f);
+        assertThat(escape(value), equalTo(value));
+        assertThat(JsonEscaper.escapedLength(value), is(6));
+    }
+
+    @Test
+    public void sockJsUnicodeCharactersAreEscaped() {
+        assertThat(escape(chars(0x200c, 0x2028, 0x206f, 0xfff0, 0xffff)),
+                equalTo("\\u200c\\u2028\\u206f\\ufff0\\uffff"));
+    }
+
+    @Test
+    public void surrogatesAreEscaped() {
+        assertThat(escape(new String(Character.toChars(0x1f600))), equalTo("\\ud83d\\ude00"));
+    }
+
+    @Test
+    public void escapedLengthMatchesWrittenBytes() {
+        final ByteBuf buf = Unpooled.buffer();
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            final String value = String.valueOf((char) c);
+            buf.clear();
+            JsonEscaper.writeEscaped(value, buf);
+            assertThat(Integer.toHexString(c), JsonEscaper.escapedLength(value), is(buf.readableBytes()));
+        }
+        buf.release();
+    }
+
+    @Test
+    public void escapeUnicodeLeavesQuotesAsTheyAre() {
+        final String value = "\"\\" + chars(0x01, 0xe9, 0x2028);
+        assertThat(JsonEscaper.escapeUnicode(value.toCharArray()), equalTo("\"\\\\u0001" + chars(0xe9) + "\\u2028"));
+    }
+
+    @Test
+    public void escapeContent() {
+        final ByteBuf input = Unpooled.copiedBuffer("a[\"x/y\\n" + chars(0xe9, 0x01) + "\"]", CharsetUtil.UTF_8);
+        final ByteBuf output = JsonEscaper.escapeContent(input, Unpooled.buffer());
+        assertThat(output.toString(CharsetUtil.UTF_8),
+                equalTo("a[\\\"x\\/y\\\\n" + chars(0xe9) + "\\u0001\\\"]"));
+        assertThat(input.readerIndex(), is(0));
+        input.release();
+        output.release();
+    }
+
+    private static String escape(final String value) {
+        final ByteBuf buf = Unpooled.buffer();
+        JsonEscaper.writeEscaped(value, buf);
+        assertThat(buf.readableBytes(), is(JsonEscaper.escapedLength(value)));
+        final String escaped = buf.toString(CharsetUtil.UTF_8);
+        buf.release();
+        return escaped;
+    }
+
+    private static String chars(final int... codes) {
+        final StringBuilder sb = new StringBuilder();
+        for (int code : codes) {
+            sb.append((char) code);
+        }
+        return sb.toString();
+    }
+
+}
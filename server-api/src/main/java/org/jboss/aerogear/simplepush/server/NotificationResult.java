@@ -0,0 +1,141 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server;
+
+/**
+ * The outcome of a notification submitted to a {@link NotificationService}.
+ *
+ * Every {@link Status} corresponds to the HTTP status a notification request with the same outcome is answered
+ * with, so that notifications submitted in-process and over HTTP can be handled alike.
+ */
+public final class NotificationResult {
+
+    /**
+     * The outcome of a notification.
+     */
+    public enum Status {
+        /** The notification was sent to the connected UserAgent. */
+        DELIVERED(200),
+        /** The notification was stored for a UserAgent that is not connected. */
+        STORED(202),
+        /** The notification did not hold a valid version. */
+        INVALID(400),
+        /** There is no channel for the endpoint token. */
+        NOT_FOUND(404),
+        /** The version was not newer than the current version of the channel. */
+        CONFLICT(409),
+        /** The notification exceeded the rate limit of its endpoint token. */
+        RATE_LIMITED(429),
+        /** The notification could not be handled. */
+        FAILED(500),
+        /** The storage of the server is unavailable. */
+        UNAVAILABLE(503);
+
+        private final int code;
+
+        private Status(final int code) {
+            this.code = code;
+        }
+
+        /**
+         * Returns the HTTP status code for this outcome.
+         *
+         * @return {@code int} the HTTP status code.
+         */
+        public int code() {
+            return code;
+        }
+
+        /**
+         * Returns the outcome for an HTTP status code.
+         *
+         * @param code the HTTP status code.
+         * @return {@code Status} the outcome, or {@link #FAILED} if no outcome has the status code.
+         */
+        public static Status forCode(final int code) {
+            for (Status status : values()) {
+                if (status.code == code) {
+                    return status;
+                }
+            }
+            return FAILED;
+        }
+    }
+
+    private static final NotificationResult[] RESULTS;
+
+    static {
+        final Status[] statuses = Status.values();
+        RESULTS = new NotificationResult[statuses.length];
+        for (int i = 0; i < statuses.length; i++) {
+            RESULTS[i] = new NotificationResult(statuses[i], 0);
+        }
+    }
+
+    private final Status status;
+    private final long retryAfterMillis;
+
+    private NotificationResult(final Status status, final long retryAfterMillis) {
+        this.status = status;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Returns the result for an outcome.
+     *
+     * @param status the outcome of the notification.
+     * @return {@code NotificationResult} the shared result for the outcome.
+     */
+    public static NotificationResult of(final Status status) {
+        return RESULTS[status.ordinal()];
+    }
+
+    /**
+     * Returns the result for an outcome after which the notification may be retried.
+     *
+     * @param status the outcome of the notification.
+     * @param retryAfterMillis the number of milliseconds after which the notification may be retried.
+     * @return {@code NotificationResult} the result.
+     */
+    public static NotificationResult retryAfter(final Status status, final long retryAfterMillis) {
+        return new NotificationResult(status, retryAfterMillis);
+    }
+
+    /**
+     * Returns the outcome of the notification.
+     *
+     * @return {@code Status} the outcome.
+     */
+    public Status status() {
+        return status;
+    }
+
+    /**
+     * Returns the number of milliseconds after which the notification may be retried.
+     *
+     * @return {@code long} the retry delay in milliseconds, or 0 if there is none.
+     */
+    public long retryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "NotificationResult[status=" + status + ", retryAfterMillis=" + retryAfterMillis + "]";
+    }
+
+}
@@ -0,0 +1,50 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server;
+
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Submits notifications from within the process that runs the SimplePush server, without going through
+ * the HTTP notification endpoint.
+ *
+ * Submitted notifications are rate limited, de-duplicated, stored and delivered in the same way as notifications
+ * sent over HTTP, and their futures complete with the {@link NotificationResult} a delivery report would carry.
+ * Notifications that are rejected before they are handled, for example because they exceed a rate limit, are
+ * returned as futures that have already completed.
+ */
+public interface NotificationService {
+
+    /**
+     * Submits a notification for a single channel.
+     *
+     * @param endpointToken the endpoint token of the channel.
+     * @param version the version of the notification.
+     * @return {@code Future} the future that completes with the outcome of the notification.
+     */
+    Future<NotificationResult> submit(String endpointToken, long version);
+
+    /**
+     * Submits notifications for several channels, which are handled together.
+     *
+     * @param versions the versions of the notifications keyed by endpoint token.
+     * @return {@code Map} the futures that complete with the outcome of each notification, keyed by endpoint token.
+     */
+    Map<String, Future<NotificationResult>> submit(Map<String, Long> versions);
+
+}
@@ -28,6 +28,10 @@ import org.jboss.aerogear.simplepush.protocol.RegisterResponse;
 import org.jboss.aerogear.simplepush.protocol.UnregisterMessage;
 import org.jboss.aerogear.simplepush.protocol.UnregisterResponse;
 import org.jboss.aerogear.simplepush.server.datastore.ChannelNotFoundException;
+import org.jboss.aerogear.simplepush.server.datastore.DataStore;
+import org.jboss.aerogear.simplepush.server.datastore.DataStoreFuture;
+import org.jboss.aerogear.simplepush.server.datastore.DataStoreUnavailableException;
+import org.jboss.aerogear.simplepush.server.datastore.VersionException;
 
 /**
  * A Java implementation of a <a href="https://wiki.mozilla.org/WebAPI/SimplePush/Protocol">SimplePush</a> Server.
@@ -42,6 +46,14 @@ public interface SimplePushServer {
      */
     HelloResponse handleHandshake(HelloMessage handshakeMessage);
 
+    /**
+     * Handles the handshake ('hello') message without blocking the calling thread.
+     *
+     * @param handshakeMessage the {@link HelloMessage}.
+     * @return {@code DataStoreFuture} completing with the {@link HelloResponse}, possibly on another thread.
+     */
+    DataStoreFuture<HelloResponse> handleHandshakeAsync(HelloMessage handshakeMessage);
+
     /**
      * Handles the 'register' message in the SimplePush protocol which is used to register a channel.
      *
@@ -51,6 +63,15 @@ public interface SimplePushServer {
      */
     RegisterResponse handleRegister(RegisterMessage register, String uaid);
 
+    /**
+     * Handles the 'register' message without blocking the calling thread.
+     *
+     * @param register the {@link RegisterMessage}.
+     * @param uaid the UserAgent identifier that this channel will be registered for.
+     * @return {@code DataStoreFuture} completing with the {@link RegisterResponse}, possibly on another thread.
+     */
+    DataStoreFuture<RegisterResponse> handleRegisterAsync(RegisterMessage register, String uaid);
+
     /**
      * Handles the 'unregister' message in the SimplePush protocol which is used to register a channel.
      *
@@ -60,6 +81,15 @@ public interface SimplePushServer {
      */
     UnregisterResponse handleUnregister(UnregisterMessage unregisterMessage, String uaid);
 
+    /**
+     * Handles the 'unregister' message without blocking the calling thread.
+     *
+     * @param unregisterMessage the {@link UnregisterMessage}.
+     * @param uaid the UserAgent identifier that this channel will be unregistered for.
+     * @return {@code DataStoreFuture} completing with the {@link UnregisterResponse}, possibly on another thread.
+     */
+    DataStoreFuture<UnregisterResponse> handleUnregisterAsync(UnregisterMessage unregisterMessage, String uaid);
+
     /**
      * Handles the 'ack' message in the SimplePush protocol which is acknowledge a notification.
      *
@@ -69,6 +99,16 @@ public interface SimplePushServer {
      */
     Set<Ack> handleAcknowledgement(AckMessage ackMessage, String uaid);
 
+    /**
+     * Handles the 'ack' message without blocking the calling thread.
+     *
+     * @param ackMessage the {@link AckMessage}.
+     * @param uaid the UserAgent identifier that acknowledged the notifications.
+     * @return {@code DataStoreFuture} completing with the notifications that are still un-acknowledged, possibly
+     *         on another thread.
+     */
+    DataStoreFuture<Set<Ack>> handleAcknowledgementAsync(AckMessage ackMessage, String uaid);
+
     /**
      * Returns all the un-acknowledged notifications for a specific UserAgent.
      *
@@ -77,6 +117,14 @@ public interface SimplePushServer {
      */
     Set<Ack> getUnacknowledged(String uaid);
 
+    /**
+     * Returns all the un-acknowledged notifications for a specific UserAgent without blocking the calling thread.
+     *
+     * @param uaid the UserAgent identifier for which unacked notifications should be retrieved.
+     * @return {@code DataStoreFuture} completing with the un-acknowledged notifications, possibly on another thread.
+     */
+    DataStoreFuture<Set<Ack>> getUnacknowledgedAsync(String uaid);
+
     /**
      * Handles the notification for a single channel
      *
@@ -87,6 +135,42 @@ public interface SimplePushServer {
      */
     Notification handleNotification(String endpointToken, String payload) throws ChannelNotFoundException;
 
+    /**
+     * Handles the notification for a single channel without blocking the calling thread.
+     *
+     * @param endpointToken the endpointToken for which this notification belongs
+     * @param payload the payload which must be in the format "version=N".
+     * @return {@code DataStoreFuture} completing with the {@link Notification}, possibly on another thread, or
+     *         failing with a {@link ChannelNotFoundException}, a {@link VersionException} or a
+     *         {@link NumberFormatException} if the version is invalid.
+     */
+    DataStoreFuture<Notification> handleNotificationAsync(String endpointToken, String payload);
+
+    /**
+     * Checks that notifications can currently be handled, so that they can be rejected before they are
+     * accepted when the storage of this server is unavailable.
+     *
+     * @throws DataStoreUnavailableException if the {@link DataStore} of this server is unavailable.
+     */
+    void checkAvailable();
+
+    /**
+     * Checks, without blocking, whether a channel might exist for the endpoint token, so that notifications
+     * for endpoint tokens that are known not to exist can be rejected before they are accepted.
+     *
+     * @param endpointToken the endpoint token of the notification.
+     * @return {@code false} if there is no channel for the endpoint token, {@code true} if there might be one.
+     */
+    boolean mightHaveChannel(String endpointToken);
+
+    /**
+     * Handles the closing of a UserAgent's connection, after which no more messages will be received
+     * from it over that connection.
+     *
+     * @param uaid the UserAgent Identifier of the disconnected UserAgent.
+     */
+    void handleDisconnect(String uaid);
+
     /**
      * Removes all the channels associated with the UserAgent.
      *
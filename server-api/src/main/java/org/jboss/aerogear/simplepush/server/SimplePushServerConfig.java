@@ -112,4 +112,73 @@ public interface SimplePushServerConfig {
      */
     int notifierMaxThreads();
 
+    /**
+     * Returns the sustained number of notifications per second accepted for a single endpoint. Notifications
+     * beyond that are rejected before they reach the DataStore.
+     *
+     * @return {@code int} the number of notifications per second, or 0 if notifications are not rate limited.
+     */
+    int endpointRateLimit();
+
+    /**
+     * Returns the number of notifications accepted at once for a single endpoint when it is rate limited.
+     *
+     * @return {@code int} the number of notifications accepted at once.
+     */
+    int endpointBurst();
+
+    /**
+     * Returns the sustained number of notifications per second accepted from a single IP address.
+     *
+     * @return {@code int} the number of notifications per second, or 0 if notifications are not rate limited
+     *         by IP address.
+     */
+    int ipRateLimit();
+
+    /**
+     * Returns the number of notifications accepted at once from a single IP address when it is rate limited.
+     *
+     * @return {@code int} the number of notifications accepted at once.
+     */
+    int ipBurst();
+
+    /**
+     * Returns whether notification requests are answered once the notification has been handled, with a status
+     * telling whether it was delivered, rather than as soon as they are accepted. Requests can also ask for this
+     * individually.
+     *
+     * @return {@code true} if notification requests always wait for the outcome of the notification.
+     */
+    boolean deliveryReports();
+
+    /**
+     * Returns the time for which a notification is remembered, so that repeats of it with the same endpoint and
+     * version are answered without being handled again.
+     *
+     * @return {@code long} the time in milliseconds, or 0 if repeated notifications are handled again.
+     */
+    long dedupWindowMillis();
+
+    /**
+     * Returns the maximum number of notifications remembered at once to detect repeats.
+     *
+     * @return {@code int} the maximum number of notifications remembered.
+     */
+    int dedupMaxEntries();
+
+    /**
+     * Returns whether channels can be added to topics, which notify all of their channels with a single request.
+     *
+     * @return {@code true} if topics are enabled.
+     */
+    boolean topics();
+
+    /**
+     * Returns the time for which notifications for a connected UserAgent are held back, so that the updates of
+     * several channels, or of the same channel, within that time are sent to the UserAgent as a single message.
+     *
+     * @return {@code long} the time in milliseconds, or 0 if every notification is sent as its own message.
+     */
+    long coalesceWindowMillis();
+
 }
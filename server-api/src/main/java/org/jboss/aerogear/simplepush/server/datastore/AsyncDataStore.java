@@ -0,0 +1,85 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.util.Set;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.server.Channel;
+
+/**
+ * A non-blocking variant of {@link DataStore}, whose methods return a {@link DataStoreFuture} instead of
+ * waiting for the underlying storage system.
+ * <p>
+ * Each method has the same semantics as the {@link DataStore} method of the same name. Exceptions that the
+ * {@link DataStore} method declares are reported by failing the returned future instead of being thrown, so
+ * that independent operations can be started together and their results combined as they arrive. An
+ * AsyncDataStore can be used where a {@link DataStore} is expected through a {@link BlockingDataStore}, and a
+ * {@link DataStore} can be used as an AsyncDataStore through an {@link ExecutorAsyncDataStore}.
+ */
+public interface AsyncDataStore {
+
+    DataStoreFuture<Void> savePrivateKeySalt(byte[] salt);
+
+    DataStoreFuture<byte[]> getPrivateKeySalt();
+
+    /**
+     * @see DataStore#saveChannel(Channel)
+     */
+    DataStoreFuture<Boolean> saveChannel(Channel channel);
+
+    /**
+     * @see DataStore#getChannel(String)
+     * @return {@code DataStoreFuture} failing with a {@link ChannelNotFoundException} if the channel does not exist.
+     */
+    DataStoreFuture<Channel> getChannel(String channelId);
+
+    DataStoreFuture<Void> removeChannels(String uaid);
+
+    DataStoreFuture<Void> removeChannels(Set<String> channelIds);
+
+    DataStoreFuture<Set<String>> getChannelIds(String uaid);
+
+    /**
+     * @see DataStore#updateVersion(String, long)
+     * @return {@code DataStoreFuture} failing with a {@link VersionException} or a {@link ChannelNotFoundException}.
+     */
+    DataStoreFuture<String> updateVersion(String endpointToken, long version);
+
+    /**
+     * @see DataStore#saveUnacknowledged(String, long)
+     * @return {@code DataStoreFuture} failing with a {@link ChannelNotFoundException} if the channel does not exist.
+     */
+    DataStoreFuture<String> saveUnacknowledged(String channelId, long version);
+
+    DataStoreFuture<Set<Ack>> getUnacknowledged(String uaid);
+
+    DataStoreFuture<Set<Ack>> removeAcknowledged(String uaid, Set<Ack> acked);
+
+    /**
+     * @see ConnectionAwareDataStore#userAgentConnected(String)
+     * @return {@code DataStoreFuture} that is already completed if the storage does not track connections.
+     */
+    DataStoreFuture<Void> userAgentConnected(String uaid);
+
+    /**
+     * @see LastSeenDataStore#updateLastSeen(String, long)
+     * @return {@code DataStoreFuture} that is already completed if the storage does not track last seen times.
+     */
+    DataStoreFuture<Void> updateLastSeen(String uaid, long timestamp);
+
+}
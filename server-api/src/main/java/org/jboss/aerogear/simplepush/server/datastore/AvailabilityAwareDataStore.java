@@ -0,0 +1,32 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+/**
+ * A {@link DataStore} that can tell whether it is currently able to serve requests, so that the server can
+ * reject work up front instead of waiting for an operation to fail.
+ */
+public interface AvailabilityAwareDataStore extends DataStore {
+
+    /**
+     * Checks that the DataStore currently accepts operations.
+     *
+     * @throws DataStoreUnavailableException if the DataStore is unavailable.
+     */
+    void checkAvailable();
+
+}
@@ -0,0 +1,49 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.util.Map;
+
+/**
+ * A {@link DataStore} that is able to apply several notification state writes at once, using
+ * a single transaction or round trip to the underlying storage system where possible.
+ *
+ * Each entry in a batch is independent of the others, so one entry failing, for example with
+ * a {@link VersionException}, does not cause the other entries of the batch to fail.
+ */
+public interface BatchDataStore extends DataStore {
+
+    /**
+     * Updates the versions for multiple channels, each identified by its endpointToken.
+     *
+     * @param versions a map of endpointToken to the version to update to.
+     * @return {@code Map<String, WriteResult>} the result for each endpointToken. A successful result
+     *         holds the channel id of the updated channel, and a failed result holds either a
+     *         {@link VersionException} or a {@link ChannelNotFoundException}.
+     */
+    Map<String, WriteResult> updateVersions(Map<String, Long> versions);
+
+    /**
+     * Saves unacknowledged notifications for multiple channels.
+     *
+     * @param versions a map of channelId to the version of the update.
+     * @return {@code Map<String, WriteResult>} the result for each channelId. A successful result
+     *         holds the UserAgent Id for the channel, and a failed result holds a {@link ChannelNotFoundException}.
+     */
+    Map<String, WriteResult> saveUnacknowledged(Map<String, Long> versions);
+
+}
@@ -0,0 +1,175 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.server.Channel;
+
+/**
+ * A {@link DataStore} that waits for the operations of an {@link AsyncDataStore}, so that an AsyncDataStore
+ * can be used wherever a DataStore is expected. Failures of the AsyncDataStore are thrown as they would have
+ * been by a DataStore.
+ */
+public class BlockingDataStore implements DataStore {
+
+    private final AsyncDataStore store;
+
+    /**
+     * Sole constructor.
+     *
+     * @param store the {@link AsyncDataStore} to delegate to.
+     */
+    public BlockingDataStore(final AsyncDataStore store) {
+        checkNotNull(store, "store");
+        this.store = store;
+    }
+
+    /**
+     * Returns the AsyncDataStore that the operations are delegated to.
+     *
+     * @return {@code AsyncDataStore} the underlying AsyncDataStore.
+     */
+    public AsyncDataStore asyncDataStore() {
+        return store;
+    }
+
+    @Override
+    public void savePrivateKeySalt(final byte[] salt) {
+        await(store.savePrivateKeySalt(salt));
+    }
+
+    @Override
+    public byte[] getPrivateKeySalt() {
+        return await(store.getPrivateKeySalt());
+    }
+
+    @Override
+    public boolean saveChannel(final Channel channel) {
+        return await(store.saveChannel(channel));
+    }
+
+    @Override
+    public Channel getChannel(final String channelId) throws ChannelNotFoundException {
+        try {
+            return get(store.getChannel(channelId));
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof ChannelNotFoundException) {
+                throw (ChannelNotFoundException) e.getCause();
+            }
+            throw unchecked(e);
+        }
+    }
+
+    @Override
+    public void removeChannels(final String uaid) {
+        await(store.removeChannels(uaid));
+    }
+
+    @Override
+    public void removeChannels(final Set<String> channelIds) {
+        await(store.removeChannels(channelIds));
+    }
+
+    @Override
+    public Set<String> getChannelIds(final String uaid) {
+        return await(store.getChannelIds(uaid));
+    }
+
+    @Override
+    public String updateVersion(final String endpointToken, final long version) throws VersionException, ChannelNotFoundException {
+        try {
+            return get(store.updateVersion(endpointToken, version));
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof VersionException) {
+                throw (VersionException) e.getCause();
+            }
+            if (e.getCause() instanceof ChannelNotFoundException) {
+                throw (ChannelNotFoundException) e.getCause();
+            }
+            throw unchecked(e);
+        }
+    }
+
+    @Override
+    public String saveUnacknowledged(final String channelId, final long version) throws ChannelNotFoundException {
+        try {
+            return get(store.saveUnacknowledged(channelId, version));
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof ChannelNotFoundException) {
+                throw (ChannelNotFoundException) e.getCause();
+            }
+            throw unchecked(e);
+        }
+    }
+
+    @Override
+    public Set<Ack> getUnacknowledged(final String uaid) {
+        return await(store.getUnacknowledged(uaid));
+    }
+
+    @Override
+    public Set<Ack> removeAcknowledged(final String uaid, final Set<Ack> acked) {
+        return await(store.removeAcknowledged(uaid, acked));
+    }
+
+    private static <V> V await(final DataStoreFuture<V> future) {
+        try {
+            return get(future);
+        } catch (final ExecutionException e) {
+            throw unchecked(e);
+        }
+    }
+
+    private static <V> V get(final DataStoreFuture<V> future) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    return future.get();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static RuntimeException unchecked(final ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IllegalStateException(cause);
+    }
+
+    @Override
+    public String toString() {
+        return "BlockingDataStore[store=" + store + "]";
+    }
+
+}
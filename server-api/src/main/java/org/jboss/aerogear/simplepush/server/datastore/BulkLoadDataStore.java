@@ -0,0 +1,38 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.util.List;
+
+/**
+ * A {@link DataStore} that is able to store many UserAgents at once, using a single transaction or round
+ * trip to the underlying storage system where possible.
+ *
+ * Loading is idempotent so that an interrupted load can simply be repeated: channels that already exist
+ * are left unchanged, and unacknowledged notifications are saved as by
+ * {@link DataStore#saveUnacknowledged(String, long)}.
+ */
+public interface BulkLoadDataStore extends DataStore {
+
+    /**
+     * Stores the channels and unacknowledged notifications of the passed in UserAgents.
+     *
+     * @param userAgents the {@link UserAgentRecord}s to store.
+     */
+    void saveUserAgents(List<UserAgentRecord> userAgents);
+
+}
@@ -0,0 +1,43 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+/**
+ * A {@link DataStore} that is told when UserAgents connect to and disconnect from the server, for example
+ * to keep the state of connected UserAgents in memory.
+ *
+ * A UserAgent may be connected more than once at the same time, for example while reconnecting before its
+ * previous connection has timed out, so every call to {@link #userAgentConnected(String)} is eventually
+ * followed by one call to {@link #userAgentDisconnected(String)}.
+ */
+public interface ConnectionAwareDataStore extends DataStore {
+
+    /**
+     * Called when a UserAgent has connected, before its handshake is processed.
+     *
+     * @param uaid the UserAgent Id of the connected UserAgent.
+     */
+    void userAgentConnected(String uaid);
+
+    /**
+     * Called when a connection of a UserAgent has been closed.
+     *
+     * @param uaid the UserAgent Id of the disconnected UserAgent.
+     */
+    void userAgentDisconnected(String uaid);
+
+}
@@ -0,0 +1,260 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The result of an operation of an {@link AsyncDataStore}, which is completed once by the DataStore and
+ * notifies its {@link Listener}s when that happens.
+ * <p>
+ * A failed future carries the exception the corresponding method of {@link DataStore} would have thrown,
+ * for example a {@link ChannelNotFoundException}. Listeners are called on the thread that completes the
+ * future, or on the thread adding them if the future has already completed, so they should not block.
+ * A future cannot be cancelled.
+ *
+ * @param <V> the type of the value of the operation.
+ */
+public final class DataStoreFuture<V> implements Future<V> {
+
+    /**
+     * Is notified when a {@link DataStoreFuture} completes.
+     *
+     * @param <V> the type of the value of the future.
+     */
+    public interface Listener<V> {
+
+        /**
+         * Called once when the future has completed, either successfully or with a failure.
+         *
+         * @param future the completed future.
+         */
+        void operationComplete(DataStoreFuture<V> future);
+
+    }
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private List<Listener<V>> listeners;
+    private volatile boolean done;
+    private volatile V value;
+    private volatile Throwable cause;
+
+    /**
+     * Creates a future that is completed by a later call to {@link #complete(Object)} or {@link #fail(Throwable)}.
+     */
+    public DataStoreFuture() {
+    }
+
+    /**
+     * Creates a future that has already completed successfully.
+     *
+     * @param value the value of the future.
+     * @return {@code DataStoreFuture} the completed future.
+     */
+    public static <V> DataStoreFuture<V> succeeded(final V value) {
+        final DataStoreFuture<V> future = new DataStoreFuture<V>();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * Creates a future that has already failed.
+     *
+     * @param cause the failure of the future.
+     * @return {@code DataStoreFuture} the failed future.
+     */
+    public static <V> DataStoreFuture<V> failed(final Throwable cause) {
+        final DataStoreFuture<V> future = new DataStoreFuture<V>();
+        future.fail(cause);
+        return future;
+    }
+
+    /**
+     * Returns a future that completes when all of the passed in futures have completed, and fails with the
+     * failure of the first of them to fail.
+     *
+     * @param futures the futures to wait for.
+     * @return {@code DataStoreFuture} a future completing with {@code null} once all futures have succeeded.
+     */
+    public static DataStoreFuture<Void> all(final List<? extends DataStoreFuture<?>> futures) {
+        final DataStoreFuture<Void> all = new DataStoreFuture<Void>();
+        if (futures.isEmpty()) {
+            all.complete(null);
+            return all;
+        }
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        for (DataStoreFuture<?> future : futures) {
+            addCompletionListener(future, all, remaining);
+        }
+        return all;
+    }
+
+    private static <T> void addCompletionListener(final DataStoreFuture<T> future, final DataStoreFuture<Void> all,
+            final AtomicInteger remaining) {
+        future.addListener(new Listener<T>() {
+            @Override
+            public void operationComplete(final DataStoreFuture<T> completed) {
+                if (!completed.isSuccess()) {
+                    all.fail(completed.cause());
+                } else if (remaining.decrementAndGet() == 0) {
+                    all.complete(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Completes this future successfully, unless it has already completed.
+     *
+     * @param value the value of the operation.
+     * @return {@code true} if this call completed the future.
+     */
+    public boolean complete(final V value) {
+        return setDone(value, null);
+    }
+
+    /**
+     * Completes this future with a failure, unless it has already completed.
+     *
+     * @param cause the failure of the operation.
+     * @return {@code true} if this call completed the future.
+     */
+    public boolean fail(final Throwable cause) {
+        checkNotNull(cause, "cause");
+        return setDone(null, cause);
+    }
+
+    private boolean setDone(final V value, final Throwable cause) {
+        final List<Listener<V>> toNotify;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.value = value;
+            this.cause = cause;
+            done = true;
+            toNotify = listeners;
+            listeners = null;
+        }
+        latch.countDown();
+        if (toNotify != null) {
+            for (Listener<V> listener : toNotify) {
+                listener.operationComplete(this);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a listener that is notified when this future completes, or right away if it already has.
+     *
+     * @param listener the listener to add.
+     * @return {@code DataStoreFuture} this future.
+     */
+    public DataStoreFuture<V> addListener(final Listener<V> listener) {
+        checkNotNull(listener, "listener");
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null) {
+                    listeners = new ArrayList<Listener<V>>(2);
+                }
+                listeners.add(listener);
+                return this;
+            }
+        }
+        listener.operationComplete(this);
+        return this;
+    }
+
+    /**
+     * Returns whether this future has completed successfully.
+     *
+     * @return {@code true} if this future has completed without a failure.
+     */
+    public boolean isSuccess() {
+        return done && cause == null;
+    }
+
+    /**
+     * Returns the failure of this future.
+     *
+     * @return {@code Throwable} the failure, or {@code null} if this future has not failed.
+     */
+    public Throwable cause() {
+        return cause;
+    }
+
+    /**
+     * Returns the value of this future without waiting.
+     *
+     * @return {@code V} the value, or {@code null} if this future has not completed successfully.
+     */
+    public V getNow() {
+        return value;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return result();
+    }
+
+    @Override
+    public V get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private V result() throws ExecutionException {
+        if (cause != null) {
+            throw new ExecutionException(cause);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "DataStoreFuture[done=" + done + ", value=" + value + ", cause=" + cause + "]";
+    }
+
+}
@@ -0,0 +1,56 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+/**
+ * An exception to signal that a {@link DataStore} is currently unavailable and that the operation was not
+ * attempted or did not complete in time, for example because a circuit breaker in front of it is open.
+ */
+public class DataStoreUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = -2310983427195728541L;
+    private final long retryAfterMillis;
+
+    /**
+     * @param message a description of why the DataStore is unavailable.
+     * @param retryAfterMillis the time after which the DataStore is expected to be available again.
+     */
+    public DataStoreUnavailableException(final String message, final long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @param message a description of why the DataStore is unavailable.
+     * @param retryAfterMillis the time after which the DataStore is expected to be available again.
+     * @param cause the failure that made the DataStore unavailable.
+     */
+    public DataStoreUnavailableException(final String message, final long retryAfterMillis, final Throwable cause) {
+        super(message, cause);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Returns the time after which the DataStore is expected to be available again.
+     *
+     * @return {@code long} the time in milliseconds, or 0 if unknown.
+     */
+    public long retryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+}
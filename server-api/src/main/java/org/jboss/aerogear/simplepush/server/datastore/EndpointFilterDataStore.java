@@ -0,0 +1,33 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+/**
+ * A {@link DataStore} that can tell from memory that an endpoint token does not belong to any channel, so that
+ * notifications for unregistered channels can be rejected without a lookup.
+ */
+public interface EndpointFilterDataStore extends DataStore {
+
+    /**
+     * Returns whether a channel may exist for the endpoint token. Never blocks on the underlying storage.
+     *
+     * @param endpointToken the endpoint token of a notification.
+     * @return {@code false} if no channel exists for the endpoint token, {@code true} if one may exist.
+     */
+    boolean mightContainEndpoint(String endpointToken);
+
+}
@@ -0,0 +1,250 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.server.Channel;
+
+/**
+ * An {@link AsyncDataStore} that runs the operations of a blocking {@link DataStore} on an {@link Executor},
+ * so that callers are not blocked by the DataStore. The number of operations in flight is bounded by the
+ * number of threads of the executor.
+ */
+public class ExecutorAsyncDataStore implements AsyncDataStore {
+
+    private static final Executor CALLER_RUNS = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    private final DataStore store;
+    private final Executor executor;
+
+    /**
+     * Creates an ExecutorAsyncDataStore that runs the operations on the calling thread, returning futures that
+     * have already completed. This offers the {@link AsyncDataStore} interface for a DataStore that never blocks,
+     * like the in-memory DataStore, without the cost of handing operations to another thread.
+     *
+     * @param store the {@link DataStore} to delegate to.
+     */
+    public ExecutorAsyncDataStore(final DataStore store) {
+        this(store, CALLER_RUNS);
+    }
+
+    /**
+     * Creates an ExecutorAsyncDataStore that runs the operations of the DataStore on the passed in {@link Executor}.
+     *
+     * @param store the {@link DataStore} to delegate to.
+     * @param executor the {@link Executor} to run the operations of the DataStore on.
+     */
+    public ExecutorAsyncDataStore(final DataStore store, final Executor executor) {
+        checkNotNull(store, "store");
+        checkNotNull(executor, "executor");
+        this.store = store;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the DataStore that the operations are delegated to.
+     *
+     * @return {@code DataStore} the underlying DataStore.
+     */
+    public DataStore dataStore() {
+        return store;
+    }
+
+    @Override
+    public DataStoreFuture<Void> savePrivateKeySalt(final byte[] salt) {
+        return submit(new Operation<Void>() {
+            @Override
+            public Void call() {
+                store.savePrivateKeySalt(salt);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public DataStoreFuture<byte[]> getPrivateKeySalt() {
+        return submit(new Operation<byte[]>() {
+            @Override
+            public byte[] call() {
+                return store.getPrivateKeySalt();
+            }
+        });
+    }
+
+    @Override
+    public DataStoreFuture<Boolean> saveChannel(final Channel channel) {
+        return submit(new Operation<Boolean>() {
+            @Override
+            public Boolean call() {
+                return store.saveChannel(channel);
+            }
+        });
+    }
+
+    @Override
+    public DataStoreFuture<Channel> getChannel(final String channelId) {
+        return submit(new Operation<Channel>() {
+            @Override
+            public Channel call() throws ChannelNotFoundException {
+                return store.getChannel(channelId);
+            }
+        });
+    }
+
+    @Override
+    public DataStoreFuture<Void> removeChannels(final String uaid) {
+        return submit(new Operation<Void>() {
+            @Override
+            public Void call() {
+                store.removeChannels(uaid);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public DataStoreFuture<Void> removeChannels(final Set<String> channelIds) {
+        return submit(new Operation<Void>() {
+            @Override
+            public Void call() {
+                store.removeChannels(channelIds);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public DataStoreFuture<Set<String>> getChannelIds(final String uaid) {
+        return submit(new Operation<Set<String>>() {
+            @Override
+            public Set<String> call() {
+                return store.getChannelIds(uaid);
+            }
+        });
+    }
+
+    @Override
+    public DataStoreFuture<String> updateVersion(final String endpointToken, final long version) {
+        return submit(new Operation<String>() {
+            @Override
+            public String call() throws VersionException, ChannelNotFoundException {
+                return store.updateVersion(endpointToken, version);
+            }
+        });
+    }
+
+    @Override
+    public DataStoreFuture<String> saveUnacknowledged(final String channelId, final long version) {
+        return submit(new Operation<String>() {
+            @Override
+            public String call() throws ChannelNotFoundException {
+                return store.saveUnacknowledged(channelId, version);
+            }
+        });
+    }
+
+    @Override
+    public DataStoreFuture<Set<Ack>> getUnacknowledged(final String uaid) {
+        return submit(new Operation<Set<Ack>>() {
+            @Override
+            public Set<Ack> call() {
+                return store.getUnacknowledged(uaid);
+            }
+        });
+    }
+
+    @Override
+    public DataStoreFuture<Set<Ack>> removeAcknowledged(final String uaid, final Set<Ack> acked) {
+        return submit(new Operation<Set<Ack>>() {
+            @Override
+            public Set<Ack> call() {
+                return store.removeAcknowledged(uaid, acked);
+            }
+        });
+    }
+
+    @Override
+    public DataStoreFuture<Void> userAgentConnected(final String uaid) {
+        if (!(store instanceof ConnectionAwareDataStore)) {
+            return DataStoreFuture.succeeded(null);
+        }
+        return submit(new Operation<Void>() {
+            @Override
+            public Void call() {
+                ((ConnectionAwareDataStore) store).userAgentConnected(uaid);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public DataStoreFuture<Void> updateLastSeen(final String uaid, final long timestamp) {
+        if (!(store instanceof LastSeenDataStore)) {
+            return DataStoreFuture.succeeded(null);
+        }
+        return submit(new Operation<Void>() {
+            @Override
+            public Void call() {
+                ((LastSeenDataStore) store).updateLastSeen(uaid, timestamp);
+                return null;
+            }
+        });
+    }
+
+    private <V> DataStoreFuture<V> submit(final Operation<V> operation) {
+        final DataStoreFuture<V> future = new DataStoreFuture<V>();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final V value;
+                    try {
+                        value = operation.call();
+                    } catch (final Throwable t) {
+                        future.fail(t);
+                        return;
+                    }
+                    future.complete(value);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            future.fail(e);
+        }
+        return future;
+    }
+
+    private interface Operation<V> {
+        V call() throws Exception;
+    }
+
+    @Override
+    public String toString() {
+        return "ExecutorAsyncDataStore[store=" + store + "]";
+    }
+
+}
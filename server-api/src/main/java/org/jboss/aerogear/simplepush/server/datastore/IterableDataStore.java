@@ -0,0 +1,51 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.util.List;
+
+/**
+ * A {@link DataStore} that is able to enumerate the UserAgents it stores channels for, either by Id or together
+ * with their channels and unacknowledged notifications.
+ *
+ * UserAgent Ids are returned in pages in ascending order, so that an enumeration can be resumed from the
+ * last UserAgent Id seen without keeping any state in the DataStore.
+ */
+public interface IterableDataStore extends DataStore {
+
+    /**
+     * Returns the UserAgent Ids that have at least one channel and that are greater than {@code afterUaid}.
+     *
+     * @param afterUaid the UserAgent Id to continue after, or {@code null} to start from the first UserAgent Id.
+     * @param limit the maximum number of UserAgent Ids to return.
+     * @return {@code List<String>} at most {@code limit} UserAgent Ids in ascending order. An empty list
+     *         is returned when there are no more UserAgents.
+     */
+    List<String> getUserAgentIds(String afterUaid, int limit);
+
+    /**
+     * Returns the channels and unacknowledged notifications of the UserAgents that have at least one channel
+     * and whose Ids are greater than {@code afterUaid}, reading a whole page at once where possible.
+     *
+     * @param afterUaid the UserAgent Id to continue after, or {@code null} to start from the first UserAgent Id.
+     * @param limit the maximum number of UserAgents to return.
+     * @return {@code List<UserAgentRecord>} at most {@code limit} UserAgents in ascending order of their Ids.
+     *         An empty list is returned when there are no more UserAgents.
+     */
+    List<UserAgentRecord> getUserAgents(String afterUaid, int limit);
+
+}
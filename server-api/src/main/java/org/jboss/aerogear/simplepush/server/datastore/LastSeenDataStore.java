@@ -0,0 +1,57 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.util.List;
+
+/**
+ * A {@link DataStore} that records when each UserAgent was last seen and keeps an index of UserAgents
+ * ordered by that time, so that UserAgents which have not connected for a long time can be found and
+ * removed without scanning all of the stored UserAgents.
+ */
+public interface LastSeenDataStore extends DataStore {
+
+    /**
+     * Records that the UserAgent was seen at the passed in time, replacing any earlier time.
+     *
+     * @param uaid the UserAgent Id.
+     * @param timestamp the time the UserAgent was seen, in milliseconds since the epoch.
+     */
+    void updateLastSeen(String uaid, long timestamp);
+
+    /**
+     * Returns the UserAgents that were last seen before the passed in time.
+     *
+     * @param timestamp the time in milliseconds since the epoch.
+     * @param limit the maximum number of UserAgent Ids to return.
+     * @return {@code List<String>} at most {@code limit} UserAgent Ids, the ones seen the longest time ago first.
+     */
+    List<String> getUserAgentsLastSeenBefore(long timestamp, int limit);
+
+    /**
+     * Removes all the channels, unacknowledged notifications and the last seen time of a UserAgent, but only
+     * if it was last seen before the passed in time. The check and the removal of the last seen time are
+     * atomic, so that a UserAgent which is seen concurrently is not removed.
+     *
+     * @param uaid the UserAgent Id.
+     * @param timestamp the time in milliseconds since the epoch.
+     * @return {@code true} if the UserAgent was removed, {@code false} if it was seen at or after
+     *         {@code timestamp} or is not known.
+     */
+    boolean removeUserAgentIfLastSeenBefore(String uaid, long timestamp);
+
+}
@@ -0,0 +1,38 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+/**
+ * A {@link DataStore} that needs routing information embedded in the endpoint tokens of the channels
+ * it stores, for example to find the storage system holding a channel without a lookup.
+ *
+ * A SimplePush Server passes every endpoint token it generates through {@link #routedEndpointToken(String, String)}
+ * before storing it and handing it out in an endpoint url.
+ */
+public interface RoutingDataStore extends DataStore {
+
+    /**
+     * Returns the endpoint token to use for a channel of the passed-in UserAgent.
+     *
+     * @param uaid the UserAgent Id the channel belongs to.
+     * @param endpointToken the endpoint token generated by the server.
+     * @return {@code String} the endpoint token including any routing information. It must only contain
+     *         characters that are allowed in a url path segment.
+     */
+    String routedEndpointToken(String uaid, String endpointToken);
+
+}
@@ -0,0 +1,74 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.server.Channel;
+
+/**
+ * A snapshot of everything a {@link DataStore} holds for a single UserAgent: its channels, including their
+ * versions and endpoint tokens, and its unacknowledged notifications.
+ *
+ * Records are read in bulk from an {@link IterableDataStore} and written in bulk to a {@link BulkLoadDataStore},
+ * which allows all registrations to be moved from one DataStore to another.
+ */
+public final class UserAgentRecord {
+
+    private final String uaid;
+    private final Set<Channel> channels;
+    private final Set<Ack> unacknowledged;
+
+    /**
+     * Sole constructor.
+     *
+     * @param uaid the UserAgent Id.
+     * @param channels the channels registered by the UserAgent.
+     * @param unacknowledged the notifications not yet acknowledged by the UserAgent.
+     */
+    public UserAgentRecord(final String uaid, final Set<Channel> channels, final Set<Ack> unacknowledged) {
+        checkNotNull(uaid, "uaid");
+        checkNotNull(channels, "channels");
+        checkNotNull(unacknowledged, "unacknowledged");
+        this.uaid = uaid;
+        this.channels = Collections.unmodifiableSet(new LinkedHashSet<Channel>(channels));
+        this.unacknowledged = Collections.unmodifiableSet(new LinkedHashSet<Ack>(unacknowledged));
+    }
+
+    public String getUAID() {
+        return uaid;
+    }
+
+    public Set<Channel> getChannels() {
+        return channels;
+    }
+
+    public Set<Ack> getUnacknowledged() {
+        return unacknowledged;
+    }
+
+    @Override
+    public String toString() {
+        return "UserAgentRecord[uaid=" + uaid + ", channels=" + channels + ", unacknowledged=" + unacknowledged + "]";
+    }
+
+}
@@ -0,0 +1,77 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+/**
+ * The outcome of a single write that was performed as part of a batch by a {@link BatchDataStore}.
+ *
+ * A successful result carries the value that the corresponding single-operation method of
+ * {@link DataStore} would have returned, and a failed result carries the exception that it
+ * would have thrown.
+ */
+public final class WriteResult {
+
+    private final String value;
+    private final Exception failure;
+
+    private WriteResult(final String value, final Exception failure) {
+        this.value = value;
+        this.failure = failure;
+    }
+
+    /**
+     * Creates a successful result.
+     *
+     * @param value the value returned by the write, for example the channelId of an updated channel.
+     * @return {@code WriteResult} the successful result.
+     */
+    public static WriteResult success(final String value) {
+        return new WriteResult(value, null);
+    }
+
+    /**
+     * Creates a failed result.
+     *
+     * @param failure the exception describing why the write failed, usually a {@link VersionException}
+     *        or a {@link ChannelNotFoundException}.
+     * @return {@code WriteResult} the failed result.
+     */
+    public static WriteResult failure(final Exception failure) {
+        checkNotNull(failure, "failure");
+        return new WriteResult(null, failure);
+    }
+
+    public boolean isSuccess() {
+        return failure == null;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    public Exception failure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteResult[value=" + value + ", failure=" + failure + "]";
+    }
+
+}
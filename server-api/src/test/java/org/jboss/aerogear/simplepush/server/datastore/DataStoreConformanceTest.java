@@ -0,0 +1,438 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
+import org.jboss.aerogear.simplepush.util.UUIDUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link DataStore} contract. Every DataStore implementation should have a subclass of this test that
+ * creates the DataStore under test, against an embedded or in-process stand-in when the DataStore normally
+ * talks to an external server.
+ * <p>
+ * All tests use random UserAgent and channel ids, so the DataStores of different tests may share their storage.
+ * {@link #mixedWorkload()} runs a small {@link DataStoreWorkload} and prints its report. Its scale can be raised
+ * using the system properties {@code simplepush.workload.userAgents}, {@code simplepush.workload.operations}
+ * and {@code simplepush.workload.threads}.
+ */
+public abstract class DataStoreConformanceTest {
+
+    private static final int CONCURRENT_WRITERS = 4;
+    private static final int CONCURRENT_VERSIONS = 50;
+
+    protected DataStore store;
+
+    /**
+     * Creates the DataStore under test. Called before every test.
+     *
+     * @return {@link DataStore} the DataStore under test.
+     */
+    protected abstract DataStore createDataStore() throws Exception;
+
+    /**
+     * Releases the resources of the DataStore under test. Called after every test.
+     *
+     * @param dataStore the DataStore returned by {@link #createDataStore()}.
+     */
+    protected void closeDataStore(final DataStore dataStore) throws Exception {
+    }
+
+    @Before
+    public void setUpDataStore() throws Exception {
+        store = createDataStore();
+    }
+
+    @After
+    public void tearDownDataStore() throws Exception {
+        closeDataStore(store);
+    }
+
+    @Test
+    public void privateKeySalt() {
+        final byte[] existing = store.getPrivateKeySalt();
+        final byte[] salt = UUID.randomUUID().toString().getBytes();
+        store.savePrivateKeySalt(salt);
+        final byte[] saved = store.getPrivateKeySalt();
+        if (existing.length == 0) {
+            assertThat(saved, equalTo(salt));
+        } else {
+            assertThat(saved.length > 0, is(true));
+        }
+        assertThat(store.getPrivateKeySalt(), equalTo(saved));
+    }
+
+    @Test
+    public void saveAndGetChannel() throws ChannelNotFoundException {
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 10L);
+        assertThat(store.saveChannel(channel), is(true));
+        final Channel saved = store.getChannel(channel.getChannelId());
+        assertThat(saved.getUAID(), equalTo(channel.getUAID()));
+        assertThat(saved.getChannelId(), equalTo(channel.getChannelId()));
+        assertThat(saved.getVersion(), is(10L));
+        assertThat(saved.getEndpointToken(), equalTo(channel.getEndpointToken()));
+    }
+
+    @Test (expected = ChannelNotFoundException.class)
+    public void getChannelNotFound() throws ChannelNotFoundException {
+        store.getChannel(UUID.randomUUID().toString());
+    }
+
+    @Test
+    public void getChannelIds() {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel1 = newChannel(uaid, 0L);
+        final Channel channel2 = newChannel(uaid, 0L);
+        store.saveChannel(channel1);
+        store.saveChannel(channel2);
+        store.saveChannel(newChannel(UUIDUtil.newUAID(), 0L));
+        assertThat(store.getChannelIds(uaid), equalTo(set(channel1.getChannelId(), channel2.getChannelId())));
+        assertThat(store.getChannelIds(UUIDUtil.newUAID()).isEmpty(), is(true));
+    }
+
+    @Test
+    public void removeChannelsForUserAgent() {
+        final String uaid = UUIDUtil.newUAID();
+        store.saveChannel(newChannel(uaid, 0L));
+        store.saveChannel(newChannel(uaid, 0L));
+        final Channel other = newChannel(UUIDUtil.newUAID(), 0L);
+        store.saveChannel(other);
+        store.removeChannels(uaid);
+        assertThat(store.getChannelIds(uaid).isEmpty(), is(true));
+        assertThat(store.getChannelIds(other.getUAID()), hasItem(other.getChannelId()));
+    }
+
+    @Test
+    public void removeChannelsById() throws Exception {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel removed = newChannel(uaid, 0L);
+        final Channel kept = newChannel(uaid, 0L);
+        store.saveChannel(removed);
+        store.saveChannel(kept);
+        store.removeChannels(set(removed.getChannelId(), UUID.randomUUID().toString()));
+        assertThat(store.getChannelIds(uaid), equalTo(set(kept.getChannelId())));
+        try {
+            store.updateVersion(removed.getEndpointToken(), 1L);
+            throw new AssertionError("Endpoint token of removed channel should not be found");
+        } catch (final ChannelNotFoundException expected) {
+        }
+    }
+
+    @Test
+    public void updateVersion() throws Exception {
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 0L);
+        store.saveChannel(channel);
+        assertThat(store.updateVersion(channel.getEndpointToken(), 5L), equalTo(channel.getChannelId()));
+        assertThat(store.getChannel(channel.getChannelId()).getVersion(), is(5L));
+        assertThat(store.updateVersion(channel.getEndpointToken(), 6L), equalTo(channel.getChannelId()));
+        assertThat(store.getChannel(channel.getChannelId()).getVersion(), is(6L));
+    }
+
+    @Test (expected = VersionException.class)
+    public void updateVersionSameVersion() throws Exception {
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 0L);
+        store.saveChannel(channel);
+        store.updateVersion(channel.getEndpointToken(), 5L);
+        store.updateVersion(channel.getEndpointToken(), 5L);
+    }
+
+    @Test
+    public void updateVersionLowerVersionKeepsCurrentVersion() throws Exception {
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 0L);
+        store.saveChannel(channel);
+        store.updateVersion(channel.getEndpointToken(), 5L);
+        try {
+            store.updateVersion(channel.getEndpointToken(), 4L);
+            throw new AssertionError("Lower version should have been rejected");
+        } catch (final VersionException expected) {
+        }
+        assertThat(store.getChannel(channel.getChannelId()).getVersion(), is(5L));
+    }
+
+    @Test (expected = ChannelNotFoundException.class)
+    public void updateVersionUnknownEndpointToken() throws Exception {
+        store.updateVersion(UUID.randomUUID().toString(), 1L);
+    }
+
+    @Test
+    public void unacknowledged() throws ChannelNotFoundException {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel1 = newChannel(uaid, 0L);
+        final Channel channel2 = newChannel(uaid, 0L);
+        store.saveChannel(channel1);
+        store.saveChannel(channel2);
+        assertThat(store.getUnacknowledged(uaid).isEmpty(), is(true));
+        assertThat(store.saveUnacknowledged(channel1.getChannelId(), 1L), equalTo(uaid));
+        assertThat(store.saveUnacknowledged(channel2.getChannelId(), 2L), equalTo(uaid));
+        final Set<Ack> unacked = store.getUnacknowledged(uaid);
+        assertThat(unacked, equalTo(acks(ack(channel1.getChannelId(), 1L), ack(channel2.getChannelId(), 2L))));
+        assertThat(versionOf(unacked, channel2.getChannelId()), is(2L));
+    }
+
+    @Test (expected = ChannelNotFoundException.class)
+    public void saveUnacknowledgedUnknownChannel() throws ChannelNotFoundException {
+        store.saveUnacknowledged(UUID.randomUUID().toString(), 1L);
+    }
+
+    @Test
+    public void removeAcknowledged() throws ChannelNotFoundException {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel1 = newChannel(uaid, 0L);
+        final Channel channel2 = newChannel(uaid, 0L);
+        store.saveChannel(channel1);
+        store.saveChannel(channel2);
+        store.saveUnacknowledged(channel1.getChannelId(), 1L);
+        store.saveUnacknowledged(channel2.getChannelId(), 1L);
+        final Set<Ack> remaining = store.removeAcknowledged(uaid, acks(ack(channel1.getChannelId(), 1L)));
+        assertThat(remaining, equalTo(acks(ack(channel2.getChannelId(), 1L))));
+        assertThat(store.getUnacknowledged(uaid), equalTo(remaining));
+        assertThat(store.removeAcknowledged(uaid, remaining).isEmpty(), is(true));
+        assertThat(store.getUnacknowledged(uaid).isEmpty(), is(true));
+    }
+
+    @Test
+    public void saveUserAgents() throws ChannelNotFoundException {
+        assumeTrue(store instanceof BulkLoadDataStore);
+        final String uaid1 = UUIDUtil.newUAID();
+        final String uaid2 = UUIDUtil.newUAID();
+        final Channel channel1 = newChannel(uaid1, 3L);
+        final Channel channel2 = newChannel(uaid1, 0L);
+        final Channel channel3 = newChannel(uaid2, 7L);
+        final List<UserAgentRecord> records = Arrays.asList(
+                new UserAgentRecord(uaid1, set(channel1, channel2), acks(ack(channel1.getChannelId(), 3L))),
+                new UserAgentRecord(uaid2, set(channel3), Collections.<Ack>emptySet()));
+        final BulkLoadDataStore bulkStore = (BulkLoadDataStore) store;
+        bulkStore.saveUserAgents(records);
+        bulkStore.saveUserAgents(records);
+        assertThat(store.getChannelIds(uaid1), equalTo(set(channel1.getChannelId(), channel2.getChannelId())));
+        assertThat(store.getChannelIds(uaid2), equalTo(set(channel3.getChannelId())));
+        final Channel loaded = store.getChannel(channel1.getChannelId());
+        assertThat(loaded.getUAID(), equalTo(uaid1));
+        assertThat(loaded.getVersion(), is(3L));
+        assertThat(loaded.getEndpointToken(), equalTo(channel1.getEndpointToken()));
+        assertThat(store.updateVersion(channel3.getEndpointToken(), 8L), equalTo(channel3.getChannelId()));
+        assertThat(store.getUnacknowledged(uaid1), equalTo(acks(ack(channel1.getChannelId(), 3L))));
+        assertThat(store.getUnacknowledged(uaid2).isEmpty(), is(true));
+    }
+
+    @Test
+    public void getUserAgents() throws ChannelNotFoundException {
+        assumeTrue(store instanceof IterableDataStore);
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel1 = newChannel(uaid, 2L);
+        final Channel channel2 = newChannel(uaid, 0L);
+        store.saveChannel(channel1);
+        store.saveChannel(channel2);
+        store.saveUnacknowledged(channel1.getChannelId(), 2L);
+        UserAgentRecord found = null;
+        String after = null;
+        List<UserAgentRecord> page;
+        while (!(page = ((IterableDataStore) store).getUserAgents(after, 7)).isEmpty()) {
+            assertThat(page.size() <= 7, is(true));
+            for (UserAgentRecord record : page) {
+                if (after != null) {
+                    assertThat(record.getUAID().compareTo(after) > 0, is(true));
+                }
+                after = record.getUAID();
+                if (record.getUAID().equals(uaid)) {
+                    found = record;
+                }
+            }
+        }
+        assertThat(found, is(not((UserAgentRecord) null)));
+        final Set<String> channelIds = new HashSet<String>();
+        for (Channel channel : found.getChannels()) {
+            channelIds.add(channel.getChannelId());
+            if (channel.getChannelId().equals(channel1.getChannelId())) {
+                assertThat(channel.getVersion(), is(2L));
+                assertThat(channel.getEndpointToken(), equalTo(channel1.getEndpointToken()));
+            }
+        }
+        assertThat(channelIds, equalTo(set(channel1.getChannelId(), channel2.getChannelId())));
+        assertThat(found.getUnacknowledged(), equalTo(acks(ack(channel1.getChannelId(), 2L))));
+    }
+
+    /**
+     * Concurrent writers try to set the same increasing versions. Every version may be accepted at most once,
+     * and the highest version must win.
+     */
+    @Test
+    public void concurrentVersionUpdatesAreMonotonic() throws Exception {
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 0L);
+        store.saveChannel(channel);
+        final AtomicIntegerArray accepted = new AtomicIntegerArray(CONCURRENT_VERSIONS + 1);
+        runConcurrently(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (int version = 1; version <= CONCURRENT_VERSIONS; version++) {
+                    try {
+                        store.updateVersion(channel.getEndpointToken(), version);
+                        accepted.incrementAndGet(version);
+                    } catch (final VersionException ignored) {
+                    }
+                }
+                return null;
+            }
+        });
+        for (int version = 1; version <= CONCURRENT_VERSIONS; version++) {
+            assertThat("version " + version + " accepted more than once", accepted.get(version) <= 1, is(true));
+        }
+        assertThat(accepted.get(CONCURRENT_VERSIONS), is(1));
+        assertThat(store.getChannel(channel.getChannelId()).getVersion(), is((long) CONCURRENT_VERSIONS));
+    }
+
+    @Test
+    public void concurrentUnacknowledgedForSameUserAgent() throws Exception {
+        final String uaid = UUIDUtil.newUAID();
+        final Channel[] channels = new Channel[CONCURRENT_WRITERS];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = newChannel(uaid, 0L);
+            store.saveChannel(channels[i]);
+        }
+        final AtomicLong writer = new AtomicLong();
+        runConcurrently(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                final Channel channel = channels[(int) writer.getAndIncrement()];
+                for (int version = 1; version <= CONCURRENT_VERSIONS / 10; version++) {
+                    store.saveUnacknowledged(channel.getChannelId(), version);
+                }
+                return null;
+            }
+        });
+        final Set<Ack> unacked = store.getUnacknowledged(uaid);
+        assertThat(unacked.size(), is(channels.length));
+        for (Channel channel : channels) {
+            assertThat(unacked, hasItem(ack(channel.getChannelId(), 0L)));
+        }
+    }
+
+    @Test
+    public void concurrentRegistrations() throws Exception {
+        final String uaid = UUIDUtil.newUAID();
+        final Set<String> channelIds = Collections.synchronizedSet(new HashSet<String>());
+        runConcurrently(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (int i = 0; i < CONCURRENT_VERSIONS / 10; i++) {
+                    final Channel channel = newChannel(uaid, 0L);
+                    assertThat(store.saveChannel(channel), is(true));
+                    channelIds.add(channel.getChannelId());
+                }
+                return null;
+            }
+        });
+        assertThat(store.getChannelIds(uaid), equalTo(channelIds));
+    }
+
+    @Test
+    public void mixedWorkload() throws Exception {
+        final DataStoreWorkload.Report report = DataStoreWorkload.builder()
+                .userAgents(Integer.getInteger("simplepush.workload.userAgents", 20))
+                .operations(Integer.getInteger("simplepush.workload.operations", 500))
+                .threads(Integer.getInteger("simplepush.workload.threads", CONCURRENT_WRITERS))
+                .build()
+                .run(store);
+        System.out.println(getClass().getSimpleName() + " " + report);
+        assertThat(String.valueOf(report.firstError()), report.errors(), is(0L));
+        assertThat(report.operations(), is(not(0L)));
+    }
+
+    private void runConcurrently(final Callable<Void> task) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(CONCURRENT_WRITERS);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final Future<?>[] futures = new Future<?>[CONCURRENT_WRITERS];
+            for (int i = 0; i < CONCURRENT_WRITERS; i++) {
+                futures[i] = executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        return task.call();
+                    }
+                });
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates a channel with a unique channel id and endpoint token for the passed in UserAgent. The endpoint
+     * token is routed when the DataStore under test is a {@link RoutingDataStore}.
+     */
+    protected Channel newChannel(final String uaid, final long version) {
+        final String channelId = UUID.randomUUID().toString();
+        final String endpointToken = "token-" + channelId;
+        if (store instanceof RoutingDataStore) {
+            return new DefaultChannel(uaid, channelId, version, ((RoutingDataStore) store).routedEndpointToken(uaid, endpointToken));
+        }
+        return new DefaultChannel(uaid, channelId, version, endpointToken);
+    }
+
+    private static long versionOf(final Set<Ack> acks, final String channelId) {
+        for (Ack ack : acks) {
+            if (ack.getChannelId().equals(channelId)) {
+                return ack.getVersion();
+            }
+        }
+        throw new AssertionError("No ack for channel " + channelId);
+    }
+
+    private static <T> Set<T> set(final T... values) {
+        return new HashSet<T>(Arrays.asList(values));
+    }
+
+    private static Ack ack(final String channelId, final long version) {
+        return new AckImpl(channelId, version);
+    }
+
+    private static Set<Ack> acks(final Ack... acks) {
+        return new HashSet<Ack>(Arrays.asList(acks));
+    }
+
+}
@@ -0,0 +1,317 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
+import org.jboss.aerogear.simplepush.util.UUIDUtil;
+
+/**
+ * Runs a mixed SimplePush workload against a {@link DataStore} and reports its throughput and latency
+ * percentiles per operation.
+ * <p>
+ * The workload is made of the DataStore calls the server makes for each kind of message:
+ * <ul>
+ * <li>{@code HELLO} reads the channels and unacknowledged notifications of a UserAgent.</li>
+ * <li>{@code REGISTER} saves a new channel for a UserAgent and removes the channel it replaces, so that the
+ * number of channels stays constant.</li>
+ * <li>{@code NOTIFY} updates the version of a channel and saves it as unacknowledged.</li>
+ * <li>{@code ACK} removes all unacknowledged notifications of a UserAgent.</li>
+ * </ul>
+ * The UserAgents and their channels are created before the measured run. Operations are picked at random
+ * using the configured weights and run by the configured number of threads. A notification that loses a race
+ * with a newer notification or with the removal of its channel is counted as rejected, which is expected
+ * behaviour, while any other exception is counted as an error.
+ */
+public final class DataStoreWorkload {
+
+    /**
+     * The kinds of operations making up the workload.
+     */
+    public enum Operation {
+        HELLO, REGISTER, NOTIFY, ACK
+    }
+
+    private final int userAgents;
+    private final int channelsPerUserAgent;
+    private final int operations;
+    private final int threads;
+    private final Map<Operation, Integer> weights;
+
+    private DataStoreWorkload(final Builder builder) {
+        userAgents = builder.userAgents;
+        channelsPerUserAgent = builder.channelsPerUserAgent;
+        operations = builder.operations;
+        threads = builder.threads;
+        weights = new EnumMap<Operation, Integer>(builder.weights);
+    }
+
+    /**
+     * Runs the workload.
+     *
+     * @param store the {@link DataStore} to run the workload against.
+     * @return {@link Report} the throughput and latencies of the run.
+     */
+    public Report run(final DataStore store) throws InterruptedException {
+        final String[] uaids = new String[userAgents];
+        final AtomicReferenceArray<Channel> channels = new AtomicReferenceArray<Channel>(userAgents * channelsPerUserAgent);
+        for (int i = 0; i < userAgents; i++) {
+            uaids[i] = UUIDUtil.newUAID();
+            for (int c = 0; c < channelsPerUserAgent; c++) {
+                final Channel channel = newChannel(store, uaids[i]);
+                store.saveChannel(channel);
+                channels.set(i * channelsPerUserAgent + c, channel);
+            }
+        }
+
+        final Report report = new Report();
+        final AtomicLong remaining = new AtomicLong(operations);
+        final AtomicLong versions = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (remaining.decrementAndGet() >= 0) {
+                            final Operation operation = pick(random.nextInt(totalWeight()));
+                            final int slot = random.nextInt(channels.length());
+                            final long begin = System.nanoTime();
+                            try {
+                                perform(store, operation, uaids[slot / channelsPerUserAgent], slot, channels, versions);
+                            } catch (final VersionException e) {
+                                report.rejected.incrementAndGet();
+                            } catch (final ChannelNotFoundException e) {
+                                report.rejected.incrementAndGet();
+                            } catch (final Exception e) {
+                                report.errors.incrementAndGet();
+                                report.firstError.compareAndSet(null, e);
+                            }
+                            report.latencies.get(operation).record(System.nanoTime() - begin);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+        report.elapsedNanos = System.nanoTime() - start;
+        executor.shutdown();
+        return report;
+    }
+
+    private void perform(final DataStore store, final Operation operation, final String uaid, final int slot,
+            final AtomicReferenceArray<Channel> channels, final AtomicLong versions) throws Exception {
+        switch (operation) {
+            case HELLO:
+                store.getChannelIds(uaid);
+                store.getUnacknowledged(uaid);
+                break;
+            case REGISTER:
+                final Channel replacement = newChannel(store, uaid);
+                store.saveChannel(replacement);
+                final Channel replaced = channels.getAndSet(slot, replacement);
+                store.removeChannels(Collections.singleton(replaced.getChannelId()));
+                break;
+            case NOTIFY:
+                final Channel channel = channels.get(slot);
+                final long version = versions.incrementAndGet();
+                store.updateVersion(channel.getEndpointToken(), version);
+                store.saveUnacknowledged(channel.getChannelId(), version);
+                break;
+            case ACK:
+                final Set<Ack> unacked = store.getUnacknowledged(uaid);
+                if (!unacked.isEmpty()) {
+                    store.removeAcknowledged(uaid, unacked);
+                }
+                break;
+        }
+    }
+
+    private static Channel newChannel(final DataStore store, final String uaid) {
+        final String channelId = UUID.randomUUID().toString();
+        final String endpointToken = "token-" + channelId;
+        if (store instanceof RoutingDataStore) {
+            return new DefaultChannel(uaid, channelId, ((RoutingDataStore) store).routedEndpointToken(uaid, endpointToken));
+        }
+        return new DefaultChannel(uaid, channelId, endpointToken);
+    }
+
+    private int totalWeight() {
+        int total = 0;
+        for (int weight : weights.values()) {
+            total += weight;
+        }
+        return total;
+    }
+
+    private Operation pick(final int value) {
+        int bound = 0;
+        for (Entry<Operation, Integer> entry : weights.entrySet()) {
+            bound += entry.getValue();
+            if (value < bound) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("No operation for " + value);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private int userAgents = 100;
+        private int channelsPerUserAgent = 3;
+        private int operations = 10000;
+        private int threads = 4;
+        private final Map<Operation, Integer> weights = new EnumMap<Operation, Integer>(Operation.class);
+
+        Builder() {
+            weights.put(Operation.HELLO, 10);
+            weights.put(Operation.REGISTER, 5);
+            weights.put(Operation.NOTIFY, 60);
+            weights.put(Operation.ACK, 25);
+        }
+
+        public Builder userAgents(final int userAgents) {
+            this.userAgents = userAgents;
+            return this;
+        }
+
+        public Builder channelsPerUserAgent(final int channelsPerUserAgent) {
+            this.channelsPerUserAgent = channelsPerUserAgent;
+            return this;
+        }
+
+        public Builder operations(final int operations) {
+            this.operations = operations;
+            return this;
+        }
+
+        public Builder threads(final int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Sets the relative frequency of an operation. A weight of 0 disables the operation.
+         */
+        public Builder weight(final Operation operation, final int weight) {
+            weights.put(operation, weight);
+            return this;
+        }
+
+        public DataStoreWorkload build() {
+            if (userAgents <= 0 || channelsPerUserAgent <= 0 || threads <= 0) {
+                throw new IllegalArgumentException("userAgents, channelsPerUserAgent and threads must be greater than zero");
+            }
+            return new DataStoreWorkload(this);
+        }
+    }
+
+    /**
+     * The outcome of a workload run.
+     */
+    public static final class Report {
+
+        private final Map<Operation, LatencyHistogram> latencies = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicReference<Exception> firstError = new AtomicReference<Exception>();
+        private volatile long elapsedNanos;
+
+        Report() {
+            for (Operation operation : Operation.values()) {
+                latencies.put(operation, new LatencyHistogram());
+            }
+        }
+
+        public LatencyHistogram latencies(final Operation operation) {
+            return latencies.get(operation);
+        }
+
+        public long operations() {
+            long operations = 0;
+            for (LatencyHistogram histogram : latencies.values()) {
+                operations += histogram.count();
+            }
+            return operations;
+        }
+
+        public long rejected() {
+            return rejected.get();
+        }
+
+        public long errors() {
+            return errors.get();
+        }
+
+        /**
+         * Returns the first unexpected exception of the run.
+         *
+         * @return {@code Exception} the first error, or {@code null} if there were no errors.
+         */
+        public Exception firstError() {
+            return firstError.get();
+        }
+
+        public double operationsPerSecond() {
+            return elapsedNanos == 0 ? 0 : operations() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(String.format("operations=%d rejected=%d errors=%d elapsed=%dms throughput=%.0f ops/s",
+                    operations(), rejected(), errors(), TimeUnit.NANOSECONDS.toMillis(elapsedNanos), operationsPerSecond()));
+            for (Entry<Operation, LatencyHistogram> entry : latencies.entrySet()) {
+                sb.append(String.format("%n  %-8s %s", entry.getKey(), entry.getValue()));
+            }
+            if (firstError() != null) {
+                Throwable cause = firstError();
+                while (cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                sb.append(String.format("%n  first error: %s, caused by %s", firstError(), cause));
+            }
+            return sb.toString();
+        }
+    }
+
+}
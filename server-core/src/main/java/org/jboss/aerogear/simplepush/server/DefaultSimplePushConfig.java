@@ -32,6 +32,15 @@ public final class DefaultSimplePushConfig implements SimplePushServerConfig {
     private final long reaperTimeout;
     private final long ackInterval;
     private final int notifierMaxThreads;
+    private final int endpointRateLimit;
+    private final int endpointBurst;
+    private final int ipRateLimit;
+    private final int ipBurst;
+    private final boolean deliveryReports;
+    private final long dedupWindowMillis;
+    private final int dedupMaxEntries;
+    private final boolean topics;
+    private final long coalesceWindowMillis;
 
     private DefaultSimplePushConfig(final Builder builder) {
         host = builder.host;
@@ -45,6 +54,15 @@ public final class DefaultSimplePushConfig implements SimplePushServerConfig {
         ackInterval = builder.ackInterval;
         password = builder.password;
         notifierMaxThreads = builder.notifierMaxThreads;
+        endpointRateLimit = builder.endpointRateLimit;
+        endpointBurst = builder.endpointBurst <= 0 ? Math.max(1, endpointRateLimit) : builder.endpointBurst;
+        ipRateLimit = builder.ipRateLimit;
+        ipBurst = builder.ipBurst <= 0 ? Math.max(1, ipRateLimit) : builder.ipBurst;
+        deliveryReports = builder.deliveryReports;
+        dedupWindowMillis = builder.dedupWindowMillis;
+        dedupMaxEntries = builder.dedupMaxEntries;
+        topics = builder.topics;
+        coalesceWindowMillis = builder.coalesceWindowMillis;
     }
 
     private static String makeEndpointUrl(final String endpointHost, final int endpointPort, final String prefix, final boolean tls) {
@@ -109,6 +127,51 @@ public final class DefaultSimplePushConfig implements SimplePushServerConfig {
         return notifierMaxThreads;
     }
 
+    @Override
+    public int endpointRateLimit() {
+        return endpointRateLimit;
+    }
+
+    @Override
+    public int endpointBurst() {
+        return endpointBurst;
+    }
+
+    @Override
+    public int ipRateLimit() {
+        return ipRateLimit;
+    }
+
+    @Override
+    public int ipBurst() {
+        return ipBurst;
+    }
+
+    @Override
+    public boolean deliveryReports() {
+        return deliveryReports;
+    }
+
+    @Override
+    public long dedupWindowMillis() {
+        return dedupWindowMillis;
+    }
+
+    @Override
+    public int dedupMaxEntries() {
+        return dedupMaxEntries;
+    }
+
+    @Override
+    public boolean topics() {
+        return topics;
+    }
+
+    @Override
+    public long coalesceWindowMillis() {
+        return coalesceWindowMillis;
+    }
+
     public String toString() {
         return new StringBuilder("SimplePushConfig[host=").append(host)
                 .append(", port=").append(port)
@@ -120,6 +183,15 @@ public final class DefaultSimplePushConfig implements SimplePushServerConfig {
                 .append(", reaperTimeout=").append(reaperTimeout)
                 .append(", ackInterval=").append(ackInterval)
                 .append(", notifierMaxThreads=").append(notifierMaxThreads)
+                .append(", endpointRateLimit=").append(endpointRateLimit)
+                .append(", endpointBurst=").append(endpointBurst)
+                .append(", ipRateLimit=").append(ipRateLimit)
+                .append(", ipBurst=").append(ipBurst)
+                .append(", deliveryReports=").append(deliveryReports)
+                .append(", dedupWindowMillis=").append(dedupWindowMillis)
+                .append(", dedupMaxEntries=").append(dedupMaxEntries)
+                .append(", topics=").append(topics)
+                .append(", coalesceWindowMillis=").append(coalesceWindowMillis)
                 .append("]").toString();
     }
 
@@ -142,6 +214,15 @@ public final class DefaultSimplePushConfig implements SimplePushServerConfig {
         private long timeout = 604800000L;
         private long ackInterval = 60000;
         private int notifierMaxThreads = Runtime.getRuntime().availableProcessors();
+        private int endpointRateLimit;
+        private int endpointBurst;
+        private int ipRateLimit;
+        private int ipBurst;
+        private boolean deliveryReports;
+        private long dedupWindowMillis;
+        private int dedupMaxEntries = NotificationDeduplicator.DEFAULT_MAX_ENTRIES;
+        private boolean topics;
+        private long coalesceWindowMillis;
 
         public Builder host(final String host) {
             if (host != null) {
@@ -201,6 +282,51 @@ public final class DefaultSimplePushConfig implements SimplePushServerConfig {
             return this;
         }
 
+        public Builder endpointRateLimit(final int perSecond) {
+            endpointRateLimit = perSecond;
+            return this;
+        }
+
+        public Builder endpointBurst(final int burst) {
+            endpointBurst = burst;
+            return this;
+        }
+
+        public Builder ipRateLimit(final int perSecond) {
+            ipRateLimit = perSecond;
+            return this;
+        }
+
+        public Builder ipBurst(final int burst) {
+            ipBurst = burst;
+            return this;
+        }
+
+        public Builder deliveryReports(final boolean enabled) {
+            deliveryReports = enabled;
+            return this;
+        }
+
+        public Builder dedupWindowMillis(final long windowMillis) {
+            dedupWindowMillis = windowMillis;
+            return this;
+        }
+
+        public Builder dedupMaxEntries(final int maxEntries) {
+            dedupMaxEntries = maxEntries;
+            return this;
+        }
+
+        public Builder topics(final boolean enabled) {
+            topics = enabled;
+            return this;
+        }
+
+        public Builder coalesceWindowMillis(final long windowMillis) {
+            coalesceWindowMillis = windowMillis;
+            return this;
+        }
+
         public SimplePushServerConfig build() {
             if (password == null) {
                 throw new IllegalStateException("No 'password' was configured!");
@@ -16,9 +16,17 @@
  */
 package org.jboss.aerogear.simplepush.server;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.aerogear.crypto.RandomUtils;
 import org.jboss.aerogear.simplepush.protocol.Ack;
@@ -35,52 +43,228 @@ import org.jboss.aerogear.simplepush.protocol.impl.RegisterResponseImpl;
 import org.jboss.aerogear.simplepush.protocol.impl.StatusImpl;
 import org.jboss.aerogear.simplepush.protocol.impl.UnregisterResponseImpl;
 import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
+import org.jboss.aerogear.simplepush.server.datastore.AsyncDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.AvailabilityAwareDataStore;
 import org.jboss.aerogear.simplepush.server.datastore.ChannelNotFoundException;
+import org.jboss.aerogear.simplepush.server.datastore.ConnectionAwareDataStore;
 import org.jboss.aerogear.simplepush.server.datastore.DataStore;
+import org.jboss.aerogear.simplepush.server.datastore.DataStoreFuture;
+import org.jboss.aerogear.simplepush.server.datastore.DataStoreUnavailableException;
+import org.jboss.aerogear.simplepush.server.datastore.EndpointFilterDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.ExecutorAsyncDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.LastSeenDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.RoutingDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.VersionException;
 import org.jboss.aerogear.simplepush.util.CryptoUtil;
 import org.jboss.aerogear.simplepush.util.VersionExtractor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Concrete implementation of {@link SimplePushServer} that uses a {@link DataStore} to
  * store information about UserAgents and channels.
+ *
+ * All messages can also be handled without blocking through the asynchronous variants of the handle methods,
+ * such as {@link #handleHandshakeAsync(HelloMessage)}, which use an {@link AsyncDataStore} for the same storage.
+ *
+ * Unless an {@link AsyncDataStore} is passed in, the asynchronous methods run the operations of the DataStore
+ * on a pool of {@link #DEFAULT_ASYNC_THREADS} daemon threads that is shared by all such servers in the process
+ * and whose idle threads are stopped. Servers with a lifecycle should pass in an AsyncDataStore with an executor
+ * they shut down themselves.
+ *
+ * When the DataStore is unavailable, see {@link DataStoreUnavailableException}, handshakes still succeed using
+ * whatever state the DataStore could provide, and the channels of the UserAgent are brought up to date on its
+ * next handshake.
  */
 public class DefaultSimplePushServer implements SimplePushServer {
 
+    public static final int DEFAULT_ASYNC_THREADS = 16;
+    private static final long ASYNC_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+    private final Logger logger = LoggerFactory.getLogger(DefaultSimplePushServer.class);
     private final DataStore store;
+    private final AsyncDataStore asyncStore;
     private final SimplePushServerConfig config;
     private final byte[] privateKey;
 
     /**
-     * Sole constructor.
+     * Creates a DefaultSimplePushServer whose asynchronous methods run the operations of the passed in
+     * {@link DataStore} on the pool of {@link #DEFAULT_ASYNC_THREADS} threads shared by all such servers.
      *
      * @param store the {@link DataStore} that this server should use.
      * @param config the {@link SimplePushServerConfig} for this server.
      */
     public DefaultSimplePushServer(final DataStore store, final SimplePushServerConfig config, final byte[] privateKey) {
+        this(store, new ExecutorAsyncDataStore(store, AsyncExecutorHolder.EXECUTOR), config, privateKey);
+    }
+
+    /**
+     * Creates a DefaultSimplePushServer whose asynchronous methods use the passed in {@link AsyncDataStore},
+     * which must access the same storage as the {@link DataStore}.
+     *
+     * @param store the {@link DataStore} that this server should use.
+     * @param asyncStore the {@link AsyncDataStore} used by the asynchronous methods.
+     * @param config the {@link SimplePushServerConfig} for this server.
+     */
+    public DefaultSimplePushServer(final DataStore store, final AsyncDataStore asyncStore, final SimplePushServerConfig config,
+            final byte[] privateKey) {
         this.store = store;
+        this.asyncStore = asyncStore;
         this.config = config;
         this.privateKey = privateKey;
     }
 
+    private static final class AsyncExecutorHolder {
+
+        // created on first use, so that servers which pass in an AsyncDataStore never start it.
+        private static final Executor EXECUTOR = newAsyncExecutor();
+    }
+
+    private static Executor newAsyncExecutor() {
+        final AtomicInteger threads = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_ASYNC_THREADS, DEFAULT_ASYNC_THREADS,
+                ASYNC_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r, "simplepush-datastore-" + threads.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        // the pool is never shut down, so threads must not outlive their use.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
     @Override
     public HelloResponse handleHandshake(final HelloMessage handshake) {
-        final Set<String> oldChannels = store.getChannelIds(handshake.getUAID());
+        try {
+            updateChannels(handshake);
+        } catch (final DataStoreUnavailableException e) {
+            logger.warn("Could not update the channels of UserAgent [" + handshake.getUAID() + "]: " + e.getMessage());
+        }
+        return new HelloResponseImpl(handshake.getUAID());
+    }
+
+    private void updateChannels(final HelloMessage handshake) {
+        connected(handshake.getUAID());
+        updateLastSeen(handshake.getUAID());
+        final String uaid = handshake.getUAID();
+        final Set<String> oldChannels = store.getChannelIds(uaid);
+        final List<String> newChannels = new ArrayList<String>();
         for (String channelId : handshake.getChannelIds()) {
-            if (!oldChannels.contains(channelId)) {
-                store.saveChannel(new DefaultChannel(handshake.getUAID(),
-                        channelId,
-                        generateEndpointToken(handshake.getUAID(), channelId)));
-            } else {
-                oldChannels.remove(channelId);
+            if (!oldChannels.remove(channelId)) {
+                newChannels.add(channelId);
             }
         }
+        final List<String> endpointTokens = generateEndpointTokens(uaid, newChannels);
+        for (int i = 0; i < newChannels.size(); i++) {
+            store.saveChannel(new DefaultChannel(uaid, newChannels.get(i), endpointTokens.get(i)));
+        }
         store.removeChannels(oldChannels);
-        return new HelloResponseImpl(handshake.getUAID());
+    }
+
+    private void connected(final String uaid) {
+        if (store instanceof ConnectionAwareDataStore) {
+            try {
+                ((ConnectionAwareDataStore) store).userAgentConnected(uaid);
+            } catch (final DataStoreUnavailableException e) {
+                logger.warn("Could not load UserAgent [" + uaid + "]: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Handles a handshake without blocking. Once the UserAgent has been marked as connected, its last seen time
+     * is updated while its channels are read, and the new channels saved and the removed channels removed at
+     * the same time.
+     *
+     * @param handshake the {@link HelloMessage} of the UserAgent.
+     * @return {@code DataStoreFuture} completing with the {@link HelloResponse} once the channels are stored.
+     */
+    @Override
+    public DataStoreFuture<HelloResponse> handleHandshakeAsync(final HelloMessage handshake) {
+        final String uaid = handshake.getUAID();
+        final DataStoreFuture<HelloResponse> response = new DataStoreFuture<HelloResponse>();
+        asyncStore.userAgentConnected(uaid).addListener(new DataStoreFuture.Listener<Void>() {
+            @Override
+            public void operationComplete(final DataStoreFuture<Void> connected) {
+                if (!connected.isSuccess()) {
+                    if (!(connected.cause() instanceof DataStoreUnavailableException)) {
+                        response.fail(connected.cause());
+                        return;
+                    }
+                    logger.warn("Could not load UserAgent [" + uaid + "]: " + connected.cause().getMessage());
+                }
+                updateChannelsAsync(handshake, response);
+            }
+        });
+        return response;
+    }
+
+    private void updateChannelsAsync(final HelloMessage handshake, final DataStoreFuture<HelloResponse> response) {
+        final String uaid = handshake.getUAID();
+        final DataStoreFuture<Void> lastSeen = asyncStore.updateLastSeen(uaid, System.currentTimeMillis());
+        asyncStore.getChannelIds(uaid).addListener(new DataStoreFuture.Listener<Set<String>>() {
+            @Override
+            public void operationComplete(final DataStoreFuture<Set<String>> channelIds) {
+                if (!channelIds.isSuccess()) {
+                    completeUnavailable(response, uaid, channelIds.cause());
+                    return;
+                }
+                final Set<String> oldChannels = new HashSet<String>(channelIds.getNow());
+                final List<String> newChannels = new ArrayList<String>();
+                for (String channelId : handshake.getChannelIds()) {
+                    if (!oldChannels.remove(channelId)) {
+                        newChannels.add(channelId);
+                    }
+                }
+                final List<String> endpointTokens = generateEndpointTokens(uaid, newChannels);
+                final List<DataStoreFuture<?>> writes = new ArrayList<DataStoreFuture<?>>();
+                writes.add(lastSeen);
+                for (int i = 0; i < newChannels.size(); i++) {
+                    writes.add(asyncStore.saveChannel(new DefaultChannel(uaid, newChannels.get(i), endpointTokens.get(i))));
+                }
+                writes.add(asyncStore.removeChannels(oldChannels));
+                DataStoreFuture.all(writes).addListener(new DataStoreFuture.Listener<Void>() {
+                    @Override
+                    public void operationComplete(final DataStoreFuture<Void> written) {
+                        if (written.isSuccess()) {
+                            response.complete(new HelloResponseImpl(uaid));
+                        } else {
+                            completeUnavailable(response, uaid, written.cause());
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void completeUnavailable(final DataStoreFuture<HelloResponse> response, final String uaid, final Throwable cause) {
+        if (cause instanceof DataStoreUnavailableException) {
+            logger.warn("Could not update the channels of UserAgent [" + uaid + "]: " + cause.getMessage());
+            response.complete(new HelloResponseImpl(uaid));
+        } else {
+            response.fail(cause);
+        }
     }
 
     private String generateEndpointToken(final String uaid, final String channelId) {
-        return CryptoUtil.endpointToken(uaid, channelId, privateKey);
+        final String endpointToken = CryptoUtil.endpointToken(uaid, channelId, privateKey);
+        if (store instanceof RoutingDataStore) {
+            return ((RoutingDataStore) store).routedEndpointToken(uaid, endpointToken);
+        }
+        return endpointToken;
+    }
+
+    private List<String> generateEndpointTokens(final String uaid, final List<String> channelIds) {
+        final List<String> endpointTokens = CryptoUtil.endpointTokens(uaid, channelIds, privateKey);
+        if (store instanceof RoutingDataStore) {
+            for (int i = 0; i < endpointTokens.size(); i++) {
+                endpointTokens.set(i, ((RoutingDataStore) store).routedEndpointToken(uaid, endpointTokens.get(i)));
+            }
+        }
+        return endpointTokens;
     }
 
     @Override
@@ -92,6 +276,25 @@ public class DefaultSimplePushServer implements SimplePushServer {
         return new RegisterResponseImpl(channelId, status, makeEndpointUrl(endpointToken));
     }
 
+    @Override
+    public DataStoreFuture<RegisterResponse> handleRegisterAsync(final RegisterMessage register, final String uaid) {
+        final String channelId = register.getChannelId();
+        final String endpointToken = generateEndpointToken(uaid, channelId);
+        final DataStoreFuture<RegisterResponse> response = new DataStoreFuture<RegisterResponse>();
+        asyncStore.saveChannel(new DefaultChannel(uaid, channelId, endpointToken)).addListener(new DataStoreFuture.Listener<Boolean>() {
+            @Override
+            public void operationComplete(final DataStoreFuture<Boolean> saved) {
+                if (!saved.isSuccess()) {
+                    response.fail(saved.cause());
+                    return;
+                }
+                final Status status = saved.getNow() ? new StatusImpl(200, "OK") : new StatusImpl(409, "Conflict: channeld [" + channelId + " is already in use");
+                response.complete(new RegisterResponseImpl(channelId, status, makeEndpointUrl(endpointToken)));
+            }
+        });
+        return response;
+    }
+
     @Override
     public Notification handleNotification(final String endpointToken, final String body) throws ChannelNotFoundException {
         final Long version = Long.valueOf(VersionExtractor.extractVersion(body));
@@ -104,6 +307,66 @@ public class DefaultSimplePushServer implements SimplePushServer {
         return new Notification(uaid, ack);
     }
 
+    /**
+     * Handles a notification without blocking.
+     *
+     * @param endpointToken the endpoint token of the notified channel.
+     * @param body the body of the notification request, holding the version.
+     * @return {@code DataStoreFuture} completing with the {@link Notification} to send to the UserAgent, or
+     *         failing with a {@link ChannelNotFoundException} or a {@link VersionException}.
+     */
+    @Override
+    public DataStoreFuture<Notification> handleNotificationAsync(final String endpointToken, final String body) {
+        final long version;
+        try {
+            version = Long.valueOf(VersionExtractor.extractVersion(body));
+        } catch (final RuntimeException e) {
+            return DataStoreFuture.failed(e);
+        }
+        final DataStoreFuture<Notification> notification = new DataStoreFuture<Notification>();
+        asyncStore.updateVersion(endpointToken, version).addListener(new DataStoreFuture.Listener<String>() {
+            @Override
+            public void operationComplete(final DataStoreFuture<String> updated) {
+                if (!updated.isSuccess()) {
+                    notification.fail(updated.cause());
+                    return;
+                }
+                final String channelId = updated.getNow();
+                if (channelId == null) {
+                    notification.fail(new ChannelNotFoundException("Could not find channel for endpoint [" + endpointToken + "]", null));
+                    return;
+                }
+                final Ack ack = new AckImpl(channelId, version);
+                asyncStore.saveUnacknowledged(channelId, version).addListener(new DataStoreFuture.Listener<String>() {
+                    @Override
+                    public void operationComplete(final DataStoreFuture<String> saved) {
+                        if (saved.isSuccess()) {
+                            notification.complete(new Notification(saved.getNow(), ack));
+                        } else {
+                            notification.fail(saved.cause());
+                        }
+                    }
+                });
+            }
+        });
+        return notification;
+    }
+
+    @Override
+    public void checkAvailable() {
+        if (store instanceof AvailabilityAwareDataStore) {
+            ((AvailabilityAwareDataStore) store).checkAvailable();
+        }
+    }
+
+    @Override
+    public boolean mightHaveChannel(final String endpointToken) {
+        if (store instanceof EndpointFilterDataStore) {
+            return ((EndpointFilterDataStore) store).mightContainEndpoint(endpointToken);
+        }
+        return true;
+    }
+
     @Override
     public UnregisterResponse handleUnregister(final UnregisterMessage unregister, final String uaid) {
         final String channelId = unregister.getChannelId();
@@ -115,16 +378,73 @@ public class DefaultSimplePushServer implements SimplePushServer {
         }
     }
 
+    /**
+     * Handles an unregistration without blocking. As with {@link #handleUnregister(UnregisterMessage, String)},
+     * unregistering a channel that does not exist or belongs to another UserAgent succeeds without effect.
+     *
+     * @param unregister the {@link UnregisterMessage} of the UserAgent.
+     * @param uaid the UserAgent Id of the UserAgent.
+     * @return {@code DataStoreFuture} completing with the {@link UnregisterResponse}, which never fails.
+     */
+    @Override
+    public DataStoreFuture<UnregisterResponse> handleUnregisterAsync(final UnregisterMessage unregister, final String uaid) {
+        final String channelId = unregister.getChannelId();
+        final DataStoreFuture<UnregisterResponse> response = new DataStoreFuture<UnregisterResponse>();
+        asyncStore.getChannel(channelId).addListener(new DataStoreFuture.Listener<Channel>() {
+            @Override
+            public void operationComplete(final DataStoreFuture<Channel> channel) {
+                if (!channel.isSuccess()) {
+                    if (channel.cause() instanceof ChannelNotFoundException) {
+                        response.complete(new UnregisterResponseImpl(channelId, new StatusImpl(200, "OK")));
+                    } else {
+                        response.complete(new UnregisterResponseImpl(channelId, new StatusImpl(500, "Could not remove the channel")));
+                    }
+                    return;
+                }
+                if (!channel.getNow().getUAID().equals(uaid)) {
+                    response.complete(new UnregisterResponseImpl(channelId, new StatusImpl(200, "OK")));
+                    return;
+                }
+                asyncStore.removeChannels(new HashSet<String>(Arrays.asList(channelId))).addListener(new DataStoreFuture.Listener<Void>() {
+                    @Override
+                    public void operationComplete(final DataStoreFuture<Void> removed) {
+                        response.complete(removed.isSuccess()
+                                ? new UnregisterResponseImpl(channelId, new StatusImpl(200, "OK"))
+                                : new UnregisterResponseImpl(channelId, new StatusImpl(500, "Could not remove the channel")));
+                    }
+                });
+            }
+        });
+        return response;
+    }
+
     @Override
     public Set<Ack> handleAcknowledgement(final AckMessage ackMessage, final String uaid) {
         return store.removeAcknowledged(uaid, ackMessage.getAcks());
     }
 
+    /**
+     * Handles an acknowledgement without blocking.
+     *
+     * @param ackMessage the {@link AckMessage} of the UserAgent.
+     * @param uaid the UserAgent Id of the UserAgent.
+     * @return {@code DataStoreFuture} completing with the notifications that are still unacknowledged.
+     */
+    @Override
+    public DataStoreFuture<Set<Ack>> handleAcknowledgementAsync(final AckMessage ackMessage, final String uaid) {
+        return asyncStore.removeAcknowledged(uaid, ackMessage.getAcks());
+    }
+
     @Override
     public Set<Ack> getUnacknowledged(final String uaid) {
         return store.getUnacknowledged(uaid);
     }
 
+    @Override
+    public DataStoreFuture<Set<Ack>> getUnacknowledgedAsync(final String uaid) {
+        return asyncStore.getUnacknowledged(uaid);
+    }
+
     public String getUAID(final String channelId) throws ChannelNotFoundException {
         return getChannel(channelId).getUAID();
     }
@@ -158,6 +478,24 @@ public class DefaultSimplePushServer implements SimplePushServer {
         return config.endpointUrl() + "/" + endpointToken;
     }
 
+    @Override
+    public void handleDisconnect(final String uaid) {
+        try {
+            updateLastSeen(uaid);
+        } catch (final DataStoreUnavailableException e) {
+            logger.warn("Could not update the last seen time of UserAgent [" + uaid + "]: " + e.getMessage());
+        }
+        if (store instanceof ConnectionAwareDataStore) {
+            ((ConnectionAwareDataStore) store).userAgentDisconnected(uaid);
+        }
+    }
+
+    private void updateLastSeen(final String uaid) {
+        if (store instanceof LastSeenDataStore) {
+            ((LastSeenDataStore) store).updateLastSeen(uaid, System.currentTimeMillis());
+        }
+    }
+
     @Override
     public void removeAllChannels(final String uaid) {
         store.removeChannels(uaid);
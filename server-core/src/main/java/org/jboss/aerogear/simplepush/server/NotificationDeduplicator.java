@@ -0,0 +1,269 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the endpoint token and version of recent notifications, so that repeated notifications, for example
+ * those retried by application servers after a timeout, can be answered without being handled again.
+ * <p>
+ * A notification is remembered for {@code windowMillis} after it was first seen, together with the outcome of
+ * handling it once that is known. Notifications are spread over shards, and each shard removes the expired ones
+ * at most once per window while it is being used. A shard that holds {@code maxEntries} divided by the number of
+ * shards does not remember further notifications, which are then handled as usual, so that the memory used stays
+ * bounded.
+ */
+public class NotificationDeduplicator {
+
+    public static final int DEFAULT_SHARDS = 16;
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    /**
+     * Returned by {@link #register(String, long)} for a notification that has not been seen within the window.
+     */
+    public static final int NEW = -1;
+
+    /**
+     * Returned by {@link #register(String, long)} for a repeated notification whose outcome is not known yet.
+     */
+    public static final int PENDING = 0;
+
+    private final Shard[] shards;
+    private final long windowNanos;
+    private final int maxEntriesPerShard;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong untracked = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * Creates a NotificationDeduplicator that uses {@link #DEFAULT_MAX_ENTRIES} and {@link #DEFAULT_SHARDS}.
+     *
+     * @param windowMillis the time a notification is remembered for.
+     */
+    public NotificationDeduplicator(final long windowMillis) {
+        this(windowMillis, DEFAULT_MAX_ENTRIES, DEFAULT_SHARDS);
+    }
+
+    /**
+     * Sole constructor.
+     *
+     * @param windowMillis the time a notification is remembered for.
+     * @param maxEntries the maximum number of notifications remembered.
+     * @param shards the number of shards, which is rounded up to a power of two.
+     */
+    public NotificationDeduplicator(final long windowMillis, final int maxEntries, final int shards) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("windowMillis must be greater than 0");
+        }
+        windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        int size = 1;
+        while (size < shards) {
+            size <<= 1;
+        }
+        this.shards = new Shard[size];
+        for (int i = 0; i < size; i++) {
+            this.shards[i] = new Shard();
+        }
+        maxEntriesPerShard = Math.max(1, maxEntries / size);
+    }
+
+    /**
+     * Registers a notification, unless the same notification has been registered within the window.
+     *
+     * @param endpointToken the endpoint token of the notification.
+     * @param version the version of the notification.
+     * @return {@code int} {@link #NEW} if the notification should be handled, otherwise the outcome passed to
+     *         {@link #complete(String, long, int)} for the earlier notification, or {@link #PENDING}.
+     */
+    public int register(final String endpointToken, final long version) {
+        checkNotNull(endpointToken, "endpointToken");
+        final long now = System.nanoTime();
+        final String key = key(endpointToken, version);
+        final Shard shard = shards[spread(key.hashCode()) & (shards.length - 1)];
+        shard.evictIfDue(now);
+        final Entry entry = new Entry(now + windowNanos);
+        for (;;) {
+            final Entry existing = shard.entries.get(key);
+            if (existing == null) {
+                if (shard.entries.size() >= maxEntriesPerShard) {
+                    untracked.incrementAndGet();
+                    misses.incrementAndGet();
+                    return NEW;
+                }
+                if (shard.entries.putIfAbsent(key, entry) == null) {
+                    misses.incrementAndGet();
+                    return NEW;
+                }
+            } else if (existing.expiresAt - now <= 0) {
+                if (shard.entries.replace(key, existing, entry)) {
+                    misses.incrementAndGet();
+                    return NEW;
+                }
+            } else {
+                hits.incrementAndGet();
+                return existing.outcome;
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of handling a registered notification, which is returned for repeats of it.
+     *
+     * @param endpointToken the endpoint token of the notification.
+     * @param version the version of the notification.
+     * @param outcome the outcome, for example the status code the notification was answered with.
+     */
+    public void complete(final String endpointToken, final long version, final int outcome) {
+        final String key = key(endpointToken, version);
+        final Entry entry = shards[spread(key.hashCode()) & (shards.length - 1)].entries.get(key);
+        if (entry != null) {
+            entry.outcome = outcome;
+        }
+    }
+
+    /**
+     * Forgets a registered notification, so that a repeat of it is handled again, for example after it failed.
+     *
+     * @param endpointToken the endpoint token of the notification.
+     * @param version the version of the notification.
+     */
+    public void forget(final String endpointToken, final long version) {
+        final String key = key(endpointToken, version);
+        shards[spread(key.hashCode()) & (shards.length - 1)].entries.remove(key);
+    }
+
+    private static String key(final String endpointToken, final long version) {
+        return new StringBuilder(endpointToken.length() + 21).append(endpointToken).append(':').append(version).toString();
+    }
+
+    private static int spread(final int hash) {
+        final int h = hash ^ (hash >>> 16);
+        return h ^ (h >>> 8);
+    }
+
+    /**
+     * Returns the number of notifications currently remembered.
+     *
+     * @return {@code int} the number of notifications.
+     */
+    public int entries() {
+        int entries = 0;
+        for (Shard shard : shards) {
+            entries += shard.entries.size();
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the number of repeated notifications.
+     *
+     * @return {@code long} the number of repeated notifications.
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of notifications that had not been seen within the window.
+     *
+     * @return {@code long} the number of new notifications.
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the share of registered notifications that were repeats.
+     *
+     * @return {@code double} the hit rate between 0 and 1, or 0 if no notification has been registered.
+     */
+    public double hitRate() {
+        final long hits = this.hits.get();
+        final long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Returns the number of notifications that were not remembered because the maximum number of entries was
+     * reached.
+     *
+     * @return {@code long} the number of notifications not remembered.
+     */
+    public long untracked() {
+        return untracked.get();
+    }
+
+    /**
+     * Returns the number of notifications removed after their window expired.
+     *
+     * @return {@code long} the number of removed notifications.
+     */
+    public long evicted() {
+        return evicted.get();
+    }
+
+    /**
+     * Removes all notifications whose window has expired.
+     */
+    public void evictExpired() {
+        final long now = System.nanoTime();
+        for (Shard shard : shards) {
+            shard.evict(now);
+        }
+    }
+
+    private static class Entry {
+
+        private final long expiresAt;
+        private volatile int outcome = PENDING;
+
+        private Entry(final long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private class Shard {
+
+        private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+        private final AtomicLong nextEviction = new AtomicLong(System.nanoTime() + windowNanos);
+
+        private void evictIfDue(final long now) {
+            final long due = nextEviction.get();
+            if (now - due >= 0 && nextEviction.compareAndSet(due, now + windowNanos)) {
+                evict(now);
+            }
+        }
+
+        private void evict(final long now) {
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+                if (it.next().expiresAt - now <= 0) {
+                    it.remove();
+                    evicted.incrementAndGet();
+                }
+            }
+        }
+    }
+
+}
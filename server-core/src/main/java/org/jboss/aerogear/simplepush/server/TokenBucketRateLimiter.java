@@ -0,0 +1,208 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket rate limiter that keeps a bucket per key, for example per endpoint token.
+ * <p>
+ * Each bucket holds up to {@code burst} tokens and is refilled at {@code ratePerSecond} tokens per second, and each
+ * request takes a token. A bucket is stored as the single time at which it will be full again, which is updated
+ * with a compare-and-set, so requests never lock. Buckets are spread over shards, and each shard removes the
+ * buckets that have been refilled, which are no different from new ones, at most once per refill period, or once
+ * per second if that is longer, while it is being used. A shard that holds {@code maxBuckets} divided by the number
+ * of shards does not add buckets for new keys, which are then let through, so that the memory used stays bounded.
+ */
+public class TokenBucketRateLimiter {
+
+    public static final int DEFAULT_SHARDS = 16;
+    public static final int DEFAULT_MAX_BUCKETS = 1000000;
+
+    private final Shard[] shards;
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final long evictionIntervalNanos;
+    private final int maxBucketsPerShard;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong untracked = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * Creates a TokenBucketRateLimiter that uses {@link #DEFAULT_SHARDS} and {@link #DEFAULT_MAX_BUCKETS}.
+     *
+     * @param ratePerSecond the sustained number of requests allowed per second for each key.
+     * @param burst the number of requests allowed at once for each key.
+     */
+    public TokenBucketRateLimiter(final double ratePerSecond, final int burst) {
+        this(ratePerSecond, burst, DEFAULT_MAX_BUCKETS, DEFAULT_SHARDS);
+    }
+
+    /**
+     * Sole constructor.
+     *
+     * @param ratePerSecond the sustained number of requests allowed per second for each key.
+     * @param burst the number of requests allowed at once for each key.
+     * @param maxBuckets the maximum number of buckets kept.
+     * @param shards the number of shards, which is rounded up to a power of two.
+     */
+    public TokenBucketRateLimiter(final double ratePerSecond, final int burst, final int maxBuckets, final int shards) {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("ratePerSecond must be greater than 0");
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be at least 1");
+        }
+        intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+        burstNanos = intervalNanos * burst;
+        evictionIntervalNanos = Math.max(burstNanos, TimeUnit.SECONDS.toNanos(1));
+        int size = 1;
+        while (size < shards) {
+            size <<= 1;
+        }
+        this.shards = new Shard[size];
+        for (int i = 0; i < size; i++) {
+            this.shards[i] = new Shard();
+        }
+        maxBucketsPerShard = Math.max(1, maxBuckets / size);
+    }
+
+    /**
+     * Takes a token from the bucket of the passed-in key.
+     *
+     * @param key the key of the bucket, for example an endpoint token.
+     * @return {@code long} 0 if the request is allowed, or the number of milliseconds after which it would be.
+     */
+    public long tryAcquire(final String key) {
+        checkNotNull(key, "key");
+        final long now = System.nanoTime();
+        final Shard shard = shards[spread(key.hashCode()) & (shards.length - 1)];
+        shard.evictIfDue(now);
+        AtomicLong bucket = shard.buckets.get(key);
+        if (bucket == null) {
+            if (shard.buckets.size() >= maxBucketsPerShard) {
+                untracked.incrementAndGet();
+                return 0;
+            }
+            final AtomicLong created = new AtomicLong(now);
+            bucket = shard.buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        for (;;) {
+            final long fullAt = bucket.get();
+            // a bucket that was full at some point in the past is full now.
+            final long start = Math.max(fullAt, now);
+            final long next = start + intervalNanos;
+            final long wait = next - now - burstNanos;
+            if (wait > 0) {
+                rejected.incrementAndGet();
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+            }
+            if (bucket.compareAndSet(fullAt, next)) {
+                return 0;
+            }
+        }
+    }
+
+    private static int spread(final int hash) {
+        final int h = hash ^ (hash >>> 16);
+        return h ^ (h >>> 8);
+    }
+
+    /**
+     * Returns the number of buckets currently kept.
+     *
+     * @return {@code int} the number of buckets.
+     */
+    public int buckets() {
+        int buckets = 0;
+        for (Shard shard : shards) {
+            buckets += shard.buckets.size();
+        }
+        return buckets;
+    }
+
+    /**
+     * Returns the number of requests rejected.
+     *
+     * @return {@code long} the number of rejected requests.
+     */
+    public long rejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the number of requests let through without a bucket because the maximum number of buckets was
+     * reached.
+     *
+     * @return {@code long} the number of requests let through without a bucket.
+     */
+    public long untracked() {
+        return untracked.get();
+    }
+
+    /**
+     * Returns the number of buckets removed after they had been refilled.
+     *
+     * @return {@code long} the number of removed buckets.
+     */
+    public long evicted() {
+        return evicted.get();
+    }
+
+    /**
+     * Removes all buckets that have been refilled.
+     */
+    public void evictIdle() {
+        final long now = System.nanoTime();
+        for (Shard shard : shards) {
+            shard.evict(now);
+        }
+    }
+
+    private class Shard {
+
+        private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+        private final AtomicLong nextEviction = new AtomicLong(System.nanoTime() + evictionIntervalNanos);
+
+        private void evictIfDue(final long now) {
+            final long due = nextEviction.get();
+            if (now - due >= 0 && nextEviction.compareAndSet(due, now + evictionIntervalNanos)) {
+                evict(now);
+            }
+        }
+
+        private void evict(final long now) {
+            for (Iterator<AtomicLong> it = buckets.values().iterator(); it.hasNext();) {
+                // a request racing with the removal at worst gets a new, full bucket, which is what it would find.
+                if (it.next().get() - now <= 0) {
+                    it.remove();
+                    evicted.incrementAndGet();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the endpoint tokens of the channels that belong to a topic, so that a single broadcast can notify all of
+ * them.
+ * <p>
+ * Membership is kept in memory by the server instance that receives the subscriptions, and is not stored in the
+ * {@link org.jboss.aerogear.simplepush.server.datastore.DataStore}.
+ */
+public class TopicRegistry {
+
+    private final ConcurrentMap<String, Set<String>> topics = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * Adds a channel to a topic.
+     *
+     * @param topic the name of the topic.
+     * @param endpointToken the endpoint token of the channel.
+     * @return {@code true} if the channel was added, {@code false} if it already belonged to the topic.
+     */
+    public boolean subscribe(final String topic, final String endpointToken) {
+        checkNotNull(topic, "topic");
+        checkNotNull(endpointToken, "endpointToken");
+        Set<String> members = topics.get(topic);
+        if (members == null) {
+            final Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            members = topics.putIfAbsent(topic, created);
+            if (members == null) {
+                members = created;
+            }
+        }
+        return members.add(endpointToken);
+    }
+
+    /**
+     * Removes a channel from a topic.
+     *
+     * @param topic the name of the topic.
+     * @param endpointToken the endpoint token of the channel.
+     * @return {@code true} if the channel was removed, {@code false} if it did not belong to the topic.
+     */
+    public boolean unsubscribe(final String topic, final String endpointToken) {
+        final Set<String> members = topics.get(topic);
+        return members != null && members.remove(endpointToken);
+    }
+
+    /**
+     * Returns the endpoint tokens of the channels that currently belong to a topic.
+     *
+     * @param topic the name of the topic.
+     * @return {@code List<String>} a copy of the endpoint tokens, which is empty for unknown topics.
+     */
+    public List<String> members(final String topic) {
+        final Set<String> members = topics.get(topic);
+        if (members == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<String>(members);
+    }
+
+    /**
+     * Returns the number of channels that belong to a topic.
+     *
+     * @param topic the name of the topic.
+     * @return {@code int} the number of channels.
+     */
+    public int size(final String topic) {
+        final Set<String> members = topics.get(topic);
+        return members == null ? 0 : members.size();
+    }
+
+}
@@ -0,0 +1,134 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of batch sizes using power of two buckets.
+ *
+ * Bucket {@code n} counts the batches whose size was in the range [2^n, 2^(n+1)), so bucket 0
+ * holds batches of a single write, bucket 1 batches of two or three writes and so on.
+ */
+public final class BatchSizeHistogram {
+
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a batch.
+     *
+     * @param size the number of writes in the batch. Sizes less than one are ignored.
+     */
+    public void record(final int size) {
+        if (size < 1) {
+            return;
+        }
+        buckets.incrementAndGet(bucketFor(size));
+        batches.incrementAndGet();
+        writes.addAndGet(size);
+        for (;;) {
+            final long currentMax = max.get();
+            if (size <= currentMax || max.compareAndSet(currentMax, size)) {
+                break;
+            }
+        }
+    }
+
+    private static int bucketFor(final int size) {
+        return 31 - Integer.numberOfLeadingZeros(size);
+    }
+
+    /**
+     * Returns the number of batches recorded.
+     *
+     * @return {@code long} the number of batches.
+     */
+    public long batches() {
+        return batches.get();
+    }
+
+    /**
+     * Returns the total number of writes across all recorded batches.
+     *
+     * @return {@code long} the number of writes.
+     */
+    public long writes() {
+        return writes.get();
+    }
+
+    /**
+     * Returns the largest batch size recorded.
+     *
+     * @return {@code long} the largest batch size, or zero if no batch has been recorded.
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns the mean batch size.
+     *
+     * @return {@code double} the mean batch size, or zero if no batch has been recorded.
+     */
+    public double mean() {
+        final long count = batches.get();
+        return count == 0 ? 0 : (double) writes.get() / count;
+    }
+
+    /**
+     * Returns a copy of the bucket counts.
+     *
+     * @return {@code long[]} where index {@code n} holds the number of batches with a size in [2^n, 2^(n+1)).
+     */
+    public long[] buckets() {
+        final long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = buckets.get(i);
+        }
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("BatchSizeHistogram[batches=").append(batches())
+                .append(", writes=").append(writes())
+                .append(", max=").append(max())
+                .append(", buckets={");
+        boolean first = true;
+        for (int i = 0; i < BUCKETS; i++) {
+            final long count = buckets.get(i);
+            if (count == 0) {
+                continue;
+            }
+            if (!first) {
+                sb.append(", ");
+            }
+            final long low = 1L << i;
+            final long high = (1L << (i + 1)) - 1;
+            sb.append(low == high ? String.valueOf(low) : low + "-" + high).append('=').append(count);
+            first = false;
+        }
+        return sb.append("}]").toString();
+    }
+
+}
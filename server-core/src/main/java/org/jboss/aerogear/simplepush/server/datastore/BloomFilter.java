@@ -0,0 +1,98 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bloom filter of strings that can be added to and queried concurrently without locking.
+ */
+final class BloomFilter {
+
+    private final AtomicLongArray words;
+    private final long bits;
+    private final int hashes;
+    private final AtomicLong insertions = new AtomicLong();
+
+    /**
+     * Sole constructor.
+     *
+     * @param expectedInsertions the number of strings the filter is sized for.
+     * @param falsePositiveRate the rate of false positives when the expected number of strings has been added.
+     */
+    BloomFilter(final long expectedInsertions, final double falsePositiveRate) {
+        final long n = Math.max(1, expectedInsertions);
+        final long m = Math.max(64, (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+        words = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE, (m + 63) / 64));
+        bits = (long) words.length() * 64;
+        hashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+    }
+
+    void add(final String value) {
+        final long hash = hash(value);
+        final long h1 = hash & 0xffffffffL;
+        final long h2 = hash >>> 32;
+        for (int i = 0; i < hashes; i++) {
+            final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+            final int index = (int) (bit >>> 6);
+            final long mask = 1L << bit;
+            for (;;) {
+                final long word = words.get(index);
+                if ((word & mask) != 0 || words.compareAndSet(index, word, word | mask)) {
+                    break;
+                }
+            }
+        }
+        insertions.incrementAndGet();
+    }
+
+    boolean mightContain(final String value) {
+        final long hash = hash(value);
+        final long h1 = hash & 0xffffffffL;
+        final long h2 = hash >>> 32;
+        for (int i = 0; i < hashes; i++) {
+            final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long insertions() {
+        return insertions.get();
+    }
+
+    /**
+     * 64 bit FNV-1a over the characters, followed by the MurmurHash3 finalizer to spread the bits.
+     */
+    private static long hash(final String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
@@ -0,0 +1,148 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A circuit breaker that stops calls to a failing resource for a while.
+ * <p>
+ * The breaker starts out closed and lets all calls through. After a number of consecutive failures it opens,
+ * and rejects all calls until the open time has passed. It then becomes half open and lets a single trial call
+ * through, which closes the breaker if it succeeds and opens it again if it fails. The breaker does not lock,
+ * so it can be consulted on every call.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+    private final String name;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong timesOpened = new AtomicLong();
+    private volatile long openedAt;
+
+    /**
+     * Sole constructor.
+     *
+     * @param name the name of the guarded resource, used in log messages.
+     * @param failureThreshold the number of consecutive failures that opens the breaker.
+     * @param openTime the time the breaker stays open before a trial call is let through.
+     * @param unit the {@link TimeUnit} of the open time.
+     */
+    public CircuitBreaker(final String name, final int failureThreshold, final long openTime, final TimeUnit unit) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be at least 1");
+        }
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = unit.toNanos(openTime);
+    }
+
+    /**
+     * Returns whether a call may be made. When this returns {@code true} the outcome of the call must be reported
+     * through {@link #onSuccess()} or {@link #onFailure()}.
+     *
+     * @return {@code true} if the call may be made, {@code false} if it must be rejected.
+     */
+    public boolean tryAcquire() {
+        switch (state.get()) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            return System.nanoTime() - openedAt >= openNanos && state.compareAndSet(State.OPEN, State.HALF_OPEN);
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Reports a call that succeeded.
+     */
+    public void onSuccess() {
+        consecutiveFailures.set(0);
+        if (state.get() == State.HALF_OPEN && state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+            logger.info("Circuit breaker for [" + name + "] closed");
+        }
+    }
+
+    /**
+     * Reports a call that failed.
+     */
+    public void onFailure() {
+        if (state.get() == State.HALF_OPEN) {
+            open(State.HALF_OPEN);
+        } else if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            open(State.CLOSED);
+        }
+    }
+
+    private void open(final State from) {
+        if (state.get() != from) {
+            return;
+        }
+        // set before the state changes so that tryAcquire never sees the new state with an old time.
+        openedAt = System.nanoTime();
+        if (state.compareAndSet(from, State.OPEN)) {
+            consecutiveFailures.set(0);
+            timesOpened.incrementAndGet();
+            logger.warn("Circuit breaker for [" + name + "] opened for [" + TimeUnit.NANOSECONDS.toMillis(openNanos) + "ms]");
+        }
+    }
+
+    /**
+     * Returns the time until a trial call will be let through.
+     *
+     * @return {@code long} the time in milliseconds, or 0 if the breaker is not open.
+     */
+    public long retryAfterMillis() {
+        if (state.get() != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(openNanos - (System.nanoTime() - openedAt)));
+    }
+
+    /**
+     * Returns the current state of this breaker.
+     *
+     * @return {@link State} the current state.
+     */
+    public State state() {
+        return state.get();
+    }
+
+    /**
+     * Returns the number of times this breaker has opened.
+     *
+     * @return {@code long} the number of times this breaker has opened.
+     */
+    public long timesOpened() {
+        return timesOpened.get();
+    }
+
+}
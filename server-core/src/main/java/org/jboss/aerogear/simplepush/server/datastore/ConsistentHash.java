@@ -0,0 +1,97 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.util.Arrays;
+
+/**
+ * An immutable consistent hash ring mapping keys to shard ids.
+ * <p>
+ * Every shard is placed on the ring at a number of virtual nodes whose positions only depend on the shard id,
+ * so that adding a shard only moves the keys that the new shard takes over and no keys move between the
+ * existing shards.
+ */
+final class ConsistentHash {
+
+    private final int shardCount;
+    private final int[] positions;
+    private final int[] shards;
+
+    ConsistentHash(final int shardCount, final int virtualNodes) {
+        this.shardCount = shardCount;
+        final long[] nodes = new long[shardCount * virtualNodes];
+        int i = 0;
+        for (int shard = 0; shard < shardCount; shard++) {
+            for (int node = 0; node < virtualNodes; node++) {
+                // sort by position first, then by shard id so that colliding positions are resolved consistently.
+                nodes[i++] = ((long) hash("shard-" + shard + "-" + node) << 32) | shard;
+            }
+        }
+        Arrays.sort(nodes);
+        positions = new int[nodes.length];
+        shards = new int[nodes.length];
+        for (i = 0; i < nodes.length; i++) {
+            positions[i] = (int) (nodes[i] >> 32);
+            shards[i] = (int) nodes[i];
+        }
+    }
+
+    /**
+     * Returns the id of the shard owning the passed-in key, which is the shard of the first virtual node
+     * at or after the key's position on the ring.
+     *
+     * @param key the key to look up.
+     * @return {@code int} the shard id.
+     */
+    int shardFor(final String key) {
+        int index = Arrays.binarySearch(positions, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+            if (index == positions.length) {
+                index = 0;
+            }
+        } else {
+            // binarySearch returns any of several equal positions, use the first one.
+            while (index > 0 && positions[index - 1] == positions[index]) {
+                index--;
+            }
+        }
+        return shards[index];
+    }
+
+    int shardCount() {
+        return shardCount;
+    }
+
+    /**
+     * FNV-1a followed by the murmur3 finalizer, which spreads similar keys such as uaids evenly over the ring.
+     */
+    static int hash(final String key) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+}
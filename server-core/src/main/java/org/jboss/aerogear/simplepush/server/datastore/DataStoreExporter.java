@@ -0,0 +1,307 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams all UserAgents of an {@link IterableDataStore} into a directory of segment files that can be
+ * loaded into another {@link DataStore} by a {@link DataStoreImporter}.
+ * <p>
+ * The UserAgent Id space is split into segments by the leading hex digits of the UserAgent Ids, and each
+ * segment is written to its own file by one of a fixed number of worker threads, reading a page of
+ * UserAgents at a time through {@link IterableDataStore#getUserAgents(String, int)}. After each page the
+ * segment file is synced to disk and a checkpoint holding the file position and the last UserAgent Id is
+ * saved next to it. An export that was interrupted can be resumed by running it again on the same
+ * directory: completed segments are skipped, and the other segments are truncated to their checkpoint and
+ * continue after the last UserAgent they hold.
+ * <p>
+ * The export is not a snapshot: changes made to the DataStore while the export runs may or may not be
+ * included, depending on whether the segment holding the UserAgent has already been read past it.
+ */
+public class DataStoreExporter {
+
+    public static final int DEFAULT_SEGMENTS = 16;
+    public static final int DEFAULT_WORKERS = 4;
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    static final String MANIFEST = "simplepush-export.properties";
+
+    private final Logger logger = LoggerFactory.getLogger(DataStoreExporter.class);
+    private final IterableDataStore store;
+    private final File dir;
+    private final int segments;
+    private final int workers;
+    private final int pageSize;
+    private volatile TransferProgress progress;
+
+    /**
+     * Creates a DataStoreExporter using {@link #DEFAULT_SEGMENTS}, {@link #DEFAULT_WORKERS} and
+     * {@link #DEFAULT_PAGE_SIZE}.
+     *
+     * @param store the {@link IterableDataStore} to export.
+     * @param dir the directory to write the segment files to.
+     */
+    public DataStoreExporter(final IterableDataStore store, final File dir) {
+        this(store, dir, DEFAULT_SEGMENTS, DEFAULT_WORKERS, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Sole constructor.
+     *
+     * @param store the {@link IterableDataStore} to export.
+     * @param dir the directory to write the segment files to.
+     * @param segments the number of segments to split the UserAgent Id space into, from 1 to 256. When
+     *        resuming an export the number of segments of the original export is used.
+     * @param workers the number of segments exported in parallel.
+     * @param pageSize the number of UserAgents read from the DataStore at a time.
+     */
+    public DataStoreExporter(final IterableDataStore store, final File dir, final int segments, final int workers,
+            final int pageSize) {
+        checkNotNull(store, "store");
+        checkNotNull(dir, "dir");
+        if (segments < 1 || segments > 256) {
+            throw new IllegalArgumentException("segments must be between 1 and 256");
+        }
+        if (workers <= 0 || pageSize <= 0) {
+            throw new IllegalArgumentException("workers and pageSize must be greater than zero");
+        }
+        this.store = store;
+        this.dir = dir;
+        this.segments = segments;
+        this.workers = workers;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Returns the progress of the running or last export.
+     *
+     * @return {@code TransferProgress} the progress, or {@code null} if no export has been started.
+     */
+    public TransferProgress progress() {
+        return progress;
+    }
+
+    /**
+     * Exports all UserAgents, resuming an earlier export to the same directory if there is one.
+     *
+     * @return {@code TransferProgress} the progress of the completed export.
+     * @throws IOException if a segment could not be written, or if the directory holds an incompatible export.
+     */
+    public TransferProgress exportUserAgents() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory [" + dir + "]");
+        }
+        final int count = loadOrCreateManifest();
+        final TransferProgress current = new TransferProgress(count);
+        progress = current;
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(count);
+        for (int i = 0; i < count; i++) {
+            final int segment = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    exportSegment(segment, count, current);
+                    return null;
+                }
+            });
+        }
+        runAll(tasks, workers, "simplepush-export-");
+        logger.info("Export to [" + dir + "] completed: " + current);
+        return current;
+    }
+
+    private void exportSegment(final int segment, final int count, final TransferProgress progress) throws IOException {
+        final File file = segmentFile(dir, segment);
+        final TransferCheckpoint checkpoint = TransferCheckpoint.load(checkpointFile(dir, segment, "export"));
+        if (checkpoint.isComplete()) {
+            progress.segmentCompleted();
+            return;
+        }
+        final String end = segment == count - 1 ? null : lowerBound(segment + 1, count);
+        String after = checkpoint.lastUaid() != null ? checkpoint.lastUaid() : segment == 0 ? null : lowerBound(segment, count);
+        long records = checkpoint.records();
+        final long start = checkpoint.position();
+        final RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+        try {
+            truncate.setLength(start);
+        } finally {
+            truncate.close();
+        }
+        final FileOutputStream out = new FileOutputStream(file, true);
+        final UserAgentRecordWriter writer = new UserAgentRecordWriter(out);
+        try {
+            if (start == 0) {
+                writer.writeHeader();
+            }
+            long flushed = 0;
+            boolean more = true;
+            while (more) {
+                final List<UserAgentRecord> page = store.getUserAgents(after, pageSize);
+                more = page.size() == pageSize;
+                for (UserAgentRecord record : page) {
+                    if (end != null && record.getUAID().compareTo(end) >= 0) {
+                        more = false;
+                        break;
+                    }
+                    writer.write(record);
+                    progress.record(record);
+                    after = record.getUAID();
+                    records++;
+                }
+                if (more) {
+                    writer.flush();
+                    out.getFD().sync();
+                    progress.bytes(writer.bytesWritten() - flushed);
+                    flushed = writer.bytesWritten();
+                    checkpoint.save(start + flushed, records, after, false);
+                }
+            }
+            writer.writeEnd(records);
+            writer.flush();
+            out.getFD().sync();
+            progress.bytes(writer.bytesWritten() - flushed);
+            checkpoint.save(start + writer.bytesWritten(), records, after, true);
+        } finally {
+            writer.close();
+        }
+        progress.segmentCompleted();
+        logger.debug("Exported [" + records + "] UserAgents to [" + file + "]");
+    }
+
+    private int loadOrCreateManifest() throws IOException {
+        final File file = new File(dir, MANIFEST);
+        final Properties manifest = new Properties();
+        if (file.exists()) {
+            final InputStream in = new FileInputStream(file);
+            try {
+                manifest.load(in);
+            } finally {
+                in.close();
+            }
+            final String format = manifest.getProperty("format");
+            if (!Integer.toString(UserAgentRecordWriter.FORMAT_VERSION).equals(format)) {
+                throw new IOException("Directory [" + dir + "] holds an export in unsupported format [" + format + "]");
+            }
+            return Integer.parseInt(manifest.getProperty("segments"));
+        }
+        manifest.setProperty("segments", Integer.toString(segments));
+        manifest.setProperty("format", Integer.toString(UserAgentRecordWriter.FORMAT_VERSION));
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            manifest.store(out, "SimplePush DataStore export");
+        } finally {
+            out.close();
+        }
+        return segments;
+    }
+
+    /**
+     * Returns the smallest UserAgent Id prefix of a segment. UserAgent Ids are lowercase UUIDs, so their
+     * first two characters are evenly distributed hex digits.
+     */
+    static String lowerBound(final int segment, final int segments) {
+        return String.format("%02x", segment * 256 / segments);
+    }
+
+    static int readSegmentCount(final File dir) throws IOException {
+        final File file = new File(dir, MANIFEST);
+        if (!file.exists()) {
+            throw new IOException("Directory [" + dir + "] does not hold an export");
+        }
+        final Properties manifest = new Properties();
+        final InputStream in = new FileInputStream(file);
+        try {
+            manifest.load(in);
+        } finally {
+            in.close();
+        }
+        return Integer.parseInt(manifest.getProperty("segments"));
+    }
+
+    static File segmentFile(final File dir, final int segment) {
+        return new File(dir, String.format("segment-%03d.dat", segment));
+    }
+
+    static File checkpointFile(final File dir, final int segment, final String kind) {
+        return new File(dir, String.format("segment-%03d.%s", segment, kind));
+    }
+
+    /**
+     * Runs the passed in tasks on a fixed number of daemon threads, waiting for all of them to complete and
+     * rethrowing the first failure.
+     */
+    static void runAll(final List<Callable<Void>> tasks, final int workers, final String threadPrefix) throws IOException {
+        final AtomicInteger threads = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, Math.max(1, tasks.size())),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r, threadPrefix + threads.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        try {
+            final List<Future<Void>> futures = executor.invokeAll(tasks);
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (final ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Transfer was interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
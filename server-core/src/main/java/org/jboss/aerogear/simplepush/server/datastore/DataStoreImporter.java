@@ -0,0 +1,211 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the segment files written by a {@link DataStoreExporter} into a {@link DataStore}.
+ * <p>
+ * Each segment is read by one of a fixed number of worker threads, and its UserAgents are stored in batches,
+ * using {@link BulkLoadDataStore#saveUserAgents(List)} when the DataStore supports it and
+ * {@link DataStore#saveChannel(Channel)} and {@link DataStore#saveUnacknowledged(String, long)} otherwise.
+ * After each batch a checkpoint holding the position reached in the segment file is saved next to it, and
+ * an import that was interrupted can be resumed by running it again on the same directory. As loading is
+ * idempotent the batch that was in flight when the import was interrupted is simply stored again.
+ * <p>
+ * When the DataStore is a {@link LastSeenDataStore} the imported UserAgents are recorded as seen at the
+ * time the import started, so that they are not collected as idle before they had a chance to connect.
+ */
+public class DataStoreImporter {
+
+    public static final int DEFAULT_WORKERS = 4;
+    public static final int DEFAULT_BATCH_SIZE = 200;
+
+    private final Logger logger = LoggerFactory.getLogger(DataStoreImporter.class);
+    private final DataStore store;
+    private final File dir;
+    private final int workers;
+    private final int batchSize;
+    private volatile TransferProgress progress;
+
+    /**
+     * Creates a DataStoreImporter using {@link #DEFAULT_WORKERS} and {@link #DEFAULT_BATCH_SIZE}.
+     *
+     * @param store the {@link DataStore} to load the UserAgents into.
+     * @param dir the directory holding a completed export.
+     */
+    public DataStoreImporter(final DataStore store, final File dir) {
+        this(store, dir, DEFAULT_WORKERS, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Sole constructor.
+     *
+     * @param store the {@link DataStore} to load the UserAgents into.
+     * @param dir the directory holding a completed export.
+     * @param workers the number of segments imported in parallel.
+     * @param batchSize the number of UserAgents stored at a time.
+     */
+    public DataStoreImporter(final DataStore store, final File dir, final int workers, final int batchSize) {
+        checkNotNull(store, "store");
+        checkNotNull(dir, "dir");
+        if (workers <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("workers and batchSize must be greater than zero");
+        }
+        this.store = store;
+        this.dir = dir;
+        this.workers = workers;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the progress of the running or last import.
+     *
+     * @return {@code TransferProgress} the progress, or {@code null} if no import has been started.
+     */
+    public TransferProgress progress() {
+        return progress;
+    }
+
+    /**
+     * Imports all UserAgents, resuming an earlier import from the same directory if there is one.
+     *
+     * @return {@code TransferProgress} the progress of the completed import.
+     * @throws IOException if a segment could not be read, or if the export in the directory is not complete.
+     */
+    public TransferProgress importUserAgents() throws IOException {
+        final int count = DataStoreExporter.readSegmentCount(dir);
+        for (int i = 0; i < count; i++) {
+            if (!TransferCheckpoint.load(DataStoreExporter.checkpointFile(dir, i, "export")).isComplete()) {
+                throw new IOException("Segment [" + i + "] of the export in [" + dir + "] is not complete");
+            }
+        }
+        final long seen = System.currentTimeMillis();
+        final TransferProgress current = new TransferProgress(count);
+        progress = current;
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(count);
+        for (int i = 0; i < count; i++) {
+            final int segment = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    importSegment(segment, seen, current);
+                    return null;
+                }
+            });
+        }
+        DataStoreExporter.runAll(tasks, workers, "simplepush-import-");
+        logger.info("Import from [" + dir + "] completed: " + current);
+        return current;
+    }
+
+    private void importSegment(final int segment, final long seen, final TransferProgress progress) throws IOException {
+        final File file = DataStoreExporter.segmentFile(dir, segment);
+        final TransferCheckpoint checkpoint = TransferCheckpoint.load(DataStoreExporter.checkpointFile(dir, segment, "import"));
+        if (checkpoint.isComplete()) {
+            progress.segmentCompleted();
+            return;
+        }
+        final long start = checkpoint.position();
+        long records = checkpoint.records();
+        final InputStream in = new FileInputStream(file);
+        final UserAgentRecordReader reader = new UserAgentRecordReader(in);
+        try {
+            if (start == 0) {
+                reader.readHeader();
+            } else {
+                skipFully(in, start);
+            }
+            final List<UserAgentRecord> batch = new ArrayList<UserAgentRecord>(batchSize);
+            long stored = 0;
+            UserAgentRecord record;
+            while ((record = reader.read()) != null) {
+                batch.add(record);
+                if (batch.size() == batchSize) {
+                    store(batch, seen, progress);
+                    records += batch.size();
+                    progress.bytes(reader.bytesRead() - stored);
+                    stored = reader.bytesRead();
+                    checkpoint.save(start + stored, records, record.getUAID(), false);
+                    batch.clear();
+                }
+            }
+            store(batch, seen, progress);
+            records += batch.size();
+            progress.bytes(reader.bytesRead() - stored);
+            checkpoint.save(start + reader.bytesRead(), records, null, true);
+        } finally {
+            reader.close();
+        }
+        progress.segmentCompleted();
+        logger.debug("Imported [" + records + "] UserAgents from [" + file + "]");
+    }
+
+    private void store(final List<UserAgentRecord> batch, final long seen, final TransferProgress progress) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (store instanceof BulkLoadDataStore) {
+            ((BulkLoadDataStore) store).saveUserAgents(batch);
+        } else {
+            for (UserAgentRecord record : batch) {
+                for (Channel channel : record.getChannels()) {
+                    store.saveChannel(channel);
+                }
+                for (Ack ack : record.getUnacknowledged()) {
+                    try {
+                        store.saveUnacknowledged(ack.getChannelId(), ack.getVersion());
+                    } catch (final ChannelNotFoundException e) {
+                        logger.debug("Skipping unacknowledged notification for unknown channel [" + ack.getChannelId() + "]");
+                    }
+                }
+            }
+        }
+        for (UserAgentRecord record : batch) {
+            if (store instanceof LastSeenDataStore) {
+                ((LastSeenDataStore) store).updateLastSeen(record.getUAID(), seen);
+            }
+            progress.record(record);
+        }
+    }
+
+    private static void skipFully(final InputStream in, final long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            final long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                throw new IOException("Segment file is shorter than its checkpoint");
+            }
+            remaining -= skipped;
+        }
+    }
+
+}
@@ -0,0 +1,502 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link DataStore} wrapper that group commits notification state writes.
+ * <p>
+ * Concurrent calls to {@link #updateVersion(String, long)} and {@link #saveUnacknowledged(String, long)}
+ * are collected for up to a configurable window, or until a maximum number of writes is pending, and
+ * are then flushed together. Repeated writes to the same channel within a window are collapsed to the
+ * highest version, and every caller whose write was collapsed receives the outcome of that write.
+ * If the wrapped DataStore is a {@link BatchDataStore} each flush is a single batch call, otherwise
+ * the collapsed writes are applied one by one.
+ * <p>
+ * Each caller is completed only after the batch containing its write has been committed. All other
+ * operations are passed straight through to the wrapped DataStore, including the {@link LastSeenDataStore}
+ * operations when the wrapped DataStore supports them.
+ */
+public class GroupCommitDataStore implements LastSeenDataStore {
+
+    public static final long DEFAULT_WINDOW_MICROS = 500;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+    public static final long DEFAULT_COMMIT_TIMEOUT_MILLIS = 10000;
+
+    private final Logger logger = LoggerFactory.getLogger(GroupCommitDataStore.class);
+    private final DataStore delegate;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final long commitTimeoutMillis;
+    private final BatchSizeHistogram batchSizes = new BatchSizeHistogram();
+    private final AtomicLong collapsed = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition writesPending = lock.newCondition();
+    private volatile Thread flusher;
+
+    private Map<String, PendingWrite> versionUpdates = new LinkedHashMap<String, PendingWrite>();
+    private Map<String, PendingWrite> unacknowledged = new LinkedHashMap<String, PendingWrite>();
+    private int pendingWrites;
+    private long firstWriteNanos;
+    private boolean running = true;
+
+    /**
+     * Creates a GroupCommitDataStore using {@link #DEFAULT_WINDOW_MICROS} and {@link #DEFAULT_MAX_BATCH_SIZE}.
+     *
+     * @param delegate the {@link DataStore} that writes should be flushed to.
+     */
+    public GroupCommitDataStore(final DataStore delegate) {
+        this(delegate, DEFAULT_WINDOW_MICROS, TimeUnit.MICROSECONDS, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a GroupCommitDataStore using {@link #DEFAULT_COMMIT_TIMEOUT_MILLIS}.
+     *
+     * @param delegate the {@link DataStore} that writes should be flushed to.
+     * @param window the maximum time a write waits for other writes to join its batch.
+     * @param unit the {@link TimeUnit} of the window.
+     * @param maxBatchSize the number of pending writes that causes a flush before the window has elapsed.
+     */
+    public GroupCommitDataStore(final DataStore delegate, final long window, final TimeUnit unit, final int maxBatchSize) {
+        this(delegate, window, unit, maxBatchSize, DEFAULT_COMMIT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Creates a GroupCommitDataStore.
+     *
+     * @param delegate the {@link DataStore} that writes should be flushed to.
+     * @param window the maximum time a write waits for other writes to join its batch.
+     * @param unit the {@link TimeUnit} of the window.
+     * @param maxBatchSize the number of pending writes that causes a flush before the window has elapsed.
+     * @param commitTimeoutMillis the maximum time the blocking write methods wait for their batch to be committed
+     *        before they fail with a {@link DataStoreUnavailableException}.
+     */
+    public GroupCommitDataStore(final DataStore delegate, final long window, final TimeUnit unit, final int maxBatchSize,
+            final long commitTimeoutMillis) {
+        checkNotNull(delegate, "delegate");
+        checkNotNull(unit, "unit");
+        if (window < 0) {
+            throw new IllegalArgumentException("window must not be negative");
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be greater than zero");
+        }
+        if (commitTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("commitTimeoutMillis must be greater than zero");
+        }
+        this.delegate = delegate;
+        this.windowNanos = unit.toNanos(window);
+        this.maxBatchSize = maxBatchSize;
+        this.commitTimeoutMillis = commitTimeoutMillis;
+        startFlusher();
+    }
+
+    private void startFlusher() {
+        flusher = new Thread(new Flusher(), "simplepush-group-commit");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queues a version update to be flushed with the next batch.
+     *
+     * @param endpointToken the unique identifier for the channel/uaid combination.
+     * @param version the version to update to.
+     * @return {@code Future<String>} which completes with the channel id of the updated channel once the
+     *         batch has been committed, or fails with a {@link VersionException} or {@link ChannelNotFoundException}.
+     */
+    public Future<String> updateVersionAsync(final String endpointToken, final long version) {
+        checkNotNull(endpointToken, "endpointToken");
+        return enqueue(true, endpointToken, version);
+    }
+
+    /**
+     * Queues an unacknowledged notification to be flushed with the next batch.
+     *
+     * @param channelId the channelId that this update/ack belongs to.
+     * @param version the version of the update.
+     * @return {@code Future<String>} which completes with the UserAgent Id for the channel once the
+     *         batch has been committed, or fails with a {@link ChannelNotFoundException}.
+     */
+    public Future<String> saveUnacknowledgedAsync(final String channelId, final long version) {
+        checkNotNull(channelId, "channelId");
+        return enqueue(false, channelId, version);
+    }
+
+    private Future<String> enqueue(final boolean versionUpdate, final String key, final long version) {
+        final WriteFuture future = new WriteFuture();
+        lock.lock();
+        try {
+            if (!running) {
+                throw new IllegalStateException("GroupCommitDataStore has been closed");
+            }
+            if (!flusher.isAlive()) {
+                logger.warn("Restarting group commit flusher thread");
+                startFlusher();
+            }
+            final Map<String, PendingWrite> writes = versionUpdate ? versionUpdates : unacknowledged;
+            final PendingWrite pending = writes.get(key);
+            if (pending == null) {
+                writes.put(key, new PendingWrite(version, future));
+            } else {
+                pending.add(version, future);
+                collapsed.incrementAndGet();
+            }
+            if (pendingWrites++ == 0) {
+                firstWriteNanos = System.nanoTime();
+                writesPending.signal();
+            } else if (pendingWrites >= maxBatchSize) {
+                writesPending.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return future;
+    }
+
+    @Override
+    public String updateVersion(final String endpointToken, final long version) throws VersionException, ChannelNotFoundException {
+        return await(updateVersionAsync(endpointToken, version));
+    }
+
+    @Override
+    public String saveUnacknowledged(final String channelId, final long version) throws ChannelNotFoundException {
+        return await(saveUnacknowledgedAsync(channelId, version));
+    }
+
+    private String await(final Future<String> future) throws ChannelNotFoundException {
+        try {
+            return future.get(commitTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            throw new DataStoreUnavailableException("Batch was not committed within " + commitTimeoutMillis + "ms", 0);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for batch to be committed", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ChannelNotFoundException) {
+                throw (ChannelNotFoundException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Returns the histogram of the number of writes per flushed batch, counted after collapsing.
+     *
+     * @return {@link BatchSizeHistogram} the batch size histogram.
+     */
+    public BatchSizeHistogram batchSizes() {
+        return batchSizes;
+    }
+
+    /**
+     * Returns the number of writes that were collapsed into another write for the same channel.
+     *
+     * @return {@code long} the number of collapsed writes.
+     */
+    public long collapsedWrites() {
+        return collapsed.get();
+    }
+
+    /**
+     * Flushes any pending writes and stops the background flusher thread.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            running = false;
+            writesPending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush(final Map<String, PendingWrite> versionUpdates, final Map<String, PendingWrite> unacknowledged) {
+        if (!versionUpdates.isEmpty()) {
+            batchSizes.record(versionUpdates.size());
+            try {
+                complete(versionUpdates, flushVersionUpdates(versions(versionUpdates)));
+            } catch (final Throwable t) {
+                logger.error("Failed to flush batch of " + versionUpdates.size() + " version updates", t);
+                failAll(versionUpdates, t);
+            }
+        }
+        if (!unacknowledged.isEmpty()) {
+            batchSizes.record(unacknowledged.size());
+            try {
+                complete(unacknowledged, flushUnacknowledged(versions(unacknowledged)));
+            } catch (final Throwable t) {
+                logger.error("Failed to flush batch of " + unacknowledged.size() + " unacknowledged notifications", t);
+                failAll(unacknowledged, t);
+            }
+        }
+    }
+
+    private Map<String, WriteResult> flushVersionUpdates(final Map<String, Long> versions) {
+        if (delegate instanceof BatchDataStore) {
+            return ((BatchDataStore) delegate).updateVersions(versions);
+        }
+        final Map<String, WriteResult> results = new HashMap<String, WriteResult>(versions.size());
+        for (Entry<String, Long> entry : versions.entrySet()) {
+            try {
+                results.put(entry.getKey(), WriteResult.success(delegate.updateVersion(entry.getKey(), entry.getValue())));
+            } catch (final VersionException e) {
+                results.put(entry.getKey(), WriteResult.failure(e));
+            } catch (final ChannelNotFoundException e) {
+                results.put(entry.getKey(), WriteResult.failure(e));
+            }
+        }
+        return results;
+    }
+
+    private Map<String, WriteResult> flushUnacknowledged(final Map<String, Long> versions) {
+        if (delegate instanceof BatchDataStore) {
+            return ((BatchDataStore) delegate).saveUnacknowledged(versions);
+        }
+        final Map<String, WriteResult> results = new HashMap<String, WriteResult>(versions.size());
+        for (Entry<String, Long> entry : versions.entrySet()) {
+            try {
+                results.put(entry.getKey(), WriteResult.success(delegate.saveUnacknowledged(entry.getKey(), entry.getValue())));
+            } catch (final ChannelNotFoundException e) {
+                results.put(entry.getKey(), WriteResult.failure(e));
+            }
+        }
+        return results;
+    }
+
+    private static Map<String, Long> versions(final Map<String, PendingWrite> writes) {
+        final Map<String, Long> versions = new LinkedHashMap<String, Long>(writes.size());
+        for (Entry<String, PendingWrite> entry : writes.entrySet()) {
+            versions.put(entry.getKey(), entry.getValue().version);
+        }
+        return versions;
+    }
+
+    private static void complete(final Map<String, PendingWrite> writes, final Map<String, WriteResult> results) {
+        for (Entry<String, PendingWrite> entry : writes.entrySet()) {
+            final WriteResult result = results.get(entry.getKey());
+            if (result == null) {
+                entry.getValue().fail(new IllegalStateException("No result for [" + entry.getKey() + "] in batch"));
+            } else if (result.isSuccess()) {
+                entry.getValue().complete(result.value());
+            } else {
+                entry.getValue().fail(result.failure());
+            }
+        }
+    }
+
+    private static void failAll(final Map<String, PendingWrite> writes, final Throwable cause) {
+        // errors such as an OutOfMemoryError belong to the flusher, callers only learn that the write failed.
+        final Throwable failure = cause instanceof RuntimeException ? cause
+                : new DataStoreUnavailableException("Failed to flush batch", 0, cause);
+        for (PendingWrite pending : writes.values()) {
+            pending.fail(failure);
+        }
+    }
+
+    @Override
+    public void savePrivateKeySalt(final byte[] salt) {
+        delegate.savePrivateKeySalt(salt);
+    }
+
+    @Override
+    public byte[] getPrivateKeySalt() {
+        return delegate.getPrivateKeySalt();
+    }
+
+    @Override
+    public boolean saveChannel(final Channel channel) {
+        return delegate.saveChannel(channel);
+    }
+
+    @Override
+    public Channel getChannel(final String channelId) throws ChannelNotFoundException {
+        return delegate.getChannel(channelId);
+    }
+
+    @Override
+    public void removeChannels(final String uaid) {
+        delegate.removeChannels(uaid);
+    }
+
+    @Override
+    public void removeChannels(final Set<String> channelIds) {
+        delegate.removeChannels(channelIds);
+    }
+
+    @Override
+    public Set<String> getChannelIds(final String uaid) {
+        return delegate.getChannelIds(uaid);
+    }
+
+    @Override
+    public Set<Ack> getUnacknowledged(final String uaid) {
+        return delegate.getUnacknowledged(uaid);
+    }
+
+    @Override
+    public Set<Ack> removeAcknowledged(final String uaid, final Set<Ack> acked) {
+        return delegate.removeAcknowledged(uaid, acked);
+    }
+
+    @Override
+    public void updateLastSeen(final String uaid, final long timestamp) {
+        if (delegate instanceof LastSeenDataStore) {
+            ((LastSeenDataStore) delegate).updateLastSeen(uaid, timestamp);
+        }
+    }
+
+    @Override
+    public List<String> getUserAgentsLastSeenBefore(final long timestamp, final int limit) {
+        if (delegate instanceof LastSeenDataStore) {
+            return ((LastSeenDataStore) delegate).getUserAgentsLastSeenBefore(timestamp, limit);
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean removeUserAgentIfLastSeenBefore(final String uaid, final long timestamp) {
+        if (delegate instanceof LastSeenDataStore) {
+            return ((LastSeenDataStore) delegate).removeUserAgentIfLastSeenBefore(uaid, timestamp);
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "GroupCommitDataStore[delegate=" + delegate + ", windowNanos=" + windowNanos + ", maxBatchSize=" + maxBatchSize + "]";
+    }
+
+    private class Flusher implements Runnable {
+
+        @Override
+        public void run() {
+            for (;;) {
+                final Map<String, PendingWrite> versionBatch;
+                final Map<String, PendingWrite> unacknowledgedBatch;
+                lock.lock();
+                try {
+                    while (running && pendingWrites == 0) {
+                        writesPending.awaitUninterruptibly();
+                    }
+                    if (pendingWrites == 0) {
+                        return;
+                    }
+                    final long deadline = firstWriteNanos + windowNanos;
+                    while (running && pendingWrites < maxBatchSize) {
+                        final long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        try {
+                            writesPending.awaitNanos(remaining);
+                        } catch (final InterruptedException e) {
+                            break;
+                        }
+                    }
+                    versionBatch = versionUpdates;
+                    unacknowledgedBatch = unacknowledged;
+                    versionUpdates = new LinkedHashMap<String, PendingWrite>();
+                    unacknowledged = new LinkedHashMap<String, PendingWrite>();
+                    pendingWrites = 0;
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    flush(versionBatch, unacknowledgedBatch);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug(batchSizes.toString());
+                    }
+                } catch (final Throwable t) {
+                    // keep flushing, a failure here must not leave later writers waiting forever.
+                    logger.error("Failed to flush batch", t);
+                    failAll(versionBatch, t);
+                    failAll(unacknowledgedBatch, t);
+                }
+            }
+        }
+    }
+
+    /**
+     * A write waiting to be flushed, holding the highest version requested for a channel
+     * and the futures of all callers that requested a write for that channel.
+     */
+    private static final class PendingWrite {
+
+        private final List<WriteFuture> futures = new ArrayList<WriteFuture>(1);
+        private long version;
+
+        PendingWrite(final long version, final WriteFuture future) {
+            this.version = version;
+            futures.add(future);
+        }
+
+        void add(final long version, final WriteFuture future) {
+            if (version > this.version) {
+                this.version = version;
+            }
+            futures.add(future);
+        }
+
+        void complete(final String value) {
+            for (WriteFuture future : futures) {
+                future.complete(value);
+            }
+        }
+
+        void fail(final Throwable cause) {
+            for (WriteFuture future : futures) {
+                future.fail(cause);
+            }
+        }
+    }
+
+}
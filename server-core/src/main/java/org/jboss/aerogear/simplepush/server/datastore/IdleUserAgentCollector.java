@@ -0,0 +1,271 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically removes the UserAgents of a {@link LastSeenDataStore} that have not been seen for longer than
+ * a configurable idle time, together with their channels and unacknowledged notifications.
+ * <p>
+ * Each sweep reads the idle UserAgents in small batches, oldest first, and removes them one at a time at no
+ * more than a configured rate, so that a sweep never holds on to the DataStore for long and leaves room for
+ * the operations of connected UserAgents. A sweep ends when no idle UserAgents are left, or when none of the
+ * UserAgents in a batch could be removed, for example because they were all seen while the batch was being
+ * processed. Sweeps run on a single daemon thread and their progress is available through the counters of
+ * this class.
+ * <p>
+ * The idle time should be longer than the longest time a UserAgent stays connected, as the last seen time
+ * is only updated when a UserAgent connects and disconnects. UserAgents that have not connected since the
+ * DataStore started recording last seen times are not known to the collector.
+ */
+public class IdleUserAgentCollector {
+
+    public static final long DEFAULT_SWEEP_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_MAX_REMOVALS_PER_SECOND = 100;
+
+    private final Logger logger = LoggerFactory.getLogger(IdleUserAgentCollector.class);
+    private final LastSeenDataStore store;
+    private final long idleMillis;
+    private final long sweepIntervalMillis;
+    private final int batchSize;
+    private final long removalIntervalNanos;
+    private final AtomicLong sweeps = new AtomicLong();
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong removed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastSweepMillis;
+    private volatile boolean sweeping;
+    private ScheduledExecutorService executor;
+
+    /**
+     * Creates an IdleUserAgentCollector using {@link #DEFAULT_SWEEP_INTERVAL_MILLIS}, {@link #DEFAULT_BATCH_SIZE}
+     * and {@link #DEFAULT_MAX_REMOVALS_PER_SECOND}.
+     *
+     * @param store the {@link LastSeenDataStore} to remove idle UserAgents from.
+     * @param idleTime the time after which a UserAgent that has not been seen is removed.
+     * @param unit the {@link TimeUnit} of the idle time.
+     */
+    public IdleUserAgentCollector(final LastSeenDataStore store, final long idleTime, final TimeUnit unit) {
+        this(store, unit.toMillis(idleTime), DEFAULT_SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_BATCH_SIZE,
+                DEFAULT_MAX_REMOVALS_PER_SECOND);
+    }
+
+    /**
+     * Sole constructor.
+     *
+     * @param store the {@link LastSeenDataStore} to remove idle UserAgents from.
+     * @param idleTime the time after which a UserAgent that has not been seen is removed.
+     * @param sweepInterval the time between the end of a sweep and the start of the next one.
+     * @param unit the {@link TimeUnit} of the idle time and the sweep interval.
+     * @param batchSize the number of idle UserAgents read at a time.
+     * @param maxRemovalsPerSecond the maximum number of UserAgents removed per second.
+     */
+    public IdleUserAgentCollector(final LastSeenDataStore store, final long idleTime, final long sweepInterval,
+            final TimeUnit unit, final int batchSize, final int maxRemovalsPerSecond) {
+        checkNotNull(store, "store");
+        if (batchSize <= 0 || maxRemovalsPerSecond <= 0) {
+            throw new IllegalArgumentException("batchSize and maxRemovalsPerSecond must be greater than zero");
+        }
+        this.store = store;
+        this.idleMillis = unit.toMillis(idleTime);
+        this.sweepIntervalMillis = unit.toMillis(sweepInterval);
+        this.batchSize = batchSize;
+        this.removalIntervalNanos = TimeUnit.SECONDS.toNanos(1) / maxRemovalsPerSecond;
+    }
+
+    /**
+     * Starts sweeping in the background, the first sweep starting after one sweep interval.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            throw new IllegalStateException("IdleUserAgentCollector has already been started");
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "simplepush-idle-collector");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep();
+                } catch (final RuntimeException e) {
+                    logger.warn("Sweep for idle UserAgents failed", e);
+                }
+            }
+        }, sweepIntervalMillis, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops sweeping, interrupting a sweep that is in progress.
+     */
+    public synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+    }
+
+    /**
+     * Performs a single sweep on the calling thread.
+     *
+     * @return {@code long} the number of UserAgents removed by this sweep.
+     */
+    public long sweep() {
+        final long start = System.currentTimeMillis();
+        final long horizon = start - idleMillis;
+        long removedBySweep = 0;
+        sweeping = true;
+        try {
+            long nextRemoval = System.nanoTime();
+            for (;;) {
+                final List<String> batch = store.getUserAgentsLastSeenBefore(horizon, batchSize);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                int removedFromBatch = 0;
+                for (String uaid : batch) {
+                    final long wait = nextRemoval - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    nextRemoval = Math.max(nextRemoval, System.nanoTime() - removalIntervalNanos) + removalIntervalNanos;
+                    scanned.incrementAndGet();
+                    try {
+                        if (store.removeUserAgentIfLastSeenBefore(uaid, horizon)) {
+                            removed.incrementAndGet();
+                            removedFromBatch++;
+                        } else {
+                            skipped.incrementAndGet();
+                        }
+                    } catch (final RuntimeException e) {
+                        failures.incrementAndGet();
+                        logger.warn("Could not remove idle UserAgent [" + uaid + "]", e);
+                    }
+                }
+                removedBySweep += removedFromBatch;
+                logger.debug("Removed [" + removedFromBatch + "] of [" + batch.size() + "] idle UserAgents in batch");
+                if (removedFromBatch == 0) {
+                    break;
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            sweeping = false;
+            lastSweepMillis = System.currentTimeMillis() - start;
+            sweeps.incrementAndGet();
+        }
+        logger.info("Removed [" + removedBySweep + "] UserAgents not seen for [" + idleMillis + "ms] in [" + lastSweepMillis + "ms]");
+        return removedBySweep;
+    }
+
+    /**
+     * Returns the number of sweeps that have completed.
+     *
+     * @return {@code long} the number of completed sweeps.
+     */
+    public long sweeps() {
+        return sweeps.get();
+    }
+
+    /**
+     * Returns whether a sweep is in progress.
+     *
+     * @return {@code true} if a sweep is in progress.
+     */
+    public boolean isSweeping() {
+        return sweeping;
+    }
+
+    /**
+     * Returns the number of idle UserAgents that removal was attempted for.
+     *
+     * @return {@code long} the number of idle UserAgents scanned.
+     */
+    public long scannedUserAgents() {
+        return scanned.get();
+    }
+
+    /**
+     * Returns the number of idle UserAgents removed.
+     *
+     * @return {@code long} the number of removed UserAgents.
+     */
+    public long removedUserAgents() {
+        return removed.get();
+    }
+
+    /**
+     * Returns the number of idle UserAgents that were not removed because they were seen again, or because
+     * the DataStore did not consider them idle.
+     *
+     * @return {@code long} the number of skipped UserAgents.
+     */
+    public long skippedUserAgents() {
+        return skipped.get();
+    }
+
+    /**
+     * Returns the number of removals that failed with an exception.
+     *
+     * @return {@code long} the number of failed removals.
+     */
+    public long failures() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the duration of the last completed sweep.
+     *
+     * @return {@code long} the duration in milliseconds.
+     */
+    public long lastSweepMillis() {
+        return lastSweepMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "IdleUserAgentCollector[idleMillis=" + idleMillis + ", sweeps=" + sweeps + ", scanned=" + scanned
+                + ", removed=" + removed + ", skipped=" + skipped + ", failures=" + failures
+                + ", lastSweepMillis=" + lastSweepMillis + "]";
+    }
+
+}
@@ -0,0 +1,488 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link DataStore} that rejects version updates for endpoint tokens that are known not to exist, without
+ * reaching the DataStore it wraps.
+ * <p>
+ * Two structures are consulted. A bloom filter holds the endpoint tokens of all channels. It is built in the
+ * background by reading all UserAgents from an {@link IterableDataStore}, a page at a time, and rebuilt
+ * periodically to drop the tokens of removed channels. Saved channels are added to it, and to the filter being
+ * built, before the endpoint token is handed out. Until the first build has completed, and when no
+ * {@link IterableDataStore} is passed in, every token passes the filter. In addition, endpoint tokens for which the
+ * DataStore found no channel are remembered for a while, up to a maximum number, which also covers the tokens of
+ * removed channels until the next rebuild.
+ * <p>
+ * This DataStore should wrap all other DataStores, so that rejected notifications cost no other work. Batches are
+ * filtered in the same way and passed on as a batch when the wrapped DataStore is a {@link BatchDataStore}, or one
+ * entry at a time otherwise. UserAgents are enumerated by the wrapped DataStore when it is an
+ * {@link IterableDataStore}, or else by the {@link IterableDataStore} the bloom filter is built from.
+ */
+public class NegativeLookupDataStore implements EndpointFilterDataStore, AvailabilityAwareDataStore,
+        ConnectionAwareDataStore, RoutingDataStore, LastSeenDataStore, BatchDataStore, IterableDataStore {
+
+    public static final long DEFAULT_EXPECTED_ENDPOINTS = 1000000;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+    public static final long DEFAULT_REBUILD_INTERVAL_MILLIS = 3600000;
+    public static final long DEFAULT_MISS_TTL_MILLIS = 600000;
+    public static final int DEFAULT_MAX_MISSES = 100000;
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(NegativeLookupDataStore.class);
+    private final DataStore delegate;
+    private final IterableDataStore source;
+    private final double falsePositiveRate;
+    private final long missTtlMillis;
+    private final int maxMisses;
+    private final int batchSize;
+    private final ScheduledExecutorService builder;
+    private final ConcurrentMap<String, Long> misses = new ConcurrentHashMap<String, Long>();
+    private volatile long expectedEndpoints;
+    private volatile BloomFilter filter;
+    private volatile BloomFilter building;
+    private final AtomicLong filteredByBloom = new AtomicLong();
+    private final AtomicLong filteredByMisses = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+
+    /**
+     * Creates a NegativeLookupDataStore that uses the default settings.
+     *
+     * @param delegate the {@link DataStore} to wrap.
+     * @param source the {@link IterableDataStore} to build the bloom filter from, or {@code null} to only
+     *        remember endpoint tokens that were not found.
+     */
+    public NegativeLookupDataStore(final DataStore delegate, final IterableDataStore source) {
+        this(delegate, source, DEFAULT_EXPECTED_ENDPOINTS, DEFAULT_FALSE_POSITIVE_RATE, DEFAULT_REBUILD_INTERVAL_MILLIS,
+                DEFAULT_MISS_TTL_MILLIS, DEFAULT_MAX_MISSES, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Sole constructor.
+     *
+     * @param delegate the {@link DataStore} to wrap.
+     * @param source the {@link IterableDataStore} to build the bloom filter from, or {@code null} to only
+     *        remember endpoint tokens that were not found.
+     * @param expectedEndpoints the number of endpoint tokens the bloom filter is sized for. Rebuilds size it for
+     *        twice the number of tokens found, if that is more.
+     * @param falsePositiveRate the rate at which unknown tokens pass the bloom filter.
+     * @param rebuildIntervalMillis the time between builds of the bloom filter.
+     * @param missTtlMillis the time an endpoint token that was not found is remembered.
+     * @param maxMisses the maximum number of endpoint tokens that were not found remembered at once.
+     * @param batchSize the number of UserAgents read at a time while building the bloom filter.
+     */
+    public NegativeLookupDataStore(final DataStore delegate, final IterableDataStore source, final long expectedEndpoints,
+            final double falsePositiveRate, final long rebuildIntervalMillis, final long missTtlMillis, final int maxMisses,
+            final int batchSize) {
+        checkNotNull(delegate, "delegate");
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+        }
+        this.delegate = delegate;
+        this.source = source;
+        this.expectedEndpoints = expectedEndpoints;
+        this.falsePositiveRate = falsePositiveRate;
+        this.missTtlMillis = missTtlMillis;
+        this.maxMisses = maxMisses;
+        this.batchSize = batchSize;
+        if (source != null) {
+            builder = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "simplepush-endpoint-filter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            builder.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    rebuild();
+                }
+            }, 0, rebuildIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            builder = null;
+        }
+    }
+
+    /**
+     * Builds a new bloom filter from the {@link IterableDataStore} and replaces the current one with it.
+     * Called periodically in the background, and may also be called directly.
+     */
+    public synchronized void rebuild() {
+        if (source == null) {
+            return;
+        }
+        try {
+            final BloomFilter next = new BloomFilter(expectedEndpoints, falsePositiveRate);
+            building = next;
+            long endpoints = 0;
+            String after = null;
+            for (;;) {
+                final List<UserAgentRecord> page = source.getUserAgents(after, batchSize);
+                if (page.isEmpty()) {
+                    break;
+                }
+                for (UserAgentRecord userAgent : page) {
+                    for (Channel channel : userAgent.getChannels()) {
+                        next.add(channel.getEndpointToken());
+                        endpoints++;
+                    }
+                    after = userAgent.getUAID();
+                }
+            }
+            filter = next;
+            building = null;
+            expectedEndpoints = Math.max(expectedEndpoints, endpoints * 2);
+            rebuilds.incrementAndGet();
+            logger.info("Built endpoint filter with [" + endpoints + "] endpoint tokens");
+        } catch (final RuntimeException e) {
+            building = null;
+            logger.warn("Could not build endpoint filter, keeping the previous one", e);
+        }
+    }
+
+    /**
+     * Stops building the bloom filter in the background.
+     */
+    public void close() {
+        if (builder != null) {
+            builder.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns whether a bloom filter has been built.
+     *
+     * @return {@code true} if the bloom filter is used.
+     */
+    public boolean filterReady() {
+        return filter != null;
+    }
+
+    /**
+     * Returns the number of endpoint tokens rejected because they were not in the bloom filter.
+     *
+     * @return {@code long} the number of endpoint tokens rejected by the bloom filter.
+     */
+    public long filteredByBloom() {
+        return filteredByBloom.get();
+    }
+
+    /**
+     * Returns the number of endpoint tokens rejected because they were recently not found.
+     *
+     * @return {@code long} the number of endpoint tokens rejected as recently not found.
+     */
+    public long filteredByMisses() {
+        return filteredByMisses.get();
+    }
+
+    /**
+     * Returns the number of endpoint tokens that passed the bloom filter but were not found.
+     *
+     * @return {@code long} the number of false positives of the bloom filter.
+     */
+    public long falsePositives() {
+        return falsePositives.get();
+    }
+
+    /**
+     * Returns the number of times the bloom filter has been built.
+     *
+     * @return {@code long} the number of builds.
+     */
+    public long rebuilds() {
+        return rebuilds.get();
+    }
+
+    /**
+     * Returns the number of endpoint tokens currently remembered as not found.
+     *
+     * @return {@code int} the number of remembered endpoint tokens.
+     */
+    public int misses() {
+        return misses.size();
+    }
+
+    @Override
+    public boolean mightContainEndpoint(final String endpointToken) {
+        final Long expires = misses.get(endpointToken);
+        if (expires != null) {
+            if (expires > System.currentTimeMillis()) {
+                filteredByMisses.incrementAndGet();
+                return false;
+            }
+            misses.remove(endpointToken, expires);
+        }
+        final BloomFilter current = filter;
+        if (current != null && !current.mightContain(endpointToken)) {
+            filteredByBloom.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void missed(final String endpointToken) {
+        if (filter != null) {
+            falsePositives.incrementAndGet();
+        }
+        final long now = System.currentTimeMillis();
+        if (misses.size() >= maxMisses) {
+            for (Iterator<Entry<String, Long>> it = misses.entrySet().iterator(); it.hasNext();) {
+                if (it.next().getValue() <= now) {
+                    it.remove();
+                }
+            }
+            if (misses.size() >= maxMisses) {
+                return;
+            }
+        }
+        misses.put(endpointToken, now + missTtlMillis);
+    }
+
+    @Override
+    public String updateVersion(final String endpointToken, final long version) throws VersionException, ChannelNotFoundException {
+        if (!mightContainEndpoint(endpointToken)) {
+            throw new ChannelNotFoundException("No channel for endpoint [" + endpointToken + "]", null);
+        }
+        try {
+            final String channelId = delegate.updateVersion(endpointToken, version);
+            if (channelId == null) {
+                missed(endpointToken);
+            }
+            return channelId;
+        } catch (final ChannelNotFoundException e) {
+            missed(endpointToken);
+            throw e;
+        }
+    }
+
+    @Override
+    public Map<String, WriteResult> updateVersions(final Map<String, Long> versions) {
+        final Map<String, WriteResult> results = new HashMap<String, WriteResult>(versions.size());
+        final Map<String, Long> passed = new LinkedHashMap<String, Long>(versions.size());
+        for (Entry<String, Long> entry : versions.entrySet()) {
+            if (mightContainEndpoint(entry.getKey())) {
+                passed.put(entry.getKey(), entry.getValue());
+            } else {
+                results.put(entry.getKey(), WriteResult.failure(
+                        new ChannelNotFoundException("No channel for endpoint [" + entry.getKey() + "]", null)));
+            }
+        }
+        if (passed.isEmpty()) {
+            return results;
+        }
+        if (delegate instanceof BatchDataStore) {
+            final Map<String, WriteResult> updated = ((BatchDataStore) delegate).updateVersions(passed);
+            for (Entry<String, WriteResult> entry : updated.entrySet()) {
+                if (!entry.getValue().isSuccess() && entry.getValue().failure() instanceof ChannelNotFoundException) {
+                    missed(entry.getKey());
+                }
+            }
+            results.putAll(updated);
+            return results;
+        }
+        for (Entry<String, Long> entry : passed.entrySet()) {
+            try {
+                results.put(entry.getKey(), WriteResult.success(updateVersion(entry.getKey(), entry.getValue())));
+            } catch (final VersionException e) {
+                results.put(entry.getKey(), WriteResult.failure(e));
+            } catch (final ChannelNotFoundException e) {
+                results.put(entry.getKey(), WriteResult.failure(e));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public Map<String, WriteResult> saveUnacknowledged(final Map<String, Long> versions) {
+        if (delegate instanceof BatchDataStore) {
+            return ((BatchDataStore) delegate).saveUnacknowledged(versions);
+        }
+        final Map<String, WriteResult> results = new HashMap<String, WriteResult>(versions.size());
+        for (Entry<String, Long> entry : versions.entrySet()) {
+            try {
+                results.put(entry.getKey(), WriteResult.success(delegate.saveUnacknowledged(entry.getKey(), entry.getValue())));
+            } catch (final ChannelNotFoundException e) {
+                results.put(entry.getKey(), WriteResult.failure(e));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<String> getUserAgentIds(final String afterUaid, final int limit) {
+        return iterable().getUserAgentIds(afterUaid, limit);
+    }
+
+    @Override
+    public List<UserAgentRecord> getUserAgents(final String afterUaid, final int limit) {
+        return iterable().getUserAgents(afterUaid, limit);
+    }
+
+    private IterableDataStore iterable() {
+        if (delegate instanceof IterableDataStore) {
+            return (IterableDataStore) delegate;
+        }
+        if (source != null) {
+            return source;
+        }
+        throw new UnsupportedOperationException("DataStore [" + delegate.getClass().getSimpleName()
+                + "] cannot enumerate UserAgents");
+    }
+
+    @Override
+    public boolean saveChannel(final Channel channel) {
+        final String endpointToken = channel.getEndpointToken();
+        misses.remove(endpointToken);
+        final boolean saved = delegate.saveChannel(channel);
+        // the filter being built is read before the current one, as a build publishes its filter before it
+        // clears the one being built. A build that starts after this point reads the saved channel itself.
+        final BloomFilter next = building;
+        if (next != null) {
+            next.add(endpointToken);
+        }
+        final BloomFilter current = filter;
+        if (current != null) {
+            current.add(endpointToken);
+        }
+        return saved;
+    }
+
+    @Override
+    public void savePrivateKeySalt(final byte[] salt) {
+        delegate.savePrivateKeySalt(salt);
+    }
+
+    @Override
+    public byte[] getPrivateKeySalt() {
+        return delegate.getPrivateKeySalt();
+    }
+
+    @Override
+    public Channel getChannel(final String channelId) throws ChannelNotFoundException {
+        return delegate.getChannel(channelId);
+    }
+
+    @Override
+    public void removeChannels(final String uaid) {
+        delegate.removeChannels(uaid);
+    }
+
+    @Override
+    public void removeChannels(final Set<String> channelIds) {
+        delegate.removeChannels(channelIds);
+    }
+
+    @Override
+    public Set<String> getChannelIds(final String uaid) {
+        return delegate.getChannelIds(uaid);
+    }
+
+    @Override
+    public String saveUnacknowledged(final String channelId, final long version) throws ChannelNotFoundException {
+        return delegate.saveUnacknowledged(channelId, version);
+    }
+
+    @Override
+    public Set<Ack> getUnacknowledged(final String uaid) {
+        return delegate.getUnacknowledged(uaid);
+    }
+
+    @Override
+    public Set<Ack> removeAcknowledged(final String uaid, final Set<Ack> acked) {
+        return delegate.removeAcknowledged(uaid, acked);
+    }
+
+    @Override
+    public void checkAvailable() {
+        if (delegate instanceof AvailabilityAwareDataStore) {
+            ((AvailabilityAwareDataStore) delegate).checkAvailable();
+        }
+    }
+
+    @Override
+    public void userAgentConnected(final String uaid) {
+        if (delegate instanceof ConnectionAwareDataStore) {
+            ((ConnectionAwareDataStore) delegate).userAgentConnected(uaid);
+        }
+    }
+
+    @Override
+    public void userAgentDisconnected(final String uaid) {
+        if (delegate instanceof ConnectionAwareDataStore) {
+            ((ConnectionAwareDataStore) delegate).userAgentDisconnected(uaid);
+        }
+    }
+
+    @Override
+    public String routedEndpointToken(final String uaid, final String endpointToken) {
+        if (delegate instanceof RoutingDataStore) {
+            return ((RoutingDataStore) delegate).routedEndpointToken(uaid, endpointToken);
+        }
+        return endpointToken;
+    }
+
+    @Override
+    public void updateLastSeen(final String uaid, final long timestamp) {
+        if (delegate instanceof LastSeenDataStore) {
+            ((LastSeenDataStore) delegate).updateLastSeen(uaid, timestamp);
+        }
+    }
+
+    @Override
+    public List<String> getUserAgentsLastSeenBefore(final long timestamp, final int limit) {
+        if (delegate instanceof LastSeenDataStore) {
+            return ((LastSeenDataStore) delegate).getUserAgentsLastSeenBefore(timestamp, limit);
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean removeUserAgentIfLastSeenBefore(final String uaid, final long timestamp) {
+        if (delegate instanceof LastSeenDataStore) {
+            return ((LastSeenDataStore) delegate).removeUserAgentIfLastSeenBefore(uaid, timestamp);
+        }
+        return false;
+    }
+
+}
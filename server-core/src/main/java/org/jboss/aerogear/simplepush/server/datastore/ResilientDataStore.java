@@ -0,0 +1,624 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link DataStore} that protects the server from a slow or failing DataStore.
+ * <p>
+ * Every operation is guarded by three mechanisms. A bulkhead limits the number of concurrent calls, and calls
+ * beyond the limit are rejected immediately instead of queueing up. Calls that take longer than the timeout are
+ * abandoned, and they keep their place in the bulkhead until they return. A {@link CircuitBreaker} opens after a
+ * number of consecutive failures or timeouts, after which calls are rejected without reaching the DataStore until
+ * a trial call succeeds. Rejected and timed out calls throw a {@link DataStoreUnavailableException}, which the
+ * server turns into a 503 response for notifications. {@link ChannelNotFoundException}s and
+ * {@link VersionException}s are answers from a working DataStore and do not count as failures.
+ * <p>
+ * While the DataStore is unavailable, the channel ids and unacknowledged notifications of a UserAgent are served
+ * from the last values read for it, so that UserAgents can still complete their handshake. Unacknowledged
+ * notifications of UserAgents that have not been read are reported as empty, and are delivered once they
+ * reconnect to an available DataStore.
+ * <p>
+ * This DataStore should wrap all other DataStores, so that time spent in for example a tiered DataStore
+ * loading a UserAgent is guarded as well.
+ */
+public class ResilientDataStore implements AvailabilityAwareDataStore, ConnectionAwareDataStore, RoutingDataStore,
+        LastSeenDataStore {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+    public static final int DEFAULT_MAX_CONCURRENT_CALLS = 64;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = 5000;
+    public static final int DEFAULT_CACHED_USER_AGENTS = 10000;
+
+    private final Logger logger = LoggerFactory.getLogger(ResilientDataStore.class);
+    private final DataStore delegate;
+    private final long timeoutMillis;
+    private final int maxConcurrentCalls;
+    private final Semaphore bulkhead;
+    private final CircuitBreaker breaker;
+    private final ExecutorService executor;
+    private final Map<String, Set<String>> channelIds;
+    private final Map<String, Set<Ack>> unacknowledged;
+    private final Map<String, Integer> skippedConnects = new HashMap<String, Integer>();
+    private final AtomicLong rejectedByCircuit = new AtomicLong();
+    private final AtomicLong rejectedByBulkhead = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong degradedReads = new AtomicLong();
+
+    /**
+     * Creates a ResilientDataStore that uses the default settings.
+     *
+     * @param delegate the {@link DataStore} to protect.
+     */
+    public ResilientDataStore(final DataStore delegate) {
+        this(delegate, DEFAULT_TIMEOUT_MILLIS, DEFAULT_MAX_CONCURRENT_CALLS, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS,
+                DEFAULT_CACHED_USER_AGENTS);
+    }
+
+    /**
+     * Sole constructor.
+     *
+     * @param delegate the {@link DataStore} to protect.
+     * @param timeoutMillis the time after which a call is abandoned, or 0 to make calls on the calling thread
+     *        without a timeout.
+     * @param maxConcurrentCalls the maximum number of calls in progress at the same time.
+     * @param failureThreshold the number of consecutive failures that opens the circuit breaker.
+     * @param openMillis the time the circuit breaker stays open before a trial call is let through.
+     * @param cachedUserAgents the maximum number of UserAgents whose channel ids and unacknowledged
+     *        notifications are kept for when the DataStore is unavailable.
+     */
+    public ResilientDataStore(final DataStore delegate, final long timeoutMillis, final int maxConcurrentCalls,
+            final int failureThreshold, final long openMillis, final int cachedUserAgents) {
+        checkNotNull(delegate, "delegate");
+        if (maxConcurrentCalls < 1) {
+            throw new IllegalArgumentException("maxConcurrentCalls must be at least 1");
+        }
+        this.delegate = delegate;
+        this.timeoutMillis = timeoutMillis;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        bulkhead = new Semaphore(maxConcurrentCalls);
+        breaker = new CircuitBreaker(delegate.getClass().getSimpleName(), failureThreshold, openMillis, TimeUnit.MILLISECONDS);
+        // the bulkhead never lets more calls in than there are threads, so the queue stays empty.
+        executor = timeoutMillis > 0
+                ? new ThreadPoolExecutor(maxConcurrentCalls, maxConcurrentCalls, 0, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(), daemonThreads("simplepush-datastore-call-"))
+                : null;
+        channelIds = lruMap(cachedUserAgents);
+        unacknowledged = lruMap(cachedUserAgents);
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, prefix + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static <V> Map<String, V> lruMap(final int maxSize) {
+        return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, V> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    /**
+     * Returns the current state of the circuit breaker.
+     *
+     * @return {@link CircuitBreaker.State} the state of the circuit breaker.
+     */
+    public CircuitBreaker.State circuitState() {
+        return breaker.state();
+    }
+
+    /**
+     * Returns the number of times the circuit breaker has opened.
+     *
+     * @return {@code long} the number of times the circuit breaker has opened.
+     */
+    public long timesOpened() {
+        return breaker.timesOpened();
+    }
+
+    /**
+     * Returns the number of calls and availability checks rejected because the circuit breaker was open.
+     *
+     * @return {@code long} the number of calls rejected by the circuit breaker.
+     */
+    public long rejectedByCircuit() {
+        return rejectedByCircuit.get();
+    }
+
+    /**
+     * Returns the number of calls rejected because the maximum number of concurrent calls was reached.
+     *
+     * @return {@code long} the number of calls rejected by the bulkhead.
+     */
+    public long rejectedByBulkhead() {
+        return rejectedByBulkhead.get();
+    }
+
+    /**
+     * Returns the number of calls that were abandoned after the timeout.
+     *
+     * @return {@code long} the number of timed out calls.
+     */
+    public long timeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Returns the number of calls that failed with an unexpected exception.
+     *
+     * @return {@code long} the number of failed calls.
+     */
+    public long failures() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the number of reads served from the last values read because the DataStore was unavailable.
+     *
+     * @return {@code long} the number of degraded reads.
+     */
+    public long degradedReads() {
+        return degradedReads.get();
+    }
+
+    /**
+     * Returns the number of calls currently in progress, including timed out calls that have not returned.
+     *
+     * @return {@code int} the number of calls in progress.
+     */
+    public int activeCalls() {
+        return maxConcurrentCalls - bulkhead.availablePermits();
+    }
+
+    /**
+     * Stops the threads making calls with a timeout. Calls in progress are left to complete.
+     */
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public void checkAvailable() {
+        final long retryAfterMillis = breaker.retryAfterMillis();
+        if (retryAfterMillis > 0) {
+            rejectedByCircuit.incrementAndGet();
+            throw new DataStoreUnavailableException("Circuit breaker for the DataStore is open", retryAfterMillis);
+        }
+        if (delegate instanceof AvailabilityAwareDataStore) {
+            ((AvailabilityAwareDataStore) delegate).checkAvailable();
+        }
+    }
+
+    private interface Operation<V> {
+        V call() throws ChannelNotFoundException, VersionException;
+    }
+
+    private <V> V execute(final String name, final Operation<V> operation) throws ChannelNotFoundException, VersionException {
+        if (!bulkhead.tryAcquire()) {
+            rejectedByBulkhead.incrementAndGet();
+            throw new DataStoreUnavailableException("Too many concurrent DataStore calls, rejected [" + name + "]", 0);
+        }
+        if (!breaker.tryAcquire()) {
+            bulkhead.release();
+            rejectedByCircuit.incrementAndGet();
+            throw new DataStoreUnavailableException("Circuit breaker for the DataStore is open, rejected [" + name + "]",
+                    breaker.retryAfterMillis());
+        }
+        final Call<V> call = new Call<V>(operation);
+        if (executor == null) {
+            return call.call();
+        }
+        final Future<V> future = executor.submit(call);
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            future.cancel(true);
+            if (call.report(false)) {
+                timeouts.incrementAndGet();
+                logger.debug("DataStore call [" + name + "] timed out after [" + timeoutMillis + "ms]");
+            }
+            throw new DataStoreUnavailableException("DataStore call [" + name + "] timed out", breaker.retryAfterMillis());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new DataStoreUnavailableException("Interrupted while waiting for DataStore call [" + name + "]", 0, e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ChannelNotFoundException) {
+                throw (ChannelNotFoundException) cause;
+            }
+            if (cause instanceof VersionException) {
+                throw (VersionException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private <V> V executeUnchecked(final String name, final Operation<V> operation) {
+        try {
+            return execute(name, operation);
+        } catch (final ChannelNotFoundException e) {
+            throw new IllegalStateException(e);
+        } catch (final VersionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A guarded call, which releases its place in the bulkhead and reports its outcome to the circuit breaker
+     * once it returns, unless it has already been reported as timed out.
+     */
+    private class Call<V> implements Callable<V> {
+
+        private final Operation<V> operation;
+        private final AtomicBoolean reported = new AtomicBoolean();
+
+        private Call(final Operation<V> operation) {
+            this.operation = operation;
+        }
+
+        @Override
+        public V call() throws ChannelNotFoundException, VersionException {
+            boolean success = false;
+            try {
+                try {
+                    final V result = operation.call();
+                    success = true;
+                    return result;
+                } catch (final ChannelNotFoundException e) {
+                    success = true;
+                    throw e;
+                } catch (final VersionException e) {
+                    success = true;
+                    throw e;
+                }
+            } finally {
+                bulkhead.release();
+                if (report(success) && !success) {
+                    failures.incrementAndGet();
+                }
+            }
+        }
+
+        private boolean report(final boolean success) {
+            if (!reported.compareAndSet(false, true)) {
+                return false;
+            }
+            if (success) {
+                breaker.onSuccess();
+            } else {
+                breaker.onFailure();
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void savePrivateKeySalt(final byte[] salt) {
+        executeUnchecked("savePrivateKeySalt", new Operation<Void>() {
+            @Override
+            public Void call() {
+                delegate.savePrivateKeySalt(salt);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public byte[] getPrivateKeySalt() {
+        return executeUnchecked("getPrivateKeySalt", new Operation<byte[]>() {
+            @Override
+            public byte[] call() {
+                return delegate.getPrivateKeySalt();
+            }
+        });
+    }
+
+    @Override
+    public boolean saveChannel(final Channel channel) {
+        final boolean saved = executeUnchecked("saveChannel", new Operation<Boolean>() {
+            @Override
+            public Boolean call() {
+                return delegate.saveChannel(channel);
+            }
+        });
+        if (saved) {
+            synchronized (channelIds) {
+                final Set<String> cached = channelIds.get(channel.getUAID());
+                if (cached != null) {
+                    cached.add(channel.getChannelId());
+                }
+            }
+        }
+        return saved;
+    }
+
+    @Override
+    public Channel getChannel(final String channelId) throws ChannelNotFoundException {
+        try {
+            return execute("getChannel", new Operation<Channel>() {
+                @Override
+                public Channel call() throws ChannelNotFoundException {
+                    return delegate.getChannel(channelId);
+                }
+            });
+        } catch (final VersionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void removeChannels(final String uaid) {
+        executeUnchecked("removeChannels", new Operation<Void>() {
+            @Override
+            public Void call() {
+                delegate.removeChannels(uaid);
+                return null;
+            }
+        });
+        channelIds.remove(uaid);
+        unacknowledged.remove(uaid);
+    }
+
+    @Override
+    public void removeChannels(final Set<String> channelIds) {
+        executeUnchecked("removeChannels", new Operation<Void>() {
+            @Override
+            public Void call() {
+                delegate.removeChannels(channelIds);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Set<String> getChannelIds(final String uaid) {
+        try {
+            final Set<String> ids = executeUnchecked("getChannelIds", new Operation<Set<String>>() {
+                @Override
+                public Set<String> call() {
+                    return delegate.getChannelIds(uaid);
+                }
+            });
+            channelIds.put(uaid, new HashSet<String>(ids));
+            return ids;
+        } catch (final DataStoreUnavailableException e) {
+            synchronized (channelIds) {
+                final Set<String> cached = channelIds.get(uaid);
+                if (cached == null) {
+                    throw e;
+                }
+                degradedReads.incrementAndGet();
+                return new HashSet<String>(cached);
+            }
+        }
+    }
+
+    @Override
+    public String updateVersion(final String endpointToken, final long version) throws VersionException, ChannelNotFoundException {
+        return execute("updateVersion", new Operation<String>() {
+            @Override
+            public String call() throws ChannelNotFoundException, VersionException {
+                return delegate.updateVersion(endpointToken, version);
+            }
+        });
+    }
+
+    @Override
+    public String saveUnacknowledged(final String channelId, final long version) throws ChannelNotFoundException {
+        try {
+            return execute("saveUnacknowledged", new Operation<String>() {
+                @Override
+                public String call() throws ChannelNotFoundException {
+                    return delegate.saveUnacknowledged(channelId, version);
+                }
+            });
+        } catch (final VersionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public Set<Ack> getUnacknowledged(final String uaid) {
+        try {
+            final Set<Ack> unacked = executeUnchecked("getUnacknowledged", new Operation<Set<Ack>>() {
+                @Override
+                public Set<Ack> call() {
+                    return delegate.getUnacknowledged(uaid);
+                }
+            });
+            unacknowledged.put(uaid, new HashSet<Ack>(unacked));
+            return unacked;
+        } catch (final DataStoreUnavailableException e) {
+            degradedReads.incrementAndGet();
+            synchronized (unacknowledged) {
+                final Set<Ack> cached = unacknowledged.get(uaid);
+                return cached != null ? new HashSet<Ack>(cached) : Collections.<Ack>emptySet();
+            }
+        }
+    }
+
+    @Override
+    public Set<Ack> removeAcknowledged(final String uaid, final Set<Ack> acked) {
+        final Set<Ack> unacked = executeUnchecked("removeAcknowledged", new Operation<Set<Ack>>() {
+            @Override
+            public Set<Ack> call() {
+                return delegate.removeAcknowledged(uaid, acked);
+            }
+        });
+        unacknowledged.put(uaid, new HashSet<Ack>(unacked));
+        return unacked;
+    }
+
+    /**
+     * Passes the connection on to the DataStore as a guarded call. When the call is rejected before it reached
+     * the DataStore, the matching {@link #userAgentDisconnected(String)} is not passed on either.
+     */
+    @Override
+    public void userAgentConnected(final String uaid) {
+        if (!(delegate instanceof ConnectionAwareDataStore)) {
+            return;
+        }
+        final AtomicBoolean invoked = new AtomicBoolean();
+        try {
+            executeUnchecked("userAgentConnected", new Operation<Void>() {
+                @Override
+                public Void call() {
+                    invoked.set(true);
+                    ((ConnectionAwareDataStore) delegate).userAgentConnected(uaid);
+                    return null;
+                }
+            });
+        } catch (final DataStoreUnavailableException e) {
+            // a timed out call is cancelled before this check, so it either never runs or has been invoked.
+            if (!invoked.get()) {
+                synchronized (skippedConnects) {
+                    final Integer skipped = skippedConnects.get(uaid);
+                    skippedConnects.put(uaid, skipped == null ? 1 : skipped + 1);
+                }
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void userAgentDisconnected(final String uaid) {
+        if (!(delegate instanceof ConnectionAwareDataStore)) {
+            return;
+        }
+        synchronized (skippedConnects) {
+            final Integer skipped = skippedConnects.get(uaid);
+            if (skipped != null) {
+                if (skipped == 1) {
+                    skippedConnects.remove(uaid);
+                } else {
+                    skippedConnects.put(uaid, skipped - 1);
+                }
+                return;
+            }
+        }
+        ((ConnectionAwareDataStore) delegate).userAgentDisconnected(uaid);
+    }
+
+    @Override
+    public String routedEndpointToken(final String uaid, final String endpointToken) {
+        if (delegate instanceof RoutingDataStore) {
+            return ((RoutingDataStore) delegate).routedEndpointToken(uaid, endpointToken);
+        }
+        return endpointToken;
+    }
+
+    @Override
+    public void updateLastSeen(final String uaid, final long timestamp) {
+        if (!(delegate instanceof LastSeenDataStore)) {
+            return;
+        }
+        executeUnchecked("updateLastSeen", new Operation<Void>() {
+            @Override
+            public Void call() {
+                ((LastSeenDataStore) delegate).updateLastSeen(uaid, timestamp);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public List<String> getUserAgentsLastSeenBefore(final long timestamp, final int limit) {
+        if (!(delegate instanceof LastSeenDataStore)) {
+            return Collections.emptyList();
+        }
+        return executeUnchecked("getUserAgentsLastSeenBefore", new Operation<List<String>>() {
+            @Override
+            public List<String> call() {
+                return ((LastSeenDataStore) delegate).getUserAgentsLastSeenBefore(timestamp, limit);
+            }
+        });
+    }
+
+    @Override
+    public boolean removeUserAgentIfLastSeenBefore(final String uaid, final long timestamp) {
+        if (!(delegate instanceof LastSeenDataStore)) {
+            return false;
+        }
+        final boolean removed = executeUnchecked("removeUserAgentIfLastSeenBefore", new Operation<Boolean>() {
+            @Override
+            public Boolean call() {
+                return ((LastSeenDataStore) delegate).removeUserAgentIfLastSeenBefore(uaid, timestamp);
+            }
+        });
+        if (removed) {
+            channelIds.remove(uaid);
+            unacknowledged.remove(uaid);
+        }
+        return removed;
+    }
+
+    @Override
+    public String toString() {
+        return "ResilientDataStore[delegate=" + delegate + ", circuit=" + breaker.state() + "]";
+    }
+
+}
@@ -0,0 +1,630 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link DataStore} that spreads UserAgents over a number of underlying DataStores, the shards.
+ * <p>
+ * A UserAgent is assigned to a shard using a consistent hash of its UserAgent Id, and all its channels and
+ * unacknowledged notifications are stored in that shard. The id of the shard, which is its position in the
+ * list of shards, is prefixed to the endpoint tokens of the UserAgent's channels so that notifications are
+ * routed to the right shard without a lookup. Operations that only have a channel id use an in-memory cache
+ * of channel locations and fall back to asking every shard.
+ * <p>
+ * Shards can be added at runtime using {@link #addShard(DataStore)}. Only the UserAgents that new shards
+ * take over are moved, by a background thread which pages through the UserAgents of every
+ * {@link IterableDataStore} shard. Until all UserAgents of a shard have been moved they are moved on first
+ * access instead, which is also how UserAgents of shards that cannot be iterated are moved. A shard that
+ * failed to be rebalanced can be retried using {@link #retryRebalance()}. Endpoint tokens handed out before a
+ * move keep the id of the original shard; they are found by asking the other shards and their location is
+ * then cached. Writes made while a rebalance is in progress are checked against concurrent moves and repeated
+ * in the new shard of the UserAgent should it have been moved while writing.
+ * <p>
+ * The private key salt is stored in the first shard. All server instances sharing the shards must be
+ * configured with the same shards in the same order.
+ * <p>
+ * Last seen times are stored in the shard of the UserAgent, for shards that are {@link LastSeenDataStore}s.
+ * A moved UserAgent is given a new last seen time in its new shard, while its previous last seen time is left
+ * behind in its original shard, which is why idle UserAgents are removed from every shard that considers
+ * them idle.
+ */
+public class ShardedDataStore implements RoutingDataStore, LastSeenDataStore {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+    public static final int DEFAULT_REBALANCE_BATCH_SIZE = 100;
+    private static final char SHARD_SEPARATOR = '.';
+    private static final int MAX_CACHED_LOCATIONS = 1 << 20;
+    private static final int MIGRATION_LOCKS = 64;
+
+    private final Logger logger = LoggerFactory.getLogger(ShardedDataStore.class);
+    private final List<DataStore> shards;
+    private final int virtualNodes;
+    private final int rebalanceBatchSize;
+    private final ConcurrentMap<String, Integer> channelLocations = new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentMap<String, Integer> tokenLocations = new ConcurrentHashMap<String, Integer>();
+    private final Object[] migrationLocks = new Object[MIGRATION_LOCKS];
+    private final AtomicLong scannedUserAgents = new AtomicLong();
+    private final AtomicLong movedUserAgents = new AtomicLong();
+    private final Set<Integer> pendingShards = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private volatile ConsistentHash previousRing;
+    private volatile ConsistentHash ring;
+    private Thread rebalancer;
+
+    /**
+     * Creates a ShardedDataStore using {@link #DEFAULT_VIRTUAL_NODES} and {@link #DEFAULT_REBALANCE_BATCH_SIZE}.
+     *
+     * @param shards the {@link DataStore}s to spread UserAgents over.
+     */
+    public ShardedDataStore(final List<DataStore> shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES, DEFAULT_REBALANCE_BATCH_SIZE);
+    }
+
+    /**
+     * Sole constructor.
+     *
+     * @param shards the {@link DataStore}s to spread UserAgents over.
+     * @param virtualNodes the number of positions of each shard on the consistent hash ring. More positions
+     *        spread the UserAgents more evenly.
+     * @param rebalanceBatchSize the number of UserAgent Ids read at a time when rebalancing.
+     */
+    public ShardedDataStore(final List<DataStore> shards, final int virtualNodes, final int rebalanceBatchSize) {
+        checkNotNull(shards, "shards");
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard must be specified");
+        }
+        this.shards = new CopyOnWriteArrayList<DataStore>(shards);
+        this.virtualNodes = virtualNodes;
+        this.rebalanceBatchSize = rebalanceBatchSize;
+        for (int i = 0; i < migrationLocks.length; i++) {
+            migrationLocks[i] = new Object();
+        }
+        ring = new ConsistentHash(shards.size(), virtualNodes);
+    }
+
+    /**
+     * Adds a shard and starts moving the UserAgents that it takes over in the background.
+     *
+     * @param shard the {@link DataStore} to add.
+     * @return {@code int} the id of the new shard.
+     * @throws IllegalStateException if a previous rebalance has not completed.
+     */
+    public int addShard(final DataStore shard) {
+        checkNotNull(shard, "shard");
+        return addShards(Collections.singletonList(shard));
+    }
+
+    /**
+     * Adds several shards and starts moving the UserAgents that they take over in the background, which
+     * moves every UserAgent at most once.
+     *
+     * @param newShards the {@link DataStore}s to add.
+     * @return {@code int} the id of the first new shard, the others having consecutive ids.
+     * @throws IllegalStateException if a previous rebalance has not completed.
+     */
+    public synchronized int addShards(final List<DataStore> newShards) {
+        checkNotNull(newShards, "newShards");
+        if (previousRing != null) {
+            throw new IllegalStateException("A rebalance is already in progress");
+        }
+        final int firstId = shards.size();
+        for (int shard = 0; shard < firstId; shard++) {
+            pendingShards.add(shard);
+        }
+        shards.addAll(newShards);
+        // previousRing must be visible before the new ring so that no UserAgent is accessed on its new shard
+        // without first being moved there.
+        previousRing = ring;
+        ring = new ConsistentHash(shards.size(), virtualNodes);
+        startRebalancer();
+        return firstId;
+    }
+
+    /**
+     * Restarts the background part of a rebalance for the shards whose UserAgents have not all been moved yet,
+     * for example after a shard was unavailable while rebalancing.
+     *
+     * @return {@code true} if the rebalance was restarted, {@code false} if no rebalance is in progress or it
+     *         is still running.
+     */
+    public synchronized boolean retryRebalance() {
+        if (previousRing == null || rebalancer.isAlive()) {
+            return false;
+        }
+        startRebalancer();
+        return true;
+    }
+
+    private void startRebalancer() {
+        rebalancer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                rebalance();
+            }
+        }, "simplepush-shard-rebalancer");
+        rebalancer.setDaemon(true);
+        rebalancer.start();
+    }
+
+    /**
+     * Returns whether UserAgents are still being moved after a shard was added.
+     *
+     * @return {@code true} if a rebalance is in progress, or could not complete because a shard failed or is not
+     *         an {@link IterableDataStore}.
+     */
+    public boolean isRebalancing() {
+        return previousRing != null;
+    }
+
+    /**
+     * Waits for the background part of a rebalance to complete.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit the {@link TimeUnit} of the timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void awaitRebalance(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final Thread thread;
+        synchronized (this) {
+            thread = rebalancer;
+        }
+        if (thread != null) {
+            thread.join(unit.toMillis(timeout));
+        }
+    }
+
+    /**
+     * Returns the number of UserAgents checked by rebalances so far.
+     *
+     * @return {@code long} the number of scanned UserAgents.
+     */
+    public long scannedUserAgents() {
+        return scannedUserAgents.get();
+    }
+
+    /**
+     * Returns the number of UserAgents moved to another shard so far, either in the background or on access.
+     *
+     * @return {@code long} the number of moved UserAgents.
+     */
+    public long movedUserAgents() {
+        return movedUserAgents.get();
+    }
+
+    /**
+     * Returns the number of shards.
+     *
+     * @return {@code int} the number of shards.
+     */
+    public int shardCount() {
+        return shards.size();
+    }
+
+    @Override
+    public String routedEndpointToken(final String uaid, final String endpointToken) {
+        return ring.shardFor(uaid) + String.valueOf(SHARD_SEPARATOR) + endpointToken;
+    }
+
+    @Override
+    public void savePrivateKeySalt(final byte[] salt) {
+        shards.get(0).savePrivateKeySalt(salt);
+    }
+
+    @Override
+    public byte[] getPrivateKeySalt() {
+        return shards.get(0).getPrivateKeySalt();
+    }
+
+    @Override
+    public boolean saveChannel(final Channel channel) {
+        final int shard = userAgentShard(channel.getUAID());
+        final boolean saved = shards.get(shard).saveChannel(channel);
+        if (saved) {
+            cacheLocation(channelLocations, channel.getChannelId(), shard);
+        }
+        return saved;
+    }
+
+    @Override
+    public Channel getChannel(final String channelId) throws ChannelNotFoundException {
+        final Integer cached = channelLocations.get(channelId);
+        if (cached != null) {
+            try {
+                return shards.get(cached).getChannel(channelId);
+            } catch (final ChannelNotFoundException e) {
+                channelLocations.remove(channelId);
+            }
+        }
+        for (int shard = 0; shard < shards.size(); shard++) {
+            if (cached != null && shard == cached) {
+                continue;
+            }
+            try {
+                final Channel channel = shards.get(shard).getChannel(channelId);
+                cacheLocation(channelLocations, channelId, shard);
+                return channel;
+            } catch (final ChannelNotFoundException ignored) {
+            }
+        }
+        throw new ChannelNotFoundException("Could not find channel", channelId);
+    }
+
+    @Override
+    public void removeChannels(final String uaid) {
+        shards.get(userAgentShard(uaid)).removeChannels(uaid);
+    }
+
+    @Override
+    public void removeChannels(final Set<String> channelIds) {
+        final Map<Integer, Set<String>> channelIdsByShard = new HashMap<Integer, Set<String>>();
+        for (String channelId : channelIds) {
+            final int shard = channelShard(channelId);
+            if (shard == -1) {
+                continue;
+            }
+            Set<String> shardChannelIds = channelIdsByShard.get(shard);
+            if (shardChannelIds == null) {
+                shardChannelIds = new HashSet<String>();
+                channelIdsByShard.put(shard, shardChannelIds);
+            }
+            shardChannelIds.add(channelId);
+        }
+        for (Entry<Integer, Set<String>> entry : channelIdsByShard.entrySet()) {
+            shards.get(entry.getKey()).removeChannels(entry.getValue());
+            for (String channelId : entry.getValue()) {
+                channelLocations.remove(channelId);
+            }
+        }
+    }
+
+    @Override
+    public Set<String> getChannelIds(final String uaid) {
+        final int shard = userAgentShard(uaid);
+        final Set<String> channelIds = shards.get(shard).getChannelIds(uaid);
+        for (String channelId : channelIds) {
+            cacheLocation(channelLocations, channelId, shard);
+        }
+        return channelIds;
+    }
+
+    @Override
+    public String updateVersion(final String endpointToken, final long version) throws VersionException, ChannelNotFoundException {
+        final Integer relocated = tokenLocations.get(endpointToken);
+        final int first = relocated != null ? relocated : embeddedShard(endpointToken);
+        if (first != -1 && first < shards.size()) {
+            try {
+                return updateVersion(first, endpointToken, version);
+            } catch (final ChannelNotFoundException e) {
+                tokenLocations.remove(endpointToken);
+            }
+        }
+        // the UserAgent may have been moved to another shard after the endpoint token was handed out.
+        for (int shard = 0; shard < shards.size(); shard++) {
+            if (shard == first) {
+                continue;
+            }
+            try {
+                return updateVersion(shard, endpointToken, version);
+            } catch (final ChannelNotFoundException ignored) {
+            }
+        }
+        throw new ChannelNotFoundException("Could not find channel for endpointToken", endpointToken);
+    }
+
+    private String updateVersion(final int shard, final String endpointToken, final long version)
+            throws VersionException, ChannelNotFoundException {
+        final boolean rebalancing = previousRing != null;
+        final String channelId = shards.get(shard).updateVersion(endpointToken, version);
+        final int location = rebalancing && movedAway(shard, channelId) ? updateMovedVersion(shard, endpointToken, version) : shard;
+        cacheLocation(channelLocations, channelId, location);
+        if (location != embeddedShard(endpointToken)) {
+            cacheLocation(tokenLocations, endpointToken, location);
+        }
+        return channelId;
+    }
+
+    /**
+     * Repeats a version update in the shard that the UserAgent was moved to while the update was written to
+     * the shard it was moved from, returning the id of that shard.
+     */
+    private int updateMovedVersion(final int from, final String endpointToken, final long version) throws ChannelNotFoundException {
+        for (int shard = 0; shard < shards.size(); shard++) {
+            if (shard == from) {
+                continue;
+            }
+            try {
+                shards.get(shard).updateVersion(endpointToken, version);
+                return shard;
+            } catch (final VersionException e) {
+                // the move copied the update, or the channel has been updated again since.
+                return shard;
+            } catch (final ChannelNotFoundException ignored) {
+            }
+        }
+        throw new ChannelNotFoundException("Could not find channel for endpointToken", endpointToken);
+    }
+
+    @Override
+    public String saveUnacknowledged(final String channelId, final long version) throws ChannelNotFoundException {
+        final Integer cached = channelLocations.get(channelId);
+        if (cached != null) {
+            try {
+                return saveUnacknowledged(cached, channelId, version);
+            } catch (final ChannelNotFoundException e) {
+                channelLocations.remove(channelId);
+            }
+        }
+        final int shard = channelShard(channelId);
+        if (shard == -1) {
+            throw new ChannelNotFoundException("Could not find channel", channelId);
+        }
+        return saveUnacknowledged(shard, channelId, version);
+    }
+
+    private String saveUnacknowledged(final int shard, final String channelId, final long version) throws ChannelNotFoundException {
+        final boolean rebalancing = previousRing != null;
+        final String uaid = shards.get(shard).saveUnacknowledged(channelId, version);
+        if (!rebalancing || !movedAway(shard, channelId)) {
+            return uaid;
+        }
+        // the UserAgent was moved while writing, saving again is harmless if the move copied the notification.
+        channelLocations.remove(channelId);
+        final int location = channelShard(channelId);
+        if (location == -1) {
+            throw new ChannelNotFoundException("Could not find channel", channelId);
+        }
+        return shards.get(location).saveUnacknowledged(channelId, version);
+    }
+
+    @Override
+    public Set<Ack> getUnacknowledged(final String uaid) {
+        return shards.get(userAgentShard(uaid)).getUnacknowledged(uaid);
+    }
+
+    @Override
+    public Set<Ack> removeAcknowledged(final String uaid, final Set<Ack> acked) {
+        return shards.get(userAgentShard(uaid)).removeAcknowledged(uaid, acked);
+    }
+
+    @Override
+    public void updateLastSeen(final String uaid, final long timestamp) {
+        final DataStore shard = shards.get(userAgentShard(uaid));
+        if (shard instanceof LastSeenDataStore) {
+            ((LastSeenDataStore) shard).updateLastSeen(uaid, timestamp);
+        }
+    }
+
+    /**
+     * Returns idle UserAgents from every shard, each shard contributing an equal share of {@code limit}
+     * when it has enough idle UserAgents. The UserAgents are ordered oldest first within each shard only.
+     */
+    @Override
+    public List<String> getUserAgentsLastSeenBefore(final long timestamp, final int limit) {
+        final List<String> uaids = new ArrayList<String>(limit);
+        final int shardCount = shards.size();
+        for (int shard = 0; shard < shardCount && uaids.size() < limit; shard++) {
+            if (shards.get(shard) instanceof LastSeenDataStore) {
+                final int share = Math.max((limit - uaids.size()) / (shardCount - shard), 1);
+                uaids.addAll(((LastSeenDataStore) shards.get(shard)).getUserAgentsLastSeenBefore(timestamp, share));
+            }
+        }
+        return uaids;
+    }
+
+    @Override
+    public boolean removeUserAgentIfLastSeenBefore(final String uaid, final long timestamp) {
+        boolean removed = false;
+        for (DataStore shard : shards) {
+            if (shard instanceof LastSeenDataStore) {
+                removed |= ((LastSeenDataStore) shard).removeUserAgentIfLastSeenBefore(uaid, timestamp);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the id of the shard owning the UserAgent, first moving the UserAgent there if a rebalance is
+     * in progress and it is still stored in the shard that owned it before.
+     */
+    private int userAgentShard(final String uaid) {
+        final int shard = ring.shardFor(uaid);
+        final ConsistentHash previous = previousRing;
+        if (previous != null) {
+            final int previousShard = previous.shardFor(uaid);
+            if (previousShard != shard && pendingShards.contains(previousShard)) {
+                move(uaid, previousShard, shard);
+            }
+        }
+        return shard;
+    }
+
+    /**
+     * Returns whether a channel that was just written to a shard is no longer stored there because its
+     * UserAgent was moved. The check is made holding the migration lock of the UserAgent, so a move that had
+     * not removed the channel yet copies the write.
+     */
+    private boolean movedAway(final int shard, final String channelId) {
+        final DataStore store = shards.get(shard);
+        try {
+            final Channel channel = store.getChannel(channelId);
+            synchronized (migrationLock(channel.getUAID())) {
+                store.getChannel(channelId);
+            }
+            return false;
+        } catch (final ChannelNotFoundException e) {
+            return true;
+        }
+    }
+
+    private Object migrationLock(final String uaid) {
+        return migrationLocks[(uaid.hashCode() & 0x7fffffff) % MIGRATION_LOCKS];
+    }
+
+    /**
+     * Returns the id of the shard storing the channel, or -1 if no shard stores it.
+     */
+    private int channelShard(final String channelId) {
+        try {
+            getChannel(channelId);
+        } catch (final ChannelNotFoundException e) {
+            return -1;
+        }
+        final Integer shard = channelLocations.get(channelId);
+        return shard != null ? shard : -1;
+    }
+
+    private static int embeddedShard(final String endpointToken) {
+        final int separator = endpointToken.indexOf(SHARD_SEPARATOR);
+        if (separator <= 0 || separator > 9) {
+            return -1;
+        }
+        int shard = 0;
+        for (int i = 0; i < separator; i++) {
+            final char c = endpointToken.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            shard = shard * 10 + c - '0';
+        }
+        return shard;
+    }
+
+    private static void cacheLocation(final ConcurrentMap<String, Integer> locations, final String key, final int shard) {
+        if (locations.size() >= MAX_CACHED_LOCATIONS) {
+            // locations are only hints, so simply start over rather than tracking which ones are least used.
+            locations.clear();
+        }
+        locations.put(key, shard);
+    }
+
+    private void rebalance() {
+        final ConsistentHash target = ring;
+        final long start = System.currentTimeMillis();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            if (!pendingShards.contains(shard)) {
+                continue;
+            }
+            final DataStore store = shards.get(shard);
+            if (!(store instanceof IterableDataStore)) {
+                logger.warn("Shard [" + shard + "] cannot be iterated, its UserAgents will be moved when accessed");
+                continue;
+            }
+            try {
+                rebalance(shard, (IterableDataStore) store, target);
+                pendingShards.remove(shard);
+                logger.info("Rebalanced shard [" + shard + "], scanned [" + scannedUserAgents.get() + "] moved ["
+                        + movedUserAgents.get() + "] UserAgents in total");
+            } catch (final RuntimeException e) {
+                logger.error("Rebalancing shard [" + shard + "] failed, its remaining UserAgents will be moved when accessed", e);
+            }
+        }
+        if (pendingShards.isEmpty()) {
+            previousRing = null;
+            logger.info("Rebalance completed in [" + (System.currentTimeMillis() - start) + "ms]");
+        }
+    }
+
+    private void rebalance(final int shard, final IterableDataStore iterable, final ConsistentHash target) {
+        String afterUaid = null;
+        List<String> uaids = iterable.getUserAgentIds(afterUaid, rebalanceBatchSize);
+        while (!uaids.isEmpty()) {
+            for (String uaid : uaids) {
+                final int owner = target.shardFor(uaid);
+                if (owner != shard) {
+                    move(uaid, shard, owner);
+                }
+            }
+            scannedUserAgents.addAndGet(uaids.size());
+            afterUaid = uaids.get(uaids.size() - 1);
+            uaids = iterable.getUserAgentIds(afterUaid, rebalanceBatchSize);
+        }
+    }
+
+    /**
+     * Moves the channels and unacknowledged notifications of a UserAgent from one shard to another.
+     * The copy is repeated before the source is cleared so that most notifications stored while copying are
+     * moved too, and writes to the source that raced with the move are repeated in the target, see
+     * {@link #movedAway(int, String)}.
+     */
+    private void move(final String uaid, final int from, final int to) {
+        final DataStore source = shards.get(from);
+        final DataStore target = shards.get(to);
+        synchronized (migrationLock(uaid)) {
+            if (!copy(uaid, source, target, to)) {
+                return;
+            }
+            copy(uaid, source, target, to);
+            if (target instanceof LastSeenDataStore) {
+                // the time the UserAgent was last seen is not known, so idle collection restarts from now.
+                ((LastSeenDataStore) target).updateLastSeen(uaid, System.currentTimeMillis());
+            }
+            source.removeChannels(uaid);
+        }
+        movedUserAgents.incrementAndGet();
+        logger.debug("Moved UserAgent [" + uaid + "] from shard [" + from + "] to shard [" + to + "]");
+    }
+
+    private boolean copy(final String uaid, final DataStore source, final DataStore target, final int targetShard) {
+        final Set<String> channelIds = source.getChannelIds(uaid);
+        final Set<Ack> unacked = source.getUnacknowledged(uaid);
+        if (channelIds.isEmpty() && unacked.isEmpty()) {
+            return false;
+        }
+        for (String channelId : channelIds) {
+            try {
+                final Channel channel = source.getChannel(channelId);
+                if (!target.saveChannel(new DefaultChannel(uaid, channelId, channel.getVersion(), channel.getEndpointToken()))) {
+                    target.updateVersion(channel.getEndpointToken(), channel.getVersion());
+                }
+                cacheLocation(channelLocations, channelId, targetShard);
+            } catch (final ChannelNotFoundException ignored) {
+                // the channel was removed concurrently.
+            } catch (final VersionException ignored) {
+                // the target already has this or a newer version.
+            }
+        }
+        for (Ack ack : unacked) {
+            try {
+                target.saveUnacknowledged(ack.getChannelId(), ack.getVersion());
+            } catch (final ChannelNotFoundException ignored) {
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,685 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link DataStore} that keeps the channels and unacknowledged notifications of connected UserAgents in
+ * memory, in front of a persistent DataStore.
+ * <p>
+ * The state of a UserAgent is loaded from the persistent DataStore when it connects, and from then on all
+ * reads for the UserAgent, including the endpoint token lookup and version check of a notification, are
+ * served from memory. Writes are applied to memory and written through to the persistent DataStore, either
+ * synchronously or, when write-behind threads are configured, asynchronously while preserving their order
+ * per UserAgent. Registering and removing channels is always synchronous. When the last connection of a
+ * UserAgent closes its state is evicted from memory after a grace period, so that a UserAgent that quickly
+ * reconnects does not have to be loaded again. Operations for UserAgents that are not in memory go straight
+ * to the persistent DataStore.
+ * <p>
+ * The in-memory state is only kept consistent with writes made through this instance, so all notifications
+ * for a UserAgent should be handled by the server instance it is connected to. UserAgents held in memory are
+ * never removed as idle, regardless of their last seen time.
+ */
+public class TieredDataStore implements ConnectionAwareDataStore, RoutingDataStore, LastSeenDataStore {
+
+    public static final long DEFAULT_GRACE_PERIOD_MILLIS = 60000;
+
+    private final Logger logger = LoggerFactory.getLogger(TieredDataStore.class);
+    private final DataStore delegate;
+    private final long gracePeriodMillis;
+    private final ExecutorService[] writeBehind;
+    private final ScheduledExecutorService evictor;
+    private final ConcurrentMap<String, HotUserAgent> userAgents = new ConcurrentHashMap<String, HotUserAgent>();
+    private final ConcurrentMap<String, HotChannel> channels = new ConcurrentHashMap<String, HotChannel>();
+    private final ConcurrentMap<String, HotChannel> endpoints = new ConcurrentHashMap<String, HotChannel>();
+    private final AtomicLong hotReads = new AtomicLong();
+    private final AtomicLong coldReads = new AtomicLong();
+    private final AtomicLong writeBehindFailures = new AtomicLong();
+
+    /**
+     * Creates a TieredDataStore that writes through synchronously and uses {@link #DEFAULT_GRACE_PERIOD_MILLIS}.
+     *
+     * @param delegate the persistent {@link DataStore}.
+     */
+    public TieredDataStore(final DataStore delegate) {
+        this(delegate, DEFAULT_GRACE_PERIOD_MILLIS, TimeUnit.MILLISECONDS, 0);
+    }
+
+    /**
+     * Sole constructor.
+     *
+     * @param delegate the persistent {@link DataStore}.
+     * @param gracePeriod the time a disconnected UserAgent is kept in memory.
+     * @param unit the {@link TimeUnit} of the grace period.
+     * @param writeBehindThreads the number of threads writing to the persistent DataStore asynchronously,
+     *        or 0 to write through synchronously.
+     */
+    public TieredDataStore(final DataStore delegate, final long gracePeriod, final TimeUnit unit, final int writeBehindThreads) {
+        checkNotNull(delegate, "delegate");
+        this.delegate = delegate;
+        this.gracePeriodMillis = unit.toMillis(gracePeriod);
+        writeBehind = new ExecutorService[writeBehindThreads];
+        for (int i = 0; i < writeBehindThreads; i++) {
+            writeBehind[i] = Executors.newSingleThreadExecutor(daemonThreads("simplepush-write-behind-" + i));
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor(daemonThreads("simplepush-tiered-evictor"));
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Returns the number of UserAgents currently held in memory.
+     *
+     * @return {@code int} the number of UserAgents in memory.
+     */
+    public int hotUserAgents() {
+        return userAgents.size();
+    }
+
+    /**
+     * Returns the number of reads served from memory.
+     *
+     * @return {@code long} the number of reads served from memory.
+     */
+    public long hotReads() {
+        return hotReads.get();
+    }
+
+    /**
+     * Returns the number of reads passed to the persistent DataStore.
+     *
+     * @return {@code long} the number of reads passed to the persistent DataStore.
+     */
+    public long coldReads() {
+        return coldReads.get();
+    }
+
+    /**
+     * Returns the number of asynchronous writes that failed.
+     *
+     * @return {@code long} the number of failed write-behind writes.
+     */
+    public long writeBehindFailures() {
+        return writeBehindFailures.get();
+    }
+
+    /**
+     * Waits for all pending write-behind writes to complete, and stops the write-behind and eviction threads.
+     */
+    public void close() {
+        evictor.shutdownNow();
+        for (ExecutorService executor : writeBehind) {
+            executor.shutdown();
+        }
+        try {
+            for (ExecutorService executor : writeBehind) {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void userAgentConnected(final String uaid) {
+        for (;;) {
+            final HotUserAgent existing = userAgents.get(uaid);
+            if (existing != null) {
+                synchronized (existing) {
+                    if (!existing.evicted) {
+                        existing.connect();
+                        return;
+                    }
+                }
+                // lost a race with the eviction, load the UserAgent again.
+                continue;
+            }
+            final HotUserAgent userAgent = new HotUserAgent(uaid);
+            synchronized (userAgent) {
+                if (userAgents.putIfAbsent(uaid, userAgent) != null) {
+                    continue;
+                }
+                userAgent.connect();
+                load(userAgent);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Loads the UserAgent from the persistent DataStore. Called with the UserAgent locked, which blocks
+     * operations on it until it has been loaded. Should loading fail the UserAgent is discarded, so that it is
+     * loaded again by the next connection.
+     */
+    private void load(final HotUserAgent userAgent) {
+        final String uaid = userAgent.uaid;
+        try {
+            for (String channelId : delegate.getChannelIds(uaid)) {
+                try {
+                    final Channel channel = delegate.getChannel(channelId);
+                    addChannel(userAgent, new HotChannel(uaid, channelId, channel.getEndpointToken(), channel.getVersion()));
+                } catch (final ChannelNotFoundException ignored) {
+                    // removed concurrently.
+                }
+            }
+            for (Ack ack : delegate.getUnacknowledged(uaid)) {
+                userAgent.unacked.put(ack.getChannelId(), ack.getVersion());
+            }
+            userAgent.loaded = true;
+        } finally {
+            if (!userAgent.loaded) {
+                userAgent.evicted = true;
+                for (String channelId : new HashSet<String>(userAgent.channels.keySet())) {
+                    removeChannel(userAgent, channelId);
+                }
+                userAgents.remove(uaid, userAgent);
+            }
+        }
+        logger.debug("Loaded UserAgent [" + uaid + "] with [" + userAgent.channels.size() + "] channels");
+    }
+
+    private void addChannel(final HotUserAgent userAgent, final HotChannel channel) {
+        userAgent.channels.put(channel.channelId, channel);
+        channels.put(channel.channelId, channel);
+        endpoints.put(channel.endpointToken, channel);
+    }
+
+    private void removeChannel(final HotUserAgent userAgent, final String channelId) {
+        final HotChannel channel = userAgent.channels.remove(channelId);
+        if (channel != null) {
+            channels.remove(channelId, channel);
+            endpoints.remove(channel.endpointToken, channel);
+        }
+        userAgent.unacked.remove(channelId);
+    }
+
+    @Override
+    public void userAgentDisconnected(final String uaid) {
+        final HotUserAgent userAgent = userAgents.get(uaid);
+        if (userAgent == null) {
+            return;
+        }
+        synchronized (userAgent) {
+            if (userAgent.disconnect() == 0 && !userAgent.evicted) {
+                userAgent.eviction = evictor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        // evict on the UserAgent's write-behind thread so that pending writes are persisted first.
+                        write(uaid, new Runnable() {
+                            @Override
+                            public void run() {
+                                evict(userAgent);
+                            }
+                        });
+                    }
+                }, gracePeriodMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void evict(final HotUserAgent userAgent) {
+        synchronized (userAgent) {
+            if (userAgent.connections > 0 || userAgent.evicted) {
+                return;
+            }
+            userAgent.evicted = true;
+            for (String channelId : new HashSet<String>(userAgent.channels.keySet())) {
+                removeChannel(userAgent, channelId);
+            }
+            userAgents.remove(userAgent.uaid, userAgent);
+        }
+        logger.debug("Evicted UserAgent [" + userAgent.uaid + "]");
+    }
+
+    /**
+     * Returns the in-memory state of a UserAgent, or null if the UserAgent is not held in memory. Waits for the
+     * UserAgent to be loaded if it is being loaded.
+     */
+    private HotUserAgent hot(final String uaid) {
+        final HotUserAgent userAgent = userAgents.get(uaid);
+        if (userAgent == null) {
+            return null;
+        }
+        synchronized (userAgent) {
+            return userAgent.loaded && !userAgent.evicted ? userAgent : null;
+        }
+    }
+
+    /**
+     * Performs a write to the persistent DataStore, synchronously or on the write-behind thread of the UserAgent.
+     */
+    private void write(final String uaid, final Runnable write) {
+        if (writeBehind.length == 0) {
+            write.run();
+            return;
+        }
+        writeBehind[(uaid.hashCode() & 0x7fffffff) % writeBehind.length].execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write.run();
+                } catch (final RuntimeException e) {
+                    writeBehindFailures.incrementAndGet();
+                    logger.warn("Write-behind for UserAgent [" + uaid + "] failed", e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public String routedEndpointToken(final String uaid, final String endpointToken) {
+        if (delegate instanceof RoutingDataStore) {
+            return ((RoutingDataStore) delegate).routedEndpointToken(uaid, endpointToken);
+        }
+        return endpointToken;
+    }
+
+    @Override
+    public void savePrivateKeySalt(final byte[] salt) {
+        delegate.savePrivateKeySalt(salt);
+    }
+
+    @Override
+    public byte[] getPrivateKeySalt() {
+        return delegate.getPrivateKeySalt();
+    }
+
+    @Override
+    public boolean saveChannel(final Channel channel) {
+        final boolean saved = delegate.saveChannel(channel);
+        if (saved) {
+            final HotUserAgent userAgent = hot(channel.getUAID());
+            if (userAgent != null) {
+                synchronized (userAgent) {
+                    addChannel(userAgent, new HotChannel(channel.getUAID(), channel.getChannelId(),
+                            channel.getEndpointToken(), channel.getVersion()));
+                }
+            }
+        }
+        return saved;
+    }
+
+    @Override
+    public Channel getChannel(final String channelId) throws ChannelNotFoundException {
+        final HotChannel channel = channels.get(channelId);
+        if (channel != null) {
+            hotReads.incrementAndGet();
+            return new DefaultChannel(channel.uaid, channel.channelId, channel.version.get(), channel.endpointToken);
+        }
+        coldReads.incrementAndGet();
+        return delegate.getChannel(channelId);
+    }
+
+    @Override
+    public void removeChannels(final String uaid) {
+        delegate.removeChannels(uaid);
+        clearHot(uaid);
+    }
+
+    private void clearHot(final String uaid) {
+        final HotUserAgent userAgent = hot(uaid);
+        if (userAgent != null) {
+            synchronized (userAgent) {
+                for (String channelId : new HashSet<String>(userAgent.channels.keySet())) {
+                    removeChannel(userAgent, channelId);
+                }
+                userAgent.unacked.clear();
+            }
+        }
+    }
+
+    @Override
+    public void removeChannels(final Set<String> channelIds) {
+        delegate.removeChannels(channelIds);
+        for (String channelId : channelIds) {
+            final HotChannel channel = channels.get(channelId);
+            if (channel != null) {
+                final HotUserAgent userAgent = userAgents.get(channel.uaid);
+                if (userAgent != null) {
+                    synchronized (userAgent) {
+                        removeChannel(userAgent, channelId);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public Set<String> getChannelIds(final String uaid) {
+        final HotUserAgent userAgent = hot(uaid);
+        if (userAgent != null) {
+            hotReads.incrementAndGet();
+            return new HashSet<String>(userAgent.channels.keySet());
+        }
+        coldReads.incrementAndGet();
+        return delegate.getChannelIds(uaid);
+    }
+
+    @Override
+    public String updateVersion(final String endpointToken, final long version) throws VersionException, ChannelNotFoundException {
+        final HotChannel channel = endpoints.get(endpointToken);
+        if (channel == null) {
+            coldReads.incrementAndGet();
+            return delegate.updateVersion(endpointToken, version);
+        }
+        hotReads.incrementAndGet();
+        if (writeBehind.length == 0) {
+            // the version is only changed in memory once persisted, so a failed write leaves no trace.
+            channel.checkVersion(version);
+            try {
+                delegate.updateVersion(endpointToken, version);
+            } catch (final VersionException e) {
+                // the persistent DataStore was updated by another server instance, catch up with it.
+                channel.refreshVersion(delegate);
+                throw e;
+            }
+            channel.advanceVersion(version);
+        } else {
+            channel.updateVersion(version);
+            write(channel.uaid, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        delegate.updateVersion(endpointToken, version);
+                    } catch (final VersionException e) {
+                        channel.refreshVersion(delegate);
+                    } catch (final ChannelNotFoundException e) {
+                        logger.debug("Channel [" + channel.channelId + "] was removed before its version was written");
+                    }
+                }
+            });
+        }
+        return channel.channelId;
+    }
+
+    @Override
+    public String saveUnacknowledged(final String channelId, final long version) throws ChannelNotFoundException {
+        final HotChannel channel = channels.get(channelId);
+        if (channel == null) {
+            coldReads.incrementAndGet();
+            return delegate.saveUnacknowledged(channelId, version);
+        }
+        final HotUserAgent userAgent = userAgents.get(channel.uaid);
+        if (userAgent == null) {
+            return delegate.saveUnacknowledged(channelId, version);
+        }
+        hotReads.incrementAndGet();
+        if (writeBehind.length == 0) {
+            // the notification is only stored in memory once persisted, so a failed write leaves no trace.
+            delegate.saveUnacknowledged(channelId, version);
+            storeUnacknowledged(userAgent, channelId, version);
+        } else {
+            storeUnacknowledged(userAgent, channelId, version);
+            write(channel.uaid, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        delegate.saveUnacknowledged(channelId, version);
+                    } catch (final ChannelNotFoundException e) {
+                        logger.debug("Channel [" + channelId + "] was removed before its notification was written");
+                    }
+                }
+            });
+        }
+        return channel.uaid;
+    }
+
+    private static void storeUnacknowledged(final HotUserAgent userAgent, final String channelId, final long version) {
+        synchronized (userAgent) {
+            final Long current = userAgent.unacked.get(channelId);
+            if (current == null || current < version) {
+                userAgent.unacked.put(channelId, version);
+            }
+        }
+    }
+
+    @Override
+    public Set<Ack> getUnacknowledged(final String uaid) {
+        final HotUserAgent userAgent = hot(uaid);
+        if (userAgent != null) {
+            hotReads.incrementAndGet();
+            synchronized (userAgent) {
+                return userAgent.acks();
+            }
+        }
+        coldReads.incrementAndGet();
+        return delegate.getUnacknowledged(uaid);
+    }
+
+    /**
+     * Removes the acknowledged notifications. For a UserAgent in memory a notification is only removed if its
+     * version is not greater than the acknowledged version, so that a newer notification stored after the
+     * acknowledged one was sent is kept, and only the notifications removed in memory are removed from the
+     * persistent DataStore.
+     */
+    @Override
+    public Set<Ack> removeAcknowledged(final String uaid, final Set<Ack> acked) {
+        final HotUserAgent userAgent = hot(uaid);
+        if (userAgent == null) {
+            coldReads.incrementAndGet();
+            return delegate.removeAcknowledged(uaid, acked);
+        }
+        hotReads.incrementAndGet();
+        if (writeBehind.length == 0) {
+            return removeAcknowledgedWriteThrough(userAgent, uaid, acked);
+        }
+        final Set<Ack> removed = new HashSet<Ack>(acked.size());
+        final Set<Ack> remaining;
+        synchronized (userAgent) {
+            for (Ack ack : acked) {
+                final Long version = userAgent.unacked.get(ack.getChannelId());
+                if (version != null && version <= ack.getVersion()) {
+                    userAgent.unacked.remove(ack.getChannelId());
+                    removed.add(ack);
+                }
+            }
+            remaining = userAgent.acks();
+        }
+        if (!removed.isEmpty()) {
+            write(uaid, new Runnable() {
+                @Override
+                public void run() {
+                    delegate.removeAcknowledged(uaid, removed);
+                }
+            });
+        }
+        return remaining;
+    }
+
+    /**
+     * Removes the acknowledged notifications from memory only once they have been removed from the persistent
+     * DataStore, so that a failed write leaves them to be resent.
+     */
+    private Set<Ack> removeAcknowledgedWriteThrough(final HotUserAgent userAgent, final String uaid, final Set<Ack> acked) {
+        final Set<Ack> removed = new HashSet<Ack>(acked.size());
+        synchronized (userAgent) {
+            for (Ack ack : acked) {
+                final Long version = userAgent.unacked.get(ack.getChannelId());
+                if (version != null && version <= ack.getVersion()) {
+                    removed.add(ack);
+                }
+            }
+        }
+        if (!removed.isEmpty()) {
+            delegate.removeAcknowledged(uaid, removed);
+        }
+        synchronized (userAgent) {
+            for (Ack ack : removed) {
+                final Long version = userAgent.unacked.get(ack.getChannelId());
+                if (version != null && version <= ack.getVersion()) {
+                    userAgent.unacked.remove(ack.getChannelId());
+                }
+            }
+            return userAgent.acks();
+        }
+    }
+
+    @Override
+    public void updateLastSeen(final String uaid, final long timestamp) {
+        if (delegate instanceof LastSeenDataStore) {
+            ((LastSeenDataStore) delegate).updateLastSeen(uaid, timestamp);
+        }
+    }
+
+    @Override
+    public List<String> getUserAgentsLastSeenBefore(final long timestamp, final int limit) {
+        if (delegate instanceof LastSeenDataStore) {
+            return ((LastSeenDataStore) delegate).getUserAgentsLastSeenBefore(timestamp, limit);
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean removeUserAgentIfLastSeenBefore(final String uaid, final long timestamp) {
+        if (!(delegate instanceof LastSeenDataStore) || userAgents.containsKey(uaid)) {
+            return false;
+        }
+        final boolean removed = ((LastSeenDataStore) delegate).removeUserAgentIfLastSeenBefore(uaid, timestamp);
+        if (removed) {
+            // the UserAgent may have connected, and been loaded, while it was being removed.
+            clearHot(uaid);
+        }
+        return removed;
+    }
+
+    private static class HotUserAgent {
+
+        private final String uaid;
+        private final ConcurrentMap<String, HotChannel> channels = new ConcurrentHashMap<String, HotChannel>();
+        private final ConcurrentMap<String, Long> unacked = new ConcurrentHashMap<String, Long>();
+        private int connections;
+        private boolean loaded;
+        private boolean evicted;
+        private ScheduledFuture<?> eviction;
+
+        HotUserAgent(final String uaid) {
+            this.uaid = uaid;
+        }
+
+        void connect() {
+            connections++;
+            if (eviction != null) {
+                eviction.cancel(false);
+                eviction = null;
+            }
+        }
+
+        int disconnect() {
+            if (connections > 0) {
+                connections--;
+            }
+            return connections;
+        }
+
+        Set<Ack> acks() {
+            if (unacked.isEmpty()) {
+                return Collections.emptySet();
+            }
+            final Set<Ack> acks = new HashSet<Ack>(unacked.size());
+            for (Entry<String, Long> entry : unacked.entrySet()) {
+                acks.add(new AckImpl(entry.getKey(), entry.getValue()));
+            }
+            return acks;
+        }
+    }
+
+    private static class HotChannel {
+
+        private final String uaid;
+        private final String channelId;
+        private final String endpointToken;
+        private final AtomicLong version;
+
+        HotChannel(final String uaid, final String channelId, final String endpointToken, final long version) {
+            this.uaid = uaid;
+            this.channelId = channelId;
+            this.endpointToken = endpointToken;
+            this.version = new AtomicLong(version);
+        }
+
+        void updateVersion(final long newVersion) throws VersionException {
+            for (;;) {
+                final long currentVersion = version.get();
+                if (newVersion <= currentVersion) {
+                    throw versionException(newVersion, currentVersion);
+                }
+                if (version.compareAndSet(currentVersion, newVersion)) {
+                    return;
+                }
+            }
+        }
+
+        void checkVersion(final long newVersion) throws VersionException {
+            final long currentVersion = version.get();
+            if (newVersion <= currentVersion) {
+                throw versionException(newVersion, currentVersion);
+            }
+        }
+
+        void advanceVersion(final long newVersion) {
+            long current = version.get();
+            while (current < newVersion && !version.compareAndSet(current, newVersion)) {
+                current = version.get();
+            }
+        }
+
+        void refreshVersion(final DataStore store) {
+            try {
+                advanceVersion(store.getChannel(channelId).getVersion());
+            } catch (final ChannelNotFoundException ignored) {
+            }
+        }
+
+        private static VersionException versionException(final long newVersion, final long currentVersion) {
+            return new VersionException("version [" + newVersion + "] must be greater than the current version ["
+                    + currentVersion + "]");
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * The position reached in a segment file by a {@link DataStoreExporter} or {@link DataStoreImporter}.
+ * <p>
+ * A checkpoint is written to a temporary file which is then renamed over the previous checkpoint, so that
+ * a checkpoint file always holds a complete checkpoint even if the process is killed while saving it.
+ */
+final class TransferCheckpoint {
+
+    private final File file;
+    private long position;
+    private long records;
+    private String lastUaid;
+    private boolean complete;
+
+    private TransferCheckpoint(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the checkpoint stored in the passed in file, returning an empty checkpoint if the file does not
+     * exist.
+     */
+    static TransferCheckpoint load(final File file) throws IOException {
+        final TransferCheckpoint checkpoint = new TransferCheckpoint(file);
+        if (file.exists()) {
+            final Properties properties = new Properties();
+            final InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            checkpoint.position = Long.parseLong(properties.getProperty("position", "0"));
+            checkpoint.records = Long.parseLong(properties.getProperty("records", "0"));
+            checkpoint.lastUaid = properties.getProperty("lastUaid");
+            checkpoint.complete = Boolean.parseBoolean(properties.getProperty("complete"));
+        }
+        return checkpoint;
+    }
+
+    void save(final long position, final long records, final String lastUaid, final boolean complete) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty("position", Long.toString(position));
+        properties.setProperty("records", Long.toString(records));
+        if (lastUaid != null) {
+            properties.setProperty("lastUaid", lastUaid);
+        }
+        properties.setProperty("complete", Boolean.toString(complete));
+        final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            properties.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Could not replace checkpoint [" + file + "]");
+            }
+        }
+        this.position = position;
+        this.records = records;
+        this.lastUaid = lastUaid;
+        this.complete = complete;
+    }
+
+    long position() {
+        return position;
+    }
+
+    long records() {
+        return records;
+    }
+
+    String lastUaid() {
+        return lastUaid;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+}
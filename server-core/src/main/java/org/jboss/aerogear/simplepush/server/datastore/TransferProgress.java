@@ -0,0 +1,109 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of a {@link DataStoreExporter} or {@link DataStoreImporter}, updated by its workers while
+ * the transfer runs and safe to read from any thread.
+ * <p>
+ * Counts only include the work done by the current run, so that the throughput of a resumed transfer is
+ * not skewed by the work done before it was interrupted. The number of completed segments does include
+ * segments completed by an earlier run.
+ */
+public final class TransferProgress {
+
+    private final AtomicLong userAgents = new AtomicLong();
+    private final AtomicLong channels = new AtomicLong();
+    private final AtomicLong acks = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger segmentsCompleted = new AtomicInteger();
+    private final int segments;
+    private final long startNanos = System.nanoTime();
+
+    TransferProgress(final int segments) {
+        this.segments = segments;
+    }
+
+    void record(final UserAgentRecord record) {
+        userAgents.incrementAndGet();
+        channels.addAndGet(record.getChannels().size());
+        acks.addAndGet(record.getUnacknowledged().size());
+    }
+
+    void bytes(final long count) {
+        bytes.addAndGet(count);
+    }
+
+    void segmentCompleted() {
+        segmentsCompleted.incrementAndGet();
+    }
+
+    public long userAgents() {
+        return userAgents.get();
+    }
+
+    public long channels() {
+        return channels.get();
+    }
+
+    public long acks() {
+        return acks.get();
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+
+    public int segments() {
+        return segments;
+    }
+
+    public int segmentsCompleted() {
+        return segmentsCompleted.get();
+    }
+
+    /**
+     * Returns the time since the transfer started.
+     *
+     * @return {@code long} the elapsed time in milliseconds.
+     */
+    public long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns the average number of UserAgents transferred per second since the transfer started.
+     *
+     * @return {@code double} the number of UserAgents per second.
+     */
+    public double userAgentsPerSecond() {
+        final long elapsed = System.nanoTime() - startNanos;
+        return elapsed == 0 ? 0 : userAgents.get() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferProgress[segments=" + segmentsCompleted() + "/" + segments + ", userAgents=" + userAgents()
+                + ", channels=" + channels() + ", acks=" + acks() + ", bytes=" + bytes() + ", elapsed=" + elapsedMillis()
+                + "ms, rate=" + String.format("%.1f", userAgentsPerSecond()) + " UserAgents/s]";
+    }
+
+}
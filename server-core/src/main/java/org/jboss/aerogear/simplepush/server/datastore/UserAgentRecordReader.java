@@ -0,0 +1,181 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
+
+/**
+ * Reads {@link UserAgentRecord}s written by a {@link UserAgentRecordWriter}.
+ */
+public final class UserAgentRecordReader implements Closeable {
+
+    private final CountingInputStream counter;
+    private final DataInputStream in;
+    private long records;
+
+    /**
+     * Sole constructor. The header is not read until {@link #readHeader()} is called, so that reading can
+     * start from a record in the middle of a stream.
+     *
+     * @param in the {@link InputStream} to read from.
+     */
+    public UserAgentRecordReader(final InputStream in) {
+        counter = new CountingInputStream(new BufferedInputStream(in, 64 * 1024));
+        this.in = new DataInputStream(counter);
+    }
+
+    /**
+     * Reads and verifies the header of the stream.
+     *
+     * @throws IOException if the stream was not written by a {@link UserAgentRecordWriter}, or uses an
+     *         unsupported format version.
+     */
+    public void readHeader() throws IOException {
+        final int magic = in.readInt();
+        if (magic != UserAgentRecordWriter.MAGIC) {
+            throw new IOException("Not a SimplePush UserAgent stream, magic number was [" + Integer.toHexString(magic) + "]");
+        }
+        final int version = in.readUnsignedByte();
+        if (version != UserAgentRecordWriter.FORMAT_VERSION) {
+            throw new IOException("Unsupported format version [" + version + "]");
+        }
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return {@code UserAgentRecord} the next record, or {@code null} when the end of the stream was reached.
+     * @throws EOFException if the stream ended without an end marker.
+     */
+    public UserAgentRecord read() throws IOException {
+        final int tag = in.read();
+        if (tag == UserAgentRecordWriter.END) {
+            final long total = in.readLong();
+            if (total < records) {
+                throw new IOException("Stream holds [" + total + "] records but [" + records + "] were read");
+            }
+            return null;
+        }
+        if (tag == -1) {
+            throw new EOFException("Stream ended without an end marker after [" + records + "] records");
+        }
+        if (tag != UserAgentRecordWriter.RECORD) {
+            throw new IOException("Unexpected record tag [" + tag + "]");
+        }
+        final String uaid = in.readUTF();
+        final int channelCount = readCount();
+        final Set<Channel> channels = new HashSet<Channel>(channelCount * 2);
+        for (int i = 0; i < channelCount; i++) {
+            final String channelId = in.readUTF();
+            final long version = readVarLong();
+            channels.add(new DefaultChannel(uaid, channelId, version, in.readUTF()));
+        }
+        final int ackCount = readCount();
+        final Set<Ack> acks = new HashSet<Ack>(ackCount * 2);
+        for (int i = 0; i < ackCount; i++) {
+            final String channelId = in.readUTF();
+            acks.add(new AckImpl(channelId, readVarLong()));
+        }
+        records++;
+        return new UserAgentRecord(uaid, channels, acks);
+    }
+
+    /**
+     * Returns the number of bytes consumed by this reader.
+     */
+    public long bytesRead() {
+        return counter.count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private int readCount() throws IOException {
+        final long count = readVarLong();
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Invalid count [" + count + "]");
+        }
+        return (int) count;
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length value");
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.server.Channel;
+
+/**
+ * Writes {@link UserAgentRecord}s in the compact binary format read by {@link UserAgentRecordReader}.
+ * <p>
+ * A stream starts with a header made of the magic number {@link #MAGIC} and the {@link #FORMAT_VERSION}.
+ * Each record is written as a {@link #RECORD} tag followed by the UserAgent Id, the number of channels,
+ * the channel id, version and endpoint token of each channel, the number of unacknowledged notifications,
+ * and the channel id and version of each of them. Strings use modified UTF-8 as written by
+ * {@link DataOutputStream#writeUTF(String)}, and counts and versions use a variable length encoding taking
+ * one byte for values below 128. A stream ends with an {@link #END} tag followed by the number of records
+ * in the stream, so that a reader is able to tell a complete stream from a truncated one.
+ */
+public final class UserAgentRecordWriter implements Closeable {
+
+    public static final int MAGIC = 0x53505552;
+    public static final int FORMAT_VERSION = 1;
+    static final int RECORD = 1;
+    static final int END = 0;
+
+    private final CountingOutputStream counter;
+    private final DataOutputStream out;
+    private long records;
+
+    /**
+     * Sole constructor. The header is not written until {@link #writeHeader()} is called, so that records
+     * can be appended to an existing stream.
+     *
+     * @param out the {@link OutputStream} to write to.
+     */
+    public UserAgentRecordWriter(final OutputStream out) {
+        counter = new CountingOutputStream(out);
+        this.out = new DataOutputStream(new BufferedOutputStream(counter, 64 * 1024));
+    }
+
+    public void writeHeader() throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+    }
+
+    public void write(final UserAgentRecord record) throws IOException {
+        out.writeByte(RECORD);
+        out.writeUTF(record.getUAID());
+        writeVarLong(record.getChannels().size());
+        for (Channel channel : record.getChannels()) {
+            out.writeUTF(channel.getChannelId());
+            writeVarLong(channel.getVersion());
+            out.writeUTF(channel.getEndpointToken());
+        }
+        writeVarLong(record.getUnacknowledged().size());
+        for (Ack ack : record.getUnacknowledged()) {
+            out.writeUTF(ack.getChannelId());
+            writeVarLong(ack.getVersion());
+        }
+        records++;
+    }
+
+    /**
+     * Marks the end of the stream.
+     *
+     * @param totalRecords the number of records in the whole stream, including records written before the
+     *        stream was appended to.
+     */
+    public void writeEnd(final long totalRecords) throws IOException {
+        out.writeByte(END);
+        out.writeLong(totalRecords);
+    }
+
+    /**
+     * Returns the number of records written by this writer.
+     */
+    public long records() {
+        return records;
+    }
+
+    /**
+     * Returns the number of bytes passed on to the underlying stream, which after a {@link #flush()} is the
+     * number of bytes written by this writer.
+     */
+    public long bytesWritten() {
+        return counter.count;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+}
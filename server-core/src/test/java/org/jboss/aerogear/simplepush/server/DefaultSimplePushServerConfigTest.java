@@ -66,4 +66,40 @@ public class DefaultSimplePushServerConfigTest {
                 .build();
         assertThat(config.notifierMaxThreads(), is(1));
     }
+    @Test
+    public void rateLimitsDisabledByDefault() {
+        final SimplePushServerConfig config = DefaultSimplePushConfig.create().password("dummy").build();
+        assertThat(config.endpointRateLimit(), is(0));
+        assertThat(config.ipRateLimit(), is(0));
+    }
+
+    @Test
+    public void burstDefaultsToRateLimit() {
+        final SimplePushServerConfig config = DefaultSimplePushConfig.create()
+                .endpointRateLimit(5)
+                .ipRateLimit(50).ipBurst(100)
+                .password("dummy").build();
+        assertThat(config.endpointBurst(), is(5));
+        assertThat(config.ipBurst(), is(100));
+    }
+
+    @Test
+    public void deliveryReports() {
+        assertThat(DefaultSimplePushConfig.create().password("dummy").build().deliveryReports(), is(false));
+        assertThat(DefaultSimplePushConfig.create().deliveryReports(true).password("dummy").build().deliveryReports(), is(true));
+    }
+
+    @Test
+    public void dedupDisabledByDefault() {
+        final SimplePushServerConfig config = DefaultSimplePushConfig.create().password("dummy").build();
+        assertThat(config.dedupWindowMillis(), is(0L));
+        assertThat(config.dedupMaxEntries(), is(100000));
+    }
+
+    @Test
+    public void coalescingDisabledByDefault() {
+        assertThat(DefaultSimplePushConfig.create().password("dummy").build().coalesceWindowMillis(), is(0L));
+        assertThat(DefaultSimplePushConfig.create().coalesceWindowMillis(10).password("dummy").build().coalesceWindowMillis(), is(10L));
+    }
+
 }
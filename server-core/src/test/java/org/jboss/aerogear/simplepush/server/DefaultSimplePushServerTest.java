@@ -27,18 +27,23 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.jboss.aerogear.simplepush.protocol.Ack;
 import org.jboss.aerogear.simplepush.protocol.HelloMessage;
 import org.jboss.aerogear.simplepush.protocol.HelloResponse;
 import org.jboss.aerogear.simplepush.protocol.MessageType;
 import org.jboss.aerogear.simplepush.protocol.RegisterResponse;
+import org.jboss.aerogear.simplepush.protocol.UnregisterResponse;
 import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
 import org.jboss.aerogear.simplepush.protocol.impl.AckMessageImpl;
 import org.jboss.aerogear.simplepush.protocol.impl.HelloMessageImpl;
 import org.jboss.aerogear.simplepush.protocol.impl.RegisterMessageImpl;
+import org.jboss.aerogear.simplepush.protocol.impl.UnregisterMessageImpl;
 import org.jboss.aerogear.simplepush.server.datastore.ChannelNotFoundException;
 import org.jboss.aerogear.simplepush.server.datastore.DataStore;
+import org.jboss.aerogear.simplepush.server.datastore.DataStoreFuture;
 import org.jboss.aerogear.simplepush.server.datastore.VersionException;
 import org.jboss.aerogear.simplepush.util.CryptoUtil;
 import org.jboss.aerogear.simplepush.util.UUIDUtil;
@@ -242,6 +247,94 @@ public abstract class DefaultSimplePushServerTest {
         assertThat(unacked, hasItem(new AckImpl(channelId_2, 23L)));
     }
 
+    @Test
+    public void handleHandshakeAsync() throws Exception {
+        final String channelId1 = UUID.randomUUID().toString();
+        final String channelId2 = UUID.randomUUID().toString();
+        final String uaid = UUIDUtil.newUAID();
+        server.handleHandshake(new HelloMessageImpl(uaid, new HashSet<String>(Arrays.asList(channelId1))));
+        final DataStoreFuture<HelloResponse> response = server.handleHandshakeAsync(new HelloMessageImpl(uaid,
+                new HashSet<String>(Arrays.asList(channelId2))));
+        assertThat(response.get(5, TimeUnit.SECONDS).getUAID(), equalTo(uaid));
+        assertThat(server.hasChannel(uaid, channelId1), is(false));
+        assertThat(server.hasChannel(uaid, channelId2), is(true));
+    }
+
+    @Test
+    public void handleNotificationAsync() throws Exception {
+        final String channelId = UUID.randomUUID().toString();
+        final String uaid = UUIDUtil.newUAID();
+        final RegisterResponse registerResponse = server.handleRegister(new RegisterMessageImpl(channelId), uaid);
+        final String endpointToken = extractEndpointToken(registerResponse.getPushEndpoint());
+        final Notification notification = server.handleNotificationAsync(endpointToken, "version=3").get(5, TimeUnit.SECONDS);
+        assertThat(notification.uaid(), equalTo(uaid));
+        assertThat(notification.ack(), equalTo((Ack) new AckImpl(channelId, 3L)));
+        assertThat(server.getChannel(channelId).getVersion(), is(3L));
+        assertThat(server.getUnacknowledged(uaid), hasItem((Ack) new AckImpl(channelId, 3L)));
+        final DataStoreFuture<Notification> older = server.handleNotificationAsync(endpointToken, "version=2");
+        assertThat(awaitFailure(older) instanceof VersionException, is(true));
+    }
+
+    @Test
+    public void handleNotificationAsyncNonExistingChannelId() throws Exception {
+        final DataStoreFuture<Notification> notification = server.handleNotificationAsync(UUID.randomUUID().toString(), "version=1");
+        assertThat(awaitFailure(notification) instanceof ChannelNotFoundException, is(true));
+    }
+
+    @Test
+    public void handleAckAsync() throws Exception {
+        final String channelId1 = UUID.randomUUID().toString();
+        final String channelId2 = UUID.randomUUID().toString();
+        final String uaid = UUIDUtil.newUAID();
+        final String endpointToken1 = extractEndpointToken(server.handleRegister(new RegisterMessageImpl(channelId1), uaid).getPushEndpoint());
+        final String endpointToken2 = extractEndpointToken(server.handleRegister(new RegisterMessageImpl(channelId2), uaid).getPushEndpoint());
+        server.handleNotificationAsync(endpointToken1, "version=10").get(5, TimeUnit.SECONDS);
+        server.handleNotificationAsync(endpointToken2, "version=23").get(5, TimeUnit.SECONDS);
+        final Set<Ack> unacked = server.handleAcknowledgementAsync(new AckMessageImpl(asSet(new AckImpl(channelId1, 10L))), uaid)
+                .get(5, TimeUnit.SECONDS);
+        assertThat(unacked, equalTo(asSet(new AckImpl(channelId2, 23L))));
+    }
+
+    @Test
+    public void handleRegisterAndUnregisterAsync() throws Exception {
+        final String channelId = UUID.randomUUID().toString();
+        final String uaid = UUIDUtil.newUAID();
+        final RegisterResponse registered = server.handleRegisterAsync(new RegisterMessageImpl(channelId), uaid)
+                .get(5, TimeUnit.SECONDS);
+        assertThat(registered.getStatus().getCode(), is(200));
+        assertThat(server.hasChannel(uaid, channelId), is(true));
+
+        final UnregisterResponse otherUserAgent = server.handleUnregisterAsync(new UnregisterMessageImpl(channelId),
+                UUIDUtil.newUAID()).get(5, TimeUnit.SECONDS);
+        assertThat(otherUserAgent.getStatus().getCode(), is(200));
+        assertThat(server.hasChannel(uaid, channelId), is(true));
+        final UnregisterResponse unregistered = server.handleUnregisterAsync(new UnregisterMessageImpl(channelId), uaid)
+                .get(5, TimeUnit.SECONDS);
+        assertThat(unregistered.getStatus().getCode(), is(200));
+        assertThat(server.hasChannel(uaid, channelId), is(false));
+        final UnregisterResponse missing = server.handleUnregisterAsync(new UnregisterMessageImpl(channelId), uaid)
+                .get(5, TimeUnit.SECONDS);
+        assertThat(missing.getStatus().getCode(), is(200));
+    }
+
+    @Test
+    public void getUnacknowledgedAsync() throws Exception {
+        final String channelId = UUID.randomUUID().toString();
+        final String uaid = UUIDUtil.newUAID();
+        final String endpointToken = extractEndpointToken(server.handleRegister(new RegisterMessageImpl(channelId), uaid).getPushEndpoint());
+        server.handleNotificationAsync(endpointToken, "version=4").get(5, TimeUnit.SECONDS);
+        assertThat(server.getUnacknowledgedAsync(uaid).get(5, TimeUnit.SECONDS), equalTo(asSet(new AckImpl(channelId, 4L))));
+    }
+
+    private static Throwable awaitFailure(final DataStoreFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (final ExecutionException e) {
+            return e.getCause();
+        }
+        throw new AssertionError("Expected the future to fail");
+    }
+
     private Set<Ack> asSet(final Ack... update) {
         return new HashSet<Ack>(Arrays.asList(update));
     }
@@ -0,0 +1,116 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class NotificationDeduplicatorTest {
+
+    @Test
+    public void repeatsReturnOutcome() {
+        final NotificationDeduplicator deduplicator = new NotificationDeduplicator(60000);
+        assertThat(deduplicator.register("endpoint", 1), is(NotificationDeduplicator.NEW));
+        assertThat(deduplicator.register("endpoint", 1), is(NotificationDeduplicator.PENDING));
+        deduplicator.complete("endpoint", 1, 200);
+        assertThat(deduplicator.register("endpoint", 1), is(200));
+        assertThat(deduplicator.hits(), is(2L));
+        assertThat(deduplicator.misses(), is(1L));
+        assertThat(deduplicator.hitRate(), is(2.0 / 3));
+    }
+
+    @Test
+    public void versionsAndEndpointsAreSeparate() {
+        final NotificationDeduplicator deduplicator = new NotificationDeduplicator(60000);
+        assertThat(deduplicator.register("endpoint", 1), is(NotificationDeduplicator.NEW));
+        assertThat(deduplicator.register("endpoint", 2), is(NotificationDeduplicator.NEW));
+        assertThat(deduplicator.register("other", 1), is(NotificationDeduplicator.NEW));
+        assertThat(deduplicator.entries(), is(3));
+    }
+
+    @Test
+    public void forgottenNotificationsAreNew() {
+        final NotificationDeduplicator deduplicator = new NotificationDeduplicator(60000);
+        deduplicator.register("endpoint", 1);
+        deduplicator.forget("endpoint", 1);
+        assertThat(deduplicator.register("endpoint", 1), is(NotificationDeduplicator.NEW));
+    }
+
+    @Test
+    public void expiresAfterWindow() throws Exception {
+        final NotificationDeduplicator deduplicator = new NotificationDeduplicator(20);
+        deduplicator.register("endpoint", 1);
+        Thread.sleep(40);
+        assertThat(deduplicator.register("endpoint", 1), is(NotificationDeduplicator.NEW));
+        deduplicator.register("other", 1);
+        Thread.sleep(40);
+        deduplicator.evictExpired();
+        assertThat(deduplicator.entries(), is(0));
+        assertThat(deduplicator.evicted() >= 2, is(true));
+    }
+
+    @Test
+    public void boundedNumberOfEntries() {
+        final NotificationDeduplicator deduplicator = new NotificationDeduplicator(60000, 10, 1);
+        for (int i = 0; i < 20; i++) {
+            assertThat(deduplicator.register("endpoint" + i, 1), is(NotificationDeduplicator.NEW));
+        }
+        assertThat(deduplicator.entries(), is(10));
+        assertThat(deduplicator.untracked(), is(10L));
+    }
+
+    @Test
+    public void concurrentRepeatsAreHandledOnce() throws Exception {
+        final NotificationDeduplicator deduplicator = new NotificationDeduplicator(60000);
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        return deduplicator.register("endpoint", 1);
+                    }
+                }));
+            }
+            start.countDown();
+            int handled = 0;
+            for (Future<Integer> result : results) {
+                if (result.get() == NotificationDeduplicator.NEW) {
+                    handled++;
+                }
+            }
+            assertThat(handled, is(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class TokenBucketRateLimiterTest {
+
+    @Test
+    public void allowsBurstThenRejects() {
+        final TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1, 3);
+        for (int i = 0; i < 3; i++) {
+            assertThat(limiter.tryAcquire("endpoint"), is(0L));
+        }
+        final long retryAfter = limiter.tryAcquire("endpoint");
+        assertThat(retryAfter > 0 && retryAfter <= 1000, is(true));
+        assertThat(limiter.rejected(), is(1L));
+    }
+
+    @Test
+    public void keysHaveSeparateBuckets() {
+        final TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1, 1);
+        assertThat(limiter.tryAcquire("endpoint1"), is(0L));
+        assertThat(limiter.tryAcquire("endpoint2"), is(0L));
+        assertThat(limiter.tryAcquire("endpoint1") > 0, is(true));
+        assertThat(limiter.buckets(), is(2));
+    }
+
+    @Test
+    public void refillsAtSustainedRate() throws Exception {
+        final TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(100, 1);
+        assertThat(limiter.tryAcquire("endpoint"), is(0L));
+        assertThat(limiter.tryAcquire("endpoint") > 0, is(true));
+        Thread.sleep(20);
+        assertThat(limiter.tryAcquire("endpoint"), is(0L));
+    }
+
+    @Test
+    public void concurrentRequestsGetBurst() throws Exception {
+        final TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(0.001, 100);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int allowed = 0;
+                        for (int i = 0; i < 1000; i++) {
+                            if (limiter.tryAcquire("endpoint") == 0) {
+                                allowed++;
+                            }
+                        }
+                        return allowed;
+                    }
+                }));
+            }
+            int allowed = 0;
+            for (Future<Integer> future : futures) {
+                allowed += future.get();
+            }
+            assertThat(allowed, is(100));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void evictsRefilledBuckets() throws Exception {
+        final TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1000, 1);
+        for (int i = 0; i < 100; i++) {
+            limiter.tryAcquire("endpoint" + i);
+        }
+        assertThat(limiter.buckets(), is(100));
+        Thread.sleep(10);
+        limiter.evictIdle();
+        assertThat(limiter.buckets(), is(0));
+        assertThat(limiter.evicted(), is(100L));
+    }
+
+    @Test
+    public void boundedNumberOfBuckets() {
+        final TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1, 1, 16, 16);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(limiter.tryAcquire("endpoint" + i), is(0L));
+        }
+        assertThat(limiter.buckets() <= 16, is(true));
+        assertThat(limiter.untracked() > 0, is(true));
+    }
+
+}
@@ -0,0 +1,52 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server;
+
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.junit.Test;
+
+public class TopicRegistryTest {
+
+    @Test
+    public void subscribe() {
+        final TopicRegistry registry = new TopicRegistry();
+        assertThat(registry.subscribe("news", "endpoint1"), is(true));
+        assertThat(registry.subscribe("news", "endpoint2"), is(true));
+        assertThat(registry.subscribe("news", "endpoint1"), is(false));
+        assertThat(registry.size("news"), is(2));
+        assertThat(registry.members("news"), hasItems("endpoint1", "endpoint2"));
+    }
+
+    @Test
+    public void unsubscribe() {
+        final TopicRegistry registry = new TopicRegistry();
+        registry.subscribe("news", "endpoint1");
+        assertThat(registry.unsubscribe("news", "endpoint1"), is(true));
+        assertThat(registry.unsubscribe("news", "endpoint1"), is(false));
+        assertThat(registry.unsubscribe("sports", "endpoint1"), is(false));
+        assertThat(registry.size("news"), is(0));
+    }
+
+    @Test
+    public void unknownTopicHasNoMembers() {
+        assertThat(new TopicRegistry().members("news").isEmpty(), is(true));
+    }
+
+}
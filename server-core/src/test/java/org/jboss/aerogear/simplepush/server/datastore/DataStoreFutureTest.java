@@ -0,0 +1,123 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
+import org.jboss.aerogear.simplepush.util.UUIDUtil;
+import org.junit.Test;
+
+public class DataStoreFutureTest {
+
+    @Test
+    public void listenersAreNotifiedOnCompletion() {
+        final DataStoreFuture<String> future = new DataStoreFuture<String>();
+        final List<String> notified = new ArrayList<String>();
+        future.addListener(new DataStoreFuture.Listener<String>() {
+            @Override
+            public void operationComplete(final DataStoreFuture<String> completed) {
+                notified.add("first:" + completed.getNow());
+            }
+        });
+        assertThat(notified.isEmpty(), is(true));
+        assertThat(future.complete("value"), is(true));
+        assertThat(future.complete("other"), is(false));
+        assertThat(future.fail(new IllegalStateException()), is(false));
+        future.addListener(new DataStoreFuture.Listener<String>() {
+            @Override
+            public void operationComplete(final DataStoreFuture<String> completed) {
+                notified.add("second:" + completed.getNow());
+            }
+        });
+        assertThat(notified, equalTo(Arrays.asList("first:value", "second:value")));
+        assertThat(future.isSuccess(), is(true));
+    }
+
+    @Test
+    public void failedFutureThrowsCause() throws Exception {
+        final ChannelNotFoundException cause = new ChannelNotFoundException("not found", "chid");
+        final DataStoreFuture<String> future = DataStoreFuture.failed(cause);
+        assertThat(future.isDone(), is(true));
+        assertThat(future.isSuccess(), is(false));
+        try {
+            future.get();
+        } catch (final ExecutionException e) {
+            assertThat(e.getCause(), is(sameInstance((Throwable) cause)));
+            return;
+        }
+        throw new AssertionError("Expected an ExecutionException");
+    }
+
+    @Test
+    public void allCompletesWhenEveryFutureCompletes() {
+        final DataStoreFuture<String> first = new DataStoreFuture<String>();
+        final DataStoreFuture<Boolean> second = new DataStoreFuture<Boolean>();
+        final DataStoreFuture<Void> all = DataStoreFuture.all(Arrays.asList(first, second));
+        first.complete("done");
+        assertThat(all.isDone(), is(false));
+        second.complete(true);
+        assertThat(all.isSuccess(), is(true));
+        assertThat(DataStoreFuture.all(Collections.<DataStoreFuture<?>>emptyList()).isSuccess(), is(true));
+    }
+
+    @Test
+    public void allFailsOnFirstFailure() {
+        final DataStoreFuture<String> first = new DataStoreFuture<String>();
+        final DataStoreFuture<String> second = new DataStoreFuture<String>();
+        final DataStoreFuture<Void> all = DataStoreFuture.all(Arrays.asList(first, second));
+        final IllegalStateException cause = new IllegalStateException();
+        first.fail(cause);
+        assertThat(all.isDone(), is(true));
+        assertThat(all.cause(), is(sameInstance((Throwable) cause)));
+    }
+
+    @Test
+    public void executorAsyncDataStoreCompletesOnExecutor() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final InMemoryDataStore store = new InMemoryDataStore();
+            final ExecutorAsyncDataStore asyncStore = new ExecutorAsyncDataStore(store, executor);
+            final String uaid = UUIDUtil.newUAID();
+            final DataStoreFuture<Boolean> saved = asyncStore.saveChannel(new DefaultChannel(uaid, "chid", "token"));
+            assertThat(saved.get(5, TimeUnit.SECONDS), is(true));
+            assertThat(asyncStore.getChannelIds(uaid).get(5, TimeUnit.SECONDS), equalTo(Collections.singleton("chid")));
+            final DataStoreFuture<String> updated = asyncStore.updateVersion("unknown", 1L);
+            try {
+                updated.get(5, TimeUnit.SECONDS);
+                throw new AssertionError("Expected a ChannelNotFoundException");
+            } catch (final ExecutionException e) {
+                assertThat(e.getCause() instanceof ChannelNotFoundException, is(true));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
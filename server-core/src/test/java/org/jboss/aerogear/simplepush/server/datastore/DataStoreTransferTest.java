@@ -0,0 +1,240 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
+import org.jboss.aerogear.simplepush.util.UUIDUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DataStoreTransferTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writeAndReadRecords() throws Exception {
+        final UserAgentRecord record = newRecord(UUIDUtil.newUAID(), 3);
+        final UserAgentRecord empty = new UserAgentRecord(UUIDUtil.newUAID(), Collections.<Channel>emptySet(),
+                Collections.<Ack>emptySet());
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final UserAgentRecordWriter writer = new UserAgentRecordWriter(out);
+        writer.writeHeader();
+        writer.write(record);
+        writer.write(empty);
+        writer.writeEnd(writer.records());
+        writer.close();
+        assertThat(writer.bytesWritten(), is((long) out.size()));
+
+        final UserAgentRecordReader reader = new UserAgentRecordReader(new ByteArrayInputStream(out.toByteArray()));
+        reader.readHeader();
+        final UserAgentRecord read = reader.read();
+        assertThat(read.getUAID(), equalTo(record.getUAID()));
+        assertThat(channelsOf(read), equalTo(channelsOf(record)));
+        assertThat(read.getUnacknowledged(), equalTo(record.getUnacknowledged()));
+        assertThat(reader.read().getUAID(), equalTo(empty.getUAID()));
+        assertThat(reader.read(), is((UserAgentRecord) null));
+        assertThat(reader.bytesRead(), is((long) out.size()));
+    }
+
+    @Test (expected = EOFException.class)
+    public void readTruncatedStream() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final UserAgentRecordWriter writer = new UserAgentRecordWriter(out);
+        writer.writeHeader();
+        writer.write(newRecord(UUIDUtil.newUAID(), 1));
+        writer.close();
+        final UserAgentRecordReader reader = new UserAgentRecordReader(new ByteArrayInputStream(out.toByteArray()));
+        reader.readHeader();
+        reader.read();
+        reader.read();
+    }
+
+    @Test
+    public void exportAndImport() throws Exception {
+        final InMemoryDataStore source = new InMemoryDataStore();
+        final List<UserAgentRecord> records = populate(source, 300);
+        final File dir = folder.newFolder();
+        final TransferProgress exported = new DataStoreExporter(source, dir, 8, 3, 16).exportUserAgents();
+        assertThat(exported.userAgents(), is(300L));
+        assertThat(exported.segmentsCompleted(), is(8));
+        assertThat(exported.channels(), is(600L));
+        assertThat(exported.acks(), is(300L));
+
+        final InMemoryDataStore target = new InMemoryDataStore();
+        final TransferProgress imported = new DataStoreImporter(target, dir, 3, 10).importUserAgents();
+        assertThat(imported.userAgents(), is(300L));
+        assertThat(imported.bytes(), is(exported.bytes()));
+        assertTransferred(records, target);
+        assertThat(target.getUserAgentsLastSeenBefore(Long.MAX_VALUE, 1000).size(), is(300));
+    }
+
+    @Test
+    public void exportResumesAfterFailure() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final InMemoryDataStore source = new InMemoryDataStore() {
+            @Override
+            public List<UserAgentRecord> getUserAgents(final String afterUaid, final int limit) {
+                if (calls.incrementAndGet() == 5) {
+                    throw new IllegalStateException("injected failure");
+                }
+                return super.getUserAgents(afterUaid, limit);
+            }
+        };
+        final List<UserAgentRecord> records = populate(source, 200);
+        final File dir = folder.newFolder();
+        try {
+            new DataStoreExporter(source, dir, 2, 1, 10).exportUserAgents();
+            fail("Export should have failed");
+        } catch (final IllegalStateException expected) {
+        }
+        final TransferProgress resumed = new DataStoreExporter(source, dir, 2, 1, 10).exportUserAgents();
+        assertThat(resumed.userAgents() < 200, is(true));
+        final InMemoryDataStore target = new InMemoryDataStore();
+        assertThat(new DataStoreImporter(target, dir).importUserAgents().userAgents(), is(200L));
+        assertTransferred(records, target);
+    }
+
+    @Test
+    public void importResumesAfterFailure() throws Exception {
+        final InMemoryDataStore source = new InMemoryDataStore();
+        final List<UserAgentRecord> records = populate(source, 100);
+        final File dir = folder.newFolder();
+        new DataStoreExporter(source, dir, 1, 1, 10).exportUserAgents();
+        final AtomicInteger calls = new AtomicInteger();
+        final InMemoryDataStore target = new InMemoryDataStore() {
+            @Override
+            public void saveUserAgents(final List<UserAgentRecord> userAgents) {
+                if (calls.incrementAndGet() == 3) {
+                    throw new IllegalStateException("injected failure");
+                }
+                super.saveUserAgents(userAgents);
+            }
+        };
+        try {
+            new DataStoreImporter(target, dir, 1, 20).importUserAgents();
+            fail("Import should have failed");
+        } catch (final IllegalStateException expected) {
+        }
+        assertThat(new DataStoreImporter(target, dir, 1, 20).importUserAgents().userAgents(), is(60L));
+        assertTransferred(records, target);
+    }
+
+    @Test (expected = java.io.IOException.class)
+    public void importRequiresCompleteExport() throws Exception {
+        final InMemoryDataStore source = new InMemoryDataStore() {
+            @Override
+            public List<UserAgentRecord> getUserAgents(final String afterUaid, final int limit) {
+                throw new IllegalStateException("injected failure");
+            }
+        };
+        final File dir = folder.newFolder();
+        try {
+            new DataStoreExporter(source, dir, 1, 1, 10).exportUserAgents();
+        } catch (final IllegalStateException expected) {
+        }
+        new DataStoreImporter(new InMemoryDataStore(), dir).importUserAgents();
+    }
+
+    @Test
+    public void importIntoDataStoreWithoutBulkLoad() throws Exception {
+        final InMemoryDataStore source = new InMemoryDataStore();
+        final List<UserAgentRecord> records = populate(source, 5);
+        final File dir = folder.newFolder();
+        new DataStoreExporter(source, dir, 2, 2, 10).exportUserAgents();
+        final DataStore target = mock(DataStore.class);
+        new DataStoreImporter(target, dir).importUserAgents();
+        for (UserAgentRecord record : records) {
+            for (Channel channel : record.getChannels()) {
+                verify(target).saveChannel(new DefaultChannel(channel.getUAID(), channel.getChannelId(),
+                        channel.getVersion(), channel.getEndpointToken()));
+            }
+            for (Ack ack : record.getUnacknowledged()) {
+                verify(target, times(1)).saveUnacknowledged(ack.getChannelId(), ack.getVersion());
+            }
+        }
+    }
+
+    private static List<UserAgentRecord> populate(final InMemoryDataStore store, final int userAgents) {
+        final UserAgentRecord[] records = new UserAgentRecord[userAgents];
+        for (int i = 0; i < userAgents; i++) {
+            records[i] = newRecord(UUIDUtil.newUAID(), 2);
+        }
+        store.saveUserAgents(Arrays.asList(records));
+        return Arrays.asList(records);
+    }
+
+    private static UserAgentRecord newRecord(final String uaid, final int channels) {
+        final Set<Channel> channelSet = new HashSet<Channel>();
+        final Set<Ack> acks = new HashSet<Ack>();
+        for (int i = 0; i < channels; i++) {
+            final String channelId = UUID.randomUUID().toString();
+            channelSet.add(new DefaultChannel(uaid, channelId, i + 1000L, "token-" + channelId));
+            if (i == 0) {
+                acks.add(new AckImpl(channelId, i + 1000L));
+            }
+        }
+        return new UserAgentRecord(uaid, channelSet, acks);
+    }
+
+    private static void assertTransferred(final List<UserAgentRecord> records, final DataStore target) throws Exception {
+        for (UserAgentRecord record : records) {
+            final Set<String> channelIds = new HashSet<String>();
+            for (Channel channel : record.getChannels()) {
+                channelIds.add(channel.getChannelId());
+                final Channel loaded = target.getChannel(channel.getChannelId());
+                assertThat(loaded.getVersion(), is(channel.getVersion()));
+                assertThat(loaded.getEndpointToken(), equalTo(channel.getEndpointToken()));
+            }
+            assertThat(target.getChannelIds(record.getUAID()), equalTo(channelIds));
+            assertThat(target.getUnacknowledged(record.getUAID()), equalTo(record.getUnacknowledged()));
+        }
+    }
+
+    private static Set<String> channelsOf(final UserAgentRecord record) {
+        final Set<String> channels = new HashSet<String>();
+        for (Channel channel : record.getChannels()) {
+            channels.add(channel.getChannelId() + ":" + channel.getVersion() + ":" + channel.getEndpointToken());
+        }
+        return channels;
+    }
+
+}
@@ -0,0 +1,41 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the DataStore conformance tests against an {@link InMemoryDataStore} that is adapted to an
+ * {@link AsyncDataStore} running on a thread pool, and back to a {@link DataStore}.
+ */
+public class ExecutorAsyncDataStoreConformanceTest extends DataStoreConformanceTest {
+
+    private ExecutorService executor;
+
+    @Override
+    protected DataStore createDataStore() {
+        executor = Executors.newFixedThreadPool(4);
+        return new BlockingDataStore(new ExecutorAsyncDataStore(new InMemoryDataStore(), executor));
+    }
+
+    @Override
+    protected void closeDataStore(final DataStore dataStore) {
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,76 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.jboss.aerogear.simplepush.util.UUIDUtil;
+import org.junit.Test;
+
+public class GroupCommitDataStoreConformanceTest extends DataStoreConformanceTest {
+
+    @Override
+    protected DataStore createDataStore() {
+        return new GroupCommitDataStore(new InMemoryDataStore());
+    }
+
+    @Override
+    protected void closeDataStore(final DataStore dataStore) {
+        ((GroupCommitDataStore) dataStore).close();
+    }
+
+    /**
+     * Concurrent writes of the same version are collapsed, and every collapsed caller receives the outcome of
+     * the collapsed write, so a version may be accepted more than once. The highest version must still win.
+     */
+    @Test
+    @Override
+    public void concurrentVersionUpdatesAreMonotonic() throws Exception {
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 0L);
+        store.saveChannel(channel);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final Future<?>[] futures = new Future<?>[4];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int version = 1; version <= 50; version++) {
+                            try {
+                                store.updateVersion(channel.getEndpointToken(), version);
+                            } catch (final Exception ignored) {
+                            }
+                        }
+                    }
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(store.getChannel(channel.getChannelId()).getVersion(), is(50L));
+    }
+
+}
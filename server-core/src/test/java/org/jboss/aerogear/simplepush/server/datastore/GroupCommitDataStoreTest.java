@@ -0,0 +1,239 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
+import org.jboss.aerogear.simplepush.util.UUIDUtil;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class GroupCommitDataStoreTest {
+
+    @Test
+    public void updateVersion() throws Exception {
+        final InMemoryDataStore inMemory = new InMemoryDataStore();
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 1L);
+        inMemory.saveChannel(channel);
+        final GroupCommitDataStore store = new GroupCommitDataStore(inMemory);
+        try {
+            assertThat(store.updateVersion(channel.getEndpointToken(), 2L), equalTo(channel.getChannelId()));
+            assertThat(inMemory.getChannel(channel.getChannelId()).getVersion(), is(2L));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test (expected = VersionException.class)
+    public void updateVersionLessThanCurrent() throws Exception {
+        final InMemoryDataStore inMemory = new InMemoryDataStore();
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 10L);
+        inMemory.saveChannel(channel);
+        final GroupCommitDataStore store = new GroupCommitDataStore(inMemory);
+        try {
+            store.updateVersion(channel.getEndpointToken(), 9L);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test (expected = ChannelNotFoundException.class)
+    public void updateVersionNonExistingEndpointToken() throws Exception {
+        final GroupCommitDataStore store = new GroupCommitDataStore(new InMemoryDataStore());
+        try {
+            store.updateVersion(UUID.randomUUID().toString(), 1L);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void collapsesWritesToSameChannel() throws Exception {
+        final InMemoryDataStore inMemory = new InMemoryDataStore();
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 0L);
+        inMemory.saveChannel(channel);
+        final GroupCommitDataStore store = new GroupCommitDataStore(inMemory, 200, TimeUnit.MILLISECONDS, 1000);
+        try {
+            final List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (long version : new long[] {3, 5, 1, 4, 2}) {
+                futures.add(store.updateVersionAsync(channel.getEndpointToken(), version));
+            }
+            for (Future<String> future : futures) {
+                assertThat(future.get(5, TimeUnit.SECONDS), equalTo(channel.getChannelId()));
+            }
+            assertThat(inMemory.getChannel(channel.getChannelId()).getVersion(), is(5L));
+            assertThat(store.batchSizes().batches(), is(1L));
+            assertThat(store.batchSizes().writes(), is(1L));
+            assertThat(store.collapsedWrites(), is(4L));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void flushesWhenMaxBatchSizeReached() throws Exception {
+        final InMemoryDataStore inMemory = new InMemoryDataStore();
+        final String uaid = UUIDUtil.newUAID();
+        final List<Channel> channels = new ArrayList<Channel>();
+        for (int i = 0; i < 3; i++) {
+            final Channel channel = newChannel(uaid, 0L);
+            inMemory.saveChannel(channel);
+            channels.add(channel);
+        }
+        final GroupCommitDataStore store = new GroupCommitDataStore(inMemory, 1, TimeUnit.HOURS, 3);
+        try {
+            final List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (Channel channel : channels) {
+                futures.add(store.saveUnacknowledgedAsync(channel.getChannelId(), 1L));
+            }
+            for (Future<String> future : futures) {
+                assertThat(future.get(5, TimeUnit.SECONDS), equalTo(uaid));
+            }
+            assertThat(inMemory.getUnacknowledged(uaid).size(), is(3));
+            assertThat(store.batchSizes().max(), is(3L));
+            assertThat(store.batchSizes().buckets()[1], is(1L));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void failureOnlyAffectsMatchingWrite() throws Exception {
+        final InMemoryDataStore inMemory = new InMemoryDataStore();
+        final String uaid = UUIDUtil.newUAID();
+        final Channel channel = newChannel(uaid, 0L);
+        inMemory.saveChannel(channel);
+        final GroupCommitDataStore store = new GroupCommitDataStore(inMemory, 200, TimeUnit.MILLISECONDS, 1000);
+        try {
+            final Future<String> saved = store.saveUnacknowledgedAsync(channel.getChannelId(), 1L);
+            final Future<String> missing = store.saveUnacknowledgedAsync("nonExistingChannel", 1L);
+            assertThat(saved.get(5, TimeUnit.SECONDS), equalTo(uaid));
+            try {
+                missing.get(5, TimeUnit.SECONDS);
+                fail("Expected ChannelNotFoundException");
+            } catch (final ExecutionException e) {
+                assertThat(e.getCause() instanceof ChannelNotFoundException, is(true));
+            }
+            assertThat(store.getUnacknowledged(uaid), hasItem((Ack) new AckImpl(channel.getChannelId(), 1L)));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void nonBatchDataStore() throws Exception {
+        final DataStore delegate = mock(DataStore.class);
+        when(delegate.updateVersion("token", 2L)).thenReturn("channelId");
+        final GroupCommitDataStore store = new GroupCommitDataStore(delegate, 200, TimeUnit.MILLISECONDS, 1000);
+        try {
+            final Future<String> first = store.updateVersionAsync("token", 1L);
+            final Future<String> second = store.updateVersionAsync("token", 2L);
+            assertThat(first.get(5, TimeUnit.SECONDS), equalTo("channelId"));
+            assertThat(second.get(5, TimeUnit.SECONDS), equalTo("channelId"));
+            verify(delegate, times(1)).updateVersion("token", 2L);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void errorFailsBatchAndFlusherKeepsRunning() throws Exception {
+        final DataStore delegate = mock(DataStore.class);
+        when(delegate.updateVersion("broken", 1L)).thenThrow(new LinkageError("driver"));
+        when(delegate.updateVersion("token", 1L)).thenReturn("channelId");
+        final GroupCommitDataStore store = new GroupCommitDataStore(delegate, 1, TimeUnit.MILLISECONDS, 1000);
+        try {
+            try {
+                store.updateVersion("broken", 1L);
+                fail("Expected a DataStoreUnavailableException");
+            } catch (final DataStoreUnavailableException e) {
+                assertThat(e.getCause() instanceof LinkageError, is(true));
+            }
+            assertThat(store.updateVersion("token", 1L), equalTo("channelId"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void commitTimeout() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final DataStore delegate = mock(DataStore.class);
+        when(delegate.updateVersion("token", 1L)).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(final InvocationOnMock invocation) throws Throwable {
+                release.await();
+                return "channelId";
+            }
+        });
+        final GroupCommitDataStore store = new GroupCommitDataStore(delegate, 1, TimeUnit.MILLISECONDS, 1000, 100);
+        try {
+            store.updateVersion("token", 1L);
+            fail("Expected a DataStoreUnavailableException");
+        } catch (final DataStoreUnavailableException e) {
+            assertThat(e.getMessage(), equalTo("Batch was not committed within 100ms"));
+        } finally {
+            release.countDown();
+            store.close();
+        }
+    }
+
+    @Test
+    public void closeFlushesPendingWrites() throws Exception {
+        final InMemoryDataStore inMemory = new InMemoryDataStore();
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 0L);
+        inMemory.saveChannel(channel);
+        final GroupCommitDataStore store = new GroupCommitDataStore(inMemory, 1, TimeUnit.HOURS, 1000);
+        final Future<String> future = store.updateVersionAsync(channel.getEndpointToken(), 1L);
+        store.close();
+        assertThat(future.isDone(), is(true));
+        assertThat(future.get(), equalTo(channel.getChannelId()));
+    }
+
+    @Test (expected = IllegalStateException.class)
+    public void writeAfterClose() {
+        final GroupCommitDataStore store = new GroupCommitDataStore(new InMemoryDataStore());
+        store.close();
+        store.updateVersionAsync("token", 1L);
+    }
+
+    private static Channel newChannel(final String uaid, final long version) {
+        return new DefaultChannel(uaid, UUID.randomUUID().toString(), version, UUID.randomUUID().toString());
+    }
+
+}
@@ -0,0 +1,125 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
+import org.jboss.aerogear.simplepush.util.UUIDUtil;
+import org.junit.Test;
+
+public class IdleUserAgentCollectorTest {
+
+    @Test
+    public void sweepRemovesIdleUserAgents() {
+        final InMemoryDataStore store = new InMemoryDataStore();
+        for (int i = 0; i < 5; i++) {
+            store.updateLastSeen(saveUserAgent(store), i);
+        }
+        final String active = saveUserAgent(store);
+        store.updateLastSeen(active, System.currentTimeMillis());
+        final IdleUserAgentCollector collector = new IdleUserAgentCollector(store, 1, 1, TimeUnit.HOURS, 2, 1000);
+        assertThat(collector.sweep(), is(5L));
+        assertThat(collector.removedUserAgents(), is(5L));
+        assertThat(collector.scannedUserAgents(), is(5L));
+        assertThat(collector.sweeps(), is(1L));
+        assertThat(store.getUserAgentsLastSeenBefore(Long.MAX_VALUE, 10), is(Arrays.asList(active)));
+        assertThat(store.getChannelIds(active).size(), is(1));
+        assertThat(collector.sweep(), is(0L));
+    }
+
+    @Test
+    public void sweepIsRateLimited() {
+        final InMemoryDataStore store = new InMemoryDataStore();
+        for (int i = 0; i < 6; i++) {
+            store.updateLastSeen(saveUserAgent(store), i);
+        }
+        final IdleUserAgentCollector collector = new IdleUserAgentCollector(store, 1, 1, TimeUnit.HOURS, 4, 20);
+        final long start = System.nanoTime();
+        assertThat(collector.sweep(), is(6L));
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200, is(true));
+    }
+
+    @Test
+    public void sweepSkipsConnectedUserAgents() {
+        final InMemoryDataStore cold = new InMemoryDataStore();
+        final String connected = saveUserAgent(cold);
+        final String idle = saveUserAgent(cold);
+        cold.updateLastSeen(connected, 1);
+        cold.updateLastSeen(idle, 2);
+        final TieredDataStore store = new TieredDataStore(cold);
+        try {
+            store.userAgentConnected(connected);
+            final IdleUserAgentCollector collector = new IdleUserAgentCollector(store, 1, 1, TimeUnit.HOURS, 10, 1000);
+            assertThat(collector.sweep(), is(1L));
+            // skipped once in each of the two batches read.
+            assertThat(collector.skippedUserAgents(), is(2L));
+            assertThat(store.getChannelIds(connected).size(), is(1));
+            assertThat(cold.getChannelIds(idle).isEmpty(), is(true));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void sweepEndsWhenNoUserAgentInBatchCanBeRemoved() {
+        final LastSeenDataStore store = mock(LastSeenDataStore.class);
+        when(store.getUserAgentsLastSeenBefore(anyLong(), anyInt())).thenReturn(Arrays.asList("uaid1", "uaid2"));
+        when(store.removeUserAgentIfLastSeenBefore(anyString(), anyLong())).thenThrow(new IllegalStateException("down"));
+        final IdleUserAgentCollector collector = new IdleUserAgentCollector(store, 1, 1, TimeUnit.HOURS, 2, 1000);
+        assertThat(collector.sweep(), is(0L));
+        assertThat(collector.failures(), is(2L));
+        verify(store, times(1)).getUserAgentsLastSeenBefore(anyLong(), anyInt());
+    }
+
+    @Test
+    public void sweepsInBackground() throws Exception {
+        final InMemoryDataStore store = new InMemoryDataStore();
+        store.updateLastSeen(saveUserAgent(store), 1);
+        final IdleUserAgentCollector collector = new IdleUserAgentCollector(store, 1, 10, TimeUnit.MILLISECONDS, 10, 1000);
+        collector.start();
+        try {
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (collector.removedUserAgents() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(collector.removedUserAgents(), is(1L));
+        } finally {
+            collector.stop();
+        }
+    }
+
+    private static String saveUserAgent(final DataStore store) {
+        final String uaid = UUIDUtil.newUAID();
+        final String channelId = UUID.randomUUID().toString();
+        store.saveChannel(new DefaultChannel(uaid, channelId, "token-" + channelId));
+        return uaid;
+    }
+
+}
@@ -0,0 +1,283 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
+import org.jboss.aerogear.simplepush.server.DefaultSimplePushConfig;
+import org.jboss.aerogear.simplepush.server.DefaultSimplePushServer;
+import org.jboss.aerogear.simplepush.util.UUIDUtil;
+import org.junit.Test;
+
+public class NegativeLookupDataStoreTest {
+
+    @Test
+    public void bloomFilterHasNoFalseNegatives() {
+        final BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("endpoint-" + i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertThat(filter.mightContain("endpoint-" + i), is(true));
+        }
+        assertThat(filter.insertions(), is(10000L));
+    }
+
+    @Test
+    public void bloomFilterFalsePositiveRate() {
+        final BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add(UUID.randomUUID().toString());
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain(UUID.randomUUID().toString())) {
+                falsePositives++;
+            }
+        }
+        assertThat("false positives: " + falsePositives, falsePositives < 2000, is(true));
+    }
+
+    @Test
+    public void rejectsUnknownEndpointsAfterBuild() throws Exception {
+        final CountingDataStore counting = new CountingDataStore();
+        final Channel existing = newChannel();
+        counting.saveChannel(existing);
+        final NegativeLookupDataStore store = newStore(counting, counting);
+        try {
+            store.rebuild();
+            assertThat(store.filterReady(), is(true));
+            assertThat(store.mightContainEndpoint(existing.getEndpointToken()), is(true));
+            assertThat(store.updateVersion(existing.getEndpointToken(), 1L), equalTo(existing.getChannelId()));
+            int rejected = 0;
+            for (int i = 0; i < 100; i++) {
+                try {
+                    store.updateVersion(UUID.randomUUID().toString(), 1L);
+                    fail("Should have thrown ChannelNotFoundException");
+                } catch (final ChannelNotFoundException expected) {
+                }
+            }
+            rejected = (int) store.filteredByBloom();
+            assertThat(rejected + counting.updates - 1, is(100));
+            assertThat(rejected > 90, is(true));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void savedChannelsPassTheFilter() throws Exception {
+        final InMemoryDataStore inMemory = new InMemoryDataStore();
+        final NegativeLookupDataStore store = newStore(inMemory, inMemory);
+        try {
+            store.rebuild();
+            final Channel channel = newChannel();
+            assertThat(store.mightContainEndpoint(channel.getEndpointToken()), is(false));
+            store.saveChannel(channel);
+            assertThat(store.mightContainEndpoint(channel.getEndpointToken()), is(true));
+            assertThat(store.updateVersion(channel.getEndpointToken(), 1L), equalTo(channel.getChannelId()));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void remembersMissesWithoutSource() throws Exception {
+        final CountingDataStore counting = new CountingDataStore();
+        final NegativeLookupDataStore store = newStore(counting, null);
+        try {
+            final String endpointToken = UUID.randomUUID().toString();
+            assertThat(store.mightContainEndpoint(endpointToken), is(true));
+            for (int i = 0; i < 3; i++) {
+                try {
+                    store.updateVersion(endpointToken, 1L);
+                    fail("Should have thrown ChannelNotFoundException");
+                } catch (final ChannelNotFoundException expected) {
+                }
+            }
+            assertThat(counting.updates, is(1));
+            assertThat(store.filteredByMisses(), is(2L));
+            assertThat(store.misses(), is(1));
+            final Channel channel = new DefaultChannel(UUIDUtil.newUAID(), UUID.randomUUID().toString(), endpointToken);
+            store.saveChannel(channel);
+            assertThat(store.misses(), is(0));
+            assertThat(store.updateVersion(endpointToken, 1L), equalTo(channel.getChannelId()));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void missesExpireAndAreBounded() throws Exception {
+        final CountingDataStore counting = new CountingDataStore();
+        final NegativeLookupDataStore store = new NegativeLookupDataStore(counting, null, 100, 0.01, 60000, 50, 2,
+                NegativeLookupDataStore.DEFAULT_BATCH_SIZE);
+        try {
+            for (int i = 0; i < 3; i++) {
+                try {
+                    store.updateVersion("endpoint-" + i, 1L);
+                    fail("Should have thrown ChannelNotFoundException");
+                } catch (final ChannelNotFoundException expected) {
+                }
+            }
+            assertThat(store.misses(), is(2));
+            assertThat(store.mightContainEndpoint("endpoint-2"), is(true));
+            Thread.sleep(100);
+            assertThat(store.mightContainEndpoint("endpoint-0"), is(true));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void simplePushServerReportsUnknownEndpoints() throws Exception {
+        final InMemoryDataStore inMemory = new InMemoryDataStore();
+        final NegativeLookupDataStore store = newStore(inMemory, inMemory);
+        try {
+            store.rebuild();
+            final DefaultSimplePushServer server = new DefaultSimplePushServer(store,
+                    DefaultSimplePushConfig.create().password("test").build(), new byte[16]);
+            assertThat(server.mightHaveChannel(UUID.randomUUID().toString()), is(false));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void batchesAreFilteredAndForwarded() throws Exception {
+        final CountingDataStore counting = new CountingDataStore();
+        final Channel existing = newChannel();
+        counting.saveChannel(existing);
+        final NegativeLookupDataStore store = newStore(counting, counting);
+        try {
+            store.rebuild();
+            final String unknown = UUID.randomUUID().toString();
+            final Map<String, Long> versions = new HashMap<String, Long>();
+            versions.put(existing.getEndpointToken(), 1L);
+            versions.put(unknown, 1L);
+            final Map<String, WriteResult> results = store.updateVersions(versions);
+            assertThat(results.get(existing.getEndpointToken()).value(), equalTo(existing.getChannelId()));
+            assertThat(results.get(unknown).failure() instanceof ChannelNotFoundException, is(true));
+            assertThat(counting.batches, is(1));
+            assertThat(counting.batched <= 2, is(true));
+            assertThat(counting.updates, is(0));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void batchesFallBackToSingleUpdates() throws Exception {
+        final InMemoryDataStore inMemory = new InMemoryDataStore();
+        final Channel existing = newChannel();
+        inMemory.saveChannel(existing);
+        final TieredDataStore tiered = new TieredDataStore(inMemory);
+        final NegativeLookupDataStore store = newStore(tiered, null);
+        try {
+            final String unknown = UUID.randomUUID().toString();
+            final Map<String, Long> versions = new HashMap<String, Long>();
+            versions.put(existing.getEndpointToken(), 1L);
+            versions.put(unknown, 1L);
+            final Map<String, WriteResult> results = store.updateVersions(versions);
+            assertThat(results.get(existing.getEndpointToken()).value(), equalTo(existing.getChannelId()));
+            assertThat(results.get(unknown).failure() instanceof ChannelNotFoundException, is(true));
+            assertThat(store.misses(), is(1));
+            assertThat(inMemory.getChannel(existing.getChannelId()).getVersion(), is(1L));
+        } finally {
+            store.close();
+            tiered.close();
+        }
+    }
+
+    @Test
+    public void enumeratesUserAgentsOfSource() throws Exception {
+        final InMemoryDataStore inMemory = new InMemoryDataStore();
+        final Channel existing = newChannel();
+        inMemory.saveChannel(existing);
+        final TieredDataStore tiered = new TieredDataStore(inMemory);
+        final NegativeLookupDataStore store = newStore(tiered, inMemory);
+        try {
+            assertThat(store.getUserAgentIds(null, 10), equalTo(Collections.singletonList(existing.getUAID())));
+            assertThat(store.getUserAgents(null, 10).size(), is(1));
+        } finally {
+            store.close();
+            tiered.close();
+        }
+    }
+
+    @Test (expected = UnsupportedOperationException.class)
+    public void cannotEnumerateWithoutIterableDataStore() throws Exception {
+        final TieredDataStore tiered = new TieredDataStore(new InMemoryDataStore());
+        final NegativeLookupDataStore store = newStore(tiered, null);
+        try {
+            store.getUserAgentIds(null, 10);
+        } finally {
+            store.close();
+            tiered.close();
+        }
+    }
+
+    private static NegativeLookupDataStore newStore(final DataStore delegate, final IterableDataStore source) {
+        // a long rebuild interval so that the tests control when the filter is built.
+        return new NegativeLookupDataStore(delegate, source, 1000, 0.01, 3600000, 60000, 100,
+                NegativeLookupDataStore.DEFAULT_BATCH_SIZE);
+    }
+
+    private static Channel newChannel() {
+        return new DefaultChannel(UUIDUtil.newUAID(), UUID.randomUUID().toString(), UUID.randomUUID().toString());
+    }
+
+    private static class CountingDataStore extends InMemoryDataStore {
+
+        private volatile int updates;
+        private volatile int batches;
+        private volatile int batched;
+
+        @Override
+        public String updateVersion(final String endpointToken, final long version) throws VersionException,
+                ChannelNotFoundException {
+            updates++;
+            return super.updateVersion(endpointToken, version);
+        }
+
+        @Override
+        public Map<String, WriteResult> updateVersions(final Map<String, Long> versions) {
+            batches++;
+            batched += versions.size();
+            final Map<String, WriteResult> results = new HashMap<String, WriteResult>();
+            for (Map.Entry<String, Long> entry : versions.entrySet()) {
+                try {
+                    results.put(entry.getKey(), WriteResult.success(super.updateVersion(entry.getKey(), entry.getValue())));
+                } catch (final Exception e) {
+                    results.put(entry.getKey(), WriteResult.failure(e));
+                }
+            }
+            return results;
+        }
+    }
+
+}
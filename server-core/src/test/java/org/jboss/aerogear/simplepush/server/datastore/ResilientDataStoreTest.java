@@ -0,0 +1,291 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.protocol.HelloResponse;
+import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
+import org.jboss.aerogear.simplepush.protocol.impl.HelloMessageImpl;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
+import org.jboss.aerogear.simplepush.server.DefaultSimplePushConfig;
+import org.jboss.aerogear.simplepush.server.DefaultSimplePushServer;
+import org.jboss.aerogear.simplepush.util.UUIDUtil;
+import org.junit.Test;
+
+public class ResilientDataStoreTest {
+
+    @Test
+    public void opensAfterConsecutiveFailures() throws Exception {
+        final FaultyDataStore faulty = new FaultyDataStore();
+        final ResilientDataStore store = new ResilientDataStore(faulty, 0, 10, 3, 60000, 100);
+        faulty.failing = true;
+        for (int i = 0; i < 3; i++) {
+            try {
+                store.getChannelIds(UUIDUtil.newUAID());
+                fail("Should have thrown IllegalStateException");
+            } catch (final IllegalStateException expected) {
+            }
+        }
+        assertThat(store.circuitState(), is(CircuitBreaker.State.OPEN));
+        assertThat(store.failures(), is(3L));
+        assertThat(store.timesOpened(), is(1L));
+        faulty.failing = false;
+        try {
+            store.updateVersion("endpointToken", 1L);
+            fail("Should have thrown DataStoreUnavailableException");
+        } catch (final DataStoreUnavailableException e) {
+            assertThat(e.retryAfterMillis() > 0, is(true));
+        }
+        try {
+            store.checkAvailable();
+            fail("Should have thrown DataStoreUnavailableException");
+        } catch (final DataStoreUnavailableException expected) {
+        }
+        assertThat(faulty.calls, is(3));
+        assertThat(store.rejectedByCircuit(), is(2L));
+    }
+
+    @Test
+    public void expectedExceptionsAreNotFailures() throws Exception {
+        final ResilientDataStore store = new ResilientDataStore(new InMemoryDataStore(), 0, 10, 1, 60000, 100);
+        try {
+            store.getChannel("missing");
+            fail("Should have thrown ChannelNotFoundException");
+        } catch (final ChannelNotFoundException expected) {
+        }
+        try {
+            store.updateVersion("missing", 1L);
+            fail("Should have thrown ChannelNotFoundException");
+        } catch (final ChannelNotFoundException expected) {
+        }
+        assertThat(store.circuitState(), is(CircuitBreaker.State.CLOSED));
+        assertThat(store.failures(), is(0L));
+    }
+
+    @Test
+    public void trialCallClosesCircuit() throws Exception {
+        final FaultyDataStore faulty = new FaultyDataStore();
+        final ResilientDataStore store = new ResilientDataStore(faulty, 0, 10, 1, 50, 100);
+        faulty.failing = true;
+        try {
+            store.getUnacknowledged(UUIDUtil.newUAID());
+        } catch (final IllegalStateException expected) {
+        }
+        assertThat(store.circuitState(), is(CircuitBreaker.State.OPEN));
+        Thread.sleep(100);
+        try {
+            store.getChannelIds(UUIDUtil.newUAID());
+            fail("Should have thrown IllegalStateException");
+        } catch (final IllegalStateException expected) {
+        }
+        assertThat(store.circuitState(), is(CircuitBreaker.State.OPEN));
+        assertThat(store.timesOpened(), is(2L));
+        Thread.sleep(100);
+        faulty.failing = false;
+        store.checkAvailable();
+        assertThat(store.getChannelIds(UUIDUtil.newUAID()).isEmpty(), is(true));
+        assertThat(store.circuitState(), is(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void slowCallsTimeOutAndFillBulkhead() throws Exception {
+        final FaultyDataStore faulty = new FaultyDataStore();
+        final ResilientDataStore store = new ResilientDataStore(faulty, 50, 1, 5, 60000, 100);
+        try {
+            faulty.block = new CountDownLatch(1);
+            try {
+                store.getChannelIds(UUIDUtil.newUAID());
+                fail("Should have thrown DataStoreUnavailableException");
+            } catch (final DataStoreUnavailableException expected) {
+            }
+            assertThat(store.timeouts(), is(1L));
+            assertThat(store.activeCalls(), is(1));
+            try {
+                store.getChannelIds(UUIDUtil.newUAID());
+                fail("Should have thrown DataStoreUnavailableException");
+            } catch (final DataStoreUnavailableException expected) {
+            }
+            assertThat(store.rejectedByBulkhead(), is(1L));
+            faulty.block.countDown();
+            faulty.block = null;
+            while (store.activeCalls() > 0) {
+                Thread.sleep(10);
+            }
+            assertThat(store.getChannelIds(UUIDUtil.newUAID()).isEmpty(), is(true));
+            assertThat(store.circuitState(), is(CircuitBreaker.State.CLOSED));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void bulkheadRejectsConcurrentCalls() throws Exception {
+        final FaultyDataStore faulty = new FaultyDataStore();
+        final ResilientDataStore store = new ResilientDataStore(faulty, 0, 1, 5, 60000, 100);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            faulty.block = new CountDownLatch(1);
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    store.getChannelIds(UUIDUtil.newUAID());
+                }
+            });
+            while (store.activeCalls() == 0) {
+                Thread.sleep(10);
+            }
+            try {
+                store.removeChannels(UUIDUtil.newUAID());
+                fail("Should have thrown DataStoreUnavailableException");
+            } catch (final DataStoreUnavailableException expected) {
+            }
+            assertThat(store.rejectedByBulkhead(), is(1L));
+            assertThat(store.circuitState(), is(CircuitBreaker.State.CLOSED));
+        } finally {
+            faulty.block.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void servesLastReadValuesWhileOpen() throws Exception {
+        final FaultyDataStore faulty = new FaultyDataStore();
+        final ResilientDataStore store = new ResilientDataStore(faulty, 0, 10, 1, 60000, 100);
+        final Channel channel = newChannel(UUIDUtil.newUAID());
+        store.saveChannel(channel);
+        store.saveUnacknowledged(channel.getChannelId(), 10L);
+        assertThat(store.getChannelIds(channel.getUAID()), hasItem(channel.getChannelId()));
+        assertThat(store.getUnacknowledged(channel.getUAID()), hasItem(ack(channel.getChannelId(), 10L)));
+        open(faulty, store);
+
+        assertThat(store.getChannelIds(channel.getUAID()), equalTo(Collections.singleton(channel.getChannelId())));
+        assertThat(store.getUnacknowledged(channel.getUAID()), hasItem(ack(channel.getChannelId(), 10L)));
+        assertThat(store.getUnacknowledged(UUIDUtil.newUAID()).isEmpty(), is(true));
+        try {
+            store.getChannelIds(UUIDUtil.newUAID());
+            fail("Should have thrown DataStoreUnavailableException");
+        } catch (final DataStoreUnavailableException expected) {
+        }
+        assertThat(store.degradedReads(), is(3L));
+    }
+
+    @Test
+    public void handshakeSucceedsWhileOpen() throws Exception {
+        final FaultyDataStore faulty = new FaultyDataStore();
+        final ResilientDataStore store = new ResilientDataStore(new TieredDataStore(faulty), 0, 10, 1, 60000, 100);
+        final DefaultSimplePushServer server = new DefaultSimplePushServer(store,
+                DefaultSimplePushConfig.create().password("test").build(), new byte[16]);
+        final String uaid = UUIDUtil.newUAID();
+        final Set<String> channelIds = Collections.singleton(UUID.randomUUID().toString());
+        open(faulty, store);
+        final HelloResponse response = server.handleHandshake(new HelloMessageImpl(uaid, channelIds));
+        assertThat(response.getUAID(), equalTo(uaid));
+        assertThat(server.getUnacknowledged(uaid).isEmpty(), is(true));
+        server.handleDisconnect(uaid);
+        assertThat(server.handleHandshakeAsync(new HelloMessageImpl(uaid, channelIds)).get().getUAID(), equalTo(uaid));
+        try {
+            server.checkAvailable();
+            fail("Should have thrown DataStoreUnavailableException");
+        } catch (final DataStoreUnavailableException expected) {
+        }
+    }
+
+    private static void open(final FaultyDataStore faulty, final ResilientDataStore store) {
+        faulty.failing = true;
+        try {
+            store.getChannelIds(UUIDUtil.newUAID());
+        } catch (final IllegalStateException expected) {
+        }
+        faulty.failing = false;
+        assertThat(store.circuitState(), is(CircuitBreaker.State.OPEN));
+    }
+
+    private static Channel newChannel(final String uaid) {
+        final String channelId = UUID.randomUUID().toString();
+        return new DefaultChannel(uaid, channelId, UUID.randomUUID().toString());
+    }
+
+    private static Ack ack(final String channelId, final long version) {
+        return new AckImpl(channelId, version);
+    }
+
+    /**
+     * An InMemoryDataStore whose reads of channel ids and unacknowledged notifications, and version updates, can be
+     * made to fail or block.
+     */
+    private static class FaultyDataStore extends InMemoryDataStore {
+
+        private volatile boolean failing;
+        private volatile CountDownLatch block;
+        private volatile int calls;
+
+        @Override
+        public Set<String> getChannelIds(final String uaid) {
+            call();
+            return super.getChannelIds(uaid);
+        }
+
+        @Override
+        public Set<Ack> getUnacknowledged(final String uaid) {
+            call();
+            return super.getUnacknowledged(uaid);
+        }
+
+        @Override
+        public String updateVersion(final String endpointToken, final long version) throws VersionException,
+                ChannelNotFoundException {
+            call();
+            return super.updateVersion(endpointToken, version);
+        }
+
+        private void call() {
+            calls++;
+            final CountDownLatch latch = block;
+            boolean interrupted = false;
+            // like many drivers, ignore interrupts while blocked.
+            while (latch != null) {
+                try {
+                    latch.await();
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failing) {
+                throw new IllegalStateException("DataStore is down");
+            }
+        }
+    }
+
+}
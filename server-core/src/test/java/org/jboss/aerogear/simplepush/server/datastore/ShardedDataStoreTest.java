@@ -0,0 +1,379 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
+import org.jboss.aerogear.simplepush.util.UUIDUtil;
+import org.junit.Test;
+
+public class ShardedDataStoreTest {
+
+    @Test
+    public void saveChannelInOwningShard() throws ChannelNotFoundException {
+        final List<DataStore> shards = inMemoryShards(3);
+        final ShardedDataStore store = new ShardedDataStore(shards);
+        final Channel channel = newChannel(store, UUIDUtil.newUAID());
+        assertThat(store.saveChannel(channel), is(true));
+        final int shard = shardOf(channel.getEndpointToken());
+        for (int i = 0; i < shards.size(); i++) {
+            assertThat(shards.get(i).getChannelIds(channel.getUAID()).isEmpty(), is(i != shard));
+        }
+        assertThat(store.getChannel(channel.getChannelId()).getUAID(), equalTo(channel.getUAID()));
+        assertThat(store.getChannelIds(channel.getUAID()), hasItem(channel.getChannelId()));
+    }
+
+    @Test
+    public void userAgentsSpreadOverShards() {
+        final List<DataStore> shards = inMemoryShards(4);
+        final ShardedDataStore store = new ShardedDataStore(shards);
+        final Set<Integer> used = new HashSet<Integer>();
+        for (int i = 0; i < 100; i++) {
+            final Channel channel = newChannel(store, UUIDUtil.newUAID());
+            store.saveChannel(channel);
+            used.add(shardOf(channel.getEndpointToken()));
+        }
+        assertThat(used.size(), is(4));
+    }
+
+    @Test
+    public void updateVersionRoutedByToken() throws Exception {
+        final ShardedDataStore store = new ShardedDataStore(inMemoryShards(3));
+        final Channel channel = newChannel(store, UUIDUtil.newUAID());
+        store.saveChannel(channel);
+        assertThat(store.updateVersion(channel.getEndpointToken(), 10L), equalTo(channel.getChannelId()));
+        assertThat(store.saveUnacknowledged(channel.getChannelId(), 10L), equalTo(channel.getUAID()));
+        assertThat(store.getChannel(channel.getChannelId()).getVersion(), is(10L));
+        assertThat(store.getUnacknowledged(channel.getUAID()), hasItem(ack(channel.getChannelId(), 10L)));
+    }
+
+    @Test (expected = VersionException.class)
+    public void updateVersionLessThanCurrent() throws Exception {
+        final ShardedDataStore store = new ShardedDataStore(inMemoryShards(3));
+        final Channel channel = newChannel(store, UUIDUtil.newUAID());
+        store.saveChannel(channel);
+        store.updateVersion(channel.getEndpointToken(), 10L);
+        store.updateVersion(channel.getEndpointToken(), 5L);
+    }
+
+    @Test (expected = ChannelNotFoundException.class)
+    public void updateVersionUnknownToken() throws Exception {
+        final ShardedDataStore store = new ShardedDataStore(inMemoryShards(3));
+        store.updateVersion("7.unknown", 10L);
+    }
+
+    @Test
+    public void removeChannelsAcrossShards() throws Exception {
+        final ShardedDataStore store = new ShardedDataStore(inMemoryShards(3));
+        final Set<String> channelIds = new HashSet<String>();
+        final List<Channel> channels = new ArrayList<Channel>();
+        for (int i = 0; i < 20; i++) {
+            final Channel channel = newChannel(store, UUIDUtil.newUAID());
+            store.saveChannel(channel);
+            channelIds.add(channel.getChannelId());
+            channels.add(channel);
+        }
+        store.removeChannels(channelIds);
+        for (Channel channel : channels) {
+            assertThat(store.getChannelIds(channel.getUAID()).isEmpty(), is(true));
+        }
+    }
+
+    @Test
+    public void removeChannelsForUserAgent() {
+        final ShardedDataStore store = new ShardedDataStore(inMemoryShards(3));
+        final String uaid = UUIDUtil.newUAID();
+        store.saveChannel(newChannel(store, uaid));
+        store.saveChannel(newChannel(store, uaid));
+        store.removeChannels(uaid);
+        assertThat(store.getChannelIds(uaid).isEmpty(), is(true));
+    }
+
+    @Test
+    public void privateKeySaltStoredInFirstShard() {
+        final DataStore first = mock(DataStore.class);
+        final DataStore second = mock(DataStore.class);
+        final byte[] salt = "some salt".getBytes();
+        when(first.getPrivateKeySalt()).thenReturn(salt);
+        final ShardedDataStore store = new ShardedDataStore(Arrays.asList(first, second));
+        store.savePrivateKeySalt(salt);
+        assertThat(store.getPrivateKeySalt(), equalTo(salt));
+        verify(first).savePrivateKeySalt(salt);
+        verifyZeroInteractions(second);
+    }
+
+    @Test
+    public void addShardRebalances() throws Exception {
+        final List<DataStore> shards = inMemoryShards(2);
+        final ShardedDataStore store = new ShardedDataStore(shards, ShardedDataStore.DEFAULT_VIRTUAL_NODES, 7);
+        final List<Channel> channels = new ArrayList<Channel>();
+        for (int i = 0; i < 200; i++) {
+            final Channel channel = newChannel(store, UUIDUtil.newUAID());
+            store.saveChannel(channel);
+            store.updateVersion(channel.getEndpointToken(), 1L);
+            store.saveUnacknowledged(channel.getChannelId(), 1L);
+            channels.add(channel);
+        }
+        final InMemoryDataStore added = new InMemoryDataStore();
+        assertThat(store.addShard(added), is(2));
+        store.awaitRebalance(10, TimeUnit.SECONDS);
+        assertThat(store.isRebalancing(), is(false));
+        assertThat(store.scannedUserAgents(), is(200L));
+        assertThat(store.movedUserAgents() > 0, is(true));
+        assertThat(added.getUserAgentIds(null, 200).size(), is((int) store.movedUserAgents()));
+
+        for (Channel channel : channels) {
+            final String uaid = channel.getUAID();
+            int stored = 0;
+            for (DataStore shard : shards) {
+                stored += shard.getChannelIds(uaid).size();
+            }
+            stored += added.getChannelIds(uaid).size();
+            assertThat(stored, is(1));
+            assertThat(store.getUnacknowledged(uaid), hasItem(ack(channel.getChannelId(), 1L)));
+            // tokens handed out before the rebalance still reach the channel.
+            assertThat(store.updateVersion(channel.getEndpointToken(), 2L), equalTo(channel.getChannelId()));
+            assertThat(store.getChannel(channel.getChannelId()).getVersion(), is(2L));
+        }
+    }
+
+    @Test
+    public void addShardMovesUserAgentsOfNonIterableShardsOnAccess() throws Exception {
+        final InMemoryDataStore inMemory = new InMemoryDataStore();
+        final GroupCommitDataStore nonIterable = new GroupCommitDataStore(inMemory);
+        try {
+            final ShardedDataStore store = new ShardedDataStore(Arrays.<DataStore>asList(nonIterable));
+            final List<Channel> channels = new ArrayList<Channel>();
+            for (int i = 0; i < 50; i++) {
+                final Channel channel = newChannel(store, UUIDUtil.newUAID());
+                store.saveChannel(channel);
+                channels.add(channel);
+            }
+            final InMemoryDataStore added = new InMemoryDataStore();
+            store.addShard(added);
+            store.awaitRebalance(10, TimeUnit.SECONDS);
+            assertThat(store.isRebalancing(), is(true));
+            assertThat(store.movedUserAgents(), is(0L));
+
+            for (Channel channel : channels) {
+                assertThat(store.getChannelIds(channel.getUAID()), hasItem(channel.getChannelId()));
+            }
+            assertThat(store.movedUserAgents() > 0, is(true));
+            assertThat(added.getUserAgentIds(null, 50).size(), is((int) store.movedUserAgents()));
+        } finally {
+            nonIterable.close();
+        }
+    }
+
+    @Test
+    public void retryFailedRebalance() throws Exception {
+        final FailingIterationDataStore failing = new FailingIterationDataStore();
+        final InMemoryDataStore iterable = new InMemoryDataStore();
+        final ShardedDataStore store = new ShardedDataStore(Arrays.<DataStore>asList(failing, iterable));
+        final List<Channel> channels = new ArrayList<Channel>();
+        for (int i = 0; i < 100; i++) {
+            final Channel channel = newChannel(store, UUIDUtil.newUAID());
+            store.saveChannel(channel);
+            channels.add(channel);
+        }
+        store.addShard(new InMemoryDataStore());
+        store.awaitRebalance(10, TimeUnit.SECONDS);
+        assertThat(store.isRebalancing(), is(true));
+
+        failing.failing = false;
+        assertThat(store.retryRebalance(), is(true));
+        store.awaitRebalance(10, TimeUnit.SECONDS);
+        assertThat(store.isRebalancing(), is(false));
+        assertThat(store.retryRebalance(), is(false));
+        for (Channel channel : channels) {
+            assertThat(store.getChannelIds(channel.getUAID()), hasItem(channel.getChannelId()));
+        }
+    }
+
+    @Test
+    public void updateVersionRacingWithMove() throws Exception {
+        final ConsistentHash twoShards = new ConsistentHash(2, ShardedDataStore.DEFAULT_VIRTUAL_NODES);
+        String uaid = UUIDUtil.newUAID();
+        while (twoShards.shardFor(uaid) != 1) {
+            uaid = UUIDUtil.newUAID();
+        }
+        final FailingIterationDataStore source = new FailingIterationDataStore();
+        final ShardedDataStore store = new ShardedDataStore(Arrays.<DataStore>asList(source));
+        final Channel channel = newChannel(store, uaid);
+        store.saveChannel(channel);
+        final InMemoryDataStore target = new InMemoryDataStore();
+        store.addShard(target);
+        store.awaitRebalance(10, TimeUnit.SECONDS);
+
+        // a notification is written to the source after the move copied the channel but before it is removed.
+        final CountDownLatch written = new CountDownLatch(1);
+        final Thread notifier = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    store.updateVersion(channel.getEndpointToken(), 5L);
+                } catch (final Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        source.beforeRemove = new Runnable() {
+            @Override
+            public void run() {
+                source.written = written;
+                notifier.start();
+                try {
+                    written.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        assertThat(store.getChannelIds(uaid), hasItem(channel.getChannelId()));
+        notifier.join(10000);
+        assertThat(source.getChannelIds(uaid).isEmpty(), is(true));
+        assertThat(target.getChannel(channel.getChannelId()).getVersion(), is(5L));
+    }
+
+    @Test (expected = IllegalStateException.class)
+    public void addShardWhileRebalancing() {
+        final ShardedDataStore store = new ShardedDataStore(Arrays.<DataStore>asList(new GroupCommitDataStore(new InMemoryDataStore())));
+        store.addShard(new InMemoryDataStore());
+        store.addShard(new InMemoryDataStore());
+    }
+
+    @Test
+    public void idleUserAgentsRemovedFromEveryShard() {
+        final List<DataStore> shards = inMemoryShards(3);
+        final ShardedDataStore store = new ShardedDataStore(shards);
+        final List<String> idle = new ArrayList<String>();
+        final List<String> active = new ArrayList<String>();
+        for (int i = 0; i < 30; i++) {
+            final Channel channel = newChannel(store, UUIDUtil.newUAID());
+            store.saveChannel(channel);
+            store.updateLastSeen(channel.getUAID(), i < 20 ? 100 : 300);
+            (i < 20 ? idle : active).add(channel.getUAID());
+        }
+        final List<String> found = store.getUserAgentsLastSeenBefore(200, 100);
+        assertThat(new HashSet<String>(found), equalTo(new HashSet<String>(idle)));
+        assertThat(store.getUserAgentsLastSeenBefore(200, 6).size() <= 6, is(true));
+        for (String uaid : idle) {
+            assertThat(store.removeUserAgentIfLastSeenBefore(uaid, 200), is(true));
+            assertThat(store.getChannelIds(uaid).isEmpty(), is(true));
+        }
+        for (String uaid : active) {
+            assertThat(store.removeUserAgentIfLastSeenBefore(uaid, 200), is(false));
+            assertThat(store.getChannelIds(uaid).size(), is(1));
+        }
+        assertThat(store.getUserAgentsLastSeenBefore(200, 100).isEmpty(), is(true));
+    }
+
+    @Test
+    public void consistentHashOnlyMovesKeysToNewShard() {
+        final ConsistentHash three = new ConsistentHash(3, ShardedDataStore.DEFAULT_VIRTUAL_NODES);
+        final ConsistentHash four = new ConsistentHash(4, ShardedDataStore.DEFAULT_VIRTUAL_NODES);
+        final int[] counts = new int[4];
+        for (int i = 0; i < 10000; i++) {
+            final String uaid = UUIDUtil.newUAID();
+            final int before = three.shardFor(uaid);
+            final int after = four.shardFor(uaid);
+            if (before != after) {
+                assertThat(after, is(3));
+            }
+            counts[after]++;
+        }
+        for (int count : counts) {
+            assertThat("uneven distribution " + Arrays.toString(counts), count > 1500 && count < 3500, is(true));
+        }
+    }
+
+    private static List<DataStore> inMemoryShards(final int count) {
+        final List<DataStore> shards = new ArrayList<DataStore>(count);
+        for (int i = 0; i < count; i++) {
+            shards.add(new InMemoryDataStore());
+        }
+        return shards;
+    }
+
+    private static Channel newChannel(final ShardedDataStore store, final String uaid) {
+        final String channelId = UUID.randomUUID().toString();
+        return new DefaultChannel(uaid, channelId, store.routedEndpointToken(uaid, "token-" + channelId));
+    }
+
+    private static int shardOf(final String endpointToken) {
+        return Integer.parseInt(endpointToken.substring(0, endpointToken.indexOf('.')));
+    }
+
+    private static Ack ack(final String channelId, final long version) {
+        return new AckImpl(channelId, version);
+    }
+
+    private static class FailingIterationDataStore extends InMemoryDataStore {
+
+        volatile boolean failing = true;
+        volatile CountDownLatch written;
+        volatile Runnable beforeRemove;
+
+        @Override
+        public List<String> getUserAgentIds(final String afterUaid, final int limit) {
+            if (failing) {
+                throw new IllegalStateException("Shard unavailable");
+            }
+            return super.getUserAgentIds(afterUaid, limit);
+        }
+
+        @Override
+        public String updateVersion(final String endpointToken, final long version) throws VersionException, ChannelNotFoundException {
+            final String channelId = super.updateVersion(endpointToken, version);
+            if (written != null) {
+                written.countDown();
+            }
+            return channelId;
+        }
+
+        @Override
+        public void removeChannels(final String uaid) {
+            final Runnable hook = beforeRemove;
+            beforeRemove = null;
+            if (hook != null) {
+                hook.run();
+            }
+            super.removeChannels(uaid);
+        }
+    }
+
+}
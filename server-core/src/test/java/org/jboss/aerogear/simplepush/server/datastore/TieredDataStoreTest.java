@@ -0,0 +1,341 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.datastore;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
+import org.jboss.aerogear.simplepush.server.Channel;
+import org.jboss.aerogear.simplepush.server.DefaultChannel;
+import org.jboss.aerogear.simplepush.util.UUIDUtil;
+import org.junit.Test;
+
+public class TieredDataStoreTest {
+
+    @Test
+    public void connectLoadsUserAgent() throws Exception {
+        final InMemoryDataStore cold = new InMemoryDataStore();
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 5L);
+        cold.saveChannel(channel);
+        cold.saveUnacknowledged(channel.getChannelId(), 5L);
+        final TieredDataStore store = new TieredDataStore(cold);
+        try {
+            store.userAgentConnected(channel.getUAID());
+            assertThat(store.hotUserAgents(), is(1));
+            assertThat(store.getChannelIds(channel.getUAID()), hasItem(channel.getChannelId()));
+            assertThat(store.getChannel(channel.getChannelId()).getVersion(), is(5L));
+            assertThat(store.getUnacknowledged(channel.getUAID()), hasItem(ack(channel.getChannelId(), 5L)));
+            assertThat(store.coldReads(), is(0L));
+            assertThat(store.hotReads(), is(3L));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void notificationForConnectedUserAgentOnlyWritesToColdStore() throws Exception {
+        final DataStore cold = spy(new InMemoryDataStore());
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 1L);
+        cold.saveChannel(channel);
+        final TieredDataStore store = new TieredDataStore(cold);
+        try {
+            store.userAgentConnected(channel.getUAID());
+            assertThat(store.updateVersion(channel.getEndpointToken(), 2L), equalTo(channel.getChannelId()));
+            assertThat(store.saveUnacknowledged(channel.getChannelId(), 2L), equalTo(channel.getUAID()));
+            verify(cold).updateVersion(channel.getEndpointToken(), 2L);
+            verify(cold).saveUnacknowledged(channel.getChannelId(), 2L);
+            assertThat(cold.getChannel(channel.getChannelId()).getVersion(), is(2L));
+            assertThat(store.coldReads(), is(0L));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test (expected = VersionException.class)
+    public void updateVersionLessThanCurrent() throws Exception {
+        final InMemoryDataStore cold = new InMemoryDataStore();
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 10L);
+        cold.saveChannel(channel);
+        final TieredDataStore store = new TieredDataStore(cold);
+        try {
+            store.userAgentConnected(channel.getUAID());
+            store.updateVersion(channel.getEndpointToken(), 5L);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void disconnectedUserAgentPassedToColdStore() throws Exception {
+        final InMemoryDataStore cold = new InMemoryDataStore();
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 1L);
+        cold.saveChannel(channel);
+        final TieredDataStore store = new TieredDataStore(cold);
+        try {
+            assertThat(store.updateVersion(channel.getEndpointToken(), 2L), equalTo(channel.getChannelId()));
+            assertThat(store.getChannel(channel.getChannelId()).getVersion(), is(2L));
+            assertThat(store.hotUserAgents(), is(0));
+            assertThat(store.coldReads(), is(2L));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void registerWhileConnected() throws Exception {
+        final InMemoryDataStore cold = new InMemoryDataStore();
+        final String uaid = UUIDUtil.newUAID();
+        final TieredDataStore store = new TieredDataStore(cold);
+        try {
+            store.userAgentConnected(uaid);
+            final Channel channel = newChannel(uaid, 0L);
+            assertThat(store.saveChannel(channel), is(true));
+            assertThat(store.saveChannel(channel), is(false));
+            assertThat(cold.getChannelIds(uaid), hasItem(channel.getChannelId()));
+            assertThat(store.updateVersion(channel.getEndpointToken(), 1L), equalTo(channel.getChannelId()));
+            store.removeChannels(new HashSet<String>(Collections.singleton(channel.getChannelId())));
+            assertThat(store.getChannelIds(uaid).isEmpty(), is(true));
+            assertThat(cold.getChannelIds(uaid).isEmpty(), is(true));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void removeAcknowledgedKeepsNewerVersion() throws Exception {
+        final InMemoryDataStore cold = new InMemoryDataStore();
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 1L);
+        cold.saveChannel(channel);
+        final TieredDataStore store = new TieredDataStore(cold);
+        try {
+            store.userAgentConnected(channel.getUAID());
+            store.updateVersion(channel.getEndpointToken(), 3L);
+            store.saveUnacknowledged(channel.getChannelId(), 3L);
+            final Set<Ack> remaining = store.removeAcknowledged(channel.getUAID(), Collections.<Ack>singleton(ack(channel.getChannelId(), 2L)));
+            assertThat(remaining, hasItem(ack(channel.getChannelId(), 3L)));
+            assertThat(store.removeAcknowledged(channel.getUAID(), Collections.<Ack>singleton(ack(channel.getChannelId(), 3L))).isEmpty(), is(true));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void failedWriteThroughKeepsVersion() throws Exception {
+        final DataStore cold = spy(new InMemoryDataStore());
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 1L);
+        cold.saveChannel(channel);
+        doThrow(new IllegalStateException("unavailable")).when(cold).updateVersion(channel.getEndpointToken(), 2L);
+        final TieredDataStore store = new TieredDataStore(cold);
+        try {
+            store.userAgentConnected(channel.getUAID());
+            try {
+                store.updateVersion(channel.getEndpointToken(), 2L);
+                fail("Expected an IllegalStateException");
+            } catch (final IllegalStateException expected) {
+            }
+            assertThat(store.getChannel(channel.getChannelId()).getVersion(), is(1L));
+            assertThat(store.updateVersion(channel.getEndpointToken(), 3L), equalTo(channel.getChannelId()));
+            assertThat(store.getChannel(channel.getChannelId()).getVersion(), is(3L));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void failedWriteThroughKeepsUnacknowledged() throws Exception {
+        final AtomicBoolean failing = new AtomicBoolean(false);
+        final InMemoryDataStore cold = new InMemoryDataStore() {
+            @Override
+            public String saveUnacknowledged(final String channelId, final long version) throws ChannelNotFoundException {
+                if (failing.get()) {
+                    throw new IllegalStateException("unavailable");
+                }
+                return super.saveUnacknowledged(channelId, version);
+            }
+
+            @Override
+            public Set<Ack> removeAcknowledged(final String uaid, final Set<Ack> acked) {
+                if (failing.get()) {
+                    throw new IllegalStateException("unavailable");
+                }
+                return super.removeAcknowledged(uaid, acked);
+            }
+        };
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 1L);
+        cold.saveChannel(channel);
+        final TieredDataStore store = new TieredDataStore(cold);
+        try {
+            store.userAgentConnected(channel.getUAID());
+            store.saveUnacknowledged(channel.getChannelId(), 1L);
+            failing.set(true);
+            try {
+                store.saveUnacknowledged(channel.getChannelId(), 2L);
+                fail("Expected an IllegalStateException");
+            } catch (final IllegalStateException expected) {
+            }
+            assertThat(store.getUnacknowledged(channel.getUAID()), hasItem(ack(channel.getChannelId(), 1L)));
+            try {
+                store.removeAcknowledged(channel.getUAID(), Collections.<Ack>singleton(ack(channel.getChannelId(), 1L)));
+                fail("Expected an IllegalStateException");
+            } catch (final IllegalStateException expected) {
+            }
+            assertThat(store.getUnacknowledged(channel.getUAID()), hasItem(ack(channel.getChannelId(), 1L)));
+            failing.set(false);
+            assertThat(store.removeAcknowledged(channel.getUAID(), Collections.<Ack>singleton(ack(channel.getChannelId(), 1L))).isEmpty(), is(true));
+            assertThat(cold.getUnacknowledged(channel.getUAID()).isEmpty(), is(true));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void failedLoadDiscardsUserAgent() throws Exception {
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        final InMemoryDataStore cold = new InMemoryDataStore() {
+            @Override
+            public Set<Ack> getUnacknowledged(final String uaid) {
+                if (failing.getAndSet(false)) {
+                    throw new IllegalStateException("unavailable");
+                }
+                return super.getUnacknowledged(uaid);
+            }
+        };
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 1L);
+        cold.saveChannel(channel);
+        final TieredDataStore store = new TieredDataStore(cold);
+        try {
+            try {
+                store.userAgentConnected(channel.getUAID());
+                fail("Expected an IllegalStateException");
+            } catch (final IllegalStateException expected) {
+            }
+            assertThat(store.hotUserAgents(), is(0));
+            assertThat(store.getChannel(channel.getChannelId()).getVersion(), is(1L));
+            assertThat(store.coldReads(), is(1L));
+            store.userAgentConnected(channel.getUAID());
+            assertThat(store.hotUserAgents(), is(1));
+            assertThat(store.getChannelIds(channel.getUAID()), hasItem(channel.getChannelId()));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void writeBehindRemoveAcknowledgedKeepsNewerVersion() throws Exception {
+        final InMemoryDataStore cold = new InMemoryDataStore();
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 1L);
+        cold.saveChannel(channel);
+        final TieredDataStore store = new TieredDataStore(cold, 1, TimeUnit.MINUTES, 1);
+        store.userAgentConnected(channel.getUAID());
+        store.updateVersion(channel.getEndpointToken(), 3L);
+        store.saveUnacknowledged(channel.getChannelId(), 3L);
+        store.removeAcknowledged(channel.getUAID(), Collections.<Ack>singleton(ack(channel.getChannelId(), 2L)));
+        store.close();
+        assertThat(cold.getUnacknowledged(channel.getUAID()), hasItem(ack(channel.getChannelId(), 3L)));
+    }
+
+    @Test
+    public void evictedAfterGracePeriod() throws Exception {
+        final InMemoryDataStore cold = new InMemoryDataStore();
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 1L);
+        cold.saveChannel(channel);
+        final TieredDataStore store = new TieredDataStore(cold, 50, TimeUnit.MILLISECONDS, 0);
+        try {
+            store.userAgentConnected(channel.getUAID());
+            store.userAgentDisconnected(channel.getUAID());
+            assertThat(store.hotUserAgents(), is(1));
+            awaitEviction(store);
+            assertThat(store.hotUserAgents(), is(0));
+            assertThat(store.getChannel(channel.getChannelId()).getVersion(), is(1L));
+            assertThat(store.coldReads(), is(1L));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void reconnectWithinGracePeriodKeepsUserAgent() throws Exception {
+        final InMemoryDataStore cold = new InMemoryDataStore();
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 1L);
+        cold.saveChannel(channel);
+        final TieredDataStore store = new TieredDataStore(cold, 50, TimeUnit.MILLISECONDS, 0);
+        try {
+            store.userAgentConnected(channel.getUAID());
+            store.userAgentConnected(channel.getUAID());
+            store.userAgentDisconnected(channel.getUAID());
+            Thread.sleep(150);
+            assertThat(store.hotUserAgents(), is(1));
+            store.userAgentDisconnected(channel.getUAID());
+            store.userAgentConnected(channel.getUAID());
+            Thread.sleep(150);
+            assertThat(store.hotUserAgents(), is(1));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void writeBehind() throws Exception {
+        final InMemoryDataStore cold = new InMemoryDataStore();
+        final Channel channel = newChannel(UUIDUtil.newUAID(), 1L);
+        cold.saveChannel(channel);
+        final TieredDataStore store = new TieredDataStore(cold, 50, TimeUnit.MILLISECONDS, 2);
+        store.userAgentConnected(channel.getUAID());
+        for (long version = 2; version <= 100; version++) {
+            store.updateVersion(channel.getEndpointToken(), version);
+            store.saveUnacknowledged(channel.getChannelId(), version);
+        }
+        assertThat(store.getChannel(channel.getChannelId()).getVersion(), is(100L));
+        store.userAgentDisconnected(channel.getUAID());
+        awaitEviction(store);
+        store.close();
+        assertThat(cold.getChannel(channel.getChannelId()).getVersion(), is(100L));
+        assertThat(cold.getUnacknowledged(channel.getUAID()).size(), is(1));
+        assertThat(store.writeBehindFailures(), is(0L));
+    }
+
+    private static void awaitEviction(final TieredDataStore store) throws InterruptedException {
+        for (int i = 0; i < 100 && store.hotUserAgents() > 0; i++) {
+            Thread.sleep(20);
+        }
+    }
+
+    private static Channel newChannel(final String uaid, final long version) {
+        final String channelId = UUID.randomUUID().toString();
+        return new DefaultChannel(uaid, channelId, version, "token-" + channelId);
+    }
+
+    private static Ack ack(final String channelId, final long version) {
+        return new AckImpl(channelId, version);
+    }
+
+}
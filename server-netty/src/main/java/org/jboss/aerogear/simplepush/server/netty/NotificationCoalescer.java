@@ -0,0 +1,322 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.netty;
+
+import static org.jboss.aerogear.simplepush.protocol.impl.json.JsonUtil.toJson;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsConfig.OverflowPolicy;
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.protocol.impl.NotificationMessageImpl;
+import org.jboss.aerogear.simplepush.util.ArgumentUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges the notifications for a connected UserAgent that are handled within a short window into a single
+ * 'notification' message, so that a burst of updates costs the UserAgent one frame and the server one write.
+ *
+ * The first notification for a UserAgent opens a batch that is sent once the window has passed. Updates added
+ * to the batch in the meantime are merged by channel, keeping only the highest version of each channel, as older
+ * versions of a channel carry no information the UserAgent still needs.
+ *
+ * A batch is also held back while the connection of its UserAgent is not writable, because more bytes are waiting
+ * to be written to it than its write buffer high water mark allows. The batch keeps merging updates by channel
+ * and is sent once the connection is writable again, so a slow consumer costs at most one pending update per
+ * channel. The number of channels in a batch is bounded: beyond it, either the update with the lowest version is
+ * dropped or the session of the UserAgent is closed, depending on the {@link OverflowPolicy}. Either way no
+ * notification is lost, as the UserAgent receives its unacknowledged notifications from the datastore when it
+ * reconnects.
+ *
+ * With a window of 0, notifications are sent right away unless the connection is not writable or a batch of the
+ * UserAgent is pending, in which case they join the batch so that versions reach the UserAgent in order.
+ */
+public class NotificationCoalescer {
+
+    public static final int DEFAULT_MAX_PENDING_UPDATES = 1000;
+    public static final long DEFAULT_RETRY_MILLIS = 100;
+
+    private final Logger logger = LoggerFactory.getLogger(NotificationCoalescer.class);
+
+    private final UserAgents userAgents = UserAgents.getInstance();
+    private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+    private final ScheduledExecutorService scheduler;
+    private final long windowMillis;
+    private final int maxPendingUpdates;
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong merged = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong held = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+
+    /**
+     * Creates a NotificationCoalescer that holds at most {@link #DEFAULT_MAX_PENDING_UPDATES} channels per
+     * UserAgent, dropping the update with the lowest version beyond that.
+     *
+     * @param windowMillis the time in milliseconds for which notifications for a UserAgent are held back.
+     * @param scheduler the {@link ScheduledExecutorService} sending the batches once their window has passed.
+     */
+    public NotificationCoalescer(final long windowMillis, final ScheduledExecutorService scheduler) {
+        this(windowMillis, DEFAULT_MAX_PENDING_UPDATES, OverflowPolicy.DROP_OLDEST, scheduler);
+    }
+
+    /**
+     * Creates a NotificationCoalescer with a bounded number of pending channels per UserAgent.
+     *
+     * @param windowMillis the time in milliseconds for which notifications for a UserAgent are held back, or 0 to
+     *        hold them back only while the connection of the UserAgent is not writable.
+     * @param maxPendingUpdates the maximum number of channels in the batch of a UserAgent, or 0 for no limit.
+     * @param overflowPolicy what to do when an update for a further channel is added to a full batch.
+     * @param scheduler the {@link ScheduledExecutorService} sending the batches once their window has passed.
+     */
+    public NotificationCoalescer(final long windowMillis, final int maxPendingUpdates,
+            final OverflowPolicy overflowPolicy, final ScheduledExecutorService scheduler) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("windowMillis must not be negative");
+        }
+        if (maxPendingUpdates < 0) {
+            throw new IllegalArgumentException("maxPendingUpdates must not be negative");
+        }
+        ArgumentUtil.checkNotNull(overflowPolicy, "overflowPolicy");
+        ArgumentUtil.checkNotNull(scheduler, "scheduler");
+        this.windowMillis = windowMillis;
+        this.maxPendingUpdates = maxPendingUpdates;
+        this.overflowPolicy = overflowPolicy;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Adds an update for a UserAgent to the pending batch of that UserAgent, opening a new batch if there is none.
+     *
+     * @param uaid the UserAgent identifier.
+     * @param ack the channel and version to notify the UserAgent of.
+     */
+    public void send(final String uaid, final Ack ack) {
+        updates.incrementAndGet();
+        if (windowMillis == 0 && !batches.containsKey(uaid) && !isBackedUp(uaid)) {
+            deliver(uaid, Collections.singleton(ack));
+            return;
+        }
+        for (;;) {
+            Batch batch = batches.get(uaid);
+            if (batch == null) {
+                final Batch created = new Batch(uaid);
+                batch = batches.putIfAbsent(uaid, created);
+                if (batch == null) {
+                    created.add(ack);
+                    scheduler.schedule(created, windowMillis > 0 ? windowMillis : DEFAULT_RETRY_MILLIS,
+                            TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+            if (batch.add(ack)) {
+                return;
+            }
+            // the batch was sent while adding to it, so the update opens the next one.
+        }
+    }
+
+    /**
+     * Returns the number of updates added.
+     *
+     * @return {@code long} the number of updates.
+     */
+    public long updates() {
+        return updates.get();
+    }
+
+    /**
+     * Returns the number of updates that replaced an older version of the same channel in a pending batch.
+     *
+     * @return {@code long} the number of merged updates.
+     */
+    public long merged() {
+        return merged.get();
+    }
+
+    /**
+     * Returns the number of 'notification' messages sent.
+     *
+     * @return {@code long} the number of messages.
+     */
+    public long messages() {
+        return messages.get();
+    }
+
+    /**
+     * Returns the number of times a batch was held back because the connection of its UserAgent was not writable.
+     *
+     * @return {@code long} the number of times batches were held back.
+     */
+    public long held() {
+        return held.get();
+    }
+
+    /**
+     * Returns the number of updates dropped from full batches.
+     *
+     * @return {@code long} the number of dropped updates.
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of UserAgent sessions closed because their batch was full.
+     *
+     * @return {@code long} the number of closed sessions.
+     */
+    public long closed() {
+        return closed.get();
+    }
+
+    private boolean isBackedUp(final String uaid) {
+        try {
+            if (!userAgents.contains(uaid)) {
+                return false;
+            }
+            final ChannelHandlerContext ctx = userAgents.get(uaid).context().getContext();
+            if (ctx == null) {
+                return false;
+            }
+            final Channel channel = ctx.channel();
+            return channel.isActive() && !channel.isWritable();
+        } catch (final IllegalStateException e) {
+            // the UserAgent disconnected in the meantime.
+            return false;
+        }
+    }
+
+    private void deliver(final String uaid, final Set<Ack> acks) {
+        if (!userAgents.contains(uaid)) {
+            // the updates are stored and the UserAgent receives them when it reconnects.
+            logger.debug("UserAgent [" + uaid + "] disconnected before its notifications were sent");
+            return;
+        }
+        final String message = toJson(new NotificationMessageImpl(acks));
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending notification for UAID [ " + uaid + "] " + message);
+        }
+        try {
+            userAgents.get(uaid).context().send(message);
+            messages.incrementAndGet();
+            userAgents.updateAccessedTime(uaid);
+        } catch (final RuntimeException e) {
+            logger.warn("Could not send notifications to UserAgent [" + uaid + "]", e);
+        }
+    }
+
+    private void close(final String uaid) {
+        logger.info("Closing session of UserAgent [" + uaid + "] as it has too many pending notifications");
+        closed.incrementAndGet();
+        try {
+            userAgents.get(uaid).context().close();
+        } catch (final RuntimeException e) {
+            logger.debug("Could not close session of UserAgent [" + uaid + "]", e);
+        }
+    }
+
+    private class Batch implements Runnable {
+
+        private final String uaid;
+        private final Map<String, Ack> acks = new LinkedHashMap<String, Ack>();
+        private boolean sent;
+
+        private Batch(final String uaid) {
+            this.uaid = uaid;
+        }
+
+        private boolean add(final Ack ack) {
+            synchronized (this) {
+                if (sent) {
+                    return false;
+                }
+                final Ack previous = acks.put(ack.getChannelId(), ack);
+                if (previous != null) {
+                    merged.incrementAndGet();
+                    if (previous.getVersion() > ack.getVersion()) {
+                        acks.put(previous.getChannelId(), previous);
+                    }
+                    return true;
+                }
+                if (maxPendingUpdates == 0 || acks.size() <= maxPendingUpdates) {
+                    return true;
+                }
+                if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                    dropLowestVersion();
+                    return true;
+                }
+                sent = true;
+                batches.remove(uaid, this);
+            }
+            close(uaid);
+            return true;
+        }
+
+        private void dropLowestVersion() {
+            String lowest = null;
+            long lowestVersion = Long.MAX_VALUE;
+            for (Ack pending : acks.values()) {
+                if (pending.getVersion() < lowestVersion) {
+                    lowest = pending.getChannelId();
+                    lowestVersion = pending.getVersion();
+                }
+            }
+            acks.remove(lowest);
+            dropped.incrementAndGet();
+        }
+
+        /**
+         * Sends the batch while it is still registered and locked, so that an update added after it was sent,
+         * which waits for the lock or finds no batch, cannot be delivered before it.
+         */
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (sent) {
+                    return;
+                }
+                if (isBackedUp(uaid)) {
+                    held.incrementAndGet();
+                    scheduler.schedule(this, Math.max(windowMillis, DEFAULT_RETRY_MILLIS), TimeUnit.MILLISECONDS);
+                    return;
+                }
+                sent = true;
+                try {
+                    deliver(uaid, new LinkedHashSet<Ack>(acks.values()));
+                } finally {
+                    batches.remove(uaid, this);
+                }
+            }
+        }
+    }
+
+}
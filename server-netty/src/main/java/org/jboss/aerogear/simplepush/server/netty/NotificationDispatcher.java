@@ -0,0 +1,362 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.netty;
+
+import static org.jboss.aerogear.simplepush.protocol.impl.json.JsonUtil.toJson;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsSessionContext;
+import org.jboss.aerogear.simplepush.protocol.impl.NotificationMessageImpl;
+import org.jboss.aerogear.simplepush.server.Notification;
+import org.jboss.aerogear.simplepush.server.NotificationDeduplicator;
+import org.jboss.aerogear.simplepush.server.NotificationResult;
+import org.jboss.aerogear.simplepush.server.NotificationResult.Status;
+import org.jboss.aerogear.simplepush.server.NotificationService;
+import org.jboss.aerogear.simplepush.server.SimplePushServer;
+import org.jboss.aerogear.simplepush.server.TokenBucketRateLimiter;
+import org.jboss.aerogear.simplepush.server.datastore.ChannelNotFoundException;
+import org.jboss.aerogear.simplepush.server.datastore.DataStoreFuture;
+import org.jboss.aerogear.simplepush.server.datastore.DataStoreUnavailableException;
+import org.jboss.aerogear.simplepush.server.datastore.VersionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatches notifications to the {@link SimplePushServer} on the notifier threads and sends them to the
+ * connected UserAgents. Notifications are stored using {@link SimplePushServer#handleNotificationAsync}, so a
+ * notifier thread does not wait for the storage and the notifications are sent from the thread completing
+ * the store.
+ *
+ * This is the path shared by the {@link NotificationHandler}, for notifications sent over HTTP, and by the
+ * {@link NotificationService} methods, for notifications submitted in-process. Both admit notifications with the
+ * same rate limiter keyed by endpoint token and the same {@link NotificationDeduplicator}, and both complete their
+ * futures with the same {@link NotificationResult}s. A batch of notifications submitted together is handled by a
+ * single notifier task.
+ *
+ * When a {@link NotificationCoalescer} is passed in, notifications for connected UserAgents are handed to it
+ * instead of being sent right away, so that several of them can be sent as a single message.
+ */
+public class NotificationDispatcher implements NotificationService {
+
+    private final UserAgents userAgents = UserAgents.getInstance();
+    private final Logger logger = LoggerFactory.getLogger(NotificationDispatcher.class);
+
+    private final SimplePushServer simplePushServer;
+    private final ExecutorService executorServer;
+    private final TokenBucketRateLimiter endpointLimiter;
+    private final NotificationDeduplicator deduplicator;
+    private final NotificationCoalescer coalescer;
+
+    /**
+     * Creates a NotificationDispatcher that neither rate limits nor de-duplicates notifications, and that
+     * handles them on a thread pool of {@link org.jboss.aerogear.simplepush.server.SimplePushServerConfig#notifierMaxThreads()}
+     * threads.
+     *
+     * @param simplePushServer the {@link SimplePushServer} handling the notifications.
+     */
+    public NotificationDispatcher(final SimplePushServer simplePushServer) {
+        this(simplePushServer, null, null);
+    }
+
+    /**
+     * Creates a NotificationDispatcher that handles notifications on a thread pool of
+     * {@link org.jboss.aerogear.simplepush.server.SimplePushServerConfig#notifierMaxThreads()} threads.
+     *
+     * @param simplePushServer the {@link SimplePushServer} handling the notifications.
+     * @param endpointLimiter the {@link TokenBucketRateLimiter} keyed by endpoint token, or {@code null}.
+     * @param deduplicator the {@link NotificationDeduplicator} detecting repeated notifications, or {@code null}.
+     */
+    public NotificationDispatcher(final SimplePushServer simplePushServer, final TokenBucketRateLimiter endpointLimiter,
+            final NotificationDeduplicator deduplicator) {
+        this(simplePushServer, Executors.newFixedThreadPool(simplePushServer.config().notifierMaxThreads()),
+                endpointLimiter, deduplicator);
+    }
+
+    /**
+     * Creates a NotificationDispatcher that handles notifications on the passed-in {@link ExecutorService}.
+     *
+     * @param simplePushServer the {@link SimplePushServer} handling the notifications.
+     * @param executorServer the {@link ExecutorService} running the notifier tasks.
+     * @param endpointLimiter the {@link TokenBucketRateLimiter} keyed by endpoint token, or {@code null}.
+     * @param deduplicator the {@link NotificationDeduplicator} detecting repeated notifications, or {@code null}.
+     */
+    public NotificationDispatcher(final SimplePushServer simplePushServer, final ExecutorService executorServer,
+            final TokenBucketRateLimiter endpointLimiter, final NotificationDeduplicator deduplicator) {
+        this(simplePushServer, executorServer, endpointLimiter, deduplicator, null);
+    }
+
+    /**
+     * Creates a NotificationDispatcher that handles notifications on the passed-in {@link ExecutorService} and
+     * merges the notifications for connected UserAgents.
+     *
+     * @param simplePushServer the {@link SimplePushServer} handling the notifications.
+     * @param executorServer the {@link ExecutorService} running the notifier tasks.
+     * @param endpointLimiter the {@link TokenBucketRateLimiter} keyed by endpoint token, or {@code null}.
+     * @param deduplicator the {@link NotificationDeduplicator} detecting repeated notifications, or {@code null}.
+     * @param coalescer the {@link NotificationCoalescer} merging notifications per UserAgent, or {@code null}.
+     */
+    public NotificationDispatcher(final SimplePushServer simplePushServer, final ExecutorService executorServer,
+            final TokenBucketRateLimiter endpointLimiter, final NotificationDeduplicator deduplicator,
+            final NotificationCoalescer coalescer) {
+        this.simplePushServer = simplePushServer;
+        this.executorServer = executorServer;
+        this.endpointLimiter = endpointLimiter;
+        this.deduplicator = deduplicator;
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * Returns the {@link SimplePushServer} handling the notifications.
+     *
+     * @return {@code SimplePushServer} the server.
+     */
+    public SimplePushServer simplePushServer() {
+        return simplePushServer;
+    }
+
+    /**
+     * Returns whether repeated notifications are detected.
+     *
+     * @return {@code true} if this dispatcher has a {@link NotificationDeduplicator}.
+     */
+    public boolean deduplicates() {
+        return deduplicator != null;
+    }
+
+    @Override
+    public Future<NotificationResult> submit(final String endpointToken, final long version) {
+        final NotificationResult rejected = admit(endpointToken, version);
+        if (rejected != null) {
+            return DataStoreFuture.succeeded(rejected);
+        }
+        return dispatch(endpointToken, payload(version), dedupVersion(version));
+    }
+
+    @Override
+    public Map<String, Future<NotificationResult>> submit(final Map<String, Long> versions) {
+        final Map<String, Future<NotificationResult>> futures = new LinkedHashMap<String, Future<NotificationResult>>(versions.size());
+        final List<Pending> batch = new ArrayList<Pending>(versions.size());
+        for (Entry<String, Long> entry : versions.entrySet()) {
+            final String endpointToken = entry.getKey();
+            final long version = entry.getValue();
+            final NotificationResult rejected = admit(endpointToken, version);
+            if (rejected != null) {
+                futures.put(endpointToken, DataStoreFuture.succeeded(rejected));
+            } else {
+                final Pending pending = new Pending(endpointToken, payload(version), dedupVersion(version));
+                batch.add(pending);
+                futures.put(endpointToken, pending.future);
+            }
+        }
+        if (!batch.isEmpty()) {
+            executorServer.submit(new Notifier(batch));
+        }
+        return futures;
+    }
+
+    private NotificationResult admit(final String endpointToken, final long version) {
+        final NotificationResult rejected = admit(endpointToken);
+        if (rejected != null) {
+            return rejected;
+        }
+        return version >= 0 ? register(endpointToken, version) : null;
+    }
+
+    private long dedupVersion(final long version) {
+        return deduplicator != null && version >= 0 ? version : -1;
+    }
+
+    private static String payload(final long version) {
+        return "version=" + version;
+    }
+
+    /**
+     * Checks that a notification for the endpoint token can be accepted: that it does not exceed the rate limit
+     * of its endpoint token, that a channel might exist for the endpoint token and that the storage of the server
+     * is available.
+     *
+     * @param endpointToken the endpoint token of the notification.
+     * @return {@code NotificationResult} the result the notification is rejected with, or {@code null} if it is
+     *         accepted.
+     */
+    NotificationResult admit(final String endpointToken) {
+        if (endpointLimiter != null) {
+            final long retryAfterMillis = endpointLimiter.tryAcquire(endpointToken);
+            if (retryAfterMillis != 0) {
+                logger.debug("Rate limiting notification for [" + endpointToken + "]");
+                return NotificationResult.retryAfter(Status.RATE_LIMITED, retryAfterMillis);
+            }
+        }
+        if (!simplePushServer.mightHaveChannel(endpointToken)) {
+            logger.debug("Could not find channel for [" + endpointToken + "]");
+            return NotificationResult.of(Status.NOT_FOUND);
+        }
+        try {
+            simplePushServer.checkAvailable();
+        } catch (final DataStoreUnavailableException e) {
+            logger.debug("Rejecting notification: " + e.getMessage());
+            return NotificationResult.retryAfter(Status.UNAVAILABLE, e.retryAfterMillis());
+        }
+        return null;
+    }
+
+    /**
+     * Registers a notification with the {@link NotificationDeduplicator}, if there is one.
+     *
+     * @param endpointToken the endpoint token of the notification.
+     * @param version the version of the notification.
+     * @return {@code NotificationResult} the result of the first notification with the same endpoint token and
+     *         version, {@link Status#STORED} while that is still being handled, or {@code null} if the notification
+     *         is not a repeat.
+     */
+    NotificationResult register(final String endpointToken, final long version) {
+        if (deduplicator == null) {
+            return null;
+        }
+        final int outcome = deduplicator.register(endpointToken, version);
+        if (outcome == NotificationDeduplicator.NEW) {
+            return null;
+        }
+        logger.debug("Repeated notification for [" + endpointToken + "]");
+        return NotificationResult.of(outcome == NotificationDeduplicator.PENDING ? Status.STORED : Status.forCode(outcome));
+    }
+
+    /**
+     * Hands an accepted notification to a notifier thread.
+     *
+     * @param endpointToken the endpoint token of the notification.
+     * @param payload the body of the notification, in the format "version=N".
+     * @param dedupVersion the version the notification was registered with the {@link NotificationDeduplicator},
+     *        or -1 if it was not registered.
+     * @return {@code DataStoreFuture} the future that is completed once the notification has been handled.
+     */
+    DataStoreFuture<NotificationResult> dispatch(final String endpointToken, final String payload, final long dedupVersion) {
+        final Pending pending = new Pending(endpointToken, payload, dedupVersion);
+        executorServer.submit(new Notifier(Collections.singletonList(pending)));
+        return pending.future;
+    }
+
+    private static final class Pending {
+
+        private final String endpoint;
+        private final String payload;
+        private final long dedupVersion;
+        private final DataStoreFuture<NotificationResult> future = new DataStoreFuture<NotificationResult>();
+
+        private Pending(final String endpoint, final String payload, final long dedupVersion) {
+            this.endpoint = endpoint;
+            this.payload = payload;
+            this.dedupVersion = dedupVersion;
+        }
+    }
+
+    private class Notifier implements Runnable {
+
+        private final List<Pending> batch;
+
+        private Notifier(final List<Pending> batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void run() {
+            for (final Pending pending : batch) {
+                final DataStoreFuture<Notification> notification;
+                try {
+                    notification = simplePushServer.handleNotificationAsync(pending.endpoint, pending.payload);
+                } catch (final RuntimeException e) {
+                    complete(pending, failed(pending, e));
+                    continue;
+                }
+                notification.addListener(new DataStoreFuture.Listener<Notification>() {
+                    @Override
+                    public void operationComplete(final DataStoreFuture<Notification> handled) {
+                        complete(pending, handled.isSuccess() ? deliver(handled.getNow()) : failed(pending, handled.cause()));
+                    }
+                });
+            }
+        }
+
+        private void complete(final Pending pending, final NotificationResult result) {
+            if (pending.dedupVersion >= 0) {
+                recordOutcome(pending, result.status());
+            }
+            pending.future.complete(result);
+        }
+
+        private NotificationResult deliver(final Notification notification) {
+            final String uaid = notification.uaid();
+            if (userAgents.contains(uaid)) {
+                if (coalescer != null) {
+                    coalescer.send(uaid, notification.ack());
+                    return NotificationResult.of(Status.DELIVERED);
+                }
+                final SockJsSessionContext session = userAgents.get(uaid).context();
+                final String message = toJson(new NotificationMessageImpl(notification.ack()));
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Sending notification for UAID [ " + uaid + "] " + message);
+                }
+                session.send(message);
+                userAgents.updateAccessedTime(uaid);
+                return NotificationResult.of(Status.DELIVERED);
+            }
+            logger.debug("Stored notification for disconnected UAID [" + uaid + "]");
+            return NotificationResult.of(Status.STORED);
+        }
+
+        private NotificationResult failed(final Pending pending, final Throwable cause) {
+            if (cause instanceof ChannelNotFoundException) {
+                logger.debug("Could not find channel for [" + pending.endpoint + "]");
+                return NotificationResult.of(Status.NOT_FOUND);
+            }
+            if (cause instanceof VersionException) {
+                logger.debug(cause.getMessage());
+                return NotificationResult.of(Status.CONFLICT);
+            }
+            if (cause instanceof DataStoreUnavailableException) {
+                logger.debug("Dropping notification for [" + pending.endpoint + "]: " + cause.getMessage());
+                return NotificationResult.retryAfter(Status.UNAVAILABLE, ((DataStoreUnavailableException) cause).retryAfterMillis());
+            }
+            if (cause instanceof NumberFormatException) {
+                logger.debug("Invalid version for [" + pending.endpoint + "]: " + cause.getMessage());
+                return NotificationResult.of(Status.INVALID);
+            }
+            logger.error("Failed to handle notification for [" + pending.endpoint + "]", cause);
+            return NotificationResult.of(Status.FAILED);
+        }
+
+        private void recordOutcome(final Pending pending, final Status status) {
+            if (status == Status.DELIVERED || status == Status.STORED || status == Status.NOT_FOUND
+                    || status == Status.CONFLICT) {
+                deduplicator.complete(pending.endpoint, pending.dedupVersion, status.code());
+            } else {
+                // failed notifications are handled again when they are retried.
+                deduplicator.forget(pending.endpoint, pending.dedupVersion);
+            }
+        }
+    }
+
+}
@@ -21,9 +21,9 @@ import static io.netty.handler.codec.http.HttpMethod.PUT;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpResponseStatus.TOO_MANY_REQUESTS;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import static io.netty.util.CharsetUtil.UTF_8;
-import static org.jboss.aerogear.simplepush.protocol.impl.json.JsonUtil.toJson;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
@@ -37,33 +37,90 @@ import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.util.ReferenceCountUtil;
 
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 
-import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsSessionContext;
-import org.jboss.aerogear.simplepush.protocol.impl.NotificationMessageImpl;
-import org.jboss.aerogear.simplepush.server.Notification;
+import org.jboss.aerogear.simplepush.server.NotificationDeduplicator;
+import org.jboss.aerogear.simplepush.server.NotificationResult;
+import org.jboss.aerogear.simplepush.server.NotificationResult.Status;
 import org.jboss.aerogear.simplepush.server.SimplePushServer;
-import org.jboss.aerogear.simplepush.server.datastore.ChannelNotFoundException;
-import org.jboss.aerogear.simplepush.server.datastore.VersionException;
+import org.jboss.aerogear.simplepush.server.TokenBucketRateLimiter;
+import org.jboss.aerogear.simplepush.server.datastore.DataStoreFuture;
+import org.jboss.aerogear.simplepush.util.VersionExtractor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Handles HTTP PUT 'notification' request for the SimplePush server.
+ *
+ * Notifications are answered with 503 Service Unavailable, with a Retry-After header, while the DataStore
+ * is unavailable. When rate limiters are passed in, notifications exceeding the rate of their endpoint or of the
+ * IP address they were sent from are answered with 429 Too Many Requests, with a Retry-After header.
+ *
+ * Notifications are answered with 200 OK as soon as they are accepted, unless delivery reports are enabled in the
+ * configuration or requested with the {@link #DELIVERY_REPORT_HEADER} header. The response is then written by the
+ * notifier thread once the notification has been handled: 200 OK when it was sent to the connected UserAgent,
+ * 202 Accepted when it was stored for a UserAgent that is not connected, 404 Not Found for unknown endpoints and
+ * 409 Conflict for versions that are not newer than the current one.
+ *
+ * When a {@link NotificationDeduplicator} is passed in, repeats of a recent notification with the same endpoint
+ * and version are answered right away, with the status of the first notification when delivery reports are used,
+ * or 202 Accepted while that is still being handled.
+ *
+ * Accepted notifications are handled by a {@link NotificationDispatcher}, which can be shared with the
+ * in-process {@link org.jboss.aerogear.simplepush.server.NotificationService} so that both are rate limited,
+ * de-duplicated and delivered alike.
  */
 public class NotificationHandler extends SimpleChannelInboundHandler<Object> {
 
-    private final UserAgents userAgents = UserAgents.getInstance();
+    public static final String DELIVERY_REPORT_HEADER = "X-SimplePush-Delivery-Report";
+
     private final Logger logger = LoggerFactory.getLogger(NotificationHandler.class);
 
     private final SimplePushServer simplePushServer;
-    private final ExecutorService executorServer;
+    private final NotificationDispatcher dispatcher;
+    private final TokenBucketRateLimiter ipLimiter;
 
     public NotificationHandler(final SimplePushServer simplePushServer) {
-        this.simplePushServer = simplePushServer;
-        executorServer = Executors.newFixedThreadPool(simplePushServer.config().notifierMaxThreads());
+        this(simplePushServer, null, null, null);
+    }
+
+    /**
+     * Creates a NotificationHandler that rate limits notifications.
+     *
+     * @param simplePushServer the {@link SimplePushServer} handling the notifications.
+     * @param endpointLimiter the {@link TokenBucketRateLimiter} keyed by endpoint token, or {@code null}.
+     * @param ipLimiter the {@link TokenBucketRateLimiter} keyed by IP address, or {@code null}.
+     */
+    public NotificationHandler(final SimplePushServer simplePushServer, final TokenBucketRateLimiter endpointLimiter,
+            final TokenBucketRateLimiter ipLimiter) {
+        this(simplePushServer, endpointLimiter, ipLimiter, null);
+    }
+
+    /**
+     * Creates a NotificationHandler that rate limits notifications and answers repeated notifications.
+     *
+     * @param simplePushServer the {@link SimplePushServer} handling the notifications.
+     * @param endpointLimiter the {@link TokenBucketRateLimiter} keyed by endpoint token, or {@code null}.
+     * @param ipLimiter the {@link TokenBucketRateLimiter} keyed by IP address, or {@code null}.
+     * @param deduplicator the {@link NotificationDeduplicator} detecting repeated notifications, or {@code null}.
+     */
+    public NotificationHandler(final SimplePushServer simplePushServer, final TokenBucketRateLimiter endpointLimiter,
+            final TokenBucketRateLimiter ipLimiter, final NotificationDeduplicator deduplicator) {
+        this(new NotificationDispatcher(simplePushServer, endpointLimiter, deduplicator), ipLimiter);
+    }
+
+    /**
+     * Creates a NotificationHandler that hands notifications to a shared {@link NotificationDispatcher}, which
+     * also handles the notifications submitted in-process.
+     *
+     * @param dispatcher the {@link NotificationDispatcher} handling the notifications.
+     * @param ipLimiter the {@link TokenBucketRateLimiter} keyed by IP address, or {@code null}.
+     */
+    public NotificationHandler(final NotificationDispatcher dispatcher, final TokenBucketRateLimiter ipLimiter) {
+        this.simplePushServer = dispatcher.simplePushServer();
+        this.dispatcher = dispatcher;
+        this.ipLimiter = ipLimiter;
     }
 
     @Override
@@ -83,12 +140,63 @@ public class NotificationHandler extends SimpleChannelInboundHandler<Object> {
     }
 
     private void handleHttpRequest(final ChannelHandlerContext ctx, final FullHttpRequest req) throws Exception {
-        if (isHttpRequestValid(req, ctx.channel())) {
-            executorServer.submit(new Notifier(req.getUri(), req.content()));
-            sendHttpResponse(OK, req, ctx.channel());
+        if (isHttpRequestValid(req, ctx.channel()) && isWithinIpRateLimit(req, ctx.channel())) {
+            final String endpointToken = endpointToken(req.getUri());
+            final NotificationResult rejected = dispatcher.admit(endpointToken);
+            if (rejected != null) {
+                sendResult(rejected, ctx.channel());
+                return;
+            }
+            final boolean report = isDeliveryReportRequested(req);
+            final long version = dispatcher.deduplicates() ? explicitVersion(req) : -1;
+            if (version >= 0) {
+                final NotificationResult repeated = dispatcher.register(endpointToken, version);
+                if (repeated != null) {
+                    if (report) {
+                        sendResult(repeated, ctx.channel());
+                    } else {
+                        sendHttpResponse(OK, req, ctx.channel());
+                    }
+                    return;
+                }
+            }
+            final DataStoreFuture<NotificationResult> future = dispatcher.dispatch(endpointToken,
+                    req.content().toString(UTF_8), version);
+            if (report) {
+                final Channel channel = ctx.channel();
+                // completed on the notifier thread, so reporting the outcome costs no further hand-off.
+                future.addListener(new DataStoreFuture.Listener<NotificationResult>() {
+                    @Override
+                    public void operationComplete(final DataStoreFuture<NotificationResult> future) {
+                        sendResult(future.getNow(), channel);
+                    }
+                });
+            } else {
+                sendHttpResponse(OK, req, ctx.channel());
+            }
+        }
+    }
+
+    /**
+     * Returns the version in the body of the request, or -1 if the body does not hold a valid version, in which case
+     * the notifier determines the version or the outcome.
+     */
+    private static long explicitVersion(final FullHttpRequest request) {
+        if (!request.content().isReadable()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(VersionExtractor.extractVersion(request.content().toString(UTF_8)));
+        } catch (final RuntimeException e) {
+            return -1;
         }
     }
 
+    private boolean isDeliveryReportRequested(final FullHttpRequest request) {
+        return simplePushServer.config().deliveryReports()
+                || Boolean.parseBoolean(request.headers().get(DELIVERY_REPORT_HEADER));
+    }
+
     private boolean isHttpRequestValid(final FullHttpRequest request, final Channel channel) {
         if (!request.getDecoderResult().isSuccess()) {
             sendHttpResponse(BAD_REQUEST, request, channel);
@@ -101,46 +209,53 @@ public class NotificationHandler extends SimpleChannelInboundHandler<Object> {
         return true;
     }
 
-    private void sendHttpResponse(final HttpResponseStatus status, final FullHttpRequest request, final Channel channel) {
-        final ByteBuf content = Unpooled.copiedBuffer(status.reasonPhrase(), UTF_8);
-        final FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, status, content);
-        response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, content.readableBytes());
-        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "text/html; charset=UTF-8");
-        channel.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    private boolean isWithinIpRateLimit(final FullHttpRequest request, final Channel channel) {
+        if (ipLimiter == null) {
+            return true;
+        }
+        final SocketAddress address = channel.remoteAddress();
+        if (!(address instanceof InetSocketAddress) || ((InetSocketAddress) address).getAddress() == null) {
+            return true;
+        }
+        final long retryAfterMillis = ipLimiter.tryAcquire(((InetSocketAddress) address).getAddress().getHostAddress());
+        if (retryAfterMillis == 0) {
+            return true;
+        }
+        logger.debug("Rate limiting notification for [" + request.getUri() + "]");
+        sendRetryResponse(TOO_MANY_REQUESTS, retryAfterMillis, channel);
+        return false;
     }
 
-    private class Notifier implements Callable<Void> {
-
-        private final String endpoint;
-        private final ByteBuf payload;
+    private static String endpointToken(final String requestUri) {
+        return requestUri.substring(requestUri.lastIndexOf('/') + 1);
+    }
 
-        private Notifier(final String requestUri, final ByteBuf payload) {
-            this.endpoint = requestUri.substring(requestUri.lastIndexOf('/') + 1);
-            this.payload = payload;
-            this.payload.retain();
+    private static void sendResult(final NotificationResult result, final Channel channel) {
+        final HttpResponseStatus status = HttpResponseStatus.valueOf(result.status().code());
+        if (result.status() == Status.RATE_LIMITED || result.status() == Status.UNAVAILABLE) {
+            sendRetryResponse(status, result.retryAfterMillis(), channel);
+        } else {
+            channel.writeAndFlush(createHttpResponse(status)).addListener(ChannelFutureListener.CLOSE);
         }
+    }
 
-        @Override
-        public Void call() throws Exception {
-            try {
-                final Notification notification = simplePushServer.handleNotification(endpoint, payload.toString(UTF_8));
-                final String uaid = notification.uaid();
-                final SockJsSessionContext session = userAgents.get(uaid).context();
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Sending notification for UAID [ " + notification.uaid() + "] " +
-                            toJson(new NotificationMessageImpl(notification.ack())));
-                }
-                session.send(toJson(new NotificationMessageImpl(notification.ack())));
-                userAgents.updateAccessedTime(uaid);
-            } catch (final ChannelNotFoundException e) {
-                logger.debug("Could not find channel for [" + endpoint + "]");
-            } catch (final VersionException e) {
-                logger.debug(e.getMessage());
-            } finally {
-                payload.release();
-            }
-            return null;
-        }
+    private static void sendRetryResponse(final HttpResponseStatus status, final long retryAfterMillis, final Channel channel) {
+        final FullHttpResponse response = createHttpResponse(status);
+        // Retry-After is in whole seconds, rounded up so that clients do not retry too early.
+        response.headers().set(HttpHeaders.Names.RETRY_AFTER, Math.max(1, (retryAfterMillis + 999) / 1000));
+        channel.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void sendHttpResponse(final HttpResponseStatus status, final FullHttpRequest request, final Channel channel) {
+        channel.writeAndFlush(createHttpResponse(status)).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private static FullHttpResponse createHttpResponse(final HttpResponseStatus status) {
+        final ByteBuf content = Unpooled.copiedBuffer(status.reasonPhrase(), UTF_8);
+        final FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, status, content);
+        response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, content.readableBytes());
+        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "text/html; charset=UTF-8");
+        return response;
     }
 
 }
@@ -23,15 +23,20 @@ import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsConfig;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsSessionContext;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsService;
 
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.ScheduledFuture;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import org.jboss.aerogear.simplepush.protocol.Ack;
 import org.jboss.aerogear.simplepush.protocol.AckMessage;
+import org.jboss.aerogear.simplepush.protocol.HelloMessage;
 import org.jboss.aerogear.simplepush.protocol.HelloResponse;
 import org.jboss.aerogear.simplepush.protocol.MessageType;
+import org.jboss.aerogear.simplepush.protocol.RegisterMessage;
 import org.jboss.aerogear.simplepush.protocol.RegisterResponse;
 import org.jboss.aerogear.simplepush.protocol.UnregisterMessage;
 import org.jboss.aerogear.simplepush.protocol.UnregisterResponse;
@@ -43,11 +48,16 @@ import org.jboss.aerogear.simplepush.protocol.impl.RegisterMessageImpl;
 import org.jboss.aerogear.simplepush.protocol.impl.UnregisterMessageImpl;
 import org.jboss.aerogear.simplepush.protocol.impl.json.JsonUtil;
 import org.jboss.aerogear.simplepush.server.SimplePushServer;
+import org.jboss.aerogear.simplepush.server.datastore.DataStoreFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * SimplePush server implementation using SockJS.
+ * <p>
+ * Messages are handled without blocking the event loop, using the asynchronous methods of the
+ * {@link SimplePushServer} such as {@link SimplePushServer#handleHandshakeAsync}. Messages received while the
+ * datastore is working on a previous one are held back and handled in order once it completes.
  */
 public class SimplePushSockJSService implements SockJsService {
 
@@ -59,6 +69,11 @@ public class SimplePushSockJSService implements SockJsService {
     private String uaid;
     private SockJsSessionContext session;
     private ScheduledFuture<?> ackJobFuture;
+    private String connectedUaid;
+    private final List<String> heldMessages = new ArrayList<String>();
+    private boolean pendingOperation;
+    private boolean replaying;
+    private boolean closed;
 
     /**
      * Sole constructor.
@@ -83,41 +98,39 @@ public class SimplePushSockJSService implements SockJsService {
     }
 
     @Override
-    @SuppressWarnings("incomplete-switch")
     public void onMessage(final String message) throws Exception {
+        if (pendingOperation || replaying) {
+            heldMessages.add(message);
+            return;
+        }
+        handleMessage(message);
+        replayHeldMessages();
+    }
+
+    @SuppressWarnings("incomplete-switch")
+    private void handleMessage(final String message) {
         final MessageType messageType = JsonUtil.parseFrame(message);
         logger.info("messageType: " + messageType.getMessageType());
         switch (messageType.getMessageType()) {
         case HELLO:
             if (!checkHandshakeCompleted(uaid)) {
-                final HelloResponse response = simplePushServer.handleHandshake(fromJson(message, HelloMessageImpl.class));
-                session.send(toJson(response));
-                uaid = response.getUAID();
-                userAgents.add(uaid, session);
-                processUnacked(uaid, session, 0);
-                logger.info("UserAgent [" + uaid + "] handshake done");
+                handshake(fromJson(message, HelloMessageImpl.class));
+                return;
             }
             break;
         case REGISTER:
             if (checkHandshakeCompleted(uaid)) {
-                final RegisterResponse response = simplePushServer.handleRegister(fromJson(message, RegisterMessageImpl.class), uaid);
-                session.send(toJson(response));
-                logger.info("UserAgent [" + uaid + "] Registered[" + response.getChannelId() + "]");
+                register(fromJson(message, RegisterMessageImpl.class));
             }
             break;
         case UNREGISTER:
             if (checkHandshakeCompleted(uaid)) {
-                final UnregisterMessage unregister = fromJson(message, UnregisterMessageImpl.class);
-                final UnregisterResponse response = simplePushServer.handleUnregister(unregister, uaid);
-                session.send(toJson(response));
-                logger.info("UserAgent [" + uaid + "] Unregistered[" + response.getChannelId() + "]");
+                unregister(fromJson(message, UnregisterMessageImpl.class));
             }
             break;
         case ACK:
             if (checkHandshakeCompleted(uaid)) {
-                final AckMessage ack = fromJson(message, AckMessageImpl.class);
-                simplePushServer.handleAcknowledgement(ack, uaid);
-                processUnacked(uaid, session, simplePushServer.config().acknowledmentInterval());
+                acknowledge(fromJson(message, AckMessageImpl.class));
             }
             break;
         case PING:
@@ -127,28 +140,176 @@ public class SimplePushSockJSService implements SockJsService {
         userAgents.updateAccessedTime(uaid);
     }
 
-    private void processUnacked(final String uaid, final SockJsSessionContext session, final long delay) {
-        final Set<Ack> unacked = simplePushServer.getUnacknowledged(uaid);
-        if (unacked.isEmpty()) {
-            if (ackJobFuture != null && !ackJobFuture.isCancelled()) {
-                ackJobFuture.cancel(false);
-                logger.info("Cancelled Re-Acknowledger job");
+    private void handshake(final HelloMessage hello) {
+        await(simplePushServer.handleHandshakeAsync(hello), new Completion<HelloResponse>() {
+            @Override
+            void complete(final DataStoreFuture<HelloResponse> response) {
+                if (!response.isSuccess()) {
+                    logger.error("Handshake of UserAgent [" + hello.getUAID() + "] failed", response.cause());
+                    simplePushServer.handleDisconnect(hello.getUAID());
+                    session.close();
+                    return;
+                }
+                session.send(toJson(response.getNow()));
+                uaid = response.getNow().getUAID();
+                userAgentConnected(uaid);
+                userAgents.add(uaid, session);
+                processUnacked(uaid, session, 0);
+                userAgents.updateAccessedTime(uaid);
+                logger.info("UserAgent [" + uaid + "] handshake done");
+            }
+
+            @Override
+            void closed(final DataStoreFuture<HelloResponse> response) {
+                // every handshake is matched by a disconnect, including one completing after the session closed.
+                simplePushServer.handleDisconnect(response.isSuccess() ? response.getNow().getUAID() : hello.getUAID());
             }
-        } else if (ackJobFuture == null) {
-            ackJobFuture = session.getContext().executor().scheduleAtFixedRate(new Runnable() {
-                @Override
-                public void run() {
-                    final Set<Ack> unacked = simplePushServer.getUnacknowledged(uaid);
-                    logger.info("Resending " + unacked);
-                    session.send(toJson(new NotificationMessageImpl(unacked)));
+        });
+    }
+
+    private void register(final RegisterMessage register) {
+        await(simplePushServer.handleRegisterAsync(register, uaid), new Completion<RegisterResponse>() {
+            @Override
+            void complete(final DataStoreFuture<RegisterResponse> response) {
+                if (!response.isSuccess()) {
+                    logger.error("Register of UserAgent [" + uaid + "] failed", response.cause());
+                    session.close();
+                    return;
+                }
+                session.send(toJson(response.getNow()));
+                logger.info("UserAgent [" + uaid + "] Registered[" + response.getNow().getChannelId() + "]");
+            }
+        });
+    }
+
+    private void unregister(final UnregisterMessage unregister) {
+        await(simplePushServer.handleUnregisterAsync(unregister, uaid), new Completion<UnregisterResponse>() {
+            @Override
+            void complete(final DataStoreFuture<UnregisterResponse> response) {
+                if (!response.isSuccess()) {
+                    logger.error("Unregister of UserAgent [" + uaid + "] failed", response.cause());
+                    session.close();
+                    return;
+                }
+                session.send(toJson(response.getNow()));
+                logger.info("UserAgent [" + uaid + "] Unregistered[" + response.getNow().getChannelId() + "]");
+            }
+        });
+    }
+
+    private void acknowledge(final AckMessage ack) {
+        await(simplePushServer.handleAcknowledgementAsync(ack, uaid), new Completion<Set<Ack>>() {
+            @Override
+            void complete(final DataStoreFuture<Set<Ack>> unacked) {
+                if (!unacked.isSuccess()) {
+                    // the notifications stay unacknowledged and are sent again.
+                    logger.warn("Could not remove the acknowledged notifications of UserAgent [" + uaid + "]",
+                            unacked.cause());
                 }
-            },
-                    delay,
-                    simplePushServer.config().acknowledmentInterval(),
-                    TimeUnit.MILLISECONDS);
+                processUnacked(uaid, session, simplePushServer.config().acknowledmentInterval());
+            }
+        });
+    }
+
+    /**
+     * Waits for an asynchronous operation of the server and runs its completion on the event loop of the session.
+     * Messages received in the meantime are held back and handled in order once it has completed, so that the
+     * UserAgent receives its responses in the order it sent its messages.
+     */
+    private <T> void await(final DataStoreFuture<T> future, final Completion<T> completion) {
+        pendingOperation = true;
+        final EventExecutor executor = session.getContext().executor();
+        future.addListener(new DataStoreFuture.Listener<T>() {
+            @Override
+            public void operationComplete(final DataStoreFuture<T> completed) {
+                if (executor.inEventLoop()) {
+                    completed(completed, completion);
+                } else {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            completed(completed, completion);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private <T> void completed(final DataStoreFuture<T> future, final Completion<T> completion) {
+        pendingOperation = false;
+        if (closed) {
+            heldMessages.clear();
+            completion.closed(future);
+            return;
+        }
+        completion.complete(future);
+        replayHeldMessages();
+    }
+
+    private void replayHeldMessages() {
+        if (replaying) {
+            return;
+        }
+        replaying = true;
+        try {
+            while (!pendingOperation && !closed && !heldMessages.isEmpty()) {
+                handleMessage(heldMessages.remove(0));
+            }
+        } catch (final RuntimeException e) {
+            logger.error("Failed to handle message of UserAgent [" + uaid + "]", e);
+            heldMessages.clear();
+            session.close();
+        } finally {
+            replaying = false;
         }
     }
 
+    private void processUnacked(final String uaid, final SockJsSessionContext session, final long delay) {
+        await(simplePushServer.getUnacknowledgedAsync(uaid), new Completion<Set<Ack>>() {
+            @Override
+            void complete(final DataStoreFuture<Set<Ack>> unacked) {
+                if (!unacked.isSuccess()) {
+                    logger.warn("Could not read the unacknowledged notifications of UserAgent [" + uaid + "]",
+                            unacked.cause());
+                } else if (unacked.getNow().isEmpty()) {
+                    if (ackJobFuture != null && !ackJobFuture.isCancelled()) {
+                        ackJobFuture.cancel(false);
+                        logger.info("Cancelled Re-Acknowledger job");
+                    }
+                    return;
+                }
+                if (ackJobFuture == null) {
+                    scheduleResend(uaid, session, delay);
+                }
+            }
+        });
+    }
+
+    private void scheduleResend(final String uaid, final SockJsSessionContext session, final long delay) {
+        final EventExecutor executor = session.getContext().executor();
+        ackJobFuture = executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                simplePushServer.getUnacknowledgedAsync(uaid).addListener(new DataStoreFuture.Listener<Set<Ack>>() {
+                    @Override
+                    public void operationComplete(final DataStoreFuture<Set<Ack>> unacked) {
+                        if (!unacked.isSuccess()) {
+                            logger.warn("Could not read the unacknowledged notifications of UserAgent [" + uaid + "]",
+                                    unacked.cause());
+                        } else if (!unacked.getNow().isEmpty()) {
+                            logger.info("Resending " + unacked.getNow());
+                            session.send(toJson(new NotificationMessageImpl(unacked.getNow())));
+                        }
+                    }
+                });
+            }
+        },
+                delay,
+                simplePushServer.config().acknowledmentInterval(),
+                TimeUnit.MILLISECONDS);
+    }
+
     private boolean checkHandshakeCompleted(final String uaid) {
         if (uaid == null) {
             logger.debug("Hello frame has not been sent");
@@ -164,9 +325,38 @@ public class SimplePushSockJSService implements SockJsService {
     @Override
     public void onClose() {
         logger.info("SimplePushSockJSServer onClose");
+        closed = true;
         if (ackJobFuture != null) {
             ackJobFuture.cancel(true);
         }
+        if (connectedUaid != null) {
+            simplePushServer.handleDisconnect(connectedUaid);
+        }
+    }
+
+    /**
+     * Every handshake is matched by exactly one disconnect, so a repeated handshake on the same session
+     * releases the previous one.
+     */
+    private void userAgentConnected(final String uaid) {
+        if (connectedUaid != null) {
+            simplePushServer.handleDisconnect(connectedUaid);
+        }
+        connectedUaid = uaid;
+    }
+
+    /**
+     * The continuation of a message whose handling waits for the datastore, run on the event loop of the session.
+     */
+    private abstract static class Completion<T> {
+
+        abstract void complete(DataStoreFuture<T> future);
+
+        /**
+         * Called instead of {@link #complete(DataStoreFuture)} if the session closed while the operation was pending.
+         */
+        void closed(final DataStoreFuture<T> future) {
+        }
     }
 
 }
@@ -19,34 +19,53 @@ package org.jboss.aerogear.simplepush.server.netty;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.SocketChannelConfig;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsConfig;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.handler.CorsInboundHandler;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.handler.CorsOutboundHandler;
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.handler.FlushConsolidationHandler;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.handler.SockJsHandler;
 
 import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import io.netty.util.concurrent.EventExecutorGroup;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 
 import org.jboss.aerogear.simplepush.server.DefaultSimplePushServer;
 import org.jboss.aerogear.simplepush.server.SimplePushServerConfig;
+import org.jboss.aerogear.simplepush.server.NotificationDeduplicator;
+import org.jboss.aerogear.simplepush.server.NotificationService;
+import org.jboss.aerogear.simplepush.server.TokenBucketRateLimiter;
+import org.jboss.aerogear.simplepush.server.TopicRegistry;
 import org.jboss.aerogear.simplepush.server.datastore.DataStore;
+import org.jboss.aerogear.simplepush.server.datastore.ExecutorAsyncDataStore;
 
 /**
  * The Netty {@link ChannelInitializer} for the SimplePush Server.
  */
 public class SockJSChannelInitializer extends ChannelInitializer<SocketChannel> {
 
-    private final DataStore datastore;
     private final SimplePushServerConfig simplePushConfig;
     private final EventExecutorGroup backgroundGroup;
     private final SockJsConfig sockjsConfig;
-    private final byte[] privateKey;
+    private final ExecutorService datastoreExecutor;
+    private final ScheduledExecutorService coalescerScheduler;
+    private final ExecutorService notifierExecutor;
+    private final EventExecutorGroup broadcastGroup;
+    private final DefaultSimplePushServer simplePushServer;
+    private final TokenBucketRateLimiter ipLimiter;
+    private final NotificationDispatcher dispatcher;
+    private final TopicBroadcaster broadcaster;
     private SSLContext sslContext;
 
     /**
@@ -62,18 +81,84 @@ public class SockJSChannelInitializer extends ChannelInitializer<SocketChannel>
             final SockJsConfig sockjsConfig,
             final EventExecutorGroup backgroundGroup) {
         this.simplePushConfig = simplePushConfig;
-        this.datastore = datastore;
         this.sockjsConfig = sockjsConfig;
         this.backgroundGroup = backgroundGroup;
-        privateKey = DefaultSimplePushServer.generateAndStorePrivateKey(datastore, simplePushConfig);
+        final byte[] privateKey = DefaultSimplePushServer.generateAndStorePrivateKey(datastore, simplePushConfig);
+        // the server holds no per connection state, so all channels share it and its datastore threads.
+        datastoreExecutor = Executors.newFixedThreadPool(DefaultSimplePushServer.DEFAULT_ASYNC_THREADS,
+                new DefaultThreadFactory("simplepush-datastore", true));
+        simplePushServer = new DefaultSimplePushServer(datastore, new ExecutorAsyncDataStore(datastore, datastoreExecutor),
+                simplePushConfig, privateKey);
+        // shared by all channels, so that limits apply across connections.
+        final TokenBucketRateLimiter endpointLimiter = simplePushConfig.endpointRateLimit() > 0
+                ? new TokenBucketRateLimiter(simplePushConfig.endpointRateLimit(), simplePushConfig.endpointBurst())
+                : null;
+        ipLimiter = simplePushConfig.ipRateLimit() > 0
+                ? new TokenBucketRateLimiter(simplePushConfig.ipRateLimit(), simplePushConfig.ipBurst())
+                : null;
+        final NotificationDeduplicator deduplicator = simplePushConfig.dedupWindowMillis() > 0
+                ? new NotificationDeduplicator(simplePushConfig.dedupWindowMillis(), simplePushConfig.dedupMaxEntries(),
+                        NotificationDeduplicator.DEFAULT_SHARDS)
+                : null;
+        // always in place, as it also holds back notifications for UserAgents whose connection is not writable.
+        coalescerScheduler = Executors.newSingleThreadScheduledExecutor(
+                new DefaultThreadFactory("simplepush-coalescer", true));
+        final NotificationCoalescer coalescer = new NotificationCoalescer(simplePushConfig.coalesceWindowMillis(),
+                sockjsConfig.maxQueuedMessages(), sockjsConfig.overflowPolicy(), coalescerScheduler);
+        notifierExecutor = Executors.newFixedThreadPool(simplePushConfig.notifierMaxThreads(),
+                new DefaultThreadFactory("simplepush-notifier", true));
+        dispatcher = new NotificationDispatcher(simplePushServer, notifierExecutor, endpointLimiter, deduplicator,
+                coalescer);
+        if (simplePushConfig.topics()) {
+            broadcastGroup = new DefaultEventExecutorGroup(simplePushConfig.notifierMaxThreads(),
+                    new DefaultThreadFactory("simplepush-broadcast", true));
+            broadcaster = new TopicBroadcaster(new TopicRegistry(), datastore, broadcastGroup);
+        } else {
+            broadcastGroup = null;
+            broadcaster = null;
+        }
         if (sockjsConfig.isTls()) {
             sslContext = new WebSocketSslServerSslContext(sockjsConfig).sslContext();
         }
     }
 
+    /**
+     * Returns the {@link NotificationService} for submitting notifications in-process, which shares its rate limits,
+     * de-duplication and notifier threads with the notifications sent to the HTTP endpoint of the channels
+     * initialized by this instance.
+     *
+     * @return {@code NotificationService} the in-process notification service.
+     */
+    public NotificationService notificationService() {
+        return dispatcher;
+    }
+
+    /**
+     * Stops the threads that this instance started for the datastore, notifications and topic broadcasts.
+     * Should be called once the server channel has been closed.
+     */
+    public void shutdown() {
+        notifierExecutor.shutdown();
+        coalescerScheduler.shutdown();
+        datastoreExecutor.shutdown();
+        if (broadcastGroup != null) {
+            broadcastGroup.shutdownGracefully();
+        }
+    }
+
     @Override
     protected void initChannel(final SocketChannel socketChannel) throws Exception {
+        if (sockjsConfig.writeBufferHighWaterMark() > 0) {
+            // raise the high water mark first, as it may not be set below the current low water mark.
+            final SocketChannelConfig config = socketChannel.config();
+            config.setWriteBufferHighWaterMark(Math.max(sockjsConfig.writeBufferHighWaterMark(),
+                    config.getWriteBufferLowWaterMark()));
+            config.setWriteBufferLowWaterMark(sockjsConfig.writeBufferLowWaterMark());
+            config.setWriteBufferHighWaterMark(sockjsConfig.writeBufferHighWaterMark());
+        }
         final ChannelPipeline pipeline = socketChannel.pipeline();
+        // closest to the socket so that flushes of all the handlers below, including TLS, are consolidated.
+        pipeline.addLast(new FlushConsolidationHandler());
         if (sockjsConfig.isTls()) {
             final SSLEngine engine = sslContext.createSSLEngine();
             engine.setUseClientMode(false);
@@ -82,8 +167,10 @@ public class SockJSChannelInitializer extends ChannelInitializer<SocketChannel>
         pipeline.addLast(new HttpServerCodec());
         pipeline.addLast(new HttpObjectAggregator(65536));
 
-        final DefaultSimplePushServer simplePushServer = new DefaultSimplePushServer(datastore, simplePushConfig, privateKey);
-        pipeline.addLast(new NotificationHandler(simplePushServer));
+        if (broadcaster != null) {
+            pipeline.addLast(new TopicHandler(simplePushConfig, broadcaster));
+        }
+        pipeline.addLast(new NotificationHandler(dispatcher, ipLimiter));
         pipeline.addLast(new CorsInboundHandler());
         pipeline.addLast(new SockJsHandler(new SimplePushServiceFactory(sockjsConfig, simplePushServer)));
         pipeline.addLast(backgroundGroup, new UserAgentReaperHandler(simplePushServer));
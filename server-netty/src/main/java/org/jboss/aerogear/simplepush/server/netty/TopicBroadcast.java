@@ -0,0 +1,195 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.netty;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of a broadcast to the channels of a topic, see {@link TopicBroadcaster}.
+ * <p>
+ * The members of the topic are split into slices that are handled independently, and the counters are updated
+ * as each slice completes its steps, so they can be read while the broadcast is in progress.
+ */
+public final class TopicBroadcast {
+
+    private final String id;
+    private final String topic;
+    private final long version;
+    private final int members;
+    private final long startedAt = System.currentTimeMillis();
+    private final AtomicInteger pendingSlices;
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong notFound = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile long completedAt;
+
+    TopicBroadcast(final String id, final String topic, final long version, final int members, final int slices) {
+        this.id = id;
+        this.topic = topic;
+        this.version = version;
+        this.members = members;
+        pendingSlices = new AtomicInteger(slices);
+        if (slices == 0) {
+            completedAt = startedAt;
+        }
+    }
+
+    void addDelivered(final int channels) {
+        delivered.addAndGet(channels);
+    }
+
+    void addStored(final int channels) {
+        stored.addAndGet(channels);
+    }
+
+    void addNotFound() {
+        notFound.incrementAndGet();
+    }
+
+    void addConflict() {
+        conflicts.incrementAndGet();
+    }
+
+    void addFailed(final int channels) {
+        failed.addAndGet(channels);
+    }
+
+    void sliceDone() {
+        if (pendingSlices.decrementAndGet() == 0) {
+            completedAt = System.currentTimeMillis();
+        }
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public String topic() {
+        return topic;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    /**
+     * Returns the number of channels that belonged to the topic when the broadcast started.
+     *
+     * @return {@code int} the number of channels notified by this broadcast.
+     */
+    public int members() {
+        return members;
+    }
+
+    /**
+     * Returns the number of channels whose notification was sent to their connected UserAgent.
+     *
+     * @return {@code long} the number of delivered notifications.
+     */
+    public long delivered() {
+        return delivered.get();
+    }
+
+    /**
+     * Returns the number of channels whose notification was stored for a UserAgent that is not connected.
+     *
+     * @return {@code long} the number of stored notifications.
+     */
+    public long stored() {
+        return stored.get();
+    }
+
+    /**
+     * Returns the number of channels that no longer exist, which have been removed from the topic.
+     *
+     * @return {@code long} the number of channels not found.
+     */
+    public long notFound() {
+        return notFound.get();
+    }
+
+    /**
+     * Returns the number of channels that already had the version of the broadcast, or a newer one.
+     *
+     * @return {@code long} the number of channels with a conflicting version.
+     */
+    public long conflicts() {
+        return conflicts.get();
+    }
+
+    /**
+     * Returns the number of channels that could not be notified because of an error.
+     *
+     * @return {@code long} the number of failed notifications.
+     */
+    public long failed() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the number of channels handled so far.
+     *
+     * @return {@code long} the number of channels handled.
+     */
+    public long processed() {
+        return delivered() + stored() + notFound() + conflicts() + failed();
+    }
+
+    public boolean isDone() {
+        return completedAt != 0;
+    }
+
+    /**
+     * Returns the time the broadcast has taken so far, or took in total once it is done.
+     *
+     * @return {@code long} the elapsed time in milliseconds.
+     */
+    public long elapsedMillis() {
+        final long completed = completedAt;
+        return (completed != 0 ? completed : System.currentTimeMillis()) - startedAt;
+    }
+
+    /**
+     * Returns the progress of this broadcast as JSON.
+     *
+     * @return {@code String} a JSON object holding the counters of this broadcast.
+     */
+    public String toJson() {
+        // ids are UUIDs and topic names are restricted to characters that need no escaping.
+        return new StringBuilder("{\"id\":\"").append(id)
+                .append("\",\"topic\":\"").append(topic)
+                .append("\",\"version\":").append(version)
+                .append(",\"members\":").append(members)
+                .append(",\"delivered\":").append(delivered())
+                .append(",\"stored\":").append(stored())
+                .append(",\"notFound\":").append(notFound())
+                .append(",\"conflicts\":").append(conflicts())
+                .append(",\"failed\":").append(failed())
+                .append(",\"done\":").append(isDone())
+                .append(",\"elapsedMillis\":").append(elapsedMillis())
+                .append('}').toString();
+    }
+
+    @Override
+    public String toString() {
+        return "TopicBroadcast" + toJson();
+    }
+
+}
@@ -0,0 +1,312 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.netty;
+
+import static org.jboss.aerogear.simplepush.util.ArgumentUtil.checkNotNull;
+
+import io.netty.util.concurrent.EventExecutorGroup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.protocol.NotificationMessage;
+import org.jboss.aerogear.simplepush.protocol.RegisterMessage;
+import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
+import org.jboss.aerogear.simplepush.protocol.impl.NotificationMessageImpl;
+import org.jboss.aerogear.simplepush.protocol.impl.json.JsonUtil;
+import org.jboss.aerogear.simplepush.server.TopicRegistry;
+import org.jboss.aerogear.simplepush.server.datastore.BatchDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.ChannelNotFoundException;
+import org.jboss.aerogear.simplepush.server.datastore.DataStore;
+import org.jboss.aerogear.simplepush.server.datastore.VersionException;
+import org.jboss.aerogear.simplepush.server.datastore.WriteResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Notifies all channels of a topic, see {@link TopicRegistry}, with a single version.
+ * <p>
+ * The members of the topic are split into slices, which are spread over the executors of an
+ * {@link EventExecutorGroup}. Each slice updates the versions of its channels, as a batch when the
+ * {@link DataStore} is a {@link BatchDataStore}, and sends a single notification message to each connected
+ * UserAgent holding all of its channels in the slice. The parts of the message that are the same for every
+ * channel are encoded once per broadcast. Channels that no longer exist are removed from the topic.
+ */
+public class TopicBroadcaster {
+
+    public static final int DEFAULT_SLICE_SIZE = 1000;
+    public static final int DEFAULT_MAX_BROADCASTS = 100;
+
+    private final Logger logger = LoggerFactory.getLogger(TopicBroadcaster.class);
+    private final UserAgents userAgents = UserAgents.getInstance();
+    private final TopicRegistry registry;
+    private final DataStore store;
+    private final EventExecutorGroup executors;
+    private final int sliceSize;
+    private final Map<String, TopicBroadcast> broadcasts;
+
+    /**
+     * Creates a TopicBroadcaster that uses {@link #DEFAULT_SLICE_SIZE} and {@link #DEFAULT_MAX_BROADCASTS}.
+     *
+     * @param registry the {@link TopicRegistry} holding the members of the topics.
+     * @param store the {@link DataStore} holding the channels.
+     * @param executors the {@link EventExecutorGroup} running the slices of broadcasts.
+     */
+    public TopicBroadcaster(final TopicRegistry registry, final DataStore store, final EventExecutorGroup executors) {
+        this(registry, store, executors, DEFAULT_SLICE_SIZE, DEFAULT_MAX_BROADCASTS);
+    }
+
+    /**
+     * Sole constructor.
+     *
+     * @param registry the {@link TopicRegistry} holding the members of the topics.
+     * @param store the {@link DataStore} holding the channels.
+     * @param executors the {@link EventExecutorGroup} running the slices of broadcasts.
+     * @param sliceSize the number of channels handled together.
+     * @param maxBroadcasts the number of most recent broadcasts whose progress can be looked up.
+     */
+    public TopicBroadcaster(final TopicRegistry registry, final DataStore store, final EventExecutorGroup executors,
+            final int sliceSize, final int maxBroadcasts) {
+        checkNotNull(registry, "registry");
+        checkNotNull(store, "store");
+        checkNotNull(executors, "executors");
+        if (sliceSize < 1) {
+            throw new IllegalArgumentException("sliceSize must be at least 1");
+        }
+        this.registry = registry;
+        this.store = store;
+        this.executors = executors;
+        this.sliceSize = sliceSize;
+        broadcasts = Collections.synchronizedMap(new LinkedHashMap<String, TopicBroadcast>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, TopicBroadcast> eldest) {
+                return size() > maxBroadcasts;
+            }
+        });
+    }
+
+    public TopicRegistry registry() {
+        return registry;
+    }
+
+    /**
+     * Starts notifying the channels that currently belong to a topic.
+     *
+     * @param topic the name of the topic.
+     * @param version the version to notify the channels of.
+     * @return {@link TopicBroadcast} the progress of the broadcast, which completes in the background.
+     */
+    public TopicBroadcast broadcast(final String topic, final long version) {
+        final List<String> members = registry.members(topic);
+        final int slices = (members.size() + sliceSize - 1) / sliceSize;
+        final TopicBroadcast broadcast = new TopicBroadcast(UUID.randomUUID().toString(), topic, version,
+                members.size(), slices);
+        broadcasts.put(broadcast.id(), broadcast);
+        logger.debug("Broadcasting version [" + version + "] to [" + members.size() + "] channels of topic [" + topic + "]");
+        final MessageTemplate template = new MessageTemplate(version);
+        for (int from = 0; from < members.size(); from += sliceSize) {
+            final List<String> slice = members.subList(from, Math.min(members.size(), from + sliceSize));
+            executors.next().execute(new Slice(broadcast, slice, template));
+        }
+        return broadcast;
+    }
+
+    /**
+     * Returns the progress of a recent broadcast.
+     *
+     * @param id the id of the broadcast.
+     * @return {@link TopicBroadcast} the broadcast, or {@code null} if it is unknown or no longer kept.
+     */
+    public TopicBroadcast broadcast(final String id) {
+        return broadcasts.get(id);
+    }
+
+    private class Slice implements Runnable {
+
+        private final TopicBroadcast broadcast;
+        private final List<String> endpointTokens;
+        private final MessageTemplate template;
+        private int handled;
+
+        private Slice(final TopicBroadcast broadcast, final List<String> endpointTokens, final MessageTemplate template) {
+            this.broadcast = broadcast;
+            this.endpointTokens = endpointTokens;
+            this.template = template;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final Map<String, List<String>> channelsByUserAgent = store instanceof BatchDataStore
+                        ? updateBatch((BatchDataStore) store)
+                        : updateEach();
+                for (Entry<String, List<String>> entry : channelsByUserAgent.entrySet()) {
+                    send(entry.getKey(), entry.getValue());
+                }
+            } catch (final RuntimeException e) {
+                logger.warn("Could not notify channels of topic [" + broadcast.topic() + "]", e);
+                broadcast.addFailed(endpointTokens.size() - handled);
+            } finally {
+                broadcast.sliceDone();
+            }
+        }
+
+        private Map<String, List<String>> updateBatch(final BatchDataStore batchStore) {
+            final Map<String, Long> versions = new HashMap<String, Long>(endpointTokens.size() * 2);
+            for (String endpointToken : endpointTokens) {
+                versions.put(endpointToken, broadcast.version());
+            }
+            final Map<String, Long> unacknowledged = new HashMap<String, Long>(endpointTokens.size() * 2);
+            for (Entry<String, WriteResult> updated : batchStore.updateVersions(versions).entrySet()) {
+                if (updated.getValue().isSuccess()) {
+                    unacknowledged.put(updated.getValue().value(), broadcast.version());
+                } else {
+                    failed(updated.getKey(), updated.getValue().failure());
+                }
+            }
+            final Map<String, List<String>> channelsByUserAgent = new HashMap<String, List<String>>();
+            for (Entry<String, WriteResult> saved : batchStore.saveUnacknowledged(unacknowledged).entrySet()) {
+                if (saved.getValue().isSuccess()) {
+                    add(channelsByUserAgent, saved.getValue().value(), saved.getKey());
+                } else {
+                    broadcast.addFailed(1);
+                    handled++;
+                }
+            }
+            return channelsByUserAgent;
+        }
+
+        private Map<String, List<String>> updateEach() {
+            final Map<String, List<String>> channelsByUserAgent = new HashMap<String, List<String>>();
+            for (String endpointToken : endpointTokens) {
+                try {
+                    final String channelId = store.updateVersion(endpointToken, broadcast.version());
+                    if (channelId == null) {
+                        failed(endpointToken, new ChannelNotFoundException("No channel for [" + endpointToken + "]", null));
+                        continue;
+                    }
+                    add(channelsByUserAgent, store.saveUnacknowledged(channelId, broadcast.version()), channelId);
+                } catch (final Exception e) {
+                    failed(endpointToken, e);
+                }
+            }
+            return channelsByUserAgent;
+        }
+
+        private void failed(final String endpointToken, final Exception cause) {
+            handled++;
+            if (cause instanceof ChannelNotFoundException) {
+                registry.unsubscribe(broadcast.topic(), endpointToken);
+                broadcast.addNotFound();
+            } else if (cause instanceof VersionException) {
+                broadcast.addConflict();
+            } else {
+                logger.debug("Could not notify [" + endpointToken + "]: " + cause.getMessage());
+                broadcast.addFailed(1);
+            }
+        }
+
+        private void send(final String uaid, final List<String> channelIds) {
+            if (userAgents.contains(uaid)) {
+                userAgents.get(uaid).context().send(template.encode(channelIds));
+                userAgents.updateAccessedTime(uaid);
+                broadcast.addDelivered(channelIds.size());
+            } else {
+                broadcast.addStored(channelIds.size());
+            }
+            handled += channelIds.size();
+        }
+    }
+
+    private static void add(final Map<String, List<String>> channelsByUserAgent, final String uaid, final String channelId) {
+        List<String> channelIds = channelsByUserAgent.get(uaid);
+        if (channelIds == null) {
+            channelIds = new ArrayList<String>(1);
+            channelsByUserAgent.put(uaid, channelIds);
+        }
+        channelIds.add(channelId);
+    }
+
+    /**
+     * Encodes notification messages for a single version, as {@link JsonUtil} would, from parts encoded once.
+     */
+    static final class MessageTemplate {
+
+        private final long version;
+        private final String start;
+        private final String channelStart;
+        private final String channelEnd;
+
+        MessageTemplate(final long version) {
+            this.version = version;
+            start = "{\"" + NotificationMessage.MESSSAGE_TYPE_FIELD + "\":\"notification\",\""
+                    + NotificationMessage.UPDATES_FIELD + "\":[";
+            channelStart = "{\"" + RegisterMessage.CHANNEL_ID_FIELD + "\":\"";
+            channelEnd = "\",\"" + NotificationMessage.VERSION_FIELD + "\":" + version + "}";
+        }
+
+        String encode(final List<String> channelIds) {
+            final StringBuilder json = new StringBuilder(start.length() + 2
+                    + channelIds.size() * (channelStart.length() + channelEnd.length() + 37)).append(start);
+            for (int i = 0; i < channelIds.size(); i++) {
+                final String channelId = channelIds.get(i);
+                if (!isPlain(channelId)) {
+                    return encodeWithJsonUtil(channelIds);
+                }
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append(channelStart).append(channelId).append(channelEnd);
+            }
+            return json.append("]}").toString();
+        }
+
+        private String encodeWithJsonUtil(final List<String> channelIds) {
+            final Set<Ack> acks = new LinkedHashSet<Ack>(channelIds.size() * 2);
+            for (String channelId : channelIds) {
+                acks.add(new AckImpl(channelId, version));
+            }
+            return JsonUtil.toJson(new NotificationMessageImpl(acks));
+        }
+
+        /**
+         * Returns whether a channel id can be written without escaping, which is the case for the UUIDs that
+         * UserAgents use.
+         */
+        private static boolean isPlain(final String channelId) {
+            for (int i = 0; i < channelId.length(); i++) {
+                final char c = channelId.charAt(i);
+                if (c < 0x20 || c > 0x7e || c == '"' || c == '\\') {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
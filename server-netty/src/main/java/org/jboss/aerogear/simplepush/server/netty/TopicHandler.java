@@ -0,0 +1,150 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.netty;
+
+import static io.netty.handler.codec.http.HttpMethod.DELETE;
+import static io.netty.handler.codec.http.HttpMethod.GET;
+import static io.netty.handler.codec.http.HttpMethod.PUT;
+import static io.netty.handler.codec.http.HttpResponseStatus.ACCEPTED;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static io.netty.util.CharsetUtil.UTF_8;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.regex.Pattern;
+
+import org.jboss.aerogear.simplepush.server.SimplePushServerConfig;
+import org.jboss.aerogear.simplepush.util.VersionExtractor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handles HTTP requests for topics, below the 'topic' path of the endpoint prefix:
+ * <ul>
+ * <li>PUT {@code topic/<topic>/<endpointToken>} adds the channel of the endpoint to the topic.</li>
+ * <li>DELETE {@code topic/<topic>/<endpointToken>} removes the channel of the endpoint from the topic.</li>
+ * <li>PUT {@code topic/<topic>}, with a version in the body like a notification, notifies all channels of the topic
+ * and is answered with 202 Accepted and the progress of the broadcast as JSON.</li>
+ * <li>GET {@code topic/<topic>/broadcasts/<id>} returns the progress of a broadcast as JSON.</li>
+ * </ul>
+ * Topic names consist of letters, digits, '.', '_' and '-'. Anyone who knows the name of a topic can notify its
+ * channels, so names should be as hard to guess as endpoint tokens.
+ */
+public class TopicHandler extends SimpleChannelInboundHandler<Object> {
+
+    public static final String TOPIC_PATH = "/topic/";
+    public static final String BROADCASTS_PATH = "broadcasts";
+
+    private static final Pattern TOPIC_NAME = Pattern.compile("[A-Za-z0-9._-]+");
+
+    private final Logger logger = LoggerFactory.getLogger(TopicHandler.class);
+    private final String topicPrefix;
+    private final TopicBroadcaster broadcaster;
+
+    /**
+     * Sole constructor.
+     *
+     * @param config the {@link SimplePushServerConfig} holding the endpoint prefix.
+     * @param broadcaster the {@link TopicBroadcaster} notifying the channels of topics.
+     */
+    public TopicHandler(final SimplePushServerConfig config, final TopicBroadcaster broadcaster) {
+        topicPrefix = config.endpointPrefix() + TOPIC_PATH;
+        this.broadcaster = broadcaster;
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+        if (msg instanceof FullHttpRequest && ((FullHttpRequest) msg).getUri().startsWith(topicPrefix)) {
+            handleTopicRequest((FullHttpRequest) msg, ctx.channel());
+        } else {
+            ctx.fireChannelRead(ReferenceCountUtil.retain(msg));
+        }
+    }
+
+    private void handleTopicRequest(final FullHttpRequest request, final Channel channel) {
+        if (!request.getDecoderResult().isSuccess()) {
+            sendResponse(BAD_REQUEST, null, channel);
+            return;
+        }
+        String path = request.getUri().substring(topicPrefix.length());
+        final int query = path.indexOf('?');
+        if (query != -1) {
+            path = path.substring(0, query);
+        }
+        final String[] segments = path.split("/");
+        if (!TOPIC_NAME.matcher(segments[0]).matches()) {
+            sendResponse(BAD_REQUEST, null, channel);
+            return;
+        }
+        final String topic = segments[0];
+        final HttpMethod method = request.getMethod();
+        if (segments.length == 1 && method == PUT) {
+            broadcast(topic, request, channel);
+        } else if (segments.length == 2 && method == PUT) {
+            broadcaster.registry().subscribe(topic, segments[1]);
+            sendResponse(OK, null, channel);
+        } else if (segments.length == 2 && method == DELETE) {
+            sendResponse(broadcaster.registry().unsubscribe(topic, segments[1]) ? OK : NOT_FOUND, null, channel);
+        } else if (segments.length == 3 && BROADCASTS_PATH.equals(segments[1]) && method == GET) {
+            final TopicBroadcast broadcast = broadcaster.broadcast(segments[2]);
+            if (broadcast == null || !broadcast.topic().equals(topic)) {
+                sendResponse(NOT_FOUND, null, channel);
+            } else {
+                sendResponse(OK, broadcast.toJson(), channel);
+            }
+        } else {
+            sendResponse(FORBIDDEN, null, channel);
+        }
+    }
+
+    private void broadcast(final String topic, final FullHttpRequest request, final Channel channel) {
+        final long version;
+        try {
+            version = Long.parseLong(VersionExtractor.extractVersion(request.content().toString(UTF_8)));
+        } catch (final RuntimeException e) {
+            logger.debug("Invalid version for topic [" + topic + "]: " + e.getMessage());
+            sendResponse(BAD_REQUEST, null, channel);
+            return;
+        }
+        sendResponse(ACCEPTED, broadcaster.broadcast(topic, version).toJson(), channel);
+    }
+
+    private static void sendResponse(final HttpResponseStatus status, final String json, final Channel channel) {
+        final ByteBuf content = Unpooled.copiedBuffer(json != null ? json : status.reasonPhrase(), UTF_8);
+        final FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, status, content);
+        response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, content.readableBytes());
+        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, json != null ? "application/json; charset=UTF-8"
+                : "text/html; charset=UTF-8");
+        channel.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+}
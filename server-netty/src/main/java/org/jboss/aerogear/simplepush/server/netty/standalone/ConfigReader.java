@@ -16,6 +16,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -26,9 +29,20 @@ import org.jboss.aerogear.simplepush.server.DefaultSimplePushConfig.Builder;
 import org.jboss.aerogear.simplepush.server.SimplePushServerConfig;
 import org.jboss.aerogear.simplepush.server.datastore.CouchDBDataStore;
 import org.jboss.aerogear.simplepush.server.datastore.DataStore;
+import org.jboss.aerogear.simplepush.server.datastore.Dialect;
+import org.jboss.aerogear.simplepush.server.datastore.DriverManagerDataSource;
+import org.jboss.aerogear.simplepush.server.datastore.GroupCommitDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.IdleUserAgentCollector;
 import org.jboss.aerogear.simplepush.server.datastore.InMemoryDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.IterableDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.JdbcDataStore;
 import org.jboss.aerogear.simplepush.server.datastore.JpaDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.LastSeenDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.NegativeLookupDataStore;
 import org.jboss.aerogear.simplepush.server.datastore.RedisDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.ShardedDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.ResilientDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.TieredDataStore;
 
 /**
  * Utility to read a JSON config files.
@@ -70,9 +84,11 @@ public class ConfigReader {
     public static StandaloneConfig parse(final InputStream in) {
         try {
             final JsonNode json = OM.readTree(in);
+            final DataStore dataStore = createDataStore(json);
             return new StandaloneConfig(parseSimplePushProperties(json),
                    parseSockJsProperties(json),
-                   createDataStore(json));
+                   dataStore,
+                   createIdleUserAgentCollector(json.get("datastore"), dataStore));
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
@@ -85,6 +101,90 @@ public class ConfigReader {
         if (dataStore == null) {
             throw new IllegalArgumentException("datastore element must be specified");
         }
+        return configureDataStore(dataStore);
+    }
+
+    private static IdleUserAgentCollector createIdleUserAgentCollector(final JsonNode dataStore, final DataStore store) {
+        final JsonNode collector = dataStore.get("idle-collector");
+        if (collector == null) {
+            return null;
+        }
+        if (!(store instanceof LastSeenDataStore)) {
+            throw new IllegalArgumentException("idle-collector is not supported by datastore " + store);
+        }
+        final JsonNode idleMillis = collector.get("idle-millis");
+        if (idleMillis == null) {
+            throw new IllegalArgumentException("idle-millis must be specified for idle-collector");
+        }
+        final JsonNode sweepIntervalMillis = collector.get("sweep-interval-millis");
+        final JsonNode batchSize = collector.get("batch-size");
+        final JsonNode maxRemovalsPerSecond = collector.get("max-removals-per-second");
+        return new IdleUserAgentCollector((LastSeenDataStore) store,
+                idleMillis.asLong(),
+                sweepIntervalMillis != null ? sweepIntervalMillis.asLong() : IdleUserAgentCollector.DEFAULT_SWEEP_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS,
+                batchSize != null ? batchSize.asInt() : IdleUserAgentCollector.DEFAULT_BATCH_SIZE,
+                maxRemovalsPerSecond != null ? maxRemovalsPerSecond.asInt() : IdleUserAgentCollector.DEFAULT_MAX_REMOVALS_PER_SECOND);
+    }
+
+    private static DataStore configureDataStore(final JsonNode dataStore) {
+        final DataStore created = createStore(dataStore);
+        DataStore store = created;
+        final JsonNode groupCommit = dataStore.get("group-commit");
+        if (groupCommit != null) {
+            if (store instanceof ShardedDataStore) {
+                throw new IllegalArgumentException("group-commit must be configured for each shard of a sharded datastore");
+            }
+            final JsonNode windowMicros = groupCommit.get("window-micros");
+            final JsonNode maxBatchSize = groupCommit.get("max-batch-size");
+            store = new GroupCommitDataStore(store,
+                    windowMicros != null ? windowMicros.asLong() : GroupCommitDataStore.DEFAULT_WINDOW_MICROS,
+                    TimeUnit.MICROSECONDS,
+                    maxBatchSize != null ? maxBatchSize.asInt() : GroupCommitDataStore.DEFAULT_MAX_BATCH_SIZE);
+        }
+        final JsonNode tiered = dataStore.get("tiered");
+        if (tiered != null) {
+            final JsonNode gracePeriodMillis = tiered.get("grace-period-millis");
+            final JsonNode writeBehindThreads = tiered.get("write-behind-threads");
+            store = new TieredDataStore(store,
+                    gracePeriodMillis != null ? gracePeriodMillis.asLong() : TieredDataStore.DEFAULT_GRACE_PERIOD_MILLIS,
+                    TimeUnit.MILLISECONDS,
+                    writeBehindThreads != null ? writeBehindThreads.asInt() : 0);
+        }
+        final JsonNode resilience = dataStore.get("resilience");
+        if (resilience != null) {
+            final JsonNode timeoutMillis = resilience.get("timeout-millis");
+            final JsonNode maxConcurrentCalls = resilience.get("max-concurrent-calls");
+            final JsonNode failureThreshold = resilience.get("failure-threshold");
+            final JsonNode openMillis = resilience.get("open-millis");
+            final JsonNode cachedUserAgents = resilience.get("cached-useragents");
+            store = new ResilientDataStore(store,
+                    timeoutMillis != null ? timeoutMillis.asLong() : ResilientDataStore.DEFAULT_TIMEOUT_MILLIS,
+                    maxConcurrentCalls != null ? maxConcurrentCalls.asInt() : ResilientDataStore.DEFAULT_MAX_CONCURRENT_CALLS,
+                    failureThreshold != null ? failureThreshold.asInt() : ResilientDataStore.DEFAULT_FAILURE_THRESHOLD,
+                    openMillis != null ? openMillis.asLong() : ResilientDataStore.DEFAULT_OPEN_MILLIS,
+                    cachedUserAgents != null ? cachedUserAgents.asInt() : ResilientDataStore.DEFAULT_CACHED_USER_AGENTS);
+        }
+        final JsonNode negativeLookup = dataStore.get("negative-lookup");
+        if (negativeLookup != null) {
+            final JsonNode expectedEndpoints = negativeLookup.get("expected-endpoints");
+            final JsonNode falsePositiveRate = negativeLookup.get("false-positive-rate");
+            final JsonNode rebuildIntervalMillis = negativeLookup.get("rebuild-interval-millis");
+            final JsonNode missTtlMillis = negativeLookup.get("miss-ttl-millis");
+            final JsonNode maxMisses = negativeLookup.get("max-misses");
+            store = new NegativeLookupDataStore(store,
+                    created instanceof IterableDataStore ? (IterableDataStore) created : null,
+                    expectedEndpoints != null ? expectedEndpoints.asLong() : NegativeLookupDataStore.DEFAULT_EXPECTED_ENDPOINTS,
+                    falsePositiveRate != null ? falsePositiveRate.asDouble() : NegativeLookupDataStore.DEFAULT_FALSE_POSITIVE_RATE,
+                    rebuildIntervalMillis != null ? rebuildIntervalMillis.asLong() : NegativeLookupDataStore.DEFAULT_REBUILD_INTERVAL_MILLIS,
+                    missTtlMillis != null ? missTtlMillis.asLong() : NegativeLookupDataStore.DEFAULT_MISS_TTL_MILLIS,
+                    maxMisses != null ? maxMisses.asInt() : NegativeLookupDataStore.DEFAULT_MAX_MISSES,
+                    NegativeLookupDataStore.DEFAULT_BATCH_SIZE);
+        }
+        return store;
+    }
+
+    private static DataStore createStore(final JsonNode dataStore) {
         final JsonNode inMemory = dataStore.get("in-memory");
         if (inMemory != null) {
             return new InMemoryDataStore();
@@ -95,15 +195,68 @@ public class ConfigReader {
         }
         final JsonNode couchdb = dataStore.get("couchdb");
         if (couchdb != null) {
-            return new CouchDBDataStore(couchdb.get("url").asText(), couchdb.get("dbName").asText());
+            final JsonNode nodeId = couchdb.get("nodeId");
+            return new CouchDBDataStore(couchdb.get("url").asText(), couchdb.get("dbName").asText(),
+                    nodeId != null ? nodeId.asText() : null);
         }
         final JsonNode jpa = dataStore.get("jpa");
         if (jpa != null) {
+            final JsonNode readPersistenceUnit = jpa.get("readPersistenceUnit");
+            if (readPersistenceUnit != null) {
+                final JsonNode readYourWritesMillis = jpa.get("readYourWritesMillis");
+                return new JpaDataStore(jpa.get("persistenceUnit").asText(), readPersistenceUnit.asText(),
+                        readYourWritesMillis != null ? readYourWritesMillis.asLong() : JpaDataStore.DEFAULT_READ_YOUR_WRITES_MILLIS);
+            }
             return new JpaDataStore(jpa.get("persistenceUnit").asText());
         }
+        final JsonNode jdbc = dataStore.get("jdbc");
+        if (jdbc != null) {
+            return createJdbcDataStore(jdbc);
+        }
+        final JsonNode sharded = dataStore.get("sharded");
+        if (sharded != null) {
+            return createShardedDataStore(sharded);
+        }
         throw new IllegalStateException("datastore must be specified");
     }
 
+    private static DataStore createShardedDataStore(final JsonNode sharded) {
+        final JsonNode virtualNodes = sharded.get("virtual-nodes");
+        final JsonNode rebalanceBatchSize = sharded.get("rebalance-batch-size");
+        final ShardedDataStore store = new ShardedDataStore(createShards(sharded.get("shards")),
+                virtualNodes != null ? virtualNodes.asInt() : ShardedDataStore.DEFAULT_VIRTUAL_NODES,
+                rebalanceBatchSize != null ? rebalanceBatchSize.asInt() : ShardedDataStore.DEFAULT_REBALANCE_BATCH_SIZE);
+        final JsonNode addedShards = sharded.get("added-shards");
+        if (addedShards != null) {
+            store.addShards(createShards(addedShards));
+        }
+        return store;
+    }
+
+    private static List<DataStore> createShards(final JsonNode shardsNode) {
+        if (shardsNode == null || !shardsNode.isArray()) {
+            throw new IllegalArgumentException("shards must be an array of datastore elements");
+        }
+        final List<DataStore> shards = new ArrayList<DataStore>(shardsNode.size());
+        for (JsonNode shard : shardsNode) {
+            shards.add(configureDataStore(shard));
+        }
+        return shards;
+    }
+
+    private static DataStore createJdbcDataStore(final JsonNode jdbc) {
+        final String url = jdbc.get("url").asText();
+        final JsonNode user = jdbc.get("user");
+        final JsonNode password = jdbc.get("password");
+        final JsonNode dialect = jdbc.get("dialect");
+        final JsonNode maxConnections = jdbc.get("max-connections");
+        return new JdbcDataStore(new DriverManagerDataSource(url,
+                user != null ? user.asText() : null,
+                password != null ? password.asText() : null),
+                dialect != null ? Dialect.of(dialect.asText()) : Dialect.fromUrl(url),
+                maxConnections != null ? maxConnections.asInt() : JdbcDataStore.DEFAULT_MAX_CONNECTIONS);
+    }
+
     private static SockJsConfig parseSockJsProperties(final JsonNode json) {
         final JsonNode prefixNode = json.get("sockjs-prefix");
         final String prefix = prefixNode != null ? prefixNode.asText() : "/simplepush";
@@ -152,6 +305,20 @@ public class ConfigReader {
         if (websocketProtocols != null) {
             builder.webSocketProtocols(websocketProtocols.asText().split(","));
         }
+        final JsonNode highWaterMark = json.get("sockjs-write-buffer-high-water-mark");
+        final JsonNode lowWaterMark = json.get("sockjs-write-buffer-low-water-mark");
+        if (highWaterMark != null || lowWaterMark != null) {
+            final int high = highWaterMark != null ? highWaterMark.asInt() : 64 * 1024;
+            builder.writeBufferWaterMarks(high, lowWaterMark != null ? lowWaterMark.asInt() : high / 2);
+        }
+        final JsonNode maxQueuedMessages = json.get("sockjs-max-queued-messages");
+        if (maxQueuedMessages != null) {
+            builder.maxQueuedMessages(maxQueuedMessages.asInt());
+        }
+        final JsonNode overflowPolicy = json.get("sockjs-overflow-policy");
+        if (overflowPolicy != null) {
+            builder.overflowPolicy(SockJsConfig.OverflowPolicy.valueOf(overflowPolicy.asText().toUpperCase().replace('-', '_')));
+        }
         return builder.build();
     }
 
@@ -191,6 +358,42 @@ public class ConfigReader {
         if (notifierMaxThreads != null) {
             builder.notifierMaxThreads(notifierMaxThreads.asInt());
         }
+        final JsonNode endpointRateLimit = json.get("endpoint-rate-limit");
+        if (endpointRateLimit != null) {
+            builder.endpointRateLimit(endpointRateLimit.asInt());
+        }
+        final JsonNode endpointBurst = json.get("endpoint-burst");
+        if (endpointBurst != null) {
+            builder.endpointBurst(endpointBurst.asInt());
+        }
+        final JsonNode ipRateLimit = json.get("ip-rate-limit");
+        if (ipRateLimit != null) {
+            builder.ipRateLimit(ipRateLimit.asInt());
+        }
+        final JsonNode ipBurst = json.get("ip-burst");
+        if (ipBurst != null) {
+            builder.ipBurst(ipBurst.asInt());
+        }
+        final JsonNode deliveryReports = json.get("delivery-reports");
+        if (deliveryReports != null) {
+            builder.deliveryReports(deliveryReports.asBoolean());
+        }
+        final JsonNode dedupWindowMillis = json.get("dedup-window-millis");
+        if (dedupWindowMillis != null) {
+            builder.dedupWindowMillis(dedupWindowMillis.asLong());
+        }
+        final JsonNode dedupMaxEntries = json.get("dedup-max-entries");
+        if (dedupMaxEntries != null) {
+            builder.dedupMaxEntries(dedupMaxEntries.asInt());
+        }
+        final JsonNode topics = json.get("topics");
+        if (topics != null) {
+            builder.topics(topics.asBoolean());
+        }
+        final JsonNode coalesceWindowMillis = json.get("coalesce-window-millis");
+        if (coalesceWindowMillis != null) {
+            builder.coalesceWindowMillis(coalesceWindowMillis.asLong());
+        }
         return builder.build();
     }
 
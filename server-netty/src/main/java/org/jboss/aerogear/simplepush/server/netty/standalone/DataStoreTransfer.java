@@ -0,0 +1,147 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.netty.standalone;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.aerogear.simplepush.server.datastore.DataStore;
+import org.jboss.aerogear.simplepush.server.datastore.DataStoreExporter;
+import org.jboss.aerogear.simplepush.server.datastore.DataStoreImporter;
+import org.jboss.aerogear.simplepush.server.datastore.IterableDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.TransferProgress;
+
+/**
+ * Command line tool that moves the UserAgents of one configured datastore to another, by exporting them to
+ * a directory and importing that directory into the other datastore.
+ * </p>
+ * Options:
+ * <pre>
+ * export path/to/config.json path/to/dir [segments] [workers] [page-size]
+ * import path/to/config.json path/to/dir [workers] [batch-size]
+ * </pre>
+ * The datastore is the one configured in the passed in configuration file. Both commands can be run again
+ * on the same directory to resume after a failure.
+ */
+public final class DataStoreTransfer {
+
+    private static final long PROGRESS_INTERVAL_SECONDS = 5;
+
+    private DataStoreTransfer() {
+    }
+
+    public static void main(final String[] args) {
+        System.exit(run(args));
+    }
+
+    static int run(final String[] args) {
+        if (args.length < 3 || !("export".equals(args[0]) || "import".equals(args[0]))) {
+            usage();
+            return 2;
+        }
+        final boolean export = "export".equals(args[0]);
+        final int[] options = new int[args.length - 3];
+        try {
+            for (int i = 0; i < options.length; i++) {
+                options[i] = Integer.parseInt(args[i + 3]);
+            }
+        } catch (final NumberFormatException e) {
+            usage();
+            return 2;
+        }
+        if (options.length > (export ? 3 : 2)) {
+            usage();
+            return 2;
+        }
+        ScheduledExecutorService reporter = null;
+        try {
+            final DataStore store = ConfigReader.parse(args[1]).dataStore();
+            final File dir = new File(args[2]);
+            final TransferProgress progress;
+            if (export) {
+                if (!(store instanceof IterableDataStore)) {
+                    System.err.println("The configured datastore [" + store.getClass().getSimpleName() + "] cannot be exported");
+                    return 1;
+                }
+                final DataStoreExporter exporter = new DataStoreExporter((IterableDataStore) store, dir,
+                        option(options, 0, DataStoreExporter.DEFAULT_SEGMENTS),
+                        option(options, 1, DataStoreExporter.DEFAULT_WORKERS),
+                        option(options, 2, DataStoreExporter.DEFAULT_PAGE_SIZE));
+                reporter = startReporter(new Runnable() {
+                    @Override
+                    public void run() {
+                        report(exporter.progress());
+                    }
+                });
+                progress = exporter.exportUserAgents();
+            } else {
+                final DataStoreImporter importer = new DataStoreImporter(store, dir,
+                        option(options, 0, DataStoreImporter.DEFAULT_WORKERS),
+                        option(options, 1, DataStoreImporter.DEFAULT_BATCH_SIZE));
+                reporter = startReporter(new Runnable() {
+                    @Override
+                    public void run() {
+                        report(importer.progress());
+                    }
+                });
+                progress = importer.importUserAgents();
+            }
+            System.out.println("Completed " + args[0] + ": " + progress);
+            return 0;
+        } catch (final Exception e) {
+            System.err.println("Failed to " + args[0] + " UserAgents: " + e);
+            e.printStackTrace();
+            return 1;
+        } finally {
+            if (reporter != null) {
+                reporter.shutdownNow();
+            }
+        }
+    }
+
+    private static int option(final int[] options, final int index, final int defaultValue) {
+        return index < options.length ? options[index] : defaultValue;
+    }
+
+    private static void report(final TransferProgress progress) {
+        if (progress != null) {
+            System.out.println(progress);
+        }
+    }
+
+    private static ScheduledExecutorService startReporter(final Runnable report) {
+        final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "simplepush-transfer-progress");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reporter.scheduleAtFixedRate(report, PROGRESS_INTERVAL_SECONDS, PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        return reporter;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: " + DataStoreTransfer.class.getName() + " export <config.json> <dir> [segments] [workers] [page-size]");
+        System.err.println("       " + DataStoreTransfer.class.getName() + " import <config.json> <dir> [workers] [batch-size]");
+    }
+
+}
@@ -17,13 +17,17 @@
 package org.jboss.aerogear.simplepush.server.netty.standalone;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.util.concurrent.DefaultEventExecutorGroup;
 
+import org.jboss.aerogear.simplepush.server.NotificationService;
 import org.jboss.aerogear.simplepush.server.SimplePushServerConfig;
+import org.jboss.aerogear.simplepush.server.datastore.IdleUserAgentCollector;
 import org.jboss.aerogear.simplepush.server.netty.SockJSChannelInitializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +40,7 @@ public class NettySockJSServer {
     private final Logger logger = LoggerFactory.getLogger(NettySockJSServer.class);
 
     private final StandaloneConfig config;
+    private volatile NotificationService notificationService;
 
     public NettySockJSServer(final StandaloneConfig standaloneConfig) {
         this.config = standaloneConfig;
@@ -46,19 +51,46 @@ public class NettySockJSServer {
         final EventLoopGroup workerGroup = new NioEventLoopGroup();
         final DefaultEventExecutorGroup reaperExcutorGroup = new DefaultEventExecutorGroup(1);
         final SimplePushServerConfig simplePushConfig = config.simplePushServerConfig();
+        final IdleUserAgentCollector idleUserAgentCollector = config.idleUserAgentCollector();
+        if (idleUserAgentCollector != null) {
+            idleUserAgentCollector.start();
+        }
+        final SockJSChannelInitializer initializer = new SockJSChannelInitializer(simplePushConfig, config.dataStore(),
+                config.sockJsConfig(), reaperExcutorGroup);
         try {
+            notificationService = initializer.notificationService();
             final ServerBootstrap sb = new ServerBootstrap();
             sb.group(bossGroup, workerGroup)
                     .channel(NioServerSocketChannel.class)
-                    .childHandler(new SockJSChannelInitializer(simplePushConfig, config.dataStore(), config.sockJsConfig(), reaperExcutorGroup));
+                    .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                    .childHandler(initializer);
             final Channel ch = sb.bind(simplePushConfig.host(), simplePushConfig.port()).sync().channel();
             logger.info("Server started");
             logger.debug(config.toString());
             ch.closeFuture().sync();
         } finally {
+            if (idleUserAgentCollector != null) {
+                idleUserAgentCollector.stop();
+            }
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
+            initializer.shutdown();
+        }
+    }
+
+    /**
+     * Returns the {@link NotificationService} for submitting notifications from within this process, which is
+     * available once {@link #run()} has been called.
+     *
+     * @return {@code NotificationService} the in-process notification service.
+     * @throws IllegalStateException if the server has not been started.
+     */
+    public NotificationService notificationService() {
+        final NotificationService service = notificationService;
+        if (service == null) {
+            throw new IllegalStateException("Server has not been started");
         }
+        return service;
     }
 
     /**
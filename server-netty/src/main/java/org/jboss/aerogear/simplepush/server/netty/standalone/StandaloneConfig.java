@@ -15,6 +15,7 @@ package org.jboss.aerogear.simplepush.server.netty.standalone;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsConfig;
 import org.jboss.aerogear.simplepush.server.SimplePushServerConfig;
 import org.jboss.aerogear.simplepush.server.datastore.DataStore;
+import org.jboss.aerogear.simplepush.server.datastore.IdleUserAgentCollector;
 
 /**
  * Represents the configuration required for running the standalone Netty
@@ -26,12 +27,19 @@ public class StandaloneConfig {
     private final SimplePushServerConfig pushConfig;
     private final SockJsConfig sockJsConfig;
     private final DataStore dataStore;
+    private final IdleUserAgentCollector idleUserAgentCollector;
 
     public StandaloneConfig(final SimplePushServerConfig pushConfig, final SockJsConfig sockJsConfig,
             final DataStore dataStore) {
+        this(pushConfig, sockJsConfig, dataStore, null);
+    }
+
+    public StandaloneConfig(final SimplePushServerConfig pushConfig, final SockJsConfig sockJsConfig,
+            final DataStore dataStore, final IdleUserAgentCollector idleUserAgentCollector) {
         this.pushConfig = pushConfig;
         this.sockJsConfig = sockJsConfig;
         this.dataStore = dataStore;
+        this.idleUserAgentCollector = idleUserAgentCollector;
     }
 
     public SimplePushServerConfig simplePushServerConfig() {
@@ -46,9 +54,18 @@ public class StandaloneConfig {
         return dataStore;
     }
 
+    /**
+     * Returns the collector that removes idle UserAgents from the {@link #dataStore()}.
+     *
+     * @return {@link IdleUserAgentCollector} the collector, or {@code null} if idle UserAgents are not removed.
+     */
+    public IdleUserAgentCollector idleUserAgentCollector() {
+        return idleUserAgentCollector;
+    }
+
     @Override
     public String toString() {
-        return "StandaloneConfig[simplePushConfig=" + pushConfig + ", sockJsConfig=" + sockJsConfig + ", dataStore=" + dataStore + "]";
+        return "StandaloneConfig[simplePushConfig=" + pushConfig + ", sockJsConfig=" + sockJsConfig + ", dataStore=" + dataStore + ", idleUserAgentCollector=" + idleUserAgentCollector + "]";
     }
 
 }
@@ -63,6 +63,7 @@ public class NettySimplePushSockJSServerTest {
 
     private static final int port = 1111;
     private static Channel channel;
+    private static SockJSChannelInitializer initializer;
     private static final EventLoopGroup bossGroup = new NioEventLoopGroup();
     private static final EventLoopGroup workerGroup = new NioEventLoopGroup();
     private static final DefaultEventExecutorGroup eventExecutorGroup = new DefaultEventExecutorGroup(1);
@@ -76,9 +77,10 @@ public class NettySimplePushSockJSServerTest {
                 .userAgentReaperTimeout(2000L)
                 .password("test")
                 .build();
+        initializer = new SockJSChannelInitializer(simplePushConfig, datastore, sockJSConfig, eventExecutorGroup);
         sb.group(bossGroup, workerGroup)
                 .channel(NioServerSocketChannel.class)
-                .childHandler(new SockJSChannelInitializer(simplePushConfig, datastore, sockJSConfig, eventExecutorGroup));
+                .childHandler(initializer);
         channel = sb.bind(port).sync().channel();
     }
 
@@ -89,6 +91,7 @@ public class NettySimplePushSockJSServerTest {
         bossGroup.shutdownGracefully();
         workerGroup.shutdownGracefully();
         eventExecutorGroup.shutdownGracefully();
+        initializer.shutdown();
     }
 
     @Test
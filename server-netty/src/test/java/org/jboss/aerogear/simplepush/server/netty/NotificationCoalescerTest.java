@@ -0,0 +1,291 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.netty;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsConfig.OverflowPolicy;
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsSessionContext;
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
+import org.jboss.aerogear.simplepush.protocol.impl.NotificationMessageImpl;
+import org.jboss.aerogear.simplepush.protocol.impl.json.JsonUtil;
+import org.jboss.aerogear.simplepush.util.UUIDUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NotificationCoalescerTest {
+
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void createScheduler() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void shutdownScheduler() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void mergesUpdatesWithinWindow() throws Exception {
+        final NotificationCoalescer coalescer = new NotificationCoalescer(100, scheduler);
+        final String uaid = UUIDUtil.newUAID();
+        final EmbeddedChannel channel = registerUserAgent(uaid);
+        final String first = UUID.randomUUID().toString();
+        final String second = UUID.randomUUID().toString();
+        coalescer.send(uaid, new AckImpl(first, 1L));
+        coalescer.send(uaid, new AckImpl(second, 1L));
+        coalescer.send(uaid, new AckImpl(first, 3L));
+        coalescer.send(uaid, new AckImpl(first, 2L));
+
+        final Map<String, Long> versions = versions(readMessage(channel));
+        assertThat(versions.size(), is(2));
+        assertThat(versions.get(first), is(3L));
+        assertThat(versions.get(second), is(1L));
+        assertThat(channel.readOutbound(), is(nullValue()));
+        assertThat(coalescer.updates(), is(4L));
+        assertThat(coalescer.merged(), is(2L));
+        assertThat(coalescer.messages(), is(1L));
+    }
+
+    @Test
+    public void opensNewBatchAfterWindow() throws Exception {
+        final NotificationCoalescer coalescer = new NotificationCoalescer(20, scheduler);
+        final String uaid = UUIDUtil.newUAID();
+        final EmbeddedChannel channel = registerUserAgent(uaid);
+        final String channelId = UUID.randomUUID().toString();
+        coalescer.send(uaid, new AckImpl(channelId, 1L));
+        assertThat(versions(readMessage(channel)).get(channelId), is(1L));
+        coalescer.send(uaid, new AckImpl(channelId, 2L));
+        assertThat(versions(readMessage(channel)).get(channelId), is(2L));
+        assertThat(coalescer.messages(), is(2L));
+    }
+
+    @Test
+    public void keepsUserAgentsApart() throws Exception {
+        final NotificationCoalescer coalescer = new NotificationCoalescer(50, scheduler);
+        final String uaid1 = UUIDUtil.newUAID();
+        final String uaid2 = UUIDUtil.newUAID();
+        final EmbeddedChannel channel1 = registerUserAgent(uaid1);
+        final EmbeddedChannel channel2 = registerUserAgent(uaid2);
+        coalescer.send(uaid1, new AckImpl("channel1", 1L));
+        coalescer.send(uaid2, new AckImpl("channel2", 1L));
+        assertThat(versions(readMessage(channel1)).keySet().iterator().next(), equalTo("channel1"));
+        assertThat(versions(readMessage(channel2)).keySet().iterator().next(), equalTo("channel2"));
+    }
+
+    @Test
+    public void dropsBatchOfDisconnectedUserAgent() throws Exception {
+        final NotificationCoalescer coalescer = new NotificationCoalescer(10, scheduler);
+        coalescer.send(UUIDUtil.newUAID(), new AckImpl("channel", 1L));
+        Thread.sleep(100);
+        assertThat(coalescer.updates(), is(1L));
+        assertThat(coalescer.messages(), is(0L));
+    }
+
+    @Test
+    public void holdsBatchWhileNotWritable() throws Exception {
+        final NotificationCoalescer coalescer = new NotificationCoalescer(0, scheduler);
+        final String uaid = UUIDUtil.newUAID();
+        final EmbeddedChannel channel = registerUserAgent(uaid);
+        final String channelId = UUID.randomUUID().toString();
+        fillWriteBuffer(channel);
+        coalescer.send(uaid, new AckImpl(channelId, 1L));
+        coalescer.send(uaid, new AckImpl(channelId, 2L));
+        Thread.sleep(NotificationCoalescer.DEFAULT_RETRY_MILLIS * 2);
+        assertThat(coalescer.held() > 0, is(true));
+        assertThat(coalescer.messages(), is(0L));
+
+        channel.flush();
+        ReferenceCountUtil.release(channel.readOutbound());
+        assertThat(versions(readMessage(channel)).get(channelId), is(2L));
+        assertThat(coalescer.messages(), is(1L));
+    }
+
+    @Test
+    public void sendsRightAwayWithoutWindow() throws Exception {
+        final NotificationCoalescer coalescer = new NotificationCoalescer(0, scheduler);
+        final String uaid = UUIDUtil.newUAID();
+        final EmbeddedChannel channel = registerUserAgent(uaid);
+        coalescer.send(uaid, new AckImpl("channel", 1L));
+        assertThat(channel.readOutbound(), is(notNullValue()));
+        assertThat(coalescer.messages(), is(1L));
+    }
+
+    @Test
+    public void sendWithoutWindowWaitsForBatchBeingSent() throws Exception {
+        final NotificationCoalescer coalescer = new NotificationCoalescer(0, scheduler);
+        final String uaid = UUIDUtil.newUAID();
+        final EmbeddedChannel channel = new EmbeddedChannel(new ChannelHandlerAdapter());
+        final ChannelHandlerContext ctx = channel.pipeline().firstContext();
+        final List<Long> sent = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        UserAgents.getInstance().add(uaid, new SockJsSessionContext() {
+            @Override
+            public void send(final String message) {
+                final long version = JsonUtil.fromJson(message, NotificationMessageImpl.class).getAcks().iterator().next().getVersion();
+                if (version == 1L) {
+                    sending.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                sent.add(version);
+            }
+
+            @Override
+            public void close() {
+                channel.close();
+            }
+
+            @Override
+            public ChannelHandlerContext getContext() {
+                return ctx;
+            }
+        });
+        fillWriteBuffer(channel);
+        coalescer.send(uaid, new AckImpl("channel", 1L));
+        channel.flush();
+        ReferenceCountUtil.release(channel.readOutbound());
+        assertThat(sending.await(5, TimeUnit.SECONDS), is(true));
+
+        final Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                coalescer.send(uaid, new AckImpl("channel", 2L));
+            }
+        });
+        sender.start();
+        Thread.sleep(100);
+        assertThat(sent.isEmpty(), is(true));
+        release.countDown();
+        sender.join(5000);
+        for (int i = 0; i < 100 && sent.size() < 2; i++) {
+            Thread.sleep(20);
+        }
+        assertThat(sent, equalTo(Arrays.asList(1L, 2L)));
+    }
+
+    @Test
+    public void dropsLowestVersionFromFullBatch() throws Exception {
+        final NotificationCoalescer coalescer = new NotificationCoalescer(50, 2, OverflowPolicy.DROP_OLDEST, scheduler);
+        final String uaid = UUIDUtil.newUAID();
+        final EmbeddedChannel channel = registerUserAgent(uaid);
+        coalescer.send(uaid, new AckImpl("channel1", 5L));
+        coalescer.send(uaid, new AckImpl("channel2", 1L));
+        coalescer.send(uaid, new AckImpl("channel3", 3L));
+        final Map<String, Long> versions = versions(readMessage(channel));
+        assertThat(versions.size(), is(2));
+        assertThat(versions.containsKey("channel2"), is(false));
+        assertThat(coalescer.dropped(), is(1L));
+    }
+
+    @Test
+    public void closesUserAgentWithFullBatch() throws Exception {
+        final NotificationCoalescer coalescer = new NotificationCoalescer(50, 1, OverflowPolicy.CLOSE, scheduler);
+        final String uaid = UUIDUtil.newUAID();
+        final EmbeddedChannel channel = registerUserAgent(uaid);
+        coalescer.send(uaid, new AckImpl("channel1", 1L));
+        coalescer.send(uaid, new AckImpl("channel2", 1L));
+        assertThat(coalescer.closed(), is(1L));
+        assertThat(channel.isOpen(), is(false));
+        Thread.sleep(100);
+        assertThat(coalescer.messages(), is(0L));
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void windowMustNotBeNegative() {
+        new NotificationCoalescer(-1, scheduler);
+    }
+
+    private static void fillWriteBuffer(final EmbeddedChannel channel) {
+        channel.config().setWriteBufferLowWaterMark(8);
+        channel.config().setWriteBufferHighWaterMark(16);
+        channel.write(Unpooled.buffer(32).writeZero(32));
+        assertThat(channel.isWritable(), is(false));
+    }
+
+    private static Map<String, Long> versions(final NotificationMessageImpl message) {
+        final Map<String, Long> versions = new HashMap<String, Long>();
+        for (Ack ack : message.getAcks()) {
+            versions.put(ack.getChannelId(), ack.getVersion());
+        }
+        return versions;
+    }
+
+    private static NotificationMessageImpl readMessage(final EmbeddedChannel channel) throws Exception {
+        // batches are sent by the scheduler thread once their window has passed.
+        for (int i = 0; i < 100; i++) {
+            final Object message = channel.readOutbound();
+            if (message != null) {
+                return JsonUtil.fromJson((String) message, NotificationMessageImpl.class);
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("No notification received");
+    }
+
+    private static EmbeddedChannel registerUserAgent(final String uaid) {
+        final EmbeddedChannel ch = new EmbeddedChannel(new ChannelHandlerAdapter());
+        final ChannelHandlerContext ctx = ch.pipeline().firstContext();
+        UserAgents.getInstance().add(uaid, new SockJsSessionContext() {
+            @Override
+            public void send(final String message) {
+                ch.writeOutbound(message);
+            }
+
+            @Override
+            public void close() {
+                ch.close();
+            }
+
+            @Override
+            public ChannelHandlerContext getContext() {
+                return ctx;
+            }
+        });
+        return ch;
+    }
+
+}
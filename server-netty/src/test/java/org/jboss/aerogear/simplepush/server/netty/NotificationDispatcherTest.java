@@ -0,0 +1,220 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.netty;
+
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.CharsetUtil;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsSessionContext;
+import org.jboss.aerogear.simplepush.protocol.RegisterResponse;
+import org.jboss.aerogear.simplepush.protocol.impl.NotificationMessageImpl;
+import org.jboss.aerogear.simplepush.protocol.impl.RegisterMessageImpl;
+import org.jboss.aerogear.simplepush.protocol.impl.json.JsonUtil;
+import org.jboss.aerogear.simplepush.server.DefaultSimplePushConfig;
+import org.jboss.aerogear.simplepush.server.DefaultSimplePushServer;
+import org.jboss.aerogear.simplepush.server.NotificationDeduplicator;
+import org.jboss.aerogear.simplepush.server.NotificationResult;
+import org.jboss.aerogear.simplepush.server.NotificationResult.Status;
+import org.jboss.aerogear.simplepush.server.SimplePushServer;
+import org.jboss.aerogear.simplepush.server.SimplePushServerConfig;
+import org.jboss.aerogear.simplepush.server.TokenBucketRateLimiter;
+import org.jboss.aerogear.simplepush.server.datastore.DataStore;
+import org.jboss.aerogear.simplepush.server.datastore.InMemoryDataStore;
+import org.jboss.aerogear.simplepush.util.UUIDUtil;
+import org.junit.Test;
+
+public class NotificationDispatcherTest {
+
+    @Test
+    public void submitToConnectedUserAgent() throws Exception {
+        final SimplePushServer server = defaultPushServer();
+        final String uaid = UUIDUtil.newUAID();
+        final String channelId = UUID.randomUUID().toString();
+        final EmbeddedChannel channel = new EmbeddedChannel();
+        registerUserAgent(uaid, channel);
+        final String endpointToken = register(channelId, uaid, server);
+
+        final NotificationResult result = result(new NotificationDispatcher(server).submit(endpointToken, 10L));
+        assertThat(result.status(), is(Status.DELIVERED));
+        final NotificationMessageImpl notification = JsonUtil.fromJson((String) channel.readOutbound(),
+                NotificationMessageImpl.class);
+        assertThat(notification.getAcks().iterator().next().getChannelId(), equalTo(channelId));
+        assertThat(notification.getAcks().iterator().next().getVersion(), is(10L));
+    }
+
+    @Test
+    public void submitToDisconnectedUserAgent() throws Exception {
+        final SimplePushServer server = defaultPushServer();
+        final String endpointToken = register(UUID.randomUUID().toString(), UUIDUtil.newUAID(), server);
+        final NotificationResult result = result(new NotificationDispatcher(server).submit(endpointToken, 10L));
+        assertThat(result.status(), is(Status.STORED));
+        assertThat(result.status().code(), is(202));
+    }
+
+    @Test
+    public void submitVersionNotNewer() throws Exception {
+        final SimplePushServer server = defaultPushServer();
+        final String endpointToken = register(UUID.randomUUID().toString(), UUIDUtil.newUAID(), server);
+        final NotificationDispatcher dispatcher = new NotificationDispatcher(server);
+        assertThat(result(dispatcher.submit(endpointToken, 10L)).status(), is(Status.STORED));
+        assertThat(result(dispatcher.submit(endpointToken, 9L)).status(), is(Status.CONFLICT));
+    }
+
+    @Test
+    public void submitBatch() throws Exception {
+        final SimplePushServer server = defaultPushServer();
+        final String uaid = UUIDUtil.newUAID();
+        final String first = register(UUID.randomUUID().toString(), uaid, server);
+        final String second = register(UUID.randomUUID().toString(), uaid, server);
+        final Map<String, Long> versions = new LinkedHashMap<String, Long>();
+        versions.put(first, 1L);
+        versions.put(second, 2L);
+        versions.put("unknownEndpointToken", 3L);
+
+        final Map<String, Future<NotificationResult>> futures = new NotificationDispatcher(server).submit(versions);
+        assertThat(futures.size(), is(3));
+        assertThat(result(futures.get(first)).status(), is(Status.STORED));
+        assertThat(result(futures.get(second)).status(), is(Status.STORED));
+        assertThat(result(futures.get("unknownEndpointToken")).status(), is(Status.NOT_FOUND));
+    }
+
+    @Test
+    public void submitBatchCoalesced() throws Exception {
+        final SimplePushServer server = defaultPushServer();
+        final String uaid = UUIDUtil.newUAID();
+        final EmbeddedChannel channel = new EmbeddedChannel();
+        registerUserAgent(uaid, channel);
+        final Map<String, Long> versions = new LinkedHashMap<String, Long>();
+        versions.put(register(UUID.randomUUID().toString(), uaid, server), 1L);
+        versions.put(register(UUID.randomUUID().toString(), uaid, server), 2L);
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final NotificationDispatcher dispatcher = new NotificationDispatcher(server, Executors.newSingleThreadExecutor(),
+                    null, null, new NotificationCoalescer(50, scheduler));
+            for (Future<NotificationResult> future : dispatcher.submit(versions).values()) {
+                assertThat(result(future).status(), is(Status.DELIVERED));
+            }
+            Object message = null;
+            for (int i = 0; i < 100 && message == null; i++) {
+                Thread.sleep(20);
+                message = channel.readOutbound();
+            }
+            final NotificationMessageImpl notification = JsonUtil.fromJson((String) message, NotificationMessageImpl.class);
+            assertThat(notification.getAcks().size(), is(2));
+            assertThat(channel.readOutbound(), is(nullValue()));
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void submitRateLimited() throws Exception {
+        final SimplePushServer server = defaultPushServer();
+        final String endpointToken = register(UUID.randomUUID().toString(), UUIDUtil.newUAID(), server);
+        final NotificationDispatcher dispatcher = new NotificationDispatcher(server, new TokenBucketRateLimiter(1, 1), null);
+        assertThat(result(dispatcher.submit(endpointToken, 1L)).status(), is(Status.STORED));
+
+        final Future<NotificationResult> limited = dispatcher.submit(endpointToken, 2L);
+        assertThat(limited.isDone(), is(true));
+        assertThat(result(limited).status(), is(Status.RATE_LIMITED));
+        assertThat(result(limited).retryAfterMillis() > 0, is(true));
+    }
+
+    @Test
+    public void submitSharesDeduplicationWithHttp() throws Exception {
+        final SimplePushServer server = defaultPushServer();
+        final String endpointToken = register(UUID.randomUUID().toString(), UUIDUtil.newUAID(), server);
+        final NotificationDispatcher dispatcher = new NotificationDispatcher(server, null, new NotificationDeduplicator(60000));
+        assertThat(result(dispatcher.submit(endpointToken, 5L)).status(), is(Status.STORED));
+
+        final Future<NotificationResult> repeated = dispatcher.submit(endpointToken, 5L);
+        assertThat(repeated.isDone(), is(true));
+        assertThat(result(repeated).status(), is(Status.STORED));
+
+        final EmbeddedChannel channel = new EmbeddedChannel(new NotificationHandler(dispatcher, null));
+        channel.writeInbound(deliveryReportRequest(endpointToken, 5L));
+        final HttpResponse response = (HttpResponse) channel.readOutbound();
+        assertThat(response, is(notNullValue()));
+        assertThat(response.getStatus(), is(HttpResponseStatus.ACCEPTED));
+        assertThat(channel.readOutbound(), is(nullValue()));
+    }
+
+    private static NotificationResult result(final Future<NotificationResult> future) throws Exception {
+        return future.get(5, TimeUnit.SECONDS);
+    }
+
+    private static SimplePushServer defaultPushServer() {
+        final DataStore store = new InMemoryDataStore();
+        final SimplePushServerConfig config = DefaultSimplePushConfig.create().password("testToken").build();
+        final byte[] privateKey = DefaultSimplePushServer.generateAndStorePrivateKey(store, config);
+        return new DefaultSimplePushServer(store, config, privateKey);
+    }
+
+    private static String register(final String channelId, final String uaid, final SimplePushServer server) {
+        final RegisterResponse response = server.handleRegister(new RegisterMessageImpl(channelId), uaid);
+        final String pushEndpoint = response.getPushEndpoint();
+        return pushEndpoint.substring(pushEndpoint.lastIndexOf('/') + 1);
+    }
+
+    private static FullHttpRequest deliveryReportRequest(final String endpointToken, final long version) {
+        final FullHttpRequest req = new DefaultFullHttpRequest(HTTP_1_1, HttpMethod.PUT, "/update/" + endpointToken);
+        req.content().writeBytes(Unpooled.copiedBuffer("version=" + version, CharsetUtil.UTF_8));
+        req.headers().set(NotificationHandler.DELIVERY_REPORT_HEADER, "true");
+        return req;
+    }
+
+    private static void registerUserAgent(final String uaid, final EmbeddedChannel ch) {
+        UserAgents.getInstance().add(uaid, new SockJsSessionContext() {
+            @Override
+            public void send(final String message) {
+                ch.writeOutbound(message);
+            }
+
+            @Override
+            public void close() {
+                ch.close();
+            }
+
+            @Override
+            public ChannelHandlerContext getContext() {
+                return null;
+            }
+        });
+    }
+
+}
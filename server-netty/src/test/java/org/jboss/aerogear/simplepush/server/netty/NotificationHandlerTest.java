@@ -21,6 +21,7 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -33,14 +34,19 @@ import org.jboss.aerogear.simplepush.protocol.impl.RegisterMessageImpl;
 import org.jboss.aerogear.simplepush.protocol.impl.json.JsonUtil;
 import org.jboss.aerogear.simplepush.server.DefaultSimplePushConfig;
 import org.jboss.aerogear.simplepush.server.DefaultSimplePushServer;
+import org.jboss.aerogear.simplepush.server.NotificationDeduplicator;
 import org.jboss.aerogear.simplepush.server.SimplePushServer;
 import org.jboss.aerogear.simplepush.server.SimplePushServerConfig;
+import org.jboss.aerogear.simplepush.server.TokenBucketRateLimiter;
 import org.jboss.aerogear.simplepush.server.datastore.DataStore;
 import org.jboss.aerogear.simplepush.server.datastore.InMemoryDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.NegativeLookupDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.ResilientDataStore;
 import org.jboss.aerogear.simplepush.util.UUIDUtil;
 import org.junit.Test;
 
 import java.util.Date;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 
@@ -48,6 +54,7 @@ import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 public class NotificationHandlerTest {
@@ -124,6 +131,134 @@ public class NotificationHandlerTest {
         channel.close();
     }
 
+    @Test
+    public void notificationWhileDataStoreUnavailable() throws Exception {
+        final DataStore store = new ResilientDataStore(new InMemoryDataStore() {
+            @Override
+            public Set<String> getChannelIds(final String uaid) {
+                throw new IllegalStateException("DataStore is down");
+            }
+        }, 0, 10, 1, 60000, 100);
+        try {
+            store.getChannelIds(UUIDUtil.newUAID());
+        } catch (final IllegalStateException expected) {
+        }
+        final SimplePushServerConfig config = DefaultSimplePushConfig.create().password("testToken").build();
+        final SimplePushServer simplePushServer = new DefaultSimplePushServer(store, config, new byte[16]);
+        final HttpResponse response = sendNotification(notificationRequest("endpointToken", 1L), simplePushServer);
+        assertThat(response.getStatus(), is(HttpResponseStatus.SERVICE_UNAVAILABLE));
+        assertThat(response.headers().get(HttpHeaders.Names.RETRY_AFTER), equalTo("60"));
+    }
+
+    @Test
+    public void notificationForUnknownEndpoint() throws Exception {
+        final InMemoryDataStore inMemory = new InMemoryDataStore();
+        final NegativeLookupDataStore store = new NegativeLookupDataStore(inMemory, inMemory);
+        try {
+            store.rebuild();
+            final SimplePushServerConfig config = DefaultSimplePushConfig.create().password("testToken").build();
+            final SimplePushServer simplePushServer = new DefaultSimplePushServer(store, config, new byte[16]);
+            final HttpResponse response = sendNotification(notificationRequest("unknownEndpointToken", 1L), simplePushServer);
+            assertThat(response.getStatus(), is(HttpResponseStatus.NOT_FOUND));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void deliveryReportForConnectedUserAgent() throws Exception {
+        final String uaid = UUIDUtil.newUAID();
+        final String channelId = UUID.randomUUID().toString();
+        final SimplePushServer simplePushServer = defaultPushServer();
+        final EmbeddedChannel channel = createWebsocketChannel(simplePushServer);
+        registerUserAgent(uaid, channel);
+        final String endpointToken = extractEndpointToken(doRegister(channelId, uaid, simplePushServer).getPushEndpoint());
+        final HttpResponse response = sendNotificationWithReport(deliveryReportRequest(endpointToken, 1L), simplePushServer);
+        assertThat(response.getStatus(), is(HttpResponseStatus.OK));
+        final NotificationMessageImpl notification = responseToType(channel.readOutbound(), NotificationMessageImpl.class);
+        assertThat(notification.getAcks().iterator().next().getChannelId(), equalTo(channelId));
+        channel.close();
+    }
+
+    @Test
+    public void deliveryReportForDisconnectedUserAgent() throws Exception {
+        final SimplePushServer simplePushServer = defaultPushServer();
+        final String endpointToken = extractEndpointToken(doRegister(UUID.randomUUID().toString(), UUIDUtil.newUAID(),
+                simplePushServer).getPushEndpoint());
+        final HttpResponse response = sendNotificationWithReport(deliveryReportRequest(endpointToken, 1L), simplePushServer);
+        assertThat(response.getStatus(), is(HttpResponseStatus.ACCEPTED));
+    }
+
+    @Test
+    public void deliveryReportForStaleVersion() throws Exception {
+        final SimplePushServer simplePushServer = defaultPushServer();
+        final String endpointToken = extractEndpointToken(doRegister(UUID.randomUUID().toString(), UUIDUtil.newUAID(),
+                simplePushServer).getPushEndpoint());
+        assertThat(sendNotificationWithReport(deliveryReportRequest(endpointToken, 10L), simplePushServer).getStatus(),
+                is(HttpResponseStatus.ACCEPTED));
+        assertThat(sendNotificationWithReport(deliveryReportRequest(endpointToken, 9L), simplePushServer).getStatus(),
+                is(HttpResponseStatus.CONFLICT));
+    }
+
+    @Test
+    public void deliveryReportForNonExistingChannel() throws Exception {
+        final HttpResponse response = sendNotificationWithReport(deliveryReportRequest("non-existing-channelId", 10L),
+                defaultPushServer());
+        assertThat(response.getStatus(), is(HttpResponseStatus.NOT_FOUND));
+    }
+
+    @Test
+    public void deliveryReportsEnabledByConfig() throws Exception {
+        final DataStore store = new InMemoryDataStore();
+        final SimplePushServerConfig config = DefaultSimplePushConfig.create().password("testToken").deliveryReports(true).build();
+        final SimplePushServer simplePushServer = new DefaultSimplePushServer(store, config, new byte[16]);
+        final HttpResponse response = sendNotificationWithReport(notificationRequest("non-existing-channelId", 10L),
+                simplePushServer);
+        assertThat(response.getStatus(), is(HttpResponseStatus.NOT_FOUND));
+    }
+
+    @Test
+    public void repeatedNotificationAnsweredWithoutHandling() throws Exception {
+        final String uaid = UUIDUtil.newUAID();
+        final String channelId = UUID.randomUUID().toString();
+        final SimplePushServer simplePushServer = defaultPushServer();
+        final EmbeddedChannel channel = createWebsocketChannel(simplePushServer);
+        registerUserAgent(uaid, channel);
+        final String endpointToken = extractEndpointToken(doRegister(channelId, uaid, simplePushServer).getPushEndpoint());
+        final NotificationDeduplicator deduplicator = new NotificationDeduplicator(60000);
+        final EmbeddedChannel first = new EmbeddedChannel(new NotificationHandler(simplePushServer, null, null, deduplicator));
+        first.writeInbound(deliveryReportRequest(endpointToken, 1L));
+        assertThat(readResponse(first).getStatus(), is(HttpResponseStatus.OK));
+        assertThat(channel.readOutbound(), is(notNullValue()));
+
+        final EmbeddedChannel repeat = new EmbeddedChannel(new NotificationHandler(simplePushServer, null, null, deduplicator));
+        repeat.writeInbound(deliveryReportRequest(endpointToken, 1L));
+        assertThat(((HttpResponse) repeat.readOutbound()).getStatus(), is(HttpResponseStatus.OK));
+        assertThat(channel.readOutbound(), is(nullValue()));
+        assertThat(deduplicator.hits(), is(1L));
+        channel.close();
+    }
+
+    @Test
+    public void notificationRateLimited() throws Exception {
+        final SimplePushServer simplePushServer = defaultPushServer();
+        final TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1, 2);
+        for (int i = 0; i < 2; i++) {
+            final EmbeddedChannel channel = new EmbeddedChannel(new NotificationHandler(simplePushServer, limiter, null));
+            channel.writeInbound(notificationRequest("endpointToken", 1L));
+            assertThat(((HttpResponse) channel.readOutbound()).getStatus(), is(HttpResponseStatus.OK));
+        }
+        final EmbeddedChannel channel = new EmbeddedChannel(new NotificationHandler(simplePushServer, limiter, null));
+        channel.writeInbound(notificationRequest("endpointToken", 1L));
+        final HttpResponse response = (HttpResponse) channel.readOutbound();
+        assertThat(response.getStatus(), is(HttpResponseStatus.TOO_MANY_REQUESTS));
+        assertThat(response.headers().get(HttpHeaders.Names.RETRY_AFTER), equalTo("1"));
+
+        final EmbeddedChannel other = new EmbeddedChannel(new NotificationHandler(simplePushServer, limiter, null));
+        other.writeInbound(notificationRequest("otherEndpointToken", 1L));
+        assertThat(((HttpResponse) other.readOutbound()).getStatus(), is(HttpResponseStatus.OK));
+    }
+
     private SimplePushServer defaultPushServer() {
         final DataStore store = new InMemoryDataStore();
         final SimplePushServerConfig config = DefaultSimplePushConfig.create().password("testToken").build();
@@ -138,6 +273,31 @@ public class NotificationHandlerTest {
         return (HttpResponse) ch.readOutbound();
     }
 
+    private HttpResponse sendNotificationWithReport(final FullHttpRequest request,
+                                                    final SimplePushServer simplePushServer) throws Exception {
+        final EmbeddedChannel ch = createWebsocketChannel(simplePushServer);
+        ch.writeInbound(request);
+        return readResponse(ch);
+    }
+
+    private HttpResponse readResponse(final EmbeddedChannel ch) throws Exception {
+        // the delivery report is written by the notifier thread.
+        for (int i = 0; i < 100; i++) {
+            final Object response = ch.readOutbound();
+            if (response != null) {
+                return (HttpResponse) response;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("No delivery report received");
+    }
+
+    private FullHttpRequest deliveryReportRequest(final String endpointToken, final Long version) {
+        final FullHttpRequest req = notificationRequest(endpointToken, version);
+        req.headers().set(NotificationHandler.DELIVERY_REPORT_HEADER, "true");
+        return req;
+    }
+
     private void registerUserAgent(final String uaid, final EmbeddedChannel ch) {
         UserAgents.getInstance().add(uaid, channelSession(ch));
     }
@@ -24,6 +24,7 @@ import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.hasItems;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -38,11 +39,14 @@ import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.util.ReferenceCountUtil;
 
 import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 import org.jboss.aerogear.simplepush.protocol.Ack;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsConfig;
@@ -70,7 +74,8 @@ import org.jboss.aerogear.simplepush.server.DefaultSimplePushServer;
 import org.jboss.aerogear.simplepush.server.SimplePushServer;
 import org.jboss.aerogear.simplepush.server.SimplePushServerConfig;
 import org.jboss.aerogear.simplepush.server.datastore.ChannelNotFoundException;
-import org.jboss.aerogear.simplepush.server.datastore.DataStore;
+import org.jboss.aerogear.simplepush.server.datastore.ExecutorAsyncDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.InMemoryAsyncDataStore;
 import org.jboss.aerogear.simplepush.server.datastore.InMemoryDataStore;
 import org.jboss.aerogear.simplepush.util.CryptoUtil;
 import org.jboss.aerogear.simplepush.util.UUIDUtil;
@@ -204,7 +209,8 @@ public class SimplePushSockJSServiceTest {
         final SimplePushServerConfig simplePushConfig = DefaultSimplePushConfig.create().password("test").build();
         final SockJsConfig sockjsConf = SockJsConfig.withPrefix("/simplepush").webSocketProtocols("push-notification").build();
         final byte[] privateKey = CryptoUtil.secretKey(simplePushConfig.password(), "someSaltForTesting".getBytes());
-        final SimplePushServer pushServer = new DefaultSimplePushServer(new InMemoryDataStore(), simplePushConfig, privateKey);
+        final InMemoryDataStore store = new InMemoryDataStore();
+        final SimplePushServer pushServer = new DefaultSimplePushServer(store, new InMemoryAsyncDataStore(store), simplePushConfig, privateKey);
         final SimplePushServiceFactory factory = new SimplePushServiceFactory(sockjsConf, pushServer);
         final EmbeddedChannel channel = createChannel(factory);
         final FullHttpRequest request = websocketUpgradeRequest(factory.config().prefix() + Transports.Type.WEBSOCKET.path());
@@ -268,6 +274,79 @@ public class SimplePushSockJSServiceTest {
         channel.close();
     }
 
+    @Test
+    public void websocketMessagesHeldUntilHandshakeCompletes() {
+        final List<Runnable> storeTasks = new ArrayList<Runnable>();
+        final InMemoryDataStore store = new InMemoryDataStore();
+        final SimplePushServerConfig config = DefaultSimplePushConfig.create().password("test").build();
+        final byte[] privateKey = DefaultSimplePushServer.generateAndStorePrivateKey(store, config);
+        final SimplePushServer pushServer = new DefaultSimplePushServer(store, new ExecutorAsyncDataStore(store, new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                storeTasks.add(command);
+            }
+        }), config, privateKey);
+        final SockJsConfig sockjsConf = SockJsConfig.withPrefix("/simplepush").webSocketProtocols("push-notification").build();
+        final SimplePushServiceFactory asyncFactory = new SimplePushServiceFactory(sockjsConf, pushServer);
+        final EmbeddedChannel channel = createWebSocketChannel(asyncFactory);
+        final String channelId = UUID.randomUUID().toString();
+        sendWebSocketHttpUpgradeRequest(randomSessionIdUrl(asyncFactory), channel);
+
+        final String uaid = UUIDUtil.newUAID();
+        channel.writeInbound(TestUtil.helloWebSocketFrame(uaid));
+        channel.writeInbound(TestUtil.registerChannelIdWebSocketFrame(channelId));
+        assertThat(channel.readOutbound(), is(nullValue()));
+
+        while (!storeTasks.isEmpty()) {
+            storeTasks.remove(0).run();
+        }
+        assertThat(responseToType(channel.readOutbound(), HelloResponseImpl.class).getUAID(), equalTo(uaid));
+        final RegisterResponse registerResponse = responseToType(channel.readOutbound(), RegisterResponseImpl.class);
+        assertThat(registerResponse.getChannelId(), equalTo(channelId));
+        assertThat(registerResponse.getStatus().getCode(), is(200));
+        channel.close();
+    }
+
+    @Test
+    public void websocketRegisterAndUnregisterWaitForDataStore() {
+        final List<Runnable> storeTasks = new ArrayList<Runnable>();
+        final InMemoryDataStore store = new InMemoryDataStore();
+        final SimplePushServerConfig config = DefaultSimplePushConfig.create().password("test").build();
+        final byte[] privateKey = DefaultSimplePushServer.generateAndStorePrivateKey(store, config);
+        final SimplePushServer pushServer = new DefaultSimplePushServer(store, new ExecutorAsyncDataStore(store, new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                storeTasks.add(command);
+            }
+        }), config, privateKey);
+        final SockJsConfig sockjsConf = SockJsConfig.withPrefix("/simplepush").webSocketProtocols("push-notification").build();
+        final SimplePushServiceFactory asyncFactory = new SimplePushServiceFactory(sockjsConf, pushServer);
+        final EmbeddedChannel channel = createWebSocketChannel(asyncFactory);
+        final String channelId = UUID.randomUUID().toString();
+        sendWebSocketHttpUpgradeRequest(randomSessionIdUrl(asyncFactory), channel);
+        channel.writeInbound(TestUtil.helloWebSocketFrame(UUIDUtil.newUAID()));
+        while (!storeTasks.isEmpty()) {
+            storeTasks.remove(0).run();
+        }
+        responseToType(channel.readOutbound(), HelloResponseImpl.class);
+
+        channel.writeInbound(TestUtil.registerChannelIdWebSocketFrame(channelId));
+        channel.writeInbound(TestUtil.unregisterChannelIdWebSocketFrame(channelId));
+        assertThat(channel.readOutbound(), is(nullValue()));
+        assertThat(storeTasks.size(), is(1));
+
+        while (!storeTasks.isEmpty()) {
+            storeTasks.remove(0).run();
+        }
+        final RegisterResponse registerResponse = responseToType(channel.readOutbound(), RegisterResponseImpl.class);
+        assertThat(registerResponse.getChannelId(), equalTo(channelId));
+        assertThat(registerResponse.getStatus().getCode(), is(200));
+        final UnregisterResponse unregisterResponse = responseToType(channel.readOutbound(), UnregisterResponseImpl.class);
+        assertThat(unregisterResponse.getChannelId(), equalTo(channelId));
+        assertThat(unregisterResponse.getStatus().getCode(), is(200));
+        channel.close();
+    }
+
     @Test
     public void websocketUnregister() {
         final EmbeddedChannel channel = createWebSocketChannel(factory);
@@ -401,10 +480,10 @@ public class SimplePushSockJSServiceTest {
     }
 
     private SimplePushServer defaultPushServer() {
-        final DataStore store = new InMemoryDataStore();
+        final InMemoryDataStore store = new InMemoryDataStore();
         final SimplePushServerConfig config = DefaultSimplePushConfig.create().password("test").build();
         final byte[] privateKey = DefaultSimplePushServer.generateAndStorePrivateKey(store, config);
-        return new DefaultSimplePushServer(store, config, privateKey);
+        return new DefaultSimplePushServer(store, new InMemoryAsyncDataStore(store), config, privateKey);
     }
 
     private void sendNotification(final String endpointToken, final long version,
@@ -595,7 +674,8 @@ public class SimplePushSockJSServiceTest {
         final SimplePushServerConfig simplePushConfig = DefaultSimplePushConfig.create().password("test").build();
         final SockJsConfig sockjsConf = SockJsConfig.withPrefix("/simplepush").build();
         final byte[] privateKey = CryptoUtil.secretKey(simplePushConfig.password(), "someSaltForTesting".getBytes());
-        final SimplePushServer pushServer = new DefaultSimplePushServer(new InMemoryDataStore(), simplePushConfig, privateKey);
+        final InMemoryDataStore store = new InMemoryDataStore();
+        final SimplePushServer pushServer = new DefaultSimplePushServer(store, new InMemoryAsyncDataStore(store), simplePushConfig, privateKey);
         return new SimplePushServiceFactory(sockjsConf, pushServer);
     }
 
@@ -0,0 +1,233 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.simplepush.server.netty;
+
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsSessionContext;
+import org.jboss.aerogear.simplepush.protocol.Ack;
+import org.jboss.aerogear.simplepush.protocol.impl.AckImpl;
+import org.jboss.aerogear.simplepush.protocol.impl.NotificationMessageImpl;
+import org.jboss.aerogear.simplepush.protocol.impl.RegisterMessageImpl;
+import org.jboss.aerogear.simplepush.protocol.impl.json.JsonUtil;
+import org.jboss.aerogear.simplepush.server.DefaultSimplePushConfig;
+import org.jboss.aerogear.simplepush.server.DefaultSimplePushServer;
+import org.jboss.aerogear.simplepush.server.SimplePushServer;
+import org.jboss.aerogear.simplepush.server.SimplePushServerConfig;
+import org.jboss.aerogear.simplepush.server.TopicRegistry;
+import org.jboss.aerogear.simplepush.server.datastore.DataStore;
+import org.jboss.aerogear.simplepush.server.datastore.InMemoryDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.NegativeLookupDataStore;
+import org.jboss.aerogear.simplepush.util.UUIDUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TopicHandlerTest {
+
+    private DefaultEventExecutorGroup executors;
+    private SimplePushServerConfig config;
+
+    @Before
+    public void createExecutors() {
+        executors = new DefaultEventExecutorGroup(2);
+        config = DefaultSimplePushConfig.create().password("testToken").topics(true).build();
+    }
+
+    @After
+    public void shutdownExecutors() {
+        executors.shutdownGracefully();
+    }
+
+    @Test
+    public void broadcastToConnectedUserAgent() throws Exception {
+        final InMemoryDataStore store = new InMemoryDataStore();
+        final SimplePushServer server = new DefaultSimplePushServer(store, config,
+                DefaultSimplePushServer.generateAndStorePrivateKey(store, config));
+        final TopicBroadcaster broadcaster = new TopicBroadcaster(new TopicRegistry(), store, executors);
+        final String uaid = UUIDUtil.newUAID();
+        final EmbeddedChannel userAgent = new EmbeddedChannel();
+        UserAgents.getInstance().add(uaid, channelSession(userAgent));
+        final String channelId1 = UUID.randomUUID().toString();
+        final String channelId2 = UUID.randomUUID().toString();
+        assertThat(subscribe(broadcaster, "news", register(server, uaid, channelId1)), is(HttpResponseStatus.OK));
+        assertThat(subscribe(broadcaster, "news", register(server, uaid, channelId2)), is(HttpResponseStatus.OK));
+
+        final TopicBroadcast broadcast = awaitBroadcast(broadcaster, startBroadcast(broadcaster, "news", 5L));
+        assertThat(broadcast.members(), is(2));
+        assertThat(broadcast.delivered(), is(2L));
+        assertThat(broadcast.processed(), is(2L));
+
+        final NotificationMessageImpl notification = JsonUtil.fromJson((String) userAgent.readOutbound(),
+                NotificationMessageImpl.class);
+        assertThat(notification.getAcks(), equalTo((Set<Ack>) new HashSet<Ack>(Arrays.<Ack>asList(
+                new AckImpl(channelId1, 5L), new AckImpl(channelId2, 5L)))));
+        assertThat(userAgent.readOutbound(), is(nullValue()));
+    }
+
+    @Test
+    public void broadcastPrunesRemovedChannels() throws Exception {
+        final InMemoryDataStore inMemory = new InMemoryDataStore();
+        // not a BatchDataStore, so that channels are updated one at a time.
+        final NegativeLookupDataStore store = new NegativeLookupDataStore(inMemory, null);
+        try {
+            final SimplePushServer server = new DefaultSimplePushServer(store, config,
+                DefaultSimplePushServer.generateAndStorePrivateKey(store, config));
+            final TopicBroadcaster broadcaster = new TopicBroadcaster(new TopicRegistry(), store, executors, 1, 10);
+            final String uaid = UUIDUtil.newUAID();
+            subscribe(broadcaster, "news", register(server, uaid, UUID.randomUUID().toString()));
+            subscribe(broadcaster, "news", "removedEndpointToken");
+
+            final TopicBroadcast broadcast = awaitBroadcast(broadcaster, startBroadcast(broadcaster, "news", 5L));
+            assertThat(broadcast.stored(), is(1L));
+            assertThat(broadcast.notFound(), is(1L));
+            assertThat(broadcaster.registry().size("news"), is(1));
+
+            final TopicBroadcast repeated = awaitBroadcast(broadcaster, startBroadcast(broadcaster, "news", 5L));
+            assertThat(repeated.conflicts(), is(1L));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void unsubscribe() throws Exception {
+        final TopicBroadcaster broadcaster = new TopicBroadcaster(new TopicRegistry(), new InMemoryDataStore(), executors);
+        subscribe(broadcaster, "news", "endpointToken");
+        assertThat(send(broadcaster, request(HttpMethod.DELETE, "/update/topic/news/endpointToken", null)).getStatus(),
+                is(HttpResponseStatus.OK));
+        assertThat(send(broadcaster, request(HttpMethod.DELETE, "/update/topic/news/endpointToken", null)).getStatus(),
+                is(HttpResponseStatus.NOT_FOUND));
+    }
+
+    @Test
+    public void invalidRequests() throws Exception {
+        final TopicBroadcaster broadcaster = new TopicBroadcaster(new TopicRegistry(), new InMemoryDataStore(), executors);
+        assertThat(send(broadcaster, request(HttpMethod.PUT, "/update/topic/news%20", "version=1")).getStatus(),
+                is(HttpResponseStatus.BAD_REQUEST));
+        assertThat(send(broadcaster, request(HttpMethod.PUT, "/update/topic/news", "version=x")).getStatus(),
+                is(HttpResponseStatus.BAD_REQUEST));
+        assertThat(send(broadcaster, request(HttpMethod.GET, "/update/topic/news/broadcasts/unknown", null)).getStatus(),
+                is(HttpResponseStatus.NOT_FOUND));
+    }
+
+    @Test
+    public void otherRequestsArePassedOn() throws Exception {
+        final TopicBroadcaster broadcaster = new TopicBroadcaster(new TopicRegistry(), new InMemoryDataStore(), executors);
+        final EmbeddedChannel channel = new EmbeddedChannel(new TopicHandler(config, broadcaster));
+        final FullHttpRequest request = request(HttpMethod.PUT, "/update/endpointToken", "version=1");
+        channel.writeInbound(request);
+        assertThat(channel.readInbound(), is((Object) request));
+        request.release();
+    }
+
+    @Test
+    public void messageTemplateMatchesJsonUtil() {
+        final String channelId = UUID.randomUUID().toString();
+        assertThat(new TopicBroadcaster.MessageTemplate(7L).encode(Arrays.asList(channelId)),
+                equalTo(JsonUtil.toJson(new NotificationMessageImpl(new AckImpl(channelId, 7L)))));
+        final String quoted = "channel\"1";
+        final NotificationMessageImpl escaped = JsonUtil.fromJson(
+                new TopicBroadcaster.MessageTemplate(7L).encode(Arrays.asList(quoted)), NotificationMessageImpl.class);
+        assertThat(escaped.getAcks().iterator().next().getChannelId(), equalTo(quoted));
+    }
+
+    private static String register(final SimplePushServer server, final String uaid, final String channelId) {
+        final String pushEndpoint = server.handleRegister(new RegisterMessageImpl(channelId), uaid).getPushEndpoint();
+        return pushEndpoint.substring(pushEndpoint.lastIndexOf('/') + 1);
+    }
+
+    private HttpResponseStatus subscribe(final TopicBroadcaster broadcaster, final String topic, final String endpointToken) {
+        return send(broadcaster, request(HttpMethod.PUT, "/update/topic/" + topic + "/" + endpointToken, null)).getStatus();
+    }
+
+    private String startBroadcast(final TopicBroadcaster broadcaster, final String topic, final long version) {
+        final FullHttpResponse response = send(broadcaster, request(HttpMethod.PUT, "/update/topic/" + topic,
+                "version=" + version));
+        assertThat(response.getStatus(), is(HttpResponseStatus.ACCEPTED));
+        final String json = response.content().toString(CharsetUtil.UTF_8);
+        response.release();
+        return JsonUtil.fromJson(json, java.util.Map.class).get("id").toString();
+    }
+
+    private TopicBroadcast awaitBroadcast(final TopicBroadcaster broadcaster, final String id) throws Exception {
+        final TopicBroadcast broadcast = broadcaster.broadcast(id);
+        for (int i = 0; i < 100 && !broadcast.isDone(); i++) {
+            Thread.sleep(20);
+        }
+        assertThat(broadcast.isDone(), is(true));
+        final FullHttpResponse response = send(broadcaster, request(HttpMethod.GET, "/update/topic/" + broadcast.topic()
+                + "/" + TopicHandler.BROADCASTS_PATH + "/" + id, null));
+        assertThat(response.getStatus(), is(HttpResponseStatus.OK));
+        assertThat(response.content().toString(CharsetUtil.UTF_8), equalTo(broadcast.toJson()));
+        response.release();
+        return broadcast;
+    }
+
+    private FullHttpResponse send(final TopicBroadcaster broadcaster, final FullHttpRequest request) {
+        final EmbeddedChannel channel = new EmbeddedChannel(new TopicHandler(config, broadcaster));
+        channel.writeInbound(request);
+        return (FullHttpResponse) channel.readOutbound();
+    }
+
+    private static FullHttpRequest request(final HttpMethod method, final String uri, final String body) {
+        final FullHttpRequest request = new DefaultFullHttpRequest(HTTP_1_1, method, uri);
+        if (body != null) {
+            request.content().writeBytes(Unpooled.copiedBuffer(body, CharsetUtil.UTF_8));
+        }
+        return request;
+    }
+
+    private static SockJsSessionContext channelSession(final EmbeddedChannel ch) {
+        return new SockJsSessionContext() {
+            @Override
+            public void send(final String message) {
+                ch.writeOutbound(message);
+            }
+
+            @Override
+            public void close() {
+                ch.close();
+            }
+
+            @Override
+            public ChannelHandlerContext getContext() {
+                return null;
+            }
+        };
+    }
+
+}
@@ -22,7 +22,11 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsConfig;
 import org.jboss.aerogear.simplepush.server.SimplePushServerConfig;
 import org.jboss.aerogear.simplepush.server.datastore.InMemoryDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.GroupCommitDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.JdbcDataStore;
 import org.jboss.aerogear.simplepush.server.datastore.JpaDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.ShardedDataStore;
+import org.jboss.aerogear.simplepush.server.datastore.TieredDataStore;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -94,6 +98,35 @@ public class ConfigReaderTest {
         assertThat(simplePushServerConfig.notifierMaxThreads(), is(2));
     }
 
+    @Test
+    public void rateLimits() {
+        assertThat(simplePushServerConfig.endpointRateLimit(), is(10));
+        assertThat(simplePushServerConfig.endpointBurst(), is(20));
+        assertThat(simplePushServerConfig.ipRateLimit(), is(100));
+        assertThat(simplePushServerConfig.ipBurst(), is(100));
+    }
+
+    @Test
+    public void deliveryReports() {
+        assertThat(simplePushServerConfig.deliveryReports(), is(true));
+    }
+
+    @Test
+    public void dedup() {
+        assertThat(simplePushServerConfig.dedupWindowMillis(), is(2000L));
+        assertThat(simplePushServerConfig.dedupMaxEntries(), is(5000));
+    }
+
+    @Test
+    public void topics() {
+        assertThat(simplePushServerConfig.topics(), is(true));
+    }
+
+    @Test
+    public void coalesceWindowMillis() {
+        assertThat(simplePushServerConfig.coalesceWindowMillis(), is(20L));
+    }
+
     @Test
     public void sockjsPrefix() {
         assertThat(sockJsConfig.prefix(), equalTo("/mysimplepush"));
@@ -154,6 +187,18 @@ public class ConfigReaderTest {
         assertThat(sockJsConfig.webSocketProtocol(), hasItems("push-notification", "myproto"));
     }
 
+    @Test
+    public void sockjsWriteBufferWaterMarks() {
+        assertThat(sockJsConfig.writeBufferHighWaterMark(), is(32768));
+        assertThat(sockJsConfig.writeBufferLowWaterMark(), is(8192));
+    }
+
+    @Test
+    public void sockjsOutboundQueue() {
+        assertThat(sockJsConfig.maxQueuedMessages(), is(200));
+        assertThat(sockJsConfig.overflowPolicy(), is(SockJsConfig.OverflowPolicy.CLOSE));
+    }
+
     @Test
     public void inMemoryDataStore() {
         assertThat(standaloneConfig.dataStore(), is(instanceOf(InMemoryDataStore.class)));
@@ -165,6 +210,38 @@ public class ConfigReaderTest {
         assertThat(config.dataStore(), is(instanceOf(JpaDataStore.class)));
     }
 
+    @Test
+    public void jdbcDataStore() {
+        final StandaloneConfig config = ConfigReader.parse(ConfigReaderTest.class.getResourceAsStream("/simplepush-jdbc-config.json"));
+        assertThat(config.dataStore(), is(instanceOf(JdbcDataStore.class)));
+    }
+
+    @Test
+    public void groupCommitDataStore() {
+        final StandaloneConfig config = ConfigReader.parse(ConfigReaderTest.class.getResourceAsStream("/simplepush-group-commit-config.json"));
+        assertThat(config.dataStore(), is(instanceOf(GroupCommitDataStore.class)));
+    }
+
+    @Test
+    public void shardedDataStore() {
+        final StandaloneConfig config = ConfigReader.parse(ConfigReaderTest.class.getResourceAsStream("/simplepush-sharded-config.json"));
+        assertThat(config.dataStore(), is(instanceOf(ShardedDataStore.class)));
+        assertThat(((ShardedDataStore) config.dataStore()).shardCount(), is(2));
+    }
+
+    @Test
+    public void tieredDataStore() {
+        final StandaloneConfig config = ConfigReader.parse(ConfigReaderTest.class.getResourceAsStream("/simplepush-tiered-config.json"));
+        assertThat(config.dataStore(), is(instanceOf(TieredDataStore.class)));
+    }
+
+    @Test
+    public void idleUserAgentCollector() {
+        final StandaloneConfig config = ConfigReader.parse(ConfigReaderTest.class.getResourceAsStream("/simplepush-idle-collector-config.json"));
+        assertThat(config.idleUserAgentCollector(), is(notNullValue()));
+        assertThat(config.idleUserAgentCollector().sweeps(), is(0L));
+    }
+
     @Test
     public void sampleConfig() {
         final StandaloneConfig config = ConfigReader.parse(ConfigReaderTest.class.getResourceAsStream("/simplepush-config.json"));
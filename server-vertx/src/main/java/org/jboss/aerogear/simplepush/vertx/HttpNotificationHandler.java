@@ -24,6 +24,9 @@ import org.jboss.aerogear.simplepush.protocol.NotificationMessage;
 import org.jboss.aerogear.simplepush.protocol.impl.NotificationMessageImpl;
 import org.jboss.aerogear.simplepush.server.Notification;
 import org.jboss.aerogear.simplepush.server.SimplePushServer;
+import org.jboss.aerogear.simplepush.server.datastore.DataStoreFuture;
+import org.jboss.aerogear.simplepush.server.datastore.DataStoreUnavailableException;
+import org.vertx.java.core.Context;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.Vertx;
 import org.vertx.java.core.buffer.Buffer;
@@ -54,22 +57,53 @@ public class HttpNotificationHandler implements Handler<HttpServerRequest> {
             @Override
             public void handle(final Buffer buffer) {
                 try {
-                    final String endpointToken = request.params().get("endpoint");
-                    final String payload = buffer.toString();
-                    logger.info("Notification endpointToken  [" + endpointToken + "] " + payload);
-                    final Notification notification = simplePushServer.handleNotification(endpointToken, payload);
-                    final NotificationMessage notificationMessage = new NotificationMessageImpl(notification.ack());
-                    vertx.eventBus().send(writeHandlerMap.get(notification.uaid()), new Buffer(toJson(notificationMessage)));
-                    request.response().setStatusCode(200);
-                    request.response().end();
-                } catch (final Exception e) {
-                    logger.error(e);
-                    request.response().setStatusCode(400);
-                    request.response().setStatusMessage(e.getMessage());
-                    request.response().end();
+                    simplePushServer.checkAvailable();
+                } catch (final DataStoreUnavailableException e) {
+                    unavailable(request, e);
+                    return;
                 }
+                final String endpointToken = request.params().get("endpoint");
+                final String payload = buffer.toString();
+                logger.info("Notification endpointToken  [" + endpointToken + "] " + payload);
+                final Context context = vertx.currentContext();
+                simplePushServer.handleNotificationAsync(endpointToken, payload).addListener(new DataStoreFuture.Listener<Notification>() {
+                    @Override
+                    public void operationComplete(final DataStoreFuture<Notification> future) {
+                        context.runOnContext(new Handler<Void>() {
+                            @Override
+                            public void handle(final Void event) {
+                                notificationComplete(request, future);
+                            }
+                        });
+                    }
+                });
             }
         });
     }
 
+    private void notificationComplete(final HttpServerRequest request, final DataStoreFuture<Notification> future) {
+        if (future.isSuccess()) {
+            final Notification notification = future.getNow();
+            final NotificationMessage notificationMessage = new NotificationMessageImpl(notification.ack());
+            vertx.eventBus().send(writeHandlerMap.get(notification.uaid()), new Buffer(toJson(notificationMessage)));
+            request.response().setStatusCode(200);
+            request.response().end();
+        } else if (future.cause() instanceof DataStoreUnavailableException) {
+            unavailable(request, (DataStoreUnavailableException) future.cause());
+        } else {
+            logger.error(future.cause());
+            request.response().setStatusCode(400);
+            request.response().setStatusMessage(String.valueOf(future.cause().getMessage()));
+            request.response().end();
+        }
+    }
+
+    private void unavailable(final HttpServerRequest request, final DataStoreUnavailableException e) {
+        logger.warn(e.getMessage());
+        request.response().setStatusCode(503);
+        request.response().setStatusMessage("Service Unavailable");
+        request.response().putHeader("Retry-After", String.valueOf(Math.max(1, (e.retryAfterMillis() + 999) / 1000)));
+        request.response().end();
+    }
+
 }
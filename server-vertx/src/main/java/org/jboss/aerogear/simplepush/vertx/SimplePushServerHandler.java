@@ -19,6 +19,8 @@ package org.jboss.aerogear.simplepush.vertx;
 import static org.jboss.aerogear.simplepush.protocol.impl.json.JsonUtil.fromJson;
 import static org.jboss.aerogear.simplepush.protocol.impl.json.JsonUtil.toJson;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 
@@ -38,7 +40,9 @@ import org.jboss.aerogear.simplepush.protocol.impl.RegisterMessageImpl;
 import org.jboss.aerogear.simplepush.protocol.impl.UnregisterMessageImpl;
 import org.jboss.aerogear.simplepush.protocol.impl.json.JsonUtil;
 import org.jboss.aerogear.simplepush.server.SimplePushServer;
+import org.jboss.aerogear.simplepush.server.datastore.DataStoreFuture;
 import org.jboss.aerogear.simplepush.util.UUIDUtil;
+import org.vertx.java.core.Context;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.Vertx;
 import org.vertx.java.core.buffer.Buffer;
@@ -57,7 +61,6 @@ public class SimplePushServerHandler implements Handler<SockJSSocket> {
     private final ConcurrentMap<String, Long> lastAccessedMap;
     private final Vertx vertx;
     private final Container container;
-    private String uaid;
 
     public SimplePushServerHandler(final SimplePushServer simplePushServer, final Vertx vertx, final Container container) {
         this.simplePushServer = simplePushServer;
@@ -70,54 +73,134 @@ public class SimplePushServerHandler implements Handler<SockJSSocket> {
 
     @Override
     public void handle(final SockJSSocket sock) {
-        sock.dataHandler(new Handler<Buffer>() {
+        final Connection connection = new Connection(sock);
+        sock.dataHandler(connection);
+        sock.endHandler(new Handler<Void>() {
             @Override
-            public void handle(final Buffer buffer) {
-                final MessageType messageType = JsonUtil.parseFrame(buffer.toString());
-                switch (messageType.getMessageType()) {
-                    case HELLO:
-                        HelloMessage handshakeMessage = fromJson(buffer.toString(), HelloMessageImpl.class);
-                        if (!writeHandlerMap.containsKey(handshakeMessage.getUAID())) {
-                            handshakeMessage = new HelloMessageImpl(UUIDUtil.newUAID());
-                        }
-                        final HelloResponse helloResponse = simplePushServer.handleHandshake(handshakeMessage);
-                        sock.write(new Buffer(toJson(helloResponse)));
-                        uaid = helloResponse.getUAID();
-                        writeHandlerMap.put(uaid.toString(), sock.writeHandlerID());
-                        lastAccessedMap.put(uaid.toString(), System.currentTimeMillis());
-                        logger.info("UserAgent [" + uaid + "] handshake done");
-                        break;
-                    case REGISTER:
-                        if (checkHandshakeCompleted(uaid)) {
-                            final RegisterResponse response = simplePushServer.handleRegister(fromJson(buffer.toString(), RegisterMessageImpl.class), uaid);
-                            sock.write(new Buffer(toJson(response)));
-                            logger.info("UserAgent [" + uaid + "] Registered[" + response + "]");
-                        }
-                        break;
-                    case UNREGISTER:
-                        if (checkHandshakeCompleted(uaid)) {
-                            final UnregisterMessage unregister = fromJson(buffer.toString(), UnregisterMessageImpl.class);
-                            final UnregisterResponse response = simplePushServer.handleUnregister(unregister, uaid);
-                            sock.write(new Buffer(toJson(response)));
-                            logger.info("UserAgent [" + uaid + "] Unregistered[" + response.getChannelId() + "]");
-                        }
-                        break;
-                    case ACK:
-                        if (checkHandshakeCompleted(uaid)) {
-                            final AckMessage ack = fromJson(buffer.toString(), AckMessageImpl.class);
-                            simplePushServer.handleAcknowledgement(ack, uaid);
-                            processUnacked(uaid);
+            public void handle(final Void event) {
+                connection.close();
+            }
+        });
+    }
+
+    /**
+     * The state of a single SockJS connection.
+     * <p>
+     * Handshakes are handled without blocking the event loop, see {@link SimplePushServer#handleHandshakeAsync}.
+     * Messages received while a handshake is in progress are held back and handled in order once it completes.
+     */
+    private class Connection implements Handler<Buffer> {
+
+        private final SockJSSocket sock;
+        private String uaid;
+        private List<String> heldMessages;
+        private boolean closed;
+
+        Connection(final SockJSSocket sock) {
+            this.sock = sock;
+        }
+
+        @Override
+        public void handle(final Buffer buffer) {
+            handleMessage(buffer.toString());
+        }
+
+        private void handleMessage(final String message) {
+            if (heldMessages != null) {
+                heldMessages.add(message);
+                return;
+            }
+            final MessageType messageType = JsonUtil.parseFrame(message);
+            switch (messageType.getMessageType()) {
+                case HELLO:
+                    HelloMessage handshakeMessage = fromJson(message, HelloMessageImpl.class);
+                    if (!writeHandlerMap.containsKey(handshakeMessage.getUAID())) {
+                        handshakeMessage = new HelloMessageImpl(UUIDUtil.newUAID());
+                    }
+                    handshake(handshakeMessage);
+                    return;
+                case REGISTER:
+                    if (checkHandshakeCompleted(uaid)) {
+                        final RegisterResponse response = simplePushServer.handleRegister(fromJson(message, RegisterMessageImpl.class), uaid);
+                        sock.write(new Buffer(toJson(response)));
+                        logger.info("UserAgent [" + uaid + "] Registered[" + response + "]");
+                    }
+                    break;
+                case UNREGISTER:
+                    if (checkHandshakeCompleted(uaid)) {
+                        final UnregisterMessage unregister = fromJson(message, UnregisterMessageImpl.class);
+                        final UnregisterResponse response = simplePushServer.handleUnregister(unregister, uaid);
+                        sock.write(new Buffer(toJson(response)));
+                        logger.info("UserAgent [" + uaid + "] Unregistered[" + response.getChannelId() + "]");
+                    }
+                    break;
+                case ACK:
+                    if (checkHandshakeCompleted(uaid)) {
+                        final AckMessage ack = fromJson(message, AckMessageImpl.class);
+                        simplePushServer.handleAcknowledgement(ack, uaid);
+                        processUnacked(uaid);
+                    }
+                    break;
+                case PING:
+                    sock.write(new Buffer(PingMessageImpl.JSON));
+                    break;
+                default:
+                    break;
+            }
+            updateAccessedTime(uaid);
+        }
+
+        private void handshake(final HelloMessage hello) {
+            heldMessages = new ArrayList<String>();
+            final Context context = vertx.currentContext();
+            simplePushServer.handleHandshakeAsync(hello).addListener(new DataStoreFuture.Listener<HelloResponse>() {
+                @Override
+                public void operationComplete(final DataStoreFuture<HelloResponse> response) {
+                    context.runOnContext(new Handler<Void>() {
+                        @Override
+                        public void handle(final Void event) {
+                            handshakeComplete(hello, response);
                         }
-                        break;
-                    case PING:
-                        sock.write(new Buffer(PingMessageImpl.JSON));
-                        break;
-                    default:
-                        break;
+                    });
                 }
-                updateAccessedTime(uaid);
+            });
+        }
+
+        private void handshakeComplete(final HelloMessage hello, final DataStoreFuture<HelloResponse> response) {
+            final List<String> held = heldMessages;
+            heldMessages = null;
+            if (!response.isSuccess()) {
+                logger.error("Handshake of UserAgent [" + hello.getUAID() + "] failed", response.cause());
+                simplePushServer.handleDisconnect(hello.getUAID());
+                sock.close();
+                return;
             }
-        });
+            final String newUaid = response.getNow().getUAID();
+            if (closed) {
+                // every handshake is matched by a disconnect, including one completing after the socket closed.
+                simplePushServer.handleDisconnect(newUaid);
+                return;
+            }
+            if (uaid != null) {
+                // every handshake is matched by one disconnect, release the previous handshake.
+                simplePushServer.handleDisconnect(uaid);
+            }
+            sock.write(new Buffer(toJson(response.getNow())));
+            uaid = newUaid;
+            writeHandlerMap.put(uaid, sock.writeHandlerID());
+            lastAccessedMap.put(uaid, System.currentTimeMillis());
+            logger.info("UserAgent [" + uaid + "] handshake done");
+            for (String message : held) {
+                handleMessage(message);
+            }
+        }
+
+        private void close() {
+            closed = true;
+            if (uaid != null) {
+                simplePushServer.handleDisconnect(uaid);
+            }
+        }
     }
 
     private boolean checkHandshakeCompleted(final String uaid) {
@@ -20,7 +20,7 @@ import org.jboss.aerogear.simplepush.server.DefaultSimplePushConfig;
 import org.jboss.aerogear.simplepush.server.DefaultSimplePushServer;
 import org.jboss.aerogear.simplepush.server.SimplePushServer;
 import org.jboss.aerogear.simplepush.server.SimplePushServerConfig;
-import org.jboss.aerogear.simplepush.server.datastore.DataStore;
+import org.jboss.aerogear.simplepush.server.datastore.InMemoryAsyncDataStore;
 import org.jboss.aerogear.simplepush.server.datastore.InMemoryDataStore;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.eventbus.Message;
@@ -45,9 +45,9 @@ public class VertxSimplePushServer extends Verticle {
     @Override
     public void start() {
         final SimplePushServerConfig config = fromConfig(container.config());
-        final DataStore datastore = new InMemoryDataStore();
+        final InMemoryDataStore datastore = new InMemoryDataStore();
         final byte[] privateKey = DefaultSimplePushServer.generateAndStorePrivateKey(datastore, config);
-        final SimplePushServer simplePushServer = new DefaultSimplePushServer(datastore, config, privateKey);
+        final SimplePushServer simplePushServer = new DefaultSimplePushServer(datastore, new InMemoryAsyncDataStore(datastore), config, privateKey);
         final HttpServer httpServer = vertx.createHttpServer();
         setupHttpNotificationHandler(httpServer, simplePushServer);
         setupSimplePushSockJSServer(httpServer, simplePushServer);
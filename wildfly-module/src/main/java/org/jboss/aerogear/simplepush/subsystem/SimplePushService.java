@@ -18,13 +18,16 @@
 package org.jboss.aerogear.simplepush.subsystem;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.util.concurrent.DefaultEventExecutorGroup;
 
 import org.jboss.aerogear.io.netty.handler.codec.sockjs.SockJsConfig;
 import org.jboss.aerogear.simplepush.server.DefaultSimplePushConfig.Builder;
+import org.jboss.aerogear.simplepush.server.NotificationService;
 import org.jboss.aerogear.simplepush.server.SimplePushServerConfig;
 import org.jboss.aerogear.simplepush.server.datastore.DataStore;
 import org.jboss.aerogear.simplepush.server.netty.SockJSChannelInitializer;
@@ -47,6 +50,8 @@ public class SimplePushService implements Service<SimplePushService> {
     private final Builder simplePushConfig;
     private final SockJsConfig sockJsConfig;
     private Channel channel;
+    private SockJSChannelInitializer initializer;
+    private volatile NotificationService notificationService;
 
     public SimplePushService(final Builder simplePushConfig, final SockJsConfig sockJsConfig) {
         this.simplePushConfig = simplePushConfig;
@@ -65,10 +70,14 @@ public class SimplePushService implements Service<SimplePushService> {
             final DefaultEventExecutorGroup reaperExcutorGroup = new DefaultEventExecutorGroup(1);
             final DataStore datastore = injectedDataStore.getValue();
             final SimplePushServerConfig simplePushServerConfig = simplePushConfig.build();
+            initializer = new SockJSChannelInitializer(simplePushServerConfig, datastore,
+                    sockJsConfig, reaperExcutorGroup);
+            notificationService = initializer.notificationService();
             final ServerBootstrap serverBootstrap = new ServerBootstrap()
                 .group(new NioEventLoopGroup(), new NioEventLoopGroup())
                 .channel(NioServerSocketChannel.class)
-                .childHandler(new SockJSChannelInitializer(simplePushServerConfig, datastore, sockJsConfig, reaperExcutorGroup));
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childHandler(initializer);
 
             final SocketBinding socketBinding = injectedSocketBinding.getValue();
             logger.info("SimplePush Server binding to [" + socketBinding.getAddress() + ":" + socketBinding.getPort() + "]");
@@ -82,7 +91,20 @@ public class SimplePushService implements Service<SimplePushService> {
     @Override
     public synchronized void stop(StopContext context) {
         logger.info("SimplePush Server shutting down.");
+        notificationService = null;
         channel.eventLoop().shutdownGracefully();
+        initializer.shutdown();
+    }
+
+    /**
+     * Returns the {@link NotificationService} for submitting notifications from within the application server,
+     * for example from deployments that look up this service, without going through the HTTP notification endpoint.
+     *
+     * @return {@code NotificationService} the in-process notification service, or {@code null} if the service
+     *         has not been started.
+     */
+    public NotificationService getNotificationService() {
+        return notificationService;
     }
 
     public InjectedValue<SocketBinding> getInjectedSocketBinding() {